@@ -20,6 +20,7 @@ import java.lang.ref.WeakReference;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.persistit.exception.PersistitException;
 import com.persistit.exception.PersistitInterruptedException;
@@ -86,6 +87,12 @@ import com.persistit.exception.PersistitInterruptedException;
  * transactionally accurate.
  * </p>
  * <p>
+ * A <code>SumAccumulator</code> updated concurrently by many threads spreads
+ * its live value over a set of cells selected by thread so that updating
+ * threads do not all contend on a single memory location. The live value is
+ * then computed on demand as the sum of the cells.
+ * </p>
+ * <p>
  * <a name="_SeqAccumulator" />
  * <h3>SeqAccumulator</h3>
  * The <code>SeqAccumulator</code> is a combination of
@@ -101,6 +108,17 @@ import com.persistit.exception.PersistitInterruptedException;
  * the shutdown. Note that a transaction that allocates a value and then aborts
  * leaves a gap in the numerical sequence.
  * </p>
+ * <p>
+ * By default every allocation atomically updates the live value. An
+ * application that allocates values at a high rate from many threads may
+ * instead call
+ * {@link com.persistit.Accumulator.SeqAccumulator#setReservationSize(int)} so
+ * that each thread reserves a block of values at a time and hands them out
+ * without further contention. Values are then unique but are no longer
+ * assigned in increasing order across threads, the live value reflects the
+ * end of the most recently reserved block, and values reserved but not
+ * allocated before shutdown leave gaps in the sequence.
+ * </p>
  * 
  * @author peter
  */
@@ -133,11 +151,23 @@ public abstract class Accumulator {
 
     final static int MAX_SERIALIZED_SIZE = Tree.MAX_SERIALIZED_SIZE + 24;
 
+    /**
+     * Number of cells over which a contended <code>SumAccumulator</code>
+     * spreads its live value. Must be a power of two.
+     */
+    final static int LIVE_VALUE_STRIPES = 16;
+
+    /**
+     * Spacing, in longs, between adjacent live value cells so that each cell
+     * occupies its own cache line.
+     */
+    final static int LIVE_VALUE_STRIPE_SPACING = 8;
+
     protected final Tree _tree;
     private final int _index;
     private final TransactionIndex _transactionIndex;
 
-    private final AtomicLong _liveValue = new AtomicLong();
+    final AtomicLong _liveValue = new AtomicLong();
     /*
      * Check-pointed value read during recovery.
      */
@@ -179,11 +209,65 @@ public abstract class Accumulator {
      */
     public final static class SumAccumulator extends Accumulator {
 
+        /*
+         * Cells over which the live value is spread once updates begin to
+         * contend. Null until the first failed compare-and-set on _liveValue.
+         * The live value is the sum of _liveValue and all cells.
+         */
+        private volatile AtomicLongArray _cells;
+
         private SumAccumulator(final Tree tree, final int index, final long baseValue,
                 final TransactionIndex transactionIndex) {
             super(tree, index, baseValue, transactionIndex);
         }
 
+        @Override
+        long updateLiveValue(final long value) {
+            AtomicLongArray cells = _cells;
+            if (cells == null) {
+                final long previous = _liveValue.get();
+                final long updated = updateValue(previous, value);
+                if (_liveValue.compareAndSet(previous, updated)) {
+                    return updated;
+                }
+                cells = cells();
+            }
+            final int index = ((int) Thread.currentThread().getId() & (LIVE_VALUE_STRIPES - 1))
+                    * LIVE_VALUE_STRIPE_SPACING;
+            for (;;) {
+                final long previous = cells.get(index);
+                final long updated = updateValue(previous, value);
+                if (cells.compareAndSet(index, previous, updated)) {
+                    return updated;
+                }
+            }
+        }
+
+        @Override
+        public long getLiveValue() {
+            long value = _liveValue.get();
+            final AtomicLongArray cells = _cells;
+            if (cells != null) {
+                for (int index = 0; index < cells.length(); index += LIVE_VALUE_STRIPE_SPACING) {
+                    value += cells.get(index);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        void setLiveValue(final long value) {
+            _cells = null;
+            _liveValue.set(value);
+        }
+
+        private synchronized AtomicLongArray cells() {
+            if (_cells == null) {
+                _cells = new AtomicLongArray(LIVE_VALUE_STRIPES * LIVE_VALUE_STRIPE_SPACING);
+            }
+            return _cells;
+        }
+
         @Override
         long applyValue(final long a, final long b) {
             return a + b;
@@ -338,6 +422,19 @@ public abstract class Accumulator {
      */
     public final static class SeqAccumulator extends Accumulator {
 
+        private volatile int _reservationSize = 1;
+
+        /*
+         * Per-thread block of reserved values: element 0 holds the last value
+         * handed out and element 1 the last value of the block.
+         */
+        private final ThreadLocal<long[]> _reservedBlock = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[2];
+            }
+        };
+
         private SeqAccumulator(final Tree tree, final int index, final long baseValue,
                 final TransactionIndex transactionIndex) {
             super(tree, index, baseValue, transactionIndex);
@@ -391,7 +488,51 @@ public abstract class Accumulator {
          */
         public long allocate() {
             final Transaction txn = _tree.getPersistit().getTransaction();
-            return update(1, txn.getTransactionStatus(), txn.getStep());
+            final int reservationSize = _reservationSize;
+            if (reservationSize == 1) {
+                return update(1, txn.getTransactionStatus(), txn.getStep());
+            }
+            final TransactionStatus status = txn.getTransactionStatus();
+            checkUncommitted(status);
+            final long[] block = _reservedBlock.get();
+            if (block[0] >= block[1]) {
+                block[1] = updateLiveValue(reservationSize);
+                block[0] = block[1] - reservationSize;
+            }
+            final long value = ++block[0];
+            postDelta(status, txn.getStep(), value);
+            return value;
+        }
+
+        /**
+         * <p>
+         * Set the number of values each thread reserves at a time. With the
+         * default size of 1, every call to {@link #allocate()} atomically
+         * increments the live value. A larger size lets each thread reserve a
+         * block of consecutive values with one atomic update and then hand
+         * them out without contention. See <a
+         * href="#_SeqAccumulator">SeqAccumulator</a> for the consequences.
+         * </p>
+         * <p>
+         * The setting is not persistent and applies to blocks reserved after
+         * this call; blocks already reserved are used up first.
+         * </p>
+         * 
+         * @param reservationSize
+         *            number of values reserved at a time, at least 1
+         */
+        public void setReservationSize(final int reservationSize) {
+            if (reservationSize < 1) {
+                throw new IllegalArgumentException("Reservation size must be positive: " + reservationSize);
+            }
+            _reservationSize = reservationSize;
+        }
+
+        /**
+         * @return the number of values each thread reserves at a time
+         */
+        public int getReservationSize() {
+            return _reservationSize;
         }
 
     }
@@ -519,7 +660,7 @@ public abstract class Accumulator {
         _index = index;
         _baseValue = baseValue;
         _checkpointValue = baseValue;
-        _liveValue.set(baseValue);
+        setLiveValue(baseValue);
         _transactionIndex = transactionIndex;
         _bucketValues = new long[transactionIndex.getHashTableSize()];
         _accumulatorRef = new AccumulatorRef(this);
@@ -644,6 +785,10 @@ public abstract class Accumulator {
         return _liveValue.get();
     }
 
+    void setLiveValue(final long value) {
+        _liveValue.set(value);
+    }
+
     /**
      * Compute the value computed by accumulating values contributed by (a) all
      * transactions having commit timestamps less than or equal to the specified
@@ -688,7 +833,7 @@ public abstract class Accumulator {
      */
     void updateBaseValue(final long value, final long commitTimestamp) {
         _baseValue = applyValue(_baseValue, value);
-        _liveValue.set(_baseValue);
+        setLiveValue(_baseValue);
         /*
          * This method is called during recovery processing to handle a delta
          * operation that was part of a transaction that committed after the
@@ -711,27 +856,47 @@ public abstract class Accumulator {
      *            The step at which the value is applied
      */
     long update(final long value, final TransactionStatus status, final int step) {
-        if (status.getTc() != TransactionStatus.UNCOMMITTED) {
-            throw new IllegalStateException("Transaction has already committed or aborted");
-        }
-        /*
-         * Update the live value using compare-and-set
-         */
-        long previous;
-        long updated;
+        checkUncommitted(status);
+        final long updated = updateLiveValue(value);
+        postDelta(status, step, selectValue(value, updated));
+        return updated;
+    }
+
+    /**
+     * Apply a contribution to the live value. The default implementation
+     * updates a single value using compare-and-set, and avoids the write
+     * entirely when the contribution does not change the value.
+     * <code>SumAccumulator</code> overrides this method to spread updates over
+     * multiple cells when contended; in that case the value returned is the
+     * updated value of one cell rather than the live value.
+     * 
+     * @param value
+     *            The delta value
+     * @return the updated value
+     */
+    long updateLiveValue(final long value) {
         for (;;) {
-            previous = _liveValue.get();
-            updated = updateValue(previous, value);
-            if (_liveValue.compareAndSet(previous, updated)) {
-                break;
+            final long previous = _liveValue.get();
+            final long updated = updateValue(previous, value);
+            if (updated == previous || _liveValue.compareAndSet(previous, updated)) {
+                return updated;
             }
         }
-        /*
-         * Add a Delta to the TransactionStatus
-         */
-        final long selectedValue = selectValue(value, updated);
-        _transactionIndex.addOrCombineDelta(status, this, step, selectedValue);
-        return updated;
+    }
+
+    /**
+     * Add a <code>Delta</code> carrying the supplied value to the
+     * TransactionStatus, merging it with an existing <code>Delta</code> for the
+     * same step if there is one.
+     */
+    void postDelta(final TransactionStatus status, final int step, final long value) {
+        _transactionIndex.addOrCombineDelta(status, this, step, value);
+    }
+
+    void checkUncommitted(final TransactionStatus status) {
+        if (status.getTc() != TransactionStatus.UNCOMMITTED) {
+            throw new IllegalStateException("Transaction has already committed or aborted");
+        }
     }
 
     Tree getTree() {
@@ -749,7 +914,7 @@ public abstract class Accumulator {
      */
     public String toString() {
         return String.format("Accumulator(tree=%s index=%d type=%s base=%,d live=%,d)",
-                _tree == null ? "null" : _tree.getName(), _index, getType(), _baseValue, _liveValue.get());
+                _tree == null ? "null" : _tree.getName(), _index, getType(), _baseValue, getLiveValue());
     }
 
     void store(final Value value) {
@@ -0,0 +1,338 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.persistit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A cache of deserialized objects with a fixed budget. Unlike
+ * {@link com.persistit.encoding.ObjectCache}, which holds its values through
+ * <code>SoftReference</code>s and may be emptied all at once by the garbage
+ * collector, this cache holds no more than a specified number of entries
+ * whose total encoded size does not exceed a specified number of bytes.
+ * </p>
+ * <p>
+ * Entries are kept in least-recently-used order. When the cache is full a
+ * new entry is admitted only if its key has been requested more often than
+ * the key of the least-recently-used entry, which it then replaces. Request
+ * frequencies are estimated by a small count-min sketch whose counters are
+ * halved periodically so that the estimate favors recent history. This
+ * prevents a scan of many keys that are each read once from displacing the
+ * entries that are read repeatedly.
+ * </p>
+ * <p>
+ * A <code>BoundedObjectCache</code> is used by
+ * {@link Exchange#fetchObject()} when it is attached, by calling
+ * <code>setAppCache</code>, either to the <code>Exchange</code> or to its
+ * {@link Tree}. Each entry records the identity and generation of the page
+ * from which its value was decoded; because every change to a page
+ * increments its generation, an entry is discarded rather than returned
+ * once the record may have been changed or removed by any thread. An
+ * instance may be shared by many threads, but it may be attached to only one
+ * <code>Tree</code> because its entries are identified by <code>Key</code>
+ * alone. Objects returned from the cache are shared and must not be
+ * modified.
+ * </p>
+ * <p>
+ * Note: as in <code>ObjectCache</code>, the map is stored using immutable
+ * {@link KeyState} objects, and lookups by <code>Key</code> rely on the
+ * compatible <code>equals</code> and <code>hashCode</code> methods of
+ * <code>Key</code> and <code>KeyState</code>.
+ * </p>
+ */
+public class BoundedObjectCache {
+    /**
+     * Approximate number of bytes of memory used by an entry in addition to
+     * the encoded size of its value.
+     */
+    public final static int ENTRY_OVERHEAD = 96;
+
+    private final static int SKETCH_DEPTH = 4;
+    private final static int MAXIMUM_FREQUENCY = 15;
+    private final static int SAMPLE_FACTOR = 10;
+    private final static int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+    static class Entry {
+        private final Tree _tree;
+        private final Buffer _buffer;
+        private final long _page;
+        private final long _generation;
+        private final Object _object;
+        private final int _size;
+
+        private Entry(final Tree tree, final Buffer buffer, final long page, final long generation,
+                final Object object, final int size) {
+            _tree = tree;
+            _buffer = buffer;
+            _page = page;
+            _generation = generation;
+            _object = object;
+            _size = size;
+        }
+
+        boolean isValid(final Tree tree, final Buffer buffer) {
+            return _tree == tree && _buffer == buffer && _page == buffer.getPageAddress()
+                    && _generation == buffer.getGeneration();
+        }
+
+        Object getObject() {
+            return _object;
+        }
+    }
+
+    private final int _maximumEntries;
+    private final long _maximumBytes;
+    private final LinkedHashMap<Object, Entry> _map = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private final int[] _sketch;
+    private final int _sketchMask;
+    private final int _sampleSize;
+    private int _samples;
+    private long _bytes;
+
+    private long _hitCount;
+    private long _missCount;
+    private long _evictionCount;
+    private long _rejectionCount;
+
+    /**
+     * Construct a cache that holds at most <code>maximumEntries</code>
+     * entries using at most <code>maximumBytes</code> bytes, estimated as the
+     * sum of the encoded sizes of the cached values plus
+     * {@value #ENTRY_OVERHEAD} bytes per entry.
+     *
+     * @param maximumEntries
+     *            the maximum number of entries
+     * @param maximumBytes
+     *            the maximum estimated size of the cached values
+     */
+    public BoundedObjectCache(final int maximumEntries, final long maximumBytes) {
+        if (maximumEntries <= 0) {
+            throw new IllegalArgumentException("Maximum entries must be positive: " + maximumEntries);
+        }
+        if (maximumBytes <= 0) {
+            throw new IllegalArgumentException("Maximum bytes must be positive: " + maximumBytes);
+        }
+        _maximumEntries = maximumEntries;
+        _maximumBytes = maximumBytes;
+        final int width = Integer.highestOneBit(Math.max(16, Math.min(maximumEntries, 1 << 24) - 1) << 1);
+        _sketch = new int[width * SKETCH_DEPTH];
+        _sketchMask = width - 1;
+        _sampleSize = Math.min(maximumEntries, 1 << 24) * SAMPLE_FACTOR;
+    }
+
+    /**
+     * @return the maximum number of entries
+     */
+    public int getMaximumEntries() {
+        return _maximumEntries;
+    }
+
+    /**
+     * @return the maximum estimated size of the cached values
+     */
+    public long getMaximumBytes() {
+        return _maximumBytes;
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public synchronized int size() {
+        return _map.size();
+    }
+
+    /**
+     * @return the estimated size of the cached values
+     */
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    /**
+     * @return the number of requests that returned a cached value
+     */
+    public synchronized long getHitCount() {
+        return _hitCount;
+    }
+
+    /**
+     * @return the number of requests that did not return a cached value
+     */
+    public synchronized long getMissCount() {
+        return _missCount;
+    }
+
+    /**
+     * @return the number of entries removed to make room for other entries
+     */
+    public synchronized long getEvictionCount() {
+        return _evictionCount;
+    }
+
+    /**
+     * @return the number of values not admitted because they were requested
+     *         less frequently than the entry they would have replaced
+     */
+    public synchronized long getRejectionCount() {
+        return _rejectionCount;
+    }
+
+    /**
+     * Remove all entries from this cache.
+     */
+    public synchronized void clear() {
+        _map.clear();
+        _bytes = 0;
+    }
+
+    /**
+     * Remove the entry for the specified key, if there is one.
+     *
+     * @param key
+     *            the <code>Key</code>
+     */
+    public synchronized void remove(final Key key) {
+        final Entry entry = _map.remove(key);
+        if (entry != null) {
+            _bytes -= entry._size + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Look up the entry for a key found in a buffer. The entry is returned
+     * only if it was decoded from the same tree and from the same page in the
+     * same buffer, and the page has not been changed since. A stale entry is
+     * removed.
+     *
+     * @param key
+     *            the <code>Key</code>
+     * @param tree
+     *            the <code>Tree</code> being searched
+     * @param buffer
+     *            the claimed <code>Buffer</code> in which the key was found
+     * @return the valid <code>Entry</code>, or <code>null</code>
+     */
+    synchronized Entry get(final Key key, final Tree tree, final Buffer buffer) {
+        final int hash = key.hashCode();
+        increment(hash);
+        final Entry entry = _map.get(key);
+        if (entry != null) {
+            if (entry.isValid(tree, buffer)) {
+                _hitCount++;
+                return entry;
+            }
+            _map.remove(key);
+            _bytes -= entry._size + ENTRY_OVERHEAD;
+        }
+        _missCount++;
+        return null;
+    }
+
+    /**
+     * Add an entry for an object decoded from the value of a key found in a
+     * buffer. The page address and generation must have been read while the
+     * buffer was claimed so that they identify the version of the value that
+     * was decoded, and the caller must hold a claim on the buffer and have
+     * verified that they are unchanged. If the cache is full, the entry
+     * either replaces one or more of the least recently used entries or is
+     * not added.
+     *
+     * @param key
+     *            the <code>Key</code>
+     * @param tree
+     *            the <code>Tree</code> being searched
+     * @param buffer
+     *            the <code>Buffer</code> in which the key was found
+     * @param page
+     *            the page address of the buffer when the key was found
+     * @param generation
+     *            the generation of the buffer when the key was found
+     * @param object
+     *            the decoded object
+     * @param size
+     *            the encoded size of the value
+     * @return <code>true</code> if the entry was added
+     */
+    synchronized boolean put(final Key key, final Tree tree, final Buffer buffer, final long page,
+            final long generation, final Object object, final int size) {
+        final long required = (long) size + ENTRY_OVERHEAD;
+        final Entry previous = _map.remove(key);
+        if (previous != null) {
+            _bytes -= previous._size + ENTRY_OVERHEAD;
+        }
+        if (required > _maximumBytes) {
+            _rejectionCount++;
+            return false;
+        }
+        final int frequency = frequency(key.hashCode());
+        final Iterator<Map.Entry<Object, Entry>> iterator = _map.entrySet().iterator();
+        while (_map.size() >= _maximumEntries || _bytes + required > _maximumBytes) {
+            final Map.Entry<Object, Entry> eldest = iterator.next();
+            if (frequency <= frequency(eldest.getKey().hashCode())) {
+                _rejectionCount++;
+                return false;
+            }
+            iterator.remove();
+            _bytes -= eldest.getValue()._size + ENTRY_OVERHEAD;
+            _evictionCount++;
+        }
+        _map.put(new KeyState(key), new Entry(tree, buffer, page, generation, object, size));
+        _bytes += required;
+        return true;
+    }
+
+    private void increment(final int hash) {
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            final int index = index(hash, row);
+            if (_sketch[index] < MAXIMUM_FREQUENCY) {
+                _sketch[index]++;
+            }
+        }
+        if (++_samples >= _sampleSize) {
+            for (int index = 0; index < _sketch.length; index++) {
+                _sketch[index] >>>= 1;
+            }
+            _samples /= 2;
+        }
+    }
+
+    private int frequency(final int hash) {
+        int frequency = MAXIMUM_FREQUENCY;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            frequency = Math.min(frequency, _sketch[index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private int index(final int hash, final int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return row * (_sketchMask + 1) + (h & _sketchMask);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BoundedObjectCache(size=%,d/%,d bytes=%,d/%,d hits=%,d misses=%,d "
+                + "evictions=%,d rejections=%,d)", _map.size(), _maximumEntries, _bytes, _maximumBytes, _hitCount,
+                _missCount, _evictionCount, _rejectionCount);
+    }
+}
@@ -79,9 +79,11 @@ public class Buffer extends SharedResource {
      */
     public final static int MIN_BUFFER_SIZE = 1024;
     /**
-     * Architectural upper bound on buffer size
+     * Architectural upper bound on buffer size. Tail block offsets in pages
+     * larger than 16384 bytes use the high-order tail pointer bit of the key
+     * block encoding.
      */
-    public final static int MAX_BUFFER_SIZE = 16384;
+    public final static int MAX_BUFFER_SIZE = 32768;
     /**
      * Page type code for an unallocated page.
      */
@@ -216,12 +218,18 @@ public class Buffer extends SharedResource {
     // Mask for the discriminator byte field within a keyblock
     private final static int DB_MASK = 0x000000FF;
 
-    // Mask for the key common count field within a keyblock
-    private final static int EBC_MASK = 0x000FFF00;
+    // Mask for the key common count field within a keyblock. Eleven bits
+    // suffice because a stored key is at most Key.MAX_KEY_LENGTH bytes long.
+    private final static int EBC_MASK = 0x0007FF00;
 
     // Mask for the tail pointer within a keyblock
     private final static int TAIL_MASK = 0xFFF00000;
 
+    // Mask for the high-order bit of the tail pointer within a keyblock. This
+    // bit was formerly the unused high-order bit of the key common count
+    // field, and is always zero in pages of 16384 bytes or less.
+    private final static int TAIL_HIGH_MASK = 0x00080000;
+
     // Shift for discriminator byte field
     // private final static int DB_SHIFT = 0;
 
@@ -231,6 +239,9 @@ public class Buffer extends SharedResource {
     // Shift for tail pointer
     private final static int TAIL_SHIFT = 20 - 2;
 
+    // Shift for the high-order bit of the tail pointer
+    private final static int TAIL_HIGH_SHIFT = 19 - 14;
+
     final static int GARBAGE_BLOCK_SIZE = 32;
 
     private final static int GARBAGE_BLOCK_STATUS = 4;
@@ -288,6 +299,61 @@ public class Buffer extends SharedResource {
         }
     }
 
+    /**
+     * Candidate split or rebalance locations, each with its fitness measure
+     * and the encoded size of the key that would become the first key of the
+     * right page and therefore the separator posted to the parent index page.
+     * Used to choose the shortest separator within the split interval.
+     */
+    static class SeparatorCandidates {
+        private final int[] _offsets;
+        private final int[] _fits;
+        private final int[] _sizes;
+        private int _count;
+
+        SeparatorCandidates(final int capacity) {
+            _offsets = new int[capacity];
+            _fits = new int[capacity];
+            _sizes = new int[capacity];
+        }
+
+        void add(final int offset, final int fit, final int separatorSize) {
+            if (_count < _offsets.length) {
+                _offsets[_count] = offset;
+                _fits[_count] = fit;
+                _sizes[_count] = separatorSize;
+                _count++;
+            }
+        }
+
+        /**
+         * @param bestOffset
+         *            offset having the best fitness
+         * @param threshold
+         *            minimum acceptable fitness
+         * @return the offset of the candidate having the shortest separator
+         *         among those whose fitness is at least
+         *         <code>threshold</code>, preferring greater fitness among
+         *         those of equal size, or <code>bestOffset</code> if there is
+         *         none
+         */
+        int select(final int bestOffset, final int threshold) {
+            int selected = bestOffset;
+            int selectedFit = 0;
+            int selectedSize = Integer.MAX_VALUE;
+            for (int index = 0; index < _count; index++) {
+                final int fit = _fits[index];
+                final int size = _sizes[index];
+                if (fit >= threshold && (size < selectedSize || size == selectedSize && fit > selectedFit)) {
+                    selected = _offsets[index];
+                    selectedFit = fit;
+                    selectedSize = size;
+                }
+            }
+            return selected;
+        }
+    }
+
     // For debugging - set true in debugger to create verbose toString() output.
     //
     boolean _toStringDebug = false;
@@ -442,6 +508,30 @@ public class Buffer extends SharedResource {
         bumpGeneration();
     }
 
+    /**
+     * Replace the content of this buffer, which holds a newly allocated page,
+     * with a copy of the page held by the supplied buffer. The page address of
+     * this buffer is unchanged. Used to relocate a page.
+     * 
+     * @param buffer
+     *            The buffer holding the page to copy
+     */
+    void copyPage(final Buffer buffer) {
+        assert isOwnedAsWriterByMe();
+        Debug.$assert0.t(buffer._bufferSize == _bufferSize && buffer != this);
+        System.arraycopy(buffer._bytes, 0, _bytes, 0, _bufferSize);
+        _type = buffer._type;
+        setKeyBlockEnd(buffer._keyBlockEnd);
+        _tailHeaderSize = buffer._tailHeaderSize;
+        _rightSibling = buffer._rightSibling;
+        _alloc = buffer._alloc;
+        _slack = buffer._slack;
+        _mvvCount = buffer._mvvCount;
+        clearEnqueuedForPruning();
+        invalidateFastIndex();
+        bumpGeneration();
+    }
+
     void clearEnqueuedForPruning() {
         _enqueuedForAntiValuePruning = false;
         _lastPrunedTime = 0;
@@ -1158,6 +1248,42 @@ public class Buffer extends SharedResource {
         return value;
     }
 
+    /**
+     * Point the supplied {@link ValueView} at the value of the record found at
+     * <code>foundAt</code> without copying it. This is possible only for an
+     * ordinary value: a multi-version value, a long record or an antivalue
+     * must be fetched and resolved instead. The view is valid only while this
+     * buffer remains claimed.
+     *
+     * @param foundAt
+     *            Location of the record, as returned by a key search
+     * @param view
+     *            The <code>ValueView</code>
+     * @return <code>true</code> if the view now refers to the record's value,
+     *         or <code>false</code> if the value must be fetched
+     */
+    boolean view(final int foundAt, final ValueView view) {
+        if ((foundAt & EXACT_MASK) == 0 || !isDataPage()) {
+            return false;
+        }
+        final int kbData = getInt(foundAt & P_MASK);
+        final int tail = decodeKeyBlockTail(kbData);
+        final int tbData = getInt(tail);
+        final int klength = decodeTailBlockKLength(tbData);
+        final int size = decodeTailBlockSize(tbData);
+        final int valueSize = size - klength - _tailHeaderSize;
+        final int offset = tail + _tailHeaderSize + klength;
+        if (valueSize <= 0 || MVV.isArrayMVV(_bytes, offset, valueSize)) {
+            return false;
+        }
+        final int type = _bytes[offset] & 0xFF;
+        if (type == LONGREC_TYPE || type == ANTIVALUE_TYPE) {
+            return false;
+        }
+        view.init(_bytes, offset, valueSize);
+        return true;
+    }
+
     long fetchLongRecordPointer(final int foundAt) {
         if (!isDataPage()) {
             return 0;
@@ -1208,6 +1334,26 @@ public class Buffer extends SharedResource {
         return getInt(tail + 4);
     }
 
+    /**
+     * Change the child page address of the index record at
+     * <code>foundAt</code>. Used when the child page is relocated.
+     * 
+     * @param foundAt
+     *            Key block offset of the index record
+     * @param pointer
+     *            New child page address
+     * @throws PersistitException
+     */
+    void setPointer(final int foundAt, final long pointer) throws PersistitException {
+        if (!isIndexPage()) {
+            throw new InvalidPageTypeException("type=" + _type);
+        }
+        Debug.$assert0.t(isOwnedAsWriterByMe());
+        final int kbData = getInt(foundAt & P_MASK);
+        final int tail = decodeKeyBlockTail(kbData);
+        putInt(tail + TAILBLOCK_POINTER, (int) pointer);
+    }
+
     /**
      * Internal implementation of getKey using a previously computed result from
      * the findKey() method.
@@ -1675,6 +1821,11 @@ public class Buffer extends SharedResource {
         } else if (wasMVV && !isMVV) {
             _mvvCount--;
         }
+        //
+        // The record may have been rewritten in place without changing its
+        // size; readers validating against the generation must see a change.
+        //
+        bumpGeneration();
         if (Debug.ENABLED) {
             assertVerify();
         }
@@ -1992,6 +2143,13 @@ public class Buffer extends SharedResource {
         int whereInserted = -1;
 
         final int rightKeyBlock = _keyBlockEnd - KEYBLOCK_LENGTH;
+        //
+        // Candidate locations recorded for choosing the shortest separator
+        // within the split interval.
+        //
+        final int splitInterval = policy.splitInterval(_bufferSize - KEY_BLOCK_START, sequence);
+        final SeparatorCandidates candidates = splitInterval > 0 ? new SeparatorCandidates(getKeyCount() + 1)
+                : null;
         for (int p = KEY_BLOCK_START; p < rightKeyBlock;) {
             int splitCandidate = 0;
             if (p == foundAtPosition && armed) {
@@ -2028,6 +2186,9 @@ public class Buffer extends SharedResource {
                         splitBest = splitCandidate;
                         splitAt = p | EXACT_MASK;
                     }
+                    if (candidates != null && splitCandidate > 0) {
+                        candidates.add(p | EXACT_MASK, splitCandidate, ebc + 1 + decodeTailBlockKLength(tbData));
+                    }
                 }
                 armed = false;
             } else {
@@ -2041,6 +2202,7 @@ public class Buffer extends SharedResource {
 
                 p += KEYBLOCK_LENGTH;
                 int edgeTailBlockSize;
+                int separatorSize;
 
                 if (p == foundAtPosition && armed) {
                     tbSizeDelta = (((isIndexPage() ? 0 : newValueSize) + _tailHeaderSize + key.getEncodedSize() + ~TAILBLOCK_MASK) & TAILBLOCK_MASK)
@@ -2048,6 +2210,7 @@ public class Buffer extends SharedResource {
 
                     edgeTailBlockSize = (key.getEncodedSize() - depth + _tailHeaderSize + ~TAILBLOCK_MASK)
                             & TAILBLOCK_MASK;
+                    separatorSize = key.getEncodedSize();
                 } else {
                     kbData = getInt(p);
                     tbData = getInt(decodeKeyBlockTail(kbData));
@@ -2059,6 +2222,7 @@ public class Buffer extends SharedResource {
 
                     edgeTailBlockSize = (decodeTailBlockKLength(tbData) + _tailHeaderSize + ~TAILBLOCK_MASK)
                             & TAILBLOCK_MASK;
+                    separatorSize = ebc + 1 + decodeTailBlockKLength(tbData);
                 }
 
                 if (p < rightKeyBlock) {
@@ -2071,6 +2235,9 @@ public class Buffer extends SharedResource {
                         splitBest = splitCandidate;
                         splitAt = p;
                     }
+                    if (candidates != null && splitCandidate > 0) {
+                        candidates.add(p, splitCandidate, separatorSize);
+                    }
                 }
             }
             // Following is true when we have gone past the best split
@@ -2085,6 +2252,9 @@ public class Buffer extends SharedResource {
                     + foundAtPosition + " currentSize=" + currentSize + " virtualSize=" + virtualSize + " leftSize="
                     + leftSize);
         }
+        if (candidates != null) {
+            splitAt = candidates.select(splitAt, splitBest - splitInterval);
+        }
         //
         // Now move the keys and records.
         //
@@ -2651,6 +2821,81 @@ public class Buffer extends SharedResource {
         return result;
     }
 
+    /**
+     * <p>
+     * Merge the content of the supplied right sibling page into this page,
+     * provided the combined content would occupy no more than
+     * <code>maxSize</code> bytes. The right edge key of this page is removed
+     * and every key block of the right page, including its right edge key, is
+     * appended. This page's right sibling pointer is changed to that of the
+     * supplied page, which is left empty. The caller is responsible for
+     * removing the index record pointing to the right page and for
+     * deallocating it.
+     * </p>
+     * <p>
+     * Unlike {@link #join(Buffer, int, int, Key, Key, JoinPolicy)}, this method
+     * removes no records and never rebalances; it is used to compact sparse
+     * pages.
+     * </p>
+     *
+     * @param buffer
+     *            The buffer containing the right sibling page
+     * @param maxSize
+     *            Maximum size, including the page header, of the merged page
+     * @return <code>true</code> if the pages were merged, or
+     *         <code>false</code> if their content does not fit and neither
+     *         buffer has been changed
+     */
+    final boolean merge(final Buffer buffer, final int maxSize) {
+        Debug.$assert0.t(buffer != this && _rightSibling == buffer._page && getPageType() == buffer.getPageType());
+
+        final int edge = _keyBlockEnd - KEYBLOCK_LENGTH;
+        if (edge <= KEY_BLOCK_START || buffer._keyBlockEnd <= KEY_BLOCK_START) {
+            return false;
+        }
+        if (Debug.ENABLED) {
+            assertVerify();
+            buffer.assertVerify();
+        }
+        final int virtualSize = inUseSize() + buffer.inUseSize() - (int) joinMeasure(edge, _keyBlockEnd)
+                + KEY_BLOCK_START;
+        final int virtualKeyCount = ((edge - KEY_BLOCK_START) + (buffer._keyBlockEnd - KEY_BLOCK_START))
+                / KEYBLOCK_LENGTH;
+        if (virtualSize > Math.min(maxSize, _bufferSize) || virtualKeyCount >= _pool.getMaxKeys()) {
+            return false;
+        }
+        final boolean hasMVV = (_mvvCount > 0) || (buffer.getMvvCount() > 0);
+        /*
+         * The first key of the right page is identical to the right edge key
+         * being removed, so its elided byte count in this page will be that of
+         * the edge key.
+         */
+        final int edgeEbc = decodeKeyBlockEbc(getInt(edge));
+
+        joinDeallocateTails(edge, _keyBlockEnd);
+        setKeyBlockEnd(edge);
+        moveRecords(buffer, KEY_BLOCK_START, buffer._keyBlockEnd, edge, false);
+        increaseEbc(edge, edgeEbc);
+
+        buffer.setKeyBlockEnd(KEY_BLOCK_START);
+        buffer.clearBytes(KEY_BLOCK_START, _bufferSize);
+        buffer.setAlloc(_bufferSize);
+
+        setRightSibling(buffer.getRightSibling());
+        if (hasMVV) {
+            _mvvCount = Integer.MAX_VALUE;
+        }
+        invalidateFastIndex();
+        buffer.invalidateFastIndex();
+        bumpGeneration();
+        buffer.bumpGeneration();
+
+        if (Debug.ENABLED) {
+            assertVerify();
+        }
+        return true;
+    }
+
     /**
      * Compute total size used by key blocks and tail blocks within a page. Does
      * not include the size of the page header.
@@ -2785,6 +3030,10 @@ public class Buffer extends SharedResource {
         int joinOffset = 0;
         int leftSize = 0;
 
+        final int rebalanceInterval = policy.rebalanceInterval(_bufferSize - KEY_BLOCK_START);
+        final SeparatorCandidates candidates = rebalanceInterval > 0 ? new SeparatorCandidates(getKeyCount()
+                + buffer.getKeyCount()) : null;
+
         //
         // Working variables
         //
@@ -2820,6 +3069,9 @@ public class Buffer extends SharedResource {
                 joinBest = joinFit;
                 joinOffset = p;
             }
+            if (candidates != null && joinFit > 0 && rightKeyCount < _pool.getMaxKeys()) {
+                candidates.add(p, joinFit, ebc + 1 + klength);
+            }
 
             leftSize += KEYBLOCK_LENGTH + ((size + ~TAILBLOCK_MASK) & TAILBLOCK_MASK);
         }
@@ -2863,9 +3115,15 @@ public class Buffer extends SharedResource {
                 joinBest = joinFit;
                 joinOffset = -p;
             }
+            if (candidates != null && joinFit > 0 && leftKeyCount < _pool.getMaxKeys()) {
+                candidates.add(-p, joinFit, ebc + 1 + klength);
+            }
 
             leftSize += KEYBLOCK_LENGTH + ((size + ~TAILBLOCK_MASK) & TAILBLOCK_MASK) + adjustment;
         }
+        if (candidates != null && joinBest > 0) {
+            joinOffset = candidates.select(joinOffset, joinBest - rebalanceInterval);
+        }
         return joinOffset;
 
     }
@@ -2948,6 +3206,40 @@ public class Buffer extends SharedResource {
         putInt(p, encodeKeyBlock(newEbc, newDb, newTail));
     }
 
+    /**
+     * Increase the elided byte count of the key block at p, removing the
+     * newly elided bytes from its tail block in place. The caller must ensure
+     * that the preceding key shares at least <code>newEbc</code> leading
+     * bytes with this one.
+     */
+    private void increaseEbc(final int p, final int newEbc) {
+        final int kbData = getInt(p);
+        final int oldEbc = decodeKeyBlockEbc(kbData);
+        final int tail = decodeKeyBlockTail(kbData);
+        final int tbData = getInt(tail);
+        final int size = decodeTailBlockSize(tbData);
+        final int klength = decodeTailBlockKLength(tbData);
+        final int delta = newEbc - oldEbc;
+
+        if (delta <= 0) {
+            return;
+        }
+        if (delta > klength) {
+            throw new IllegalArgumentException("newEbc=" + newEbc + " exceeds key length " + (oldEbc + klength + 1));
+        }
+        final int newDb = _bytes[tail + _tailHeaderSize + delta - 1] & 0xFF;
+        System.arraycopy(_bytes, tail + _tailHeaderSize + delta, _bytes, tail + _tailHeaderSize, size
+                - _tailHeaderSize - delta);
+        putInt(tail, encodeTailBlock(size - delta, klength - delta));
+
+        final int oldSize = (size + ~TAILBLOCK_MASK) & TAILBLOCK_MASK;
+        final int newSize = (size - delta + ~TAILBLOCK_MASK) & TAILBLOCK_MASK;
+        if (newSize < oldSize) {
+            deallocTail(tail + newSize, oldSize - newSize);
+        }
+        putInt(p, encodeKeyBlock(newEbc, newDb, tail));
+    }
+
     /**
      * Move records from buffer2 to this buffer. The
      *
@@ -3376,11 +3668,12 @@ public class Buffer extends SharedResource {
 
     static int encodeKeyBlock(final int ebc, final int db, final int tail) {
         return ((ebc << EBC_SHIFT) & EBC_MASK) | ((db /* << DB_SHIFT */) & DB_MASK)
-                | ((tail << TAIL_SHIFT) & TAIL_MASK);
+                | ((tail << TAIL_SHIFT) & TAIL_MASK) | ((tail << TAIL_HIGH_SHIFT) & TAIL_HIGH_MASK);
     }
 
     static int encodeKeyBlockTail(final int kbData, final int tail) {
-        return (kbData & ~TAIL_MASK) | ((tail << TAIL_SHIFT) & TAIL_MASK);
+        return (kbData & ~(TAIL_MASK | TAIL_HIGH_MASK)) | ((tail << TAIL_SHIFT) & TAIL_MASK)
+                | ((tail << TAIL_HIGH_SHIFT) & TAIL_HIGH_MASK);
     }
 
     static int encodeTailBlock(final int size, final int klength) {
@@ -3404,7 +3697,7 @@ public class Buffer extends SharedResource {
     }
 
     static int decodeKeyBlockTail(final int kbData) {
-        return (kbData & TAIL_MASK) >>> TAIL_SHIFT;
+        return ((kbData & TAIL_MASK) >>> TAIL_SHIFT) | ((kbData & TAIL_HIGH_MASK) >>> TAIL_HIGH_SHIFT);
     }
 
     static int decodeTailBlockSize(final int tbData) {
@@ -3686,6 +3979,11 @@ public class Buffer extends SharedResource {
                 if (valueByte == MVV.TYPE_MVV) {
                     final int newSize = MVV.prune(_bytes, offset, oldSize, _persistit.getTransactionIndex(), true,
                             prunedVersions);
+                    //
+                    // MVV.prune may rewrite the value in place even if its
+                    // size is unchanged
+                    //
+                    bumpGeneration();
                     if (newSize != oldSize) {
                         changed = true;
                         final int newTailSize = klength + newSize + _tailHeaderSize;
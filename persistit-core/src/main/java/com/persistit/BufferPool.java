@@ -557,20 +557,43 @@ public class BufferPool {
     }
 
     boolean invalidateSmallVolume(final Volume volume, final boolean mustWrite) throws PersistitException {
+        return invalidate(volume, 1, volume.getStorage().getNextAvailablePage(), mustWrite);
+    }
+
+    /**
+     * Invalidate the buffers holding pages of a specified Volume having page
+     * addresses from <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive).
+     * 
+     * @param volume
+     *            The volume
+     * @param from
+     *            First page address
+     * @param to
+     *            Page address after the last one
+     * @param mustWrite
+     *            Whether dirty pages must be written before being invalidated
+     * @return <code>true</code> if every such buffer was invalidated, or
+     *         <code>false</code> if some buffer could not be claimed
+     * @throws PersistitException
+     */
+    boolean invalidate(final Volume volume, final long from, final long to, final boolean mustWrite)
+            throws PersistitException {
         boolean result = true;
         int markedAvailable = 0;
-        for (long page = 1; page < volume.getStorage().getNextAvailablePage(); page++) {
+        for (long page = from; page < to; page++) {
             final int hashIndex = hashIndex(volume, page);
             _hashLocks[hashIndex % HASH_LOCKS].lock();
             try {
                 for (Buffer buffer = _hashTable[hashIndex]; buffer != null; buffer = buffer.getNext()) {
-                    if ((buffer.getVolume() == volume || volume == null) && !buffer.isFixed() && buffer.isValid()) {
+                    if ((buffer.getVolume() == volume || volume == null) && buffer.getPageAddress() == page
+                            && !buffer.isFixed() && buffer.isValid()) {
                         if (buffer.claim(true, 0)) {
                             // re-check after claim
                             boolean invalidated = false;
                             try {
-                                if ((buffer.getVolume() == volume || volume == null) && !buffer.isFixed()
-                                        && buffer.isValid()) {
+                                if ((buffer.getVolume() == volume || volume == null) && buffer.getPageAddress() == page
+                                        && !buffer.isFixed() && buffer.isValid()) {
                                     if (mustWrite && buffer.isDirty()) {
                                         buffer.writePage();
                                     }
@@ -882,6 +905,32 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Indicate whether a page is currently present in this pool. The answer
+     * may be stale by the time the caller acts on it; it is used to decide
+     * whether a page can be read directly from the volume.
+     *
+     * @param vol
+     *            The Volume
+     * @param page
+     *            The address of the page
+     * @return <code>true</code> if a buffer holds the page
+     */
+    boolean isResident(final Volume vol, final long page) {
+        final int hash = hashIndex(vol, page);
+        _hashLocks[hash % HASH_LOCKS].lock();
+        try {
+            for (Buffer buffer = _hashTable[hash]; buffer != null; buffer = buffer.getNext()) {
+                if (buffer.getPageAddress() == page && buffer.getVolume() == vol) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            _hashLocks[hash % HASH_LOCKS].unlock();
+        }
+    }
+
     /**
      * Returns a copy of Buffer. The returned buffer is newly created, is not a
      * member of the buffer pool, and is not claimed. There is no guarantee that
@@ -1036,6 +1085,14 @@ public class BufferPool {
                                 _persistit.getIOMeter().chargeEvictPageFromPool(buffer.getVolume(),
                                         buffer.getPageAddress(), buffer.getBufferSize(), buffer.getIndex());
                             }
+                        } catch (final InUseException e) {
+                            // A temporary volume is briefly claimed
+                            // exclusively by a thread creating, truncating
+                            // or closing it. Leave the buffer dirty and
+                            // choose another.
+                            if (!buffer.getVolume().isTemporary()) {
+                                throw e;
+                            }
                         } finally {
                             if (!buffer.isValid()) {
                                 return buffer;
@@ -0,0 +1,418 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import static com.persistit.Buffer.KEYBLOCK_LENGTH;
+import static com.persistit.Buffer.PAGE_TYPE_DATA;
+import static com.persistit.Buffer.PAGE_TYPE_INDEX_MAX;
+import static com.persistit.Buffer.TAILBLOCK_HDR_SIZE_DATA;
+import static com.persistit.Buffer.TAILBLOCK_HDR_SIZE_INDEX;
+import static com.persistit.Buffer.TAILBLOCK_MASK;
+
+import com.persistit.ValueHelper.RawValueWriter;
+import com.persistit.exception.InUseException;
+import com.persistit.exception.PersistitException;
+
+/**
+ * <p>
+ * Builds the content of a {@link Tree} from the bottom up out of records
+ * supplied in ascending key order. Storing sorted records through
+ * {@link Exchange#store()} still searches the tree from its root, splits a
+ * page and updates an index page for each page filled. Instead, a
+ * <code>BulkLoader</code> appends each record to the rightmost data page of a
+ * new tree, fills that page before starting the next one, and appends the
+ * first key of each new page to the rightmost page of the index level above
+ * it. Each page is therefore written once, and each record costs a single
+ * insertion at the end of one page. Because every page ends with a copy of
+ * the first key of its right sibling, each record is held until the next one
+ * arrives, and is written to the current page only if room remains for that
+ * copy of the next key.
+ * </p>
+ * <p>
+ * The new pages are not reachable from the tree until {@link #finish()}
+ * replaces the tree's root page in the directory tree. The previous content
+ * of the tree is then deallocated, and unless the volume is temporary a
+ * checkpoint is written. Until that checkpoint completes, recovery after a
+ * failure restores the tree as it was before the load; afterward it restores
+ * the loaded tree. {@link #abort()} deallocates the new pages and leaves the
+ * tree unchanged.
+ * </p>
+ * <p>
+ * Pages are allocated from the volume as the load proceeds, and a
+ * checkpoint taken during the load makes their allocation durable. If
+ * Persistit is not closed normally after such a checkpoint and before
+ * {@link #finish()} or {@link #abort()} completes, the pages written by the
+ * load are not reachable from any tree and are lost, as are the pages of an
+ * allocation extent.
+ * </p>
+ * <p>
+ * Records are written as primordial values that are visible to every
+ * transaction, so the load is not transactional. A tree whose keys are
+ * counted by {@link Tree#countKeys(Key, int)} cannot be loaded, because the
+ * counts would not reflect the new content. A {@link KeyBloomFilter} attached
+ * to the tree is rebuilt by the next lookup. No other thread may use the tree
+ * while {@link #finish()} runs. A <code>BulkLoader</code> is not threadsafe.
+ * </p>
+ */
+public class BulkLoader {
+
+    private final static int MAX_DEPTH = PAGE_TYPE_INDEX_MAX - PAGE_TYPE_DATA + 1;
+    /*
+     * Room needed in the rightmost page of each level for its right guard
+     * record
+     */
+    private final static int GUARD_RESERVE = KEYBLOCK_LENGTH + TAILBLOCK_HDR_SIZE_INDEX;
+
+    private final Persistit _persistit;
+    private final Tree _tree;
+    private final Volume _volume;
+    private final Exchange _exchange;
+    private final int _maxKeys;
+    /*
+     * For each level, the rightmost page, the leftmost page, and the record
+     * that will be written to the rightmost page or its successor once the
+     * following key is known. The pending record of an index level is a
+     * pointer to a page of the level below.
+     */
+    private final Buffer[] _buffers = new Buffer[MAX_DEPTH];
+    private final long[] _firstPages = new long[MAX_DEPTH];
+    private final Key[] _pendingKeys = new Key[MAX_DEPTH];
+    private final long[] _pendingPointers = new long[MAX_DEPTH];
+    private final boolean[] _pending = new boolean[MAX_DEPTH];
+    private final Value _pendingValue;
+    private final Value _pointerValue;
+    private final RawValueWriter _rawValueWriter = new RawValueWriter();
+    private boolean _pendingLongRecord;
+    private int _depth;
+    private long _recordCount;
+    private long _pageCount;
+    private boolean _done;
+
+    /**
+     * Construct a <code>BulkLoader</code> that replaces the content of the
+     * supplied <code>Tree</code>.
+     * 
+     * @param tree
+     *            The <code>Tree</code> to load
+     * @throws IllegalStateException
+     *             if keys of the tree are counted by
+     *             {@link Tree#countKeys(Key, int)}
+     */
+    public BulkLoader(final Tree tree) {
+        if (tree == tree.getVolume().getDirectoryTree()) {
+            throw new IllegalArgumentException("Can't bulk load the directory tree");
+        }
+        if (tree.hasKeyCounters()) {
+            throw new IllegalStateException("Can't bulk load " + tree + " because its keys are counted");
+        }
+        _tree = tree;
+        _volume = tree.getVolume();
+        _persistit = tree.getPersistit();
+        _exchange = new Exchange(tree);
+        _maxKeys = _volume.getStructure().getPool().getMaxKeys();
+        for (int level = 0; level < MAX_DEPTH; level++) {
+            _pendingKeys[level] = new Key(_persistit);
+        }
+        _pendingValue = new Value(_persistit);
+        _pointerValue = new Value(_persistit);
+    }
+
+    /**
+     * @return The <code>Tree</code> being loaded
+     */
+    public Tree getTree() {
+        return _tree;
+    }
+
+    /**
+     * @return The number of records appended
+     */
+    public long getRecordCount() {
+        return _recordCount;
+    }
+
+    /**
+     * @return The number of data and index pages written, not including long
+     *         record pages
+     */
+    public long getPageCount() {
+        return _pageCount;
+    }
+
+    /**
+     * @return The number of levels of the tree built so far
+     */
+    public int getDepth() {
+        return _depth;
+    }
+
+    /**
+     * Append a record to the tree. The key must be greater than the key of
+     * every record appended before it. Neither the <code>Key</code> nor the
+     * <code>Value</code> is modified.
+     * 
+     * @param key
+     *            The key
+     * @param value
+     *            The value
+     * @throws IllegalArgumentException
+     *             if the key is not greater than the previous key
+     * @throws IllegalStateException
+     *             if {@link #finish()} or {@link #abort()} has been called
+     * @throws PersistitException
+     */
+    public void append(final Key key, final Value value) throws PersistitException {
+        checkNotDone();
+        key.testValidForStoreAndFetch(_volume.getPageSize());
+        if (_recordCount > 0 && key.compareTo(_pendingKeys[0]) <= 0) {
+            throw new IllegalArgumentException("Key " + key + " is not greater than previous key "
+                    + _pendingKeys[0]);
+        }
+        if (_depth == 0) {
+            startLevel(0);
+        }
+        if (_pending[0]) {
+            writePending(0, key);
+        }
+        key.copyTo(_pendingKeys[0]);
+        value.copyTo(_pendingValue);
+        if (_pendingValue.getEncodedSize() > _exchange.maxValueSize(key.getEncodedSize())) {
+            _exchange.getLongRecordHelper().storeLongRecord(_pendingValue, false);
+            _pendingLongRecord = true;
+        }
+        _pending[0] = true;
+        _recordCount++;
+    }
+
+    /**
+     * Complete the tree and make it replace the current content of the
+     * <code>Tree</code>. If no records were appended, the tree becomes empty.
+     * 
+     * @return The <code>Tree</code>
+     * @throws InUseException
+     *             if another thread is using the tree
+     * @throws PersistitException
+     */
+    public Tree finish() throws PersistitException {
+        checkNotDone();
+        if (_depth == 0) {
+            startLevel(0);
+        }
+        _done = true;
+        /*
+         * Writing the last pending record of a level may start a new page,
+         * adding a pending pointer to the level above and possibly a new
+         * level.
+         */
+        for (int level = 0; level < _depth; level++) {
+            if (_pending[level]) {
+                writePending(level, null);
+            }
+            if (level == 0) {
+                putRecord(_buffers[level], Key.RIGHT_GUARD_KEY, ValueHelper.EMPTY_VALUE_WRITER);
+            } else {
+                putPointer(_buffers[level], Key.RIGHT_GUARD_KEY, -1);
+            }
+        }
+        completeAll();
+
+        final long newRoot = _firstPages[_depth - 1];
+        final VolumeStructure structure = _volume.getStructure();
+        final long oldRoot;
+        final int oldDepth;
+        if (!_tree.claim(true)) {
+            structure.deallocateTree(newRoot, PAGE_TYPE_DATA + _depth - 1);
+            throw new InUseException("Unable to acquire writer claim on " + _tree);
+        }
+        try {
+            oldRoot = _tree.getRootPageAddr();
+            oldDepth = _tree.getDepth();
+            _tree.changeRootPageAddr(newRoot, _depth - oldDepth);
+            _tree.bumpGeneration();
+            structure.updateDirectoryTree(_tree);
+        } finally {
+            _tree.release();
+        }
+        structure.deallocateTree(oldRoot, oldDepth);
+
+        final KeyBloomFilter filter = _tree.getKeyBloomFilter();
+        if (filter != null) {
+            _tree.resizeKeyBloomFilter(filter, filter.getExpectedKeys());
+        }
+        if (!_volume.isTemporary()) {
+            _persistit.checkpoint();
+        }
+        return _tree;
+    }
+
+    /**
+     * Discard the records appended so far and deallocate their pages. The
+     * <code>Tree</code> is not changed.
+     * 
+     * @throws PersistitException
+     */
+    public void abort() throws PersistitException {
+        if (_done) {
+            return;
+        }
+        _done = true;
+        if (_depth > 0) {
+            completeAll();
+            _volume.getStructure().deallocateTree(_firstPages[_depth - 1], PAGE_TYPE_DATA + _depth - 1);
+        }
+        if (_pendingLongRecord) {
+            /*
+             * The long record chain of a record never written to a page
+             */
+            final long page = Buffer.decodeLongRecordDescriptorPointer(_pendingValue.getEncodedBytes(), 0);
+            _volume.getStructure().deallocateGarbageChain(page, 0);
+        }
+    }
+
+    private void checkNotDone() {
+        if (_done) {
+            throw new IllegalStateException("BulkLoader for " + _tree + " is already finished");
+        }
+    }
+
+    /**
+     * Write the pending record of a level. It is written to the rightmost page
+     * if room remains for the record that follows it, which is a copy of
+     * <code>nextKey</code> or, if <code>nextKey</code> is <code>null</code>,
+     * the right guard record. Otherwise the page is ended with a copy of the
+     * pending key, and the pending record begins a new page.
+     */
+    private void writePending(final int level, final Key nextKey) throws PersistitException {
+        final Key key = _pendingKeys[level];
+        final Buffer buffer = _buffers[level];
+        final int reserve = nextKey == null ? GUARD_RESERVE : recordSize(buffer, nextKey, 0);
+        final int size = recordSize(buffer, key, level == 0 ? _pendingValue.getEncodedSize() : 0);
+        final boolean fits = buffer.getKeyCount() + 2 <= _maxKeys && buffer.getAvailableSize() >= size + reserve;
+        if (!fits || !putPending(buffer, level)) {
+            if (level == 0) {
+                putRecord(buffer, key, ValueHelper.EMPTY_VALUE_WRITER);
+            } else {
+                putPointer(buffer, key, -1);
+            }
+            final Buffer next = allocPage(level);
+            buffer.setRightSibling(next.getPageAddress());
+            _buffers[level] = next;
+            complete(buffer);
+            if (!putPending(next, level)) {
+                throw new IllegalStateException("Record does not fit in an empty page: " + key);
+            }
+            addPointer(level + 1, key, next.getPageAddress());
+        }
+        _pending[level] = false;
+        if (level == 0 && _pendingLongRecord) {
+            _pendingValue.changeLongRecordMode(false);
+            _pendingLongRecord = false;
+        }
+    }
+
+    /**
+     * Make a pointer to a page of the level below, whose first key is
+     * <code>key</code>, the pending record of an index level.
+     */
+    private void addPointer(final int level, final Key key, final long page) throws PersistitException {
+        if (level == _depth) {
+            startLevel(level);
+        }
+        if (_pending[level]) {
+            writePending(level, key);
+        }
+        key.copyTo(_pendingKeys[level]);
+        _pendingPointers[level] = page;
+        _pending[level] = true;
+    }
+
+    private boolean putPending(final Buffer buffer, final int level) throws PersistitException {
+        if (level == 0) {
+            _rawValueWriter.init(_pendingValue);
+            return buffer.putValue(_pendingKeys[level], _rawValueWriter) != -1;
+        } else {
+            return putPointer(buffer, _pendingKeys[level], _pendingPointers[level]);
+        }
+    }
+
+    /**
+     * Upper bound on the space a record occupies in a page, ignoring the
+     * elision of the key bytes it shares with its predecessor.
+     */
+    private int recordSize(final Buffer buffer, final Key key, final int valueSize) {
+        final int tailHeaderSize = buffer.isIndexPage() ? TAILBLOCK_HDR_SIZE_INDEX : TAILBLOCK_HDR_SIZE_DATA;
+        final int tailSize = tailHeaderSize + key.getEncodedSize() + valueSize;
+        return KEYBLOCK_LENGTH + ((tailSize + ~TAILBLOCK_MASK) & TAILBLOCK_MASK);
+    }
+
+    private Buffer allocPage(final int level) throws PersistitException {
+        final Buffer buffer = _volume.getStructure().allocPage();
+        buffer.writePageOnCheckpoint(timestamp());
+        buffer.init(PAGE_TYPE_DATA + level);
+        _pageCount++;
+        return buffer;
+    }
+
+    /**
+     * Start a new level holding a single page. An index level begins with a
+     * pointer to the first page of the level below.
+     */
+    private void startLevel(final int level) throws PersistitException {
+        if (level >= MAX_DEPTH) {
+            throw new IllegalStateException("Tree " + _tree + " is too deep");
+        }
+        final Buffer buffer = allocPage(level);
+        if (level == 0) {
+            putRecord(buffer, Key.LEFT_GUARD_KEY, ValueHelper.EMPTY_VALUE_WRITER);
+        } else {
+            putPointer(buffer, Key.LEFT_GUARD_KEY, _firstPages[level - 1]);
+        }
+        _buffers[level] = buffer;
+        _firstPages[level] = buffer.getPageAddress();
+        _depth = level + 1;
+    }
+
+    private void putRecord(final Buffer buffer, final Key key, final ValueHelper valueHelper)
+            throws PersistitException {
+        if (buffer.putValue(key, valueHelper) == -1) {
+            throw new IllegalStateException("No room for key " + key + " in " + buffer);
+        }
+    }
+
+    private boolean putPointer(final Buffer buffer, final Key key, final long page) throws PersistitException {
+        _pointerValue.setPointerValue(page);
+        _rawValueWriter.init(_pointerValue);
+        return buffer.putValue(key, _rawValueWriter) != -1;
+    }
+
+    private void complete(final Buffer buffer) {
+        buffer.setDirtyAtTimestamp(timestamp());
+        buffer.release();
+    }
+
+    private void completeAll() {
+        for (int level = 0; level < _depth; level++) {
+            complete(_buffers[level]);
+            _buffers[level] = null;
+        }
+    }
+
+    private long timestamp() {
+        return _persistit.getTimestampAllocator().updateTimestamp();
+    }
+}
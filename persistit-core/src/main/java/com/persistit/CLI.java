@@ -157,7 +157,8 @@ public class CLI {
     private final static Map<String, Command> COMMANDS = new TreeMap<String, Command>();
 
     private final static Class<?>[] CLASSES = { CLI.class, BackupTask.class, IntegrityCheck.class, StreamSaver.class,
-            StreamLoader.class, StatisticsTask.class, TaskCheck.class, VolumeHeader.class };
+            StreamLoader.class, StatisticsTask.class, TaskCheck.class, VolumeHeader.class, CompactionTask.class,
+            ShrinkTask.class };
 
     static {
         for (final Class<?> clazz : CLASSES) {
@@ -1023,7 +1024,7 @@ public class CLI {
     Task pview(final @Arg("page|long:-1:-1:99999999999999999|Page address") long pageAddress,
             final @Arg("jaddr|long:-1:-1:99999999999999999|Journal address of a PA page record") long journalAddress,
             final @Arg("index|int:-1:-1:999999999|Buffer pool index") int index,
-            final @Arg("pageSize|int:16384:1024:16384|Buffer pool index") int pageSize,
+            final @Arg("pageSize|int:16384:1024:32768|Buffer pool index") int pageSize,
             final @Arg("level|int:0:0:30|Tree level") int level, final @Arg("key|string|Key") String keyString,
             final @Arg("find|long:-1:0:99999999999999999|Optional page pointer to find") long findPointer,
             final @Arg("maxkey|int:42:4:10000|Maximum displayed key length") int maxkey,
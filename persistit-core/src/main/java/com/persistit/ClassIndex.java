@@ -60,6 +60,7 @@ final class ClassIndex {
     private final static String BY_HANDLE = "byHandle";
     private final static String BY_NAME = "byName";
     private final static String NEXT_ID = "nextId";
+    private final static String SCHEMA = "schema";
     private final static int EXTRA_FACTOR = 2;
 
     final static String CLASS_INDEX_TREE_NAME = "_classIndex";
@@ -339,6 +340,105 @@ final class ClassIndex {
         lookupByClass(clazz);
     }
 
+    /**
+     * Look up the stored record schema of a class having the supplied fields,
+     * registering it as a new version if no stored version of the class's
+     * schema has exactly these fields. Record schemas are used by
+     * {@link CompactValueCoder} and are stored in the same tree as the class
+     * handles. As with handles, a newly registered schema is committed in a
+     * transaction unrelated to the application's.
+     * 
+     * @param clazz
+     *            The <code>Class</code>
+     * @param names
+     *            Names of the fields, in the order they are encoded
+     * @param types
+     *            Encoding types of the fields
+     * @return The stored <code>Schema</code>
+     */
+    CompactValueCoder.Schema registerSchema(final Class<?> clazz, final String[] names, final int[] types) {
+        synchronized (this) {
+            final SessionId saveSessionId = _persistit.getSessionId();
+            Exchange ex = null;
+            try {
+                _persistit.setSessionId(_sessionId);
+                ex = getExchange();
+                final Transaction txn = ex.getTransaction();
+                txn.begin();
+                try {
+                    int version = 0;
+                    ex.clear().append(SCHEMA).append(clazz.getName()).append(Key.BEFORE);
+                    while (ex.next()) {
+                        version = ex.getKey().indexTo(-1).decodeInt();
+                        final CompactValueCoder.Schema stored = CompactValueCoder.Schema.decode(version, ex.getValue());
+                        if (stored.matches(names, types)) {
+                            txn.commit();
+                            return stored;
+                        }
+                    }
+                    final CompactValueCoder.Schema schema = new CompactValueCoder.Schema(version + 1, names, types);
+                    schema.encode(ex.getValue());
+                    ex.clear().append(SCHEMA).append(clazz.getName()).append(schema.getVersion()).store();
+                    txn.commit();
+                    return schema;
+                } finally {
+                    txn.end();
+                }
+            } catch (final PersistitException pe) {
+                throw new ConversionException(pe);
+            } finally {
+                if (ex != null) {
+                    releaseExchange(ex);
+                }
+                _persistit.setSessionId(saveSessionId);
+            }
+        }
+    }
+
+    /**
+     * Look up a version of the stored record schema of a class. This is used
+     * by {@link CompactValueCoder} to decode a record written with a version
+     * of the class other than the current one.
+     * 
+     * @param clazz
+     *            The <code>Class</code>
+     * @param version
+     *            The schema version encoded in the record
+     * @return The stored <code>Schema</code>
+     * @throws ConversionException
+     *             if there is no such version
+     */
+    CompactValueCoder.Schema lookupSchema(final Class<?> clazz, final int version) {
+        synchronized (this) {
+            final SessionId saveSessionId = _persistit.getSessionId();
+            Exchange ex = null;
+            try {
+                _persistit.setSessionId(_sessionId);
+                ex = getExchange();
+                final Transaction txn = ex.getTransaction();
+                txn.begin();
+                try {
+                    ex.clear().append(SCHEMA).append(clazz.getName()).append(version).fetch();
+                    txn.commit();
+                } finally {
+                    txn.end();
+                }
+                if (!ex.getValue().isDefined()) {
+                    throw new ConversionException("Class " + clazz.getName() + " has no stored schema version "
+                            + version);
+                }
+                return CompactValueCoder.Schema.decode(version, ex.getValue());
+            } catch (final PersistitException pe) {
+                throw new ConversionException(pe);
+            } finally {
+                if (ex != null) {
+                    releaseExchange(ex);
+                }
+                _persistit.setSessionId(saveSessionId);
+            }
+        }
+    }
+
     private void hashClassInfo(final ClassInfo ci) {
         final int size = _size.get();
         if (size * EXTRA_FACTOR > _hashTable.length()) {
@@ -21,8 +21,10 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -31,6 +33,22 @@ import com.persistit.AlertMonitor.Event;
 import com.persistit.exception.PersistitException;
 import com.persistit.mxbeans.CleanupManagerMXBean;
 
+/**
+ * <p>
+ * Performs background pruning and other {@link CleanupAction}s. Actions are
+ * distributed over one or more shards, each having its own bounded queue. The
+ * CLEANUP_MANAGER thread performs periodic maintenance and the actions of the
+ * first shard; each additional shard is served by a CLEANUP_WORKER thread. The
+ * number of shards is set by {@link Configuration#setCleanupThreads(int)}.
+ * </p>
+ * <p>
+ * An action on a tree page is assigned to a shard by hashing its tree handle
+ * and a range of page addresses, so that pages of the same tree are pruned in
+ * parallel while neighboring pages are still processed together in page
+ * order. All other actions go to the first shard. An action equal to one that
+ * is already enqueued is not enqueued again.
+ * </p>
+ */
 class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
 
     interface CleanupAction extends Comparable<CleanupAction> {
@@ -42,6 +60,14 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
 
     final static int DEFAULT_QUEUE_SIZE = 100_000;
 
+    final static int MAXIMUM_CLEANUP_THREADS = 64;
+
+    /**
+     * Number of low-order page address bits ignored when assigning a tree page
+     * to a shard, so that runs of adjacent pages land in the same shard.
+     */
+    private final static int SHARD_PAGE_SHIFT = 6;
+
     private final static int WORKLIST_LENGTH = 2_000;
 
     private final static long MINIMUM_MAINTENANCE_INTERVAL_NS = 1_000_000_000L;
@@ -50,7 +76,10 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
 
     private final static long DEFAULT_MINIMUM_PRUNING_DELAY_NS = 1_000;
 
-    private final BlockingQueue<CleanupAction> _cleanupActionQueue = new ArrayBlockingQueue<>(DEFAULT_QUEUE_SIZE);
+    private volatile CleanupShard[] _shards = { new CleanupShard() };
+
+    private final Set<CleanupAction> _pending = Collections
+            .newSetFromMap(new ConcurrentHashMap<CleanupAction, Boolean>());
 
     private final AtomicBoolean _closed = new AtomicBoolean();
 
@@ -62,12 +91,63 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
 
     private final AtomicLong _errors = new AtomicLong();
 
+    private final AtomicLong _duplicates = new AtomicLong();
+
+    private final AtomicLong _maximumEnqueued = new AtomicLong();
+
     private final AtomicLong _minimumPruningDelay = new AtomicLong(DEFAULT_MINIMUM_PRUNING_DELAY_NS);
 
     private long _lastMaintenance;
 
     private long _lastPruneObsoleteTransactions;
 
+    /**
+     * A queue of pending actions and the thread that performs them. The first
+     * shard is served by the CleanupManager itself and has no worker.
+     */
+    private class CleanupShard {
+        private final BlockingQueue<CleanupAction> _queue = new ArrayBlockingQueue<>(DEFAULT_QUEUE_SIZE);
+        private CleanupWorker _worker;
+
+        void kick() {
+            if (_worker != null) {
+                _worker.kick();
+            } else {
+                CleanupManager.this.kick();
+            }
+        }
+    }
+
+    private class CleanupWorker extends IOTaskRunnable {
+        private final CleanupShard _shard;
+
+        CleanupWorker(final CleanupShard shard) {
+            super(CleanupManager.this._persistit);
+            _shard = shard;
+        }
+
+        @Override
+        protected void runTask() throws Exception {
+            /*
+             * Unit tests suspend cleanup by setting a negative poll interval
+             * on the CleanupManager
+             */
+            if (CleanupManager.this.getPollInterval() >= 0) {
+                performActions(_shard, this);
+            }
+        }
+
+        @Override
+        protected boolean shouldStop() {
+            return _closed.get();
+        }
+
+        @Override
+        protected long pollInterval() {
+            return adjustedPollInterval(_shard, CleanupManager.this.getPollInterval());
+        }
+    }
+
     CleanupManager(final Persistit persistit) {
         super(persistit);
     }
@@ -77,16 +157,50 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
         final long now = System.nanoTime();
         _lastMaintenance = now;
         _lastPruneObsoleteTransactions = now;
+        final int threads = _persistit.getConfiguration() == null ? 1 : _persistit.getConfiguration()
+                .getCleanupThreads();
+        final CleanupShard[] shards = new CleanupShard[threads];
+        shards[0] = _shards[0];
+        for (int index = 1; index < threads; index++) {
+            shards[index] = new CleanupShard();
+            shards[index]._worker = new CleanupWorker(shards[index]);
+        }
+        _shards = shards;
         start("CLEANUP_MANAGER", DEFAULT_CLEANUP_INTERVAL_MS);
+        for (int index = 1; index < threads; index++) {
+            shards[index]._worker.start("CLEANUP_WORKER_" + index, DEFAULT_CLEANUP_INTERVAL_MS);
+        }
     }
 
     public void close(final boolean flush) throws PersistitException {
         _closed.set(true);
     }
 
+    /**
+     * @return the worker threads serving shards other than the first
+     */
+    List<IOTaskRunnable> getWorkers() {
+        final List<IOTaskRunnable> workers = new ArrayList<>();
+        for (final CleanupShard shard : _shards) {
+            if (shard._worker != null) {
+                workers.add(shard._worker);
+            }
+        }
+        return workers;
+    }
+
+    @Override
+    protected void crash() {
+        for (final IOTaskRunnable worker : getWorkers()) {
+            worker.crash();
+        }
+        super.crash();
+    }
+
     @Override
     protected void runTask() throws Exception {
-        poll();
+        maintenance();
+        performActions(_shards[0], this);
     }
 
     @Override
@@ -94,15 +208,37 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
         return _closed.get();
     }
 
-    synchronized boolean offer(final CleanupAction action) {
-        final boolean accepted = _cleanupActionQueue.offer(action);
-        if (accepted) {
+    boolean offer(final CleanupAction action) {
+        if (!_pending.add(action)) {
+            _duplicates.incrementAndGet();
+            return true;
+        }
+        final CleanupShard shard = shard(action);
+        if (shard._queue.offer(action)) {
             _accepted.incrementAndGet();
+            final int size = shard._queue.size();
+            for (long maximum = _maximumEnqueued.get(); size > maximum; maximum = _maximumEnqueued.get()) {
+                if (_maximumEnqueued.compareAndSet(maximum, size)) {
+                    break;
+                }
+            }
+            return true;
         } else {
+            _pending.remove(action);
             _refused.incrementAndGet();
-            kick();
+            shard.kick();
+            return false;
+        }
+    }
+
+    private CleanupShard shard(final CleanupAction action) {
+        final CleanupShard[] shards = _shards;
+        if (shards.length == 1 || !(action instanceof CleanupTreePage)) {
+            return shards[0];
         }
-        return accepted;
+        final CleanupTreePage treePage = (CleanupTreePage) action;
+        final int hash = treePage._treeHandle * 31 + (int) (treePage._page >>> SHARD_PAGE_SHIFT);
+        return shards[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length];
     }
 
     @Override
@@ -127,7 +263,26 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
 
     @Override
     public long getEnqueuedCount() {
-        return _cleanupActionQueue.size();
+        long count = 0;
+        for (final CleanupShard shard : _shards) {
+            count += shard._queue.size();
+        }
+        return count;
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        return _duplicates.get();
+    }
+
+    @Override
+    public long getMaximumEnqueuedCount() {
+        return _maximumEnqueued.get();
+    }
+
+    @Override
+    public int getCleanupThreadCount() {
+        return _shards.length;
     }
 
     @Override
@@ -142,15 +297,25 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
 
     @Override
     public long pollInterval() {
-        if (_cleanupActionQueue.size() < DEFAULT_QUEUE_SIZE / 4) {
-            return super.getPollInterval();
+        return adjustedPollInterval(_shards[0], getPollInterval());
+    }
+
+    private long adjustedPollInterval(final CleanupShard shard, final long pollInterval) {
+        if (shard._queue.size() < DEFAULT_QUEUE_SIZE / 4) {
+            return pollInterval;
         }
         return 0;
     }
 
     @Override
     public void poll() throws Exception {
+        maintenance();
+        for (final CleanupShard shard : _shards) {
+            performActions(shard, this);
+        }
+    }
 
+    private void maintenance() throws PersistitException {
         final long now = System.nanoTime();
         if (now - _lastMaintenance > MINIMUM_MAINTENANCE_INTERVAL_NS) {
             _persistit.getIOMeter().poll();
@@ -162,9 +327,17 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
             _persistit.getJournalManager().pruneObsoleteTransactions();
             _lastPruneObsoleteTransactions = now;
         }
+    }
 
+    private void performActions(final CleanupShard shard, final IOTaskRunnable runner) {
         final List<CleanupAction> workList = new ArrayList<>(WORKLIST_LENGTH);
-        _cleanupActionQueue.drainTo(workList, WORKLIST_LENGTH);
+        shard._queue.drainTo(workList, WORKLIST_LENGTH);
+        /*
+         * Remove the drained actions from the pending set before performing
+         * them so that a page changed while its action runs can be enqueued
+         * again.
+         */
+        _pending.removeAll(workList);
         Collections.sort(workList);
 
         for (final CleanupAction action : workList) {
@@ -172,7 +345,7 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
                 action.performAction(_persistit, null);
                 _performed.incrementAndGet();
             } catch (final PersistitException e) {
-                lastException(e);
+                runner.lastException(e);
                 _persistit.getAlertMonitor().post(
                         new Event(AlertLevel.ERROR, _persistit.getLogBase().cleanupException, e, action),
                         AlertMonitor.CLEANUP_CATEGORY);
@@ -183,17 +356,22 @@ class CleanupManager extends IOTaskRunnable implements CleanupManagerMXBean {
 
     @Override
     public synchronized void clear() {
-        _cleanupActionQueue.clear();
+        for (final CleanupShard shard : _shards) {
+            shard._queue.clear();
+        }
+        _pending.clear();
     }
 
     @Override
     public synchronized String toString() {
         final StringBuilder sb = new StringBuilder("[");
-        for (final CleanupAction a : _cleanupActionQueue) {
-            if (sb.length() > 1) {
-                sb.append(",\n ");
+        for (final CleanupShard shard : _shards) {
+            for (final CleanupAction a : shard._queue) {
+                if (sb.length() > 1) {
+                    sb.append(",\n ");
+                }
+                sb.append(a);
             }
-            sb.append(a);
         }
         sb.append("]");
         return sb.toString();
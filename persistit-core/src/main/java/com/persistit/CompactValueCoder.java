@@ -0,0 +1,445 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.persistit.encoding.CoderContext;
+import com.persistit.encoding.CoderManager;
+import com.persistit.encoding.ValueDisplayer;
+import com.persistit.exception.ConversionException;
+
+/**
+ * <p>
+ * A {@link DefaultValueCoder} that encodes the fields of an object in a
+ * compact, positional record format. <code>DefaultValueCoder</code> writes
+ * each field as a self-describing item having its own type code, which for
+ * small objects can take more space than the field values themselves. This
+ * coder instead registers a <i>schema</i> listing the names and encoding types
+ * of the fields once per class, in the same tree of the system volume that
+ * holds the class handles managed by {@link ClassIndex}, and writes each
+ * record as a schema version number followed by the field values in schema
+ * order with no type codes. Integral fields (<code>byte</code>,
+ * <code>short</code>, <code>char</code>, <code>int</code> and
+ * <code>long</code>) are written as zig-zag encoded variable-length integers,
+ * so that values of small magnitude occupy a single byte. Fields of other
+ * types are encoded as by {@link Value#put(Object)}.
+ * </p>
+ * <p>
+ * This encoding is not used unless the application registers a
+ * <code>CompactValueCoder</code> with the {@link CoderManager}, for example:
+ * 
+ * <pre>
+ * <code>
+ *   cm.registerValueCoder(MyClass.class, new CompactValueCoder(persistit, MyClass.class));
+ * </code>
+ * </pre>
+ * 
+ * </p>
+ * <p>
+ * When the fields of a class change, the coder registers a new version of
+ * its schema. Records written with an earlier version remain readable: each
+ * stored field is matched by name to a current field of the same encoding
+ * type, where all integral types are considered the same type, and stored
+ * fields with no match are skipped. Current fields absent from the stored
+ * version retain the values assigned by the constructor used to create the
+ * object. Note that the class handle, and therefore the ability to read
+ * existing records at all, depends on the class's
+ * <code>serialVersionUID</code>, which should be declared explicitly by any
+ * class whose fields are expected to change.
+ * </p>
+ * <p>
+ * Fields declared by a superclass, and classes defining
+ * <code>writeObject</code>/<code>readObject</code> methods or implementing
+ * <code>Externalizable</code>, are handled as by
+ * <code>DefaultValueCoder</code>. The <code>defaultWriteObject</code> and
+ * <code>defaultReadObject</code> methods use the compact format.
+ * </p>
+ */
+public class CompactValueCoder extends DefaultValueCoder implements ValueDisplayer {
+
+    final static int TYPE_OBJECT = 0;
+    final static int TYPE_BOOLEAN = 1;
+    final static int TYPE_INTEGER = 2;
+    final static int TYPE_FLOAT = 3;
+    final static int TYPE_DOUBLE = 4;
+
+    private final Persistit _persistit;
+    private Accessor[] _accessors;
+    private String[] _names;
+    private int[] _types;
+
+    private volatile Schema _currentSchema;
+    private final ConcurrentMap<Integer, Schema> _schemas = new ConcurrentHashMap<Integer, Schema>();
+
+    /**
+     * A version of the list of fields encoded by a
+     * <code>CompactValueCoder</code>.
+     */
+    static class Schema {
+        private final int _version;
+        private final String[] _names;
+        private final int[] _types;
+        /*
+         * For each stored field, the index of the coder's accessor into which
+         * it is decoded, or -1 if it is skipped.
+         */
+        private int[] _accessorIndexes;
+
+        Schema(final int version, final String[] names, final int[] types) {
+            _version = version;
+            _names = names;
+            _types = types;
+        }
+
+        int getVersion() {
+            return _version;
+        }
+
+        boolean matches(final String[] names, final int[] types) {
+            return Arrays.equals(_names, names) && Arrays.equals(_types, types);
+        }
+
+        void encode(final Value value) {
+            value.clear();
+            value.setStreamMode(true);
+            value.put(_names.length);
+            for (int index = 0; index < _names.length; index++) {
+                value.put(_names[index]);
+                value.put(_types[index]);
+            }
+            value.setStreamMode(false);
+        }
+
+        static Schema decode(final int version, final Value value) {
+            value.setStreamMode(true);
+            try {
+                final int count = value.getInt();
+                final String[] names = new String[count];
+                final int[] types = new int[count];
+                for (int index = 0; index < count; index++) {
+                    names[index] = value.getString();
+                    types[index] = value.getInt();
+                }
+                return new Schema(version, names, types);
+            } finally {
+                value.setStreamMode(false);
+            }
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("Schema(").append(_version).append(")[");
+            for (int index = 0; index < _names.length; index++) {
+                if (index > 0) {
+                    sb.append(",");
+                }
+                sb.append(_names[index]).append(':').append(_types[index]);
+            }
+            return sb.append("]").toString();
+        }
+    }
+
+    /**
+     * Constructs a <code>CompactValueCoder</code> for the specified
+     * <code>clientClass</code> that encodes the fields defined by standard
+     * Java serialization. See
+     * {@link DefaultValueCoder#DefaultValueCoder(Persistit, Class)}.
+     * 
+     * @param persistit
+     *            The Persistit instance
+     * @param clientClass
+     *            A (<code>java.io.Serializable</code>) <code>Class</code> of
+     *            objects to be encoded and decoded by this coder
+     * @throws ConversionException
+     *             if the <code>clientClass</code> does not implement
+     *             <code>java.io.Serializable</code>
+     */
+    public CompactValueCoder(final Persistit persistit, final Class<?> clientClass) {
+        super(persistit, clientClass);
+        _persistit = persistit;
+        initFields();
+    }
+
+    /**
+     * Constructs a <code>CompactValueCoder</code> for the specified
+     * <code>clientClass</code> that encodes only the specified fields. See
+     * {@link DefaultValueCoder#DefaultValueCoder(Persistit, Class, Field[])}.
+     * 
+     * @param persistit
+     *            The Persistit instance
+     * @param clientClass
+     *            The <code>Class</code> of objects to be encoded and decoded
+     *            by this coder
+     * @param fields
+     *            The fields to encode and decode
+     */
+    public CompactValueCoder(final Persistit persistit, final Class<?> clientClass, final Field[] fields) {
+        super(persistit, clientClass, fields);
+        _persistit = persistit;
+        initFields();
+    }
+
+    private void initFields() {
+        final Builder builder = getValueBuilder();
+        final int size = builder.getSize();
+        _accessors = new Accessor[size];
+        _names = new String[size];
+        _types = new int[size];
+        for (int index = 0; index < size; index++) {
+            _accessors[index] = builder.getAccessor(index);
+            _names[index] = builder.getAccessorName(index);
+            _types[index] = encodingType(_accessors[index].handleType());
+        }
+    }
+
+    private static int encodingType(final Class<?> type) {
+        if (type == boolean.class) {
+            return TYPE_BOOLEAN;
+        } else if (type == float.class) {
+            return TYPE_FLOAT;
+        } else if (type == double.class) {
+            return TYPE_DOUBLE;
+        } else if (type.isPrimitive()) {
+            return TYPE_INTEGER;
+        } else {
+            return TYPE_OBJECT;
+        }
+    }
+
+    /**
+     * @return The version of the schema describing the current fields of the
+     *         client class, registering it if necessary
+     */
+    int getSchemaVersion() {
+        return currentSchema().getVersion();
+    }
+
+    private Schema currentSchema() {
+        Schema schema = _currentSchema;
+        if (schema == null) {
+            schema = _persistit.getClassIndex().registerSchema(getClientClass(), _names, _types);
+            schema = prepare(schema);
+            _currentSchema = schema;
+        }
+        return schema;
+    }
+
+    private Schema schema(final int version) {
+        final Schema current = currentSchema();
+        if (version == current.getVersion()) {
+            return current;
+        }
+        final Schema schema = _schemas.get(version);
+        if (schema != null) {
+            return schema;
+        }
+        return prepare(_persistit.getClassIndex().lookupSchema(getClientClass(), version));
+    }
+
+    /**
+     * Match the stored fields of the supplied schema to the coder's
+     * accessors and cache the result.
+     */
+    private Schema prepare(final Schema schema) {
+        final int[] accessorIndexes = new int[schema._names.length];
+        for (int index = 0; index < accessorIndexes.length; index++) {
+            accessorIndexes[index] = -1;
+            for (int current = 0; current < _names.length; current++) {
+                if (_names[current].equals(schema._names[index]) && _types[current] == schema._types[index]) {
+                    accessorIndexes[index] = current;
+                    break;
+                }
+            }
+        }
+        schema._accessorIndexes = accessorIndexes;
+        final Schema existing = _schemas.putIfAbsent(schema.getVersion(), schema);
+        return existing == null ? schema : existing;
+    }
+
+    /**
+     * Writes the schema version followed by the fields of the supplied object
+     * in the compact format.
+     * 
+     * @param value
+     *            The <code>Value</code> into which fields should be put
+     * @param object
+     *            The object whose fields are to be serialized
+     * 
+     * @throws ConversionException
+     */
+    @Override
+    public void putDefaultFields(final Value value, final Object object) throws ConversionException {
+        value.putVariableLengthLong(currentSchema().getVersion());
+        Accessor accessor = null;
+        try {
+            for (int index = 0; index < _accessors.length; index++) {
+                accessor = _accessors[index];
+                putField(value, accessor, object);
+            }
+        } catch (final Error e) {
+            throw e;
+        } catch (final Throwable t) {
+            throw new ConversionException("Encoding " + accessor + " for " + getClientClass(), t);
+        }
+    }
+
+    /**
+     * Reads fields written by {@link #putDefaultFields(Value, Object)} using
+     * the schema version recorded in the value.
+     * 
+     * @param value
+     *            The Value from which to read field data
+     * @param target
+     *            The object whose fields will be set
+     * 
+     * @throws ConversionException
+     */
+    @Override
+    void renderDefaultFields(final Value value, final Object target) throws ConversionException {
+        final Schema schema = schema((int) value.getVariableLengthLong());
+        Accessor accessor = null;
+        try {
+            for (int index = 0; index < schema._types.length; index++) {
+                final int accessorIndex = schema._accessorIndexes[index];
+                accessor = accessorIndex < 0 ? null : _accessors[accessorIndex];
+                getField(value, schema._types[index], accessor, target);
+            }
+        } catch (final Error e) {
+            throw e;
+        } catch (final Throwable t) {
+            throw new ConversionException("Decoding " + accessor + " for " + getClientClass(), t);
+        }
+    }
+
+    private static void putField(final Value value, final Accessor accessor, final Object object) throws Throwable {
+        final Class<?> type = accessor.handleType();
+        if (type == int.class) {
+            value.putVariableLengthLong((int) accessor._getter.invokeExact(object));
+        } else if (type == long.class) {
+            value.putVariableLengthLong((long) accessor._getter.invokeExact(object));
+        } else if (type == short.class) {
+            value.putVariableLengthLong((short) accessor._getter.invokeExact(object));
+        } else if (type == char.class) {
+            value.putVariableLengthLong((char) accessor._getter.invokeExact(object));
+        } else if (type == byte.class) {
+            value.putVariableLengthLong((byte) accessor._getter.invokeExact(object));
+        } else if (type == boolean.class) {
+            value.putFixedLengthLong((boolean) accessor._getter.invokeExact(object) ? 1 : 0, 1);
+        } else if (type == float.class) {
+            value.putFixedLengthLong(Float.floatToIntBits((float) accessor._getter.invokeExact(object)), 4);
+        } else if (type == double.class) {
+            value.putFixedLengthLong(Double.doubleToLongBits((double) accessor._getter.invokeExact(object)), 8);
+        } else {
+            value.put((Object) accessor._getter.invokeExact(object));
+        }
+    }
+
+    /**
+     * Decode one stored field and, unless <code>accessor</code> is
+     * <code>null</code>, set it into the target.
+     */
+    private static void getField(final Value value, final int storedType, final Accessor accessor,
+            final Object target) throws Throwable {
+        switch (storedType) {
+        case TYPE_INTEGER: {
+            final long v = value.getVariableLengthLong();
+            if (accessor != null) {
+                final Class<?> type = accessor.handleType();
+                if (type == int.class) {
+                    accessor._setter.invokeExact(target, (int) v);
+                } else if (type == long.class) {
+                    accessor._setter.invokeExact(target, v);
+                } else if (type == short.class) {
+                    accessor._setter.invokeExact(target, (short) v);
+                } else if (type == char.class) {
+                    accessor._setter.invokeExact(target, (char) v);
+                } else {
+                    accessor._setter.invokeExact(target, (byte) v);
+                }
+            }
+            break;
+        }
+        case TYPE_BOOLEAN: {
+            final boolean v = value.getFixedLengthLong(1) != 0;
+            if (accessor != null) {
+                accessor._setter.invokeExact(target, v);
+            }
+            break;
+        }
+        case TYPE_FLOAT: {
+            final float v = Float.intBitsToFloat((int) value.getFixedLengthLong(4));
+            if (accessor != null) {
+                accessor._setter.invokeExact(target, v);
+            }
+            break;
+        }
+        case TYPE_DOUBLE: {
+            final double v = Double.longBitsToDouble(value.getFixedLengthLong(8));
+            if (accessor != null) {
+                accessor._setter.invokeExact(target, v);
+            }
+            break;
+        }
+        case TYPE_OBJECT: {
+            if (accessor != null) {
+                accessor._setter.invokeExact(target, value.get(null, null));
+            } else {
+                value.skip();
+            }
+            break;
+        }
+        default:
+            throw new ConversionException("Invalid stored field type " + storedType);
+        }
+    }
+
+    /**
+     * Decodes the object and appends the values of its fields, in the order
+     * of the current schema, to the supplied <code>StringBuilder</code>.
+     * Fields declared by a superclass are not displayed.
+     */
+    @Override
+    public void display(final Value value, final StringBuilder target, final Class<?> clazz,
+            final CoderContext context) throws ConversionException {
+        final Object object = get(value, clazz, context);
+        target.append('{');
+        for (int index = 0; index < _accessors.length; index++) {
+            if (index > 0) {
+                target.append(',');
+            }
+            final Object fieldValue;
+            try {
+                fieldValue = _accessors[index]._getter.invoke(object);
+            } catch (final Error e) {
+                throw e;
+            } catch (final Throwable t) {
+                throw new ConversionException("Displaying " + _accessors[index] + " for " + clazz, t);
+            }
+            value.appendDisplayable(target, fieldValue, true, false);
+        }
+        target.append('}');
+    }
+
+    @Override
+    public String toString() {
+        return "CompactValueCoder(" + getClientClass().getName() + "," + getValueBuilder() + ")";
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import com.persistit.CLI.Arg;
+import com.persistit.CLI.Cmd;
+import com.persistit.exception.InUseException;
+import com.persistit.exception.PersistitException;
+import com.persistit.util.Util;
+
+/**
+ * <p>
+ * Task that compacts one or more {@link Tree}s while they remain in use.
+ * Deleting records leaves pages partially empty because pages are joined only
+ * when a single removal spans them. This task walks each level of a tree,
+ * from the data pages up to the children of the root, and merges adjacent
+ * sibling pages having the same parent whenever their combined content fits
+ * within a specified fraction of a page. Each merge removes an index record
+ * from the parent page, which in turn may allow the index pages to be merged
+ * on the next level. The pages freed by merging are returned to the volume's
+ * garbage chain.
+ * </p>
+ * <p>
+ * The task holds an exclusive claim on a tree only while it compacts the
+ * children of one index page. Between index pages it pauses while the I/O
+ * rate reported by {@link IOMeter} exceeds a specified limit so that
+ * compaction proceeds mainly while the system is otherwise quiet.
+ * </p>
+ */
+public class CompactionTask extends Task {
+
+    final static int DEFAULT_FILL = 90;
+
+    private final static long THROTTLE_INTERVAL = 100;
+
+    private TreeSelector _treeSelector;
+    private int _fill = DEFAULT_FILL;
+    private long _ioRateLimit;
+
+    private volatile Tree _currentTree;
+    private volatile int _currentLevel;
+    private volatile long _pagesMerged;
+    private volatile long _busyCount;
+
+    @Cmd("compact")
+    static Task setupTask(
+            @Arg("trees|string|Tree selector: Volumes/Trees to compact") final String treeSelectorString,
+            @Arg("_flag|r|Use regex expression") final boolean regex,
+            @Arg("fill|int:90:10:100|Maximum percentage of a page filled by merging") final int fill,
+            @Arg("iorate|long:0:0:1000000000|Pause while I/O rate exceeds this many KBytes/sec (0 for no limit)") final long ioRate,
+            @Arg("_flag|v|Verbose results") final boolean verbose) throws Exception {
+        final CompactionTask task = new CompactionTask();
+        task._treeSelector = TreeSelector.parseSelector(treeSelectorString, regex, '\\');
+        task._fill = fill;
+        task._ioRateLimit = ioRate;
+        task.setMessageLogVerbosity(verbose ? LOG_VERBOSE : LOG_NORMAL);
+        return task;
+    }
+
+    /**
+     * Package-private constructor for use in a {@link Task}.
+     */
+    CompactionTask() {
+    }
+
+    public CompactionTask(final Persistit persistit) {
+        super(persistit);
+    }
+
+    /**
+     * @return Maximum percentage of a page that may be filled by merging its
+     *         content with that of its right sibling
+     */
+    public int getFill() {
+        return _fill;
+    }
+
+    /**
+     * @param fill
+     *            Maximum percentage of a page that may be filled by merging
+     *            its content with that of its right sibling
+     */
+    public void setFill(final int fill) {
+        _fill = Util.rangeCheck(fill, 10, 100);
+    }
+
+    /**
+     * @return I/O rate in KBytes per second above which compaction pauses, or
+     *         0 if compaction never pauses
+     */
+    public long getIoRateLimit() {
+        return _ioRateLimit;
+    }
+
+    /**
+     * @param ioRateLimit
+     *            I/O rate in KBytes per second above which compaction
+     *            pauses, or 0 if compaction should never pause
+     */
+    public void setIoRateLimit(final long ioRateLimit) {
+        _ioRateLimit = Util.rangeCheck(ioRateLimit, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return Total number of pages freed by merging
+     */
+    public long getPagesMerged() {
+        return _pagesMerged;
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+        for (final Tree tree : _persistit.getSelectedTrees(_treeSelector)) {
+            if (tree.getVolume().isReadOnly()) {
+                continue;
+            }
+            try {
+                final long merged = compactTree(tree);
+                postMessage("Tree " + resourceName(tree) + " compacted: " + merged + " pages freed", LOG_VERBOSE);
+            } catch (final PersistitException pe) {
+                postMessage("Tree " + resourceName(tree) + " " + pe, LOG_NORMAL);
+            }
+        }
+        _currentTree = null;
+        postMessage("Total " + _pagesMerged + " pages freed", LOG_NORMAL);
+        endMessage(LOG_NORMAL);
+    }
+
+    /**
+     * Compact the specified tree by merging adjacent sparse pages on each
+     * level, starting with the data pages.
+     *
+     * @param tree
+     *            The tree to compact
+     * @return the number of pages freed
+     * @throws PersistitException
+     */
+    public long compactTree(final Tree tree) throws PersistitException {
+        _currentTree = tree;
+        final Volume volume = tree.getVolume();
+        //
+        // Constructed directly so that the directory tree can be compacted
+        //
+        final Exchange exchange = new Exchange(tree);
+        final int maxSize = volume.getPageSize() * _fill / 100;
+        long merged = 0;
+        for (int level = 0; level < tree.getDepth() - 1; level++) {
+            _currentLevel = level;
+            exchange.clear().append(Key.BEFORE);
+            while (!exchange.getKey().isRightEdge()) {
+                throttle();
+                final int count;
+                try {
+                    count = exchange.compactPages(level, maxSize);
+                } catch (final InUseException e) {
+                    //
+                    // Pages are busy. Try the same index page again after
+                    // pausing.
+                    //
+                    _busyCount++;
+                    Util.sleep(THROTTLE_INTERVAL);
+                    continue;
+                }
+                merged += count;
+                _pagesMerged += count;
+            }
+        }
+        return merged;
+    }
+
+    private void throttle() throws PersistitException {
+        poll();
+        final IOMeter ioMeter = _persistit.getIOMeter();
+        while (_ioRateLimit > 0 && ioMeter.getIoRate() > _ioRateLimit) {
+            Util.sleep(THROTTLE_INTERVAL);
+            poll();
+        }
+    }
+
+    private String resourceName(final Tree tree) {
+        return tree.getVolume().getName() + ":" + tree.getName();
+    }
+
+    @Override
+    public String getStatus() {
+        final Tree tree = _currentTree;
+        if (tree == null) {
+            return _pagesMerged + " pages freed";
+        } else {
+            return _pagesMerged + " pages freed (" + resourceName(tree) + " level " + _currentLevel + ")";
+        }
+    }
+
+    @Override
+    public String getStatusDetail() {
+        return getStatus() + " busy=" + _busyCount;
+    }
+}
@@ -0,0 +1,1076 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.persistit;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import com.persistit.Accumulator.SumAccumulator;
+import com.persistit.PersistitMap.PersistitMapException;
+import com.persistit.exception.ConversionException;
+import com.persistit.exception.PersistitException;
+import com.persistit.exception.RollbackException;
+
+/**
+ * <p>
+ * A persistent <code>java.util.concurrent.ConcurrentNavigableMap</code> over a
+ * Persistit database. As in {@link PersistitMap}, keys and values are
+ * serialized using the encoding methods of {@link Key} and {@link Value}, and
+ * the keys are appended to the key of the {@link Exchange} supplied to the
+ * constructor. The ordering of the map is determined by the encoding of the
+ * keys, and no <code>Comparator</code> may be installed.
+ * </p>
+ * <p>
+ * Unlike <code>PersistitMap</code>, an instance of this class may be shared
+ * by many threads without serializing their access. It holds no
+ * <code>Exchange</code> of its own: each operation borrows one from the
+ * calling thread's pool by calling {@link Persistit#getExchange(Volume,
+ * String, boolean)} and returns it when done, so that reads are performed
+ * concurrently without any lock on the map. Operations that modify the map,
+ * including the atomic operations of <code>ConcurrentMap</code> such as
+ * {@link #putIfAbsent} and {@link #replace(Object, Object, Object)}, each
+ * run in a {@link Transaction}; a conflicting update by another thread
+ * causes the operation to be retried. When the calling thread already has an
+ * active transaction, operations join it, and a rollback is left to the
+ * application to handle.
+ * </p>
+ * <p>
+ * Iterators of the collection views, and of the views returned by
+ * {@link #subMap}, {@link #headMap}, {@link #tailMap} and
+ * {@link #descendingMap}, are <i>weakly consistent</i>: they never throw
+ * <code>ConcurrentModificationException</code>, and they remember only the
+ * key of the next entry, so they may be used by any thread. Each step reads
+ * only committed versions, or versions written by the calling thread's own
+ * transaction. Within a transaction every step reads from the transaction's
+ * snapshot, so an iteration performed entirely within one transaction is
+ * consistent with the state of the database when the transaction began.
+ * </p>
+ * <p>
+ * The {@link #size} of the whole map is read from a {@link SumAccumulator}
+ * of the <code>Tree</code> that is incremented and decremented by each
+ * operation that adds or removes a key, rather than by enumerating the map.
+ * Therefore the accumulator index supplied to the constructor must not be
+ * used for any other purpose, and the keys of the map should be modified
+ * only through <code>ConcurrentPersistitMap</code> instances constructed with
+ * the same index. The size of a sub map view is computed by enumerating its
+ * entries.
+ * </p>
+ * <p>
+ * As required by the <code>ConcurrentMap</code> contract, this map does not
+ * permit <code>null</code> keys or values. Entries returned by the
+ * navigation methods and by the iterators are snapshots that do not support
+ * <code>setValue</code>. Any {@link PersistitException} is thrown within the
+ * unchecked wrapper class {@link PersistitMapException}.
+ * </p>
+ */
+public class ConcurrentPersistitMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
+
+    private final static int RETRY_COUNT = 10;
+
+    private final Persistit _persistit;
+    private final Volume _volume;
+    private final String _treeName;
+    private final Key _prefix;
+    private final SumAccumulator _size;
+    //
+    // Bounds of a sub map, in ascending key order. A null bound means the
+    // edge of the whole map.
+    //
+    private final Key _lo;
+    private final boolean _loInclusive;
+    private final Key _hi;
+    private final boolean _hiInclusive;
+    private final boolean _descending;
+
+    private transient volatile KeySet _keySet;
+    private transient volatile Collection<V> _values;
+    private transient volatile Set<Map.Entry<K, V>> _entrySet;
+    private transient volatile ConcurrentPersistitMap<K, V> _descendingMap;
+
+    /**
+     * Operation performed within a transaction by
+     * {@link ConcurrentPersistitMap#transactionally(Key, Operation)}
+     */
+    private abstract static class Operation<T> {
+        abstract T run(Exchange ex) throws PersistitException;
+    }
+
+    /**
+     * Construct a ConcurrentPersistitMap over the children of the key of a
+     * particular Exchange.
+     * 
+     * @param ex
+     *            An <code>Exchange</code> whose <code>Tree</code> and
+     *            <code>Key</code> serve as the parent of the Map's keys. The
+     *            <code>Exchange</code> is not retained and may be reused by
+     *            the caller.
+     * @param accumulatorIndex
+     *            Index of the <code>SumAccumulator</code> of the
+     *            <code>Tree</code> used to maintain the size of this map
+     * @throws PersistitException
+     */
+    public ConcurrentPersistitMap(final Exchange ex, final int accumulatorIndex) throws PersistitException {
+        _persistit = ex.getPersistitInstance();
+        _volume = ex.getVolume();
+        _treeName = ex.getTree().getName();
+        _prefix = new Key(ex.getKey());
+        _size = ex.getTree().getSumAccumulator(accumulatorIndex);
+        _lo = null;
+        _loInclusive = false;
+        _hi = null;
+        _hiInclusive = false;
+        _descending = false;
+    }
+
+    private ConcurrentPersistitMap(final ConcurrentPersistitMap<K, V> map, final Key lo, final boolean loInclusive,
+            final Key hi, final boolean hiInclusive, final boolean descending) {
+        _persistit = map._persistit;
+        _volume = map._volume;
+        _treeName = map._treeName;
+        _prefix = map._prefix;
+        _size = map._size;
+        _lo = lo;
+        _loInclusive = loInclusive;
+        _hi = hi;
+        _hiInclusive = hiInclusive;
+        _descending = descending;
+    }
+
+    private Exchange exchange() {
+        try {
+            return _persistit.getExchange(_volume, _treeName, false);
+        } catch (final PersistitException e) {
+            throw new PersistitMapException(e);
+        }
+    }
+
+    private void release(final Exchange ex) {
+        _persistit.releaseExchange(ex);
+    }
+
+    private Key toKey(final Object object) {
+        if (object == null) {
+            throw new NullPointerException();
+        }
+        final Key key = new Key(_prefix);
+        try {
+            key.append(object);
+        } catch (final ConversionException ce) {
+            throw new ClassCastException(object.getClass().getName());
+        }
+        return key;
+    }
+
+    private Key toKeyInRange(final Object object) {
+        final Key key = toKey(object);
+        if (tooLow(key) || tooHigh(key)) {
+            throw new IllegalArgumentException("Key " + object + " is out of submap range");
+        }
+        return key;
+    }
+
+    private static void checkValue(final Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    private boolean tooLow(final Key key) {
+        if (_lo == null) {
+            return false;
+        }
+        final int c = key.compareTo(_lo);
+        return c < 0 || c == 0 && !_loInclusive;
+    }
+
+    private boolean tooHigh(final Key key) {
+        if (_hi == null) {
+            return false;
+        }
+        final int c = key.compareTo(_hi);
+        return c > 0 || c == 0 && !_hiInclusive;
+    }
+
+    /**
+     * Convert a direction in the order of this map to a direction in
+     * ascending key order.
+     */
+    private Key.Direction ascending(final Key.Direction direction) {
+        if (!_descending) {
+            return direction;
+        } else if (direction == Key.GT) {
+            return Key.LT;
+        } else if (direction == Key.GTEQ) {
+            return Key.LTEQ;
+        } else if (direction == Key.LT) {
+            return Key.GT;
+        } else {
+            return Key.GTEQ;
+        }
+    }
+
+    /**
+     * Position the <code>Exchange</code> on the nearest entry of this map in
+     * the specified direction from the supplied key, or on the first entry in
+     * that direction if <code>from</code> is <code>null</code> or lies
+     * outside of the map's bounds. The value of the entry is fetched.
+     * 
+     * @param ex
+     *            The <code>Exchange</code>
+     * @param from
+     *            Starting key, or <code>null</code>
+     * @param direction
+     *            One of GT, GTEQ, LT or LTEQ in ascending key order
+     * @return <code>true</code> if there is such an entry
+     * @throws PersistitException
+     */
+    private boolean find(final Exchange ex, final Key from, final Key.Direction direction)
+            throws PersistitException {
+        final Key key = ex.getKey();
+        final boolean forward = direction == Key.GT || direction == Key.GTEQ;
+        Key.Direction start = direction;
+        if (forward && (from == null || tooLow(from))) {
+            if (_lo == null) {
+                _prefix.copyTo(key);
+                key.append(Key.BEFORE);
+                start = Key.GT;
+            } else {
+                _lo.copyTo(key);
+                start = _loInclusive ? Key.GTEQ : Key.GT;
+            }
+        } else if (!forward && (from == null || tooHigh(from))) {
+            if (_hi == null) {
+                _prefix.copyTo(key);
+                key.append(Key.AFTER);
+                start = Key.LT;
+            } else {
+                _hi.copyTo(key);
+                start = _hiInclusive ? Key.LTEQ : Key.LT;
+            }
+        } else {
+            from.copyTo(key);
+        }
+        return advance(ex, start);
+    }
+
+    /**
+     * Move the <code>Exchange</code> to the next entry of this map in the
+     * specified direction and fetch its value. A key that has children but no
+     * value is skipped.
+     */
+    private boolean advance(final Exchange ex, final Key.Direction direction) throws PersistitException {
+        final boolean forward = direction == Key.GT || direction == Key.GTEQ;
+        Key.Direction next = direction;
+        while (ex.traverse(next, false, Integer.MAX_VALUE)) {
+            if (forward ? tooHigh(ex.getKey()) : tooLow(ex.getKey())) {
+                return false;
+            }
+            if (ex.getValue().isDefined()) {
+                return true;
+            }
+            next = forward ? Key.GT : Key.LT;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K decodeKey(final Exchange ex) {
+        final Key key = ex.getKey();
+        key.indexTo(-1);
+        return (K) key.decode();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map.Entry<K, V> entry(final Exchange ex) {
+        return new SimpleImmutableEntry<K, V>(decodeKey(ex), (V) ex.getValue().get());
+    }
+
+    private Map.Entry<K, V> navigate(final Key from, final Key.Direction direction) {
+        final Exchange ex = exchange();
+        try {
+            return find(ex, from, ascending(direction)) ? entry(ex) : null;
+        } catch (final PersistitException e) {
+            throw new PersistitMapException(e);
+        } finally {
+            release(ex);
+        }
+    }
+
+    /**
+     * Perform an operation in a transaction on an <code>Exchange</code>
+     * positioned at the supplied key, retrying it if the transaction is
+     * rolled back due to a conflicting update. The operation is not retried
+     * if it has joined a transaction started by the caller.
+     */
+    private <T> T transactionally(final Key key, final Operation<T> operation) {
+        final Exchange ex = exchange();
+        try {
+            final Transaction txn = ex.getTransaction();
+            for (int retries = RETRY_COUNT;; retries--) {
+                txn.begin();
+                try {
+                    if (key != null) {
+                        key.copyTo(ex.getKey());
+                    }
+                    final T result = operation.run(ex);
+                    txn.commit();
+                    return result;
+                } catch (final RollbackException re) {
+                    if (retries <= 0 || txn.getNestedTransactionDepth() > 1) {
+                        throw re;
+                    }
+                } finally {
+                    txn.end();
+                }
+            }
+        } catch (final PersistitException e) {
+            throw new PersistitMapException(e);
+        } finally {
+            release(ex);
+        }
+    }
+
+    // Query Operations
+
+    /**
+     * Return the number of key-value mappings in this map. In the unlikely
+     * event the map contains more than <code>Integer.MAX_VALUE</code>
+     * elements, the value returned is <code>Integer.MAX_VALUE</code>.
+     * <p>
+     * For the whole map this value is the snapshot value of the map's
+     * <code>SumAccumulator</code>, which is computed without enumerating the
+     * map. For a sub map view this implementation enumerates all the members
+     * of the view.
+     * 
+     * @return the number of key-value mappings in this map.
+     */
+    @Override
+    public int size() {
+        final long size;
+        if (_lo == null && _hi == null) {
+            size = transactionally(null, new Operation<Long>() {
+                @Override
+                Long run(final Exchange ex) throws PersistitException {
+                    return _size.getSnapshotValue();
+                }
+            });
+        } else {
+            size = count();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    private long count() {
+        final Exchange ex = exchange();
+        try {
+            long count = 0;
+            if (find(ex, null, Key.GT)) {
+                do {
+                    count++;
+                } while (advance(ex, Key.GT));
+            }
+            return count;
+        } catch (final PersistitException e) {
+            throw new PersistitMapException(e);
+        } finally {
+            release(ex);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return navigate(null, Key.GT) == null;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        final Key k = toKey(key);
+        if (tooLow(k) || tooHigh(k)) {
+            return false;
+        }
+        final Exchange ex = exchange();
+        try {
+            k.copyTo(ex.getKey());
+            return ex.isValueDefined();
+        } catch (final PersistitException e) {
+            throw new PersistitMapException(e);
+        } finally {
+            release(ex);
+        }
+    }
+
+    /**
+     * Return the value to which this map maps the specified key, or
+     * <code>null</code> if the map contains no mapping for the key.
+     * 
+     * @param key
+     *            key whose associated value is to be returned.
+     * @return the value to which this map maps the specified key.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        final Key k = toKey(key);
+        if (tooLow(k) || tooHigh(k)) {
+            return null;
+        }
+        final Exchange ex = exchange();
+        try {
+            k.copyTo(ex.getKey());
+            ex.fetch();
+            return ex.getValue().isDefined() ? (V) ex.getValue().get() : null;
+        } catch (final PersistitException e) {
+            throw new PersistitMapException(e);
+        } finally {
+            release(ex);
+        }
+    }
+
+    // Modification Operations
+
+    @Override
+    public V put(final K key, final V value) {
+        checkValue(value);
+        return transactionally(toKeyInRange(key), new Operation<V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            V run(final Exchange ex) throws PersistitException {
+                ex.getValue().put(value);
+                ex.fetchAndStore();
+                if (ex.getValue().isDefined()) {
+                    return (V) ex.getValue().get();
+                }
+                _size.add(1);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public V putIfAbsent(final K key, final V value) {
+        checkValue(value);
+        return transactionally(toKeyInRange(key), new Operation<V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            V run(final Exchange ex) throws PersistitException {
+                ex.fetch();
+                if (ex.getValue().isDefined()) {
+                    return (V) ex.getValue().get();
+                }
+                ex.getValue().put(value);
+                ex.store();
+                _size.add(1);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public V remove(final Object key) {
+        final Key k = toKey(key);
+        if (tooLow(k) || tooHigh(k)) {
+            return null;
+        }
+        return transactionally(k, new Operation<V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            V run(final Exchange ex) throws PersistitException {
+                if (!ex.fetchAndRemove()) {
+                    return null;
+                }
+                _size.add(-1);
+                return ex.getValue().isDefined() ? (V) ex.getValue().get() : null;
+            }
+        });
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        final Key k = toKey(key);
+        if (value == null || tooLow(k) || tooHigh(k)) {
+            return false;
+        }
+        return transactionally(k, new Operation<Boolean>() {
+            @Override
+            Boolean run(final Exchange ex) throws PersistitException {
+                ex.fetch();
+                if (!ex.getValue().isDefined() || !value.equals(ex.getValue().get())) {
+                    return false;
+                }
+                ex.remove();
+                _size.add(-1);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public V replace(final K key, final V value) {
+        checkValue(value);
+        final Key k = toKey(key);
+        if (tooLow(k) || tooHigh(k)) {
+            return null;
+        }
+        return transactionally(k, new Operation<V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            V run(final Exchange ex) throws PersistitException {
+                ex.fetch();
+                if (!ex.getValue().isDefined()) {
+                    return null;
+                }
+                final V previous = (V) ex.getValue().get();
+                ex.getValue().put(value);
+                ex.store();
+                return previous;
+            }
+        });
+    }
+
+    @Override
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+        checkValue(oldValue);
+        checkValue(newValue);
+        final Key k = toKey(key);
+        if (tooLow(k) || tooHigh(k)) {
+            return false;
+        }
+        return transactionally(k, new Operation<Boolean>() {
+            @Override
+            Boolean run(final Exchange ex) throws PersistitException {
+                ex.fetch();
+                if (!ex.getValue().isDefined() || !oldValue.equals(ex.getValue().get())) {
+                    return false;
+                }
+                ex.getValue().put(newValue);
+                ex.store();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Removes all mappings from this map. Each mapping is removed in a
+     * separate transaction, so mappings added concurrently may remain.
+     */
+    @Override
+    public void clear() {
+        for (final Iterator<K> iterator = new KeyIterator(); iterator.hasNext();) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    // Navigation Operations
+
+    private static <K> K keyOrNull(final Map.Entry<K, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    private static <K> K keyOrThrow(final Map.Entry<K, ?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    @Override
+    public Map.Entry<K, V> lowerEntry(final K key) {
+        return navigate(toKey(key), Key.LT);
+    }
+
+    @Override
+    public K lowerKey(final K key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> floorEntry(final K key) {
+        return navigate(toKey(key), Key.LTEQ);
+    }
+
+    @Override
+    public K floorKey(final K key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> ceilingEntry(final K key) {
+        return navigate(toKey(key), Key.GTEQ);
+    }
+
+    @Override
+    public K ceilingKey(final K key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> higherEntry(final K key) {
+        return navigate(toKey(key), Key.GT);
+    }
+
+    @Override
+    public K higherKey(final K key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> firstEntry() {
+        return navigate(null, Key.GT);
+    }
+
+    @Override
+    public Map.Entry<K, V> lastEntry() {
+        return navigate(null, Key.LT);
+    }
+
+    @Override
+    public K firstKey() {
+        return keyOrThrow(firstEntry());
+    }
+
+    @Override
+    public K lastKey() {
+        return keyOrThrow(lastEntry());
+    }
+
+    @Override
+    public Map.Entry<K, V> pollFirstEntry() {
+        return poll(Key.GT);
+    }
+
+    @Override
+    public Map.Entry<K, V> pollLastEntry() {
+        return poll(Key.LT);
+    }
+
+    private Map.Entry<K, V> poll(final Key.Direction direction) {
+        return transactionally(null, new Operation<Map.Entry<K, V>>() {
+            @Override
+            Map.Entry<K, V> run(final Exchange ex) throws PersistitException {
+                if (!find(ex, null, ascending(direction))) {
+                    return null;
+                }
+                final Map.Entry<K, V> entry = entry(ex);
+                ex.remove();
+                _size.add(-1);
+                return entry;
+            }
+        });
+    }
+
+    /**
+     * Returns <i>null</i> for an ascending map because the map always uses
+     * Persistit's key ordering. For a descending map, returns a
+     * <code>Comparator</code> that orders objects in the reverse of the order
+     * of their encoded keys.
+     * 
+     * @return the <code>Comparator</code> or <i>null</i>
+     */
+    @Override
+    public Comparator<? super K> comparator() {
+        if (!_descending) {
+            return null;
+        }
+        return new Comparator<K>() {
+            @Override
+            public int compare(final K a, final K b) {
+                return toKey(b).compareTo(toKey(a));
+            }
+        };
+    }
+
+    // Views
+
+    private ConcurrentPersistitMap<K, V> view(final Object lo, final boolean loInclusive, final Object hi,
+            final boolean hiInclusive) {
+        Key loKey = _lo;
+        boolean loInc = _loInclusive;
+        Key hiKey = _hi;
+        boolean hiInc = _hiInclusive;
+        if (lo != null) {
+            loKey = toKey(lo);
+            checkBound(loKey, loInclusive);
+            loInc = loInclusive;
+        }
+        if (hi != null) {
+            hiKey = toKey(hi);
+            checkBound(hiKey, hiInclusive);
+            hiInc = hiInclusive;
+        }
+        if (loKey != null && hiKey != null && loKey.compareTo(hiKey) > 0) {
+            throw new IllegalArgumentException("fromKey is after toKey");
+        }
+        return new ConcurrentPersistitMap<K, V>(this, loKey, loInc, hiKey, hiInc, _descending);
+    }
+
+    private void checkBound(final Key key, final boolean inclusive) {
+        if (tooLow(key) && !(key.compareTo(_lo) == 0 && !inclusive) || tooHigh(key)
+                && !(key.compareTo(_hi) == 0 && !inclusive)) {
+            throw new IllegalArgumentException("Key " + key + " is outside submap range");
+        }
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> subMap(final K fromKey, final boolean fromInclusive, final K toKey,
+            final boolean toInclusive) {
+        if (fromKey == null || toKey == null) {
+            throw new NullPointerException();
+        }
+        return _descending ? view(toKey, toInclusive, fromKey, fromInclusive) : view(fromKey, fromInclusive,
+                toKey, toInclusive);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> headMap(final K toKey, final boolean inclusive) {
+        if (toKey == null) {
+            throw new NullPointerException();
+        }
+        return _descending ? view(toKey, inclusive, null, false) : view(null, false, toKey, inclusive);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> tailMap(final K fromKey, final boolean inclusive) {
+        if (fromKey == null) {
+            throw new NullPointerException();
+        }
+        return _descending ? view(null, false, fromKey, inclusive) : view(fromKey, inclusive, null, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> subMap(final K fromKey, final K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> headMap(final K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> tailMap(final K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> descendingMap() {
+        if (_descendingMap == null) {
+            _descendingMap = new ConcurrentPersistitMap<K, V>(this, _lo, _loInclusive, _hi, _hiInclusive,
+                    !_descending);
+        }
+        return _descendingMap;
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        if (_keySet == null) {
+            _keySet = new KeySet();
+        }
+        return _keySet;
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        if (_values == null) {
+            _values = new AbstractCollection<V>() {
+                @Override
+                public Iterator<V> iterator() {
+                    return new ValueIterator();
+                }
+
+                @Override
+                public int size() {
+                    return ConcurrentPersistitMap.this.size();
+                }
+
+                @Override
+                public boolean isEmpty() {
+                    return ConcurrentPersistitMap.this.isEmpty();
+                }
+
+                @Override
+                public void clear() {
+                    ConcurrentPersistitMap.this.clear();
+                }
+            };
+        }
+        return _values;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (_entrySet == null) {
+            _entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return ConcurrentPersistitMap.this.size();
+                }
+
+                @Override
+                public boolean isEmpty() {
+                    return ConcurrentPersistitMap.this.isEmpty();
+                }
+
+                @Override
+                public boolean contains(final Object o) {
+                    if (!(o instanceof Map.Entry)) {
+                        return false;
+                    }
+                    final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                    final V value = get(entry.getKey());
+                    return value != null && value.equals(entry.getValue());
+                }
+
+                @Override
+                public boolean remove(final Object o) {
+                    if (!(o instanceof Map.Entry)) {
+                        return false;
+                    }
+                    final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                    return ConcurrentPersistitMap.this.remove(entry.getKey(), entry.getValue());
+                }
+
+                @Override
+                public void clear() {
+                    ConcurrentPersistitMap.this.clear();
+                }
+            };
+        }
+        return _entrySet;
+    }
+
+    /**
+     * Weakly consistent iterator. The next entry is fetched in advance, and
+     * only its key is retained to continue the traversal.
+     */
+    private abstract class MapIterator<E> implements Iterator<E> {
+        private final Key _position = new Key(_prefix);
+        private Map.Entry<K, V> _next;
+        private K _lastReturned;
+
+        MapIterator() {
+            fetchNext(null);
+        }
+
+        private void fetchNext(final Key from) {
+            final Exchange ex = exchange();
+            try {
+                if (find(ex, from, ascending(Key.GT))) {
+                    _next = entry(ex);
+                    ex.getKey().copyTo(_position);
+                } else {
+                    _next = null;
+                }
+            } catch (final PersistitException e) {
+                throw new PersistitMapException(e);
+            } finally {
+                release(ex);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _next != null;
+        }
+
+        Map.Entry<K, V> nextEntry() {
+            final Map.Entry<K, V> entry = _next;
+            if (entry == null) {
+                throw new NoSuchElementException();
+            }
+            _lastReturned = entry.getKey();
+            fetchNext(_position);
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (_lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            ConcurrentPersistitMap.this.remove(_lastReturned);
+            _lastReturned = null;
+        }
+    }
+
+    private final class KeyIterator extends MapIterator<K> {
+        @Override
+        public K next() {
+            return nextEntry().getKey();
+        }
+    }
+
+    private final class ValueIterator extends MapIterator<V> {
+        @Override
+        public V next() {
+            return nextEntry().getValue();
+        }
+    }
+
+    private final class EntryIterator extends MapIterator<Map.Entry<K, V>> {
+        @Override
+        public Map.Entry<K, V> next() {
+            return nextEntry();
+        }
+    }
+
+    private final class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+        @Override
+        public Iterator<K> iterator() {
+            return new KeyIterator();
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentPersistitMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return ConcurrentPersistitMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            return ConcurrentPersistitMap.this.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentPersistitMap.this.clear();
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return ConcurrentPersistitMap.this.comparator();
+        }
+
+        @Override
+        public K first() {
+            return firstKey();
+        }
+
+        @Override
+        public K last() {
+            return lastKey();
+        }
+
+        @Override
+        public K lower(final K k) {
+            return lowerKey(k);
+        }
+
+        @Override
+        public K floor(final K k) {
+            return floorKey(k);
+        }
+
+        @Override
+        public K ceiling(final K k) {
+            return ceilingKey(k);
+        }
+
+        @Override
+        public K higher(final K k) {
+            return higherKey(k);
+        }
+
+        @Override
+        public K pollFirst() {
+            return keyOrNull(pollFirstEntry());
+        }
+
+        @Override
+        public K pollLast() {
+            return keyOrNull(pollLastEntry());
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet() {
+            return descendingKeySet();
+        }
+
+        @Override
+        public Iterator<K> descendingIterator() {
+            return descendingKeySet().iterator();
+        }
+
+        @Override
+        public NavigableSet<K> subSet(final K from, final boolean fromInclusive, final K to,
+                final boolean toInclusive) {
+            return subMap(from, fromInclusive, to, toInclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> headSet(final K to, final boolean inclusive) {
+            return headMap(to, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(final K from, final boolean inclusive) {
+            return tailMap(from, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public SortedSet<K> subSet(final K from, final K to) {
+            return subSet(from, true, to, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet(final K to) {
+            return headSet(to, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet(final K from) {
+            return tailSet(from, true);
+        }
+    }
+}
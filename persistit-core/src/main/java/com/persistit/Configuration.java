@@ -127,14 +127,14 @@ public class Configuration {
     public final static String CONFIG_FILE_PROPERTY_NAME = "properties";
     /**
      * Property name prefix for specifying buffer size and count. The full
-     * property name should be one of "1024", "2048", "4096", "8192" or "16384"
-     * appended to this string, e.g., "buffer.count.8192".
+     * property name should be one of "1024", "2048", "4096", "8192", "16384"
+     * or "32768" appended to this string, e.g., "buffer.count.8192".
      */
     public final static String BUFFERS_PROPERTY_NAME = "buffer.count.";
     /**
      * Property name prefix for specifying buffer memory allocation. The full
-     * property name should be one of "1024", "2048", "4096", "8192" or "16384"
-     * appended to this string, e.g., "buffer.memory.8192". This property is an
+     * property name should be one of "1024", "2048", "4096", "8192", "16384"
+     * or "32768" appended to this string, e.g., "buffer.memory.8192". This property is an
      * alternative to "buffer.count.nnnn", and only one of these may be used in
      * a configuration per buffer size. With the buffer.memory property
      * Persistit computes a buffer count that will consume approximately the
@@ -307,6 +307,12 @@ public class Configuration {
      */
     public final static String JOIN_POLICY_PROPERTY_NAME = "joinpolicy";
 
+    /**
+     * Property name to specify the number of threads that perform background
+     * pruning and other cleanup actions.
+     */
+    public final static String CLEANUP_THREADS_PROPERTY_NAME = "cleanupthreads";
+
     private final static SplitPolicy DEFAULT_SPLIT_POLICY = SplitPolicy.PACK_BIAS;
     private final static JoinPolicy DEFAULT_JOIN_POLICY = JoinPolicy.EVEN_BIAS;
     private final static CommitPolicy DEFAULT_TRANSACTION_COMMIT_POLICY = CommitPolicy.SOFT;
@@ -336,8 +342,9 @@ public class Configuration {
      * Configuration constraints that determine the number of
      * <code>Buffer</code>s in a {@link BufferPool}. There is one permanent
      * <code>BufferPoolConfiguration</code> instance for each valid buffer size:
-     * 1024, 2048, 4096, 8192 and 16384. The {@link #getBufferPoolMap()} method
-     * provides access to these, where the map key is the buffer size.
+     * 1024, 2048, 4096, 8192, 16384 and 32768. The
+     * {@link #getBufferPoolMap()} method provides access to these, where the
+     * map key is the buffer size.
      * </p>
      * <p>
      * Each <code>BufferPoolConfiguration</code> specifies minimum and maximum
@@ -721,6 +728,7 @@ public class Configuration {
     private int tmpVolPageSize;
     private long tmpVolMaxSize;
     private boolean useOldVSpec;
+    private int cleanupThreads = defaultCleanupThreads();
 
     /**
      * Construct a <code>Configuration</code> instance. This object may be
@@ -818,6 +826,7 @@ public class Configuration {
         setBufferInventoryEnabled(getBooleanProperty(BUFFER_INVENTORY_PROPERTY_NAME, false));
         setBufferPreloadEnabled(getBooleanProperty(BUFFER_PRELOAD_PROPERTY_NAME, false));
         setUseOldVSpec(getBooleanProperty(USE_OLD_VSPEC, false));
+        setCleanupThreads(getIntegerProperty(CLEANUP_THREADS_PROPERTY_NAME, defaultCleanupThreads()));
 
         loadPropertiesBufferSpecifications();
         loadPropertiesVolumeSpecifications();
@@ -1227,7 +1236,7 @@ public class Configuration {
      * @return valid {@link Buffer} sizes
      */
     public static int[] validBufferSizes() {
-        return new int[] { 1024, 2048, 4096, 8192, 16384 };
+        return new int[] { 1024, 2048, 4096, 8192, 16384, 32768 };
     }
 
     /**
@@ -2037,6 +2046,39 @@ public class Configuration {
         this.bufferPreloadEnabled = bufferPreloadEnabled;
     }
 
+    /**
+     * Return the value defined by {@link #setCleanupThreads(int)}
+     * 
+     * @return the number of cleanup threads
+     */
+    public int getCleanupThreads() {
+        return cleanupThreads;
+    }
+
+    /**
+     * <p>
+     * Set the number of threads that perform background pruning and other
+     * cleanup actions. Each thread serves its own queue of actions, so
+     * additional threads let pruning keep pace with a higher rate of updates.
+     * </p>
+     * <p>
+     * Default value is one thread per four available processors, at least one
+     * and at most four<br />
+     * Property name is {@value #CLEANUP_THREADS_PROPERTY_NAME}
+     * </p>
+     * 
+     * @param cleanupThreads
+     *            the number of threads, from 1 to
+     *            {@value com.persistit.CleanupManager#MAXIMUM_CLEANUP_THREADS}
+     */
+    public void setCleanupThreads(final int cleanupThreads) {
+        this.cleanupThreads = Util.rangeCheck(cleanupThreads, 1, CleanupManager.MAXIMUM_CLEANUP_THREADS);
+    }
+
+    private static int defaultCleanupThreads() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 4));
+    }
+
     /**
      * Return the value defined by {@link #setIgnoreMissingVolumes(boolean)}
      * 
@@ -462,13 +462,7 @@ public class DefaultObjectCoder extends DefaultValueCoder implements KeyRenderer
         if (clazz != getClientClass())
             throw new ClassCastException("Client class " + getClientClass().getName()
                     + " does not match requested class " + clazz.getName());
-        Object instance;
-        try {
-            instance = getClientClass().newInstance();
-        } catch (final Exception e) {
-            throw new ConversionException("Unable to instantiate an instance of " + getClientClass(), e);
-
-        }
+        final Object instance = newInstance();
         renderKeySegment(key, instance, clazz, context);
 
         return readResolve(instance);
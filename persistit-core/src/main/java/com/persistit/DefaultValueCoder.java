@@ -22,6 +22,9 @@ import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
 import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -46,8 +49,11 @@ import com.persistit.exception.ConversionException;
 /**
  * <p>
  * A {@link ValueCoder} that uses reflection to access and modify the fields of
- * an object. This implementation provides the default serialization mechanism
- * for Persistit version 1.1. See <a
+ * an object. The fields and properties of the client class are resolved once,
+ * when the coder is constructed, into <code>MethodHandle</code>s typed for each
+ * field so that encoding and decoding primitive fields requires neither
+ * reflective access checks nor boxing. This implementation provides the
+ * default serialization mechanism for Persistit version 1.1. See <a
  * href="../../../Object_Serialization_Notes.html"> Persistit JSA 1.1 Object
  * Serialization</a> for details.
  * </p>
@@ -91,6 +97,8 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
     private final static Class[] EMPTY_CLASS_ARRAY = {};
     private final static Class[] OOS_CLASS_ARRAY = { ObjectOutputStream.class };
     private final static Class[] OIS_CLASS_ARRAY = { ObjectInputStream.class };
+    private final static MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private final static MethodType NEW_INSTANCE_TYPE = MethodType.methodType(Object.class);
 
     private final static Comparator FIELD_COMPARATOR = new Comparator() {
         @Override
@@ -130,6 +138,7 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
     private Method _newInstanceMethod;
     private Object[] _newInstanceArguments;
     private Constructor _newInstanceConstructor;
+    private MethodHandle _newInstanceHandle;
     private volatile int _handle;
 
     /**
@@ -359,6 +368,21 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
                                 + "method for class " + _clazz.getName());
                     }
                 }
+                try {
+                    if (_newInstanceConstructor != null) {
+                        _newInstanceHandle = LOOKUP.unreflectConstructor(_newInstanceConstructor).asType(
+                                NEW_INSTANCE_TYPE);
+                    } else {
+                        MethodHandle handle = LOOKUP.unreflect(_newInstanceMethod);
+                        if (!Modifier.isStatic(_newInstanceMethod.getModifiers())) {
+                            handle = handle.bindTo(_classDescriptor);
+                        }
+                        _newInstanceHandle = MethodHandles.insertArguments(handle, 0, _newInstanceArguments).asType(
+                                NEW_INSTANCE_TYPE);
+                    }
+                } catch (final IllegalAccessException e) {
+                    throw new ConversionException("Class " + _clazz.getName() + " can not be instantiated", e);
+                }
                 return null;
             }
         });
@@ -490,6 +514,12 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
 
     static abstract class Accessor {
         Field _field;
+        /*
+         * Handles bound to the field or property, typed by handleType() so
+         * that primitive values are neither boxed nor checked for access.
+         */
+        MethodHandle _getter;
+        MethodHandle _setter;
 
         @Override
         public String toString() {
@@ -498,11 +528,20 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
 
         void fromKey(final Object object, final Key key) throws Exception {
             final Object arg = key.decode();
-            _field.set(object, arg);
+            try {
+                _setter.invoke(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
 
         void toKey(final Object object, final Key key) throws Exception {
-            final Object arg = _field.get(object);
+            final Object arg;
+            try {
+                arg = _getter.invoke(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
             key.append(arg);
         }
 
@@ -510,11 +549,68 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
 
         abstract void toValue(Object object, Value value) throws Exception;
 
+        /**
+         * @return The type of the values read and written by the handles
+         */
+        Class<?> handleType() {
+            return Object.class;
+        }
+
+        /**
+         * Create the getter and setter handles. Called once the field has been
+         * made accessible. Where the field can not be accessed directly
+         * through a <code>MethodHandle</code> the handles delegate to the
+         * corresponding methods of <code>Field</code> instead.
+         */
+        void bind() throws ReflectiveOperationException {
+            final Class<?> type = handleType();
+            final MethodType getterType = MethodType.methodType(type, Object.class);
+            final MethodType setterType = MethodType.methodType(void.class, Object.class, type);
+            try {
+                _getter = LOOKUP.unreflectGetter(_field).asType(getterType);
+            } catch (final IllegalAccessException e) {
+                _getter = LOOKUP.findVirtual(Field.class, fieldMethodName("get", type), getterType).bindTo(_field);
+            }
+            try {
+                _setter = LOOKUP.unreflectSetter(_field).asType(setterType);
+            } catch (final IllegalAccessException e) {
+                _setter = LOOKUP.findVirtual(Field.class, fieldMethodName("set", type), setterType).bindTo(_field);
+            }
+        }
+
         protected void cantModifyFinalField() {
             throw new ConversionException("Can not modify final field " + _field.getName());
         }
     }
 
+    /**
+     * @return The name of the method of <code>Field</code> that gets or sets a
+     *         value of the specified type, for example <code>getInt</code>
+     */
+    private static String fieldMethodName(final String prefix, final Class<?> type) {
+        if (type.isPrimitive()) {
+            final String name = type.getName();
+            return prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        } else {
+            return prefix;
+        }
+    }
+
+    /**
+     * Convert a <code>Throwable</code> thrown by a <code>MethodHandle</code>
+     * to an <code>Exception</code> to be thrown by an <code>Accessor</code>.
+     * Errors are rethrown.
+     */
+    private static Exception exception(final Throwable t) {
+        if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t instanceof Exception) {
+            return (Exception) t;
+        } else {
+            return new ConversionException(t);
+        }
+    }
+
     private static class PropertyAccessor extends Accessor {
         Method _getMethod;
         Method _setMethod;
@@ -530,27 +626,30 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
         }
 
         @Override
-        void fromKey(final Object object, final Key key) throws Exception {
-            final Object arg = key.decode();
-            _setMethod.invoke(object, new Object[] { arg });
-        }
-
-        @Override
-        void toKey(final Object object, final Key key) throws Exception {
-            Object arg = null;
-            arg = _getMethod.invoke(object, EMPTY_OBJECT_ARRAY);
-            key.append(arg);
+        void bind() throws ReflectiveOperationException {
+            _getter = LOOKUP.unreflect(_getMethod).asType(MethodType.methodType(Object.class, Object.class));
+            _setter = LOOKUP.unreflect(_setMethod).asType(
+                    MethodType.methodType(void.class, Object.class, Object.class));
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
             final Object arg = value.get(null, null);
-            _setMethod.invoke(object, new Object[] { arg });
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
 
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            final Object arg = _getMethod.invoke(object, EMPTY_OBJECT_ARRAY);
+            final Object arg;
+            try {
+                arg = (Object) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
             value.put(arg);
         }
     }
@@ -559,113 +658,254 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
             final Object arg = value.get(null, null);
-            _field.set(object, arg);
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
 
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            final Object arg = _field.get(object);
+            final Object arg;
+            try {
+                arg = (Object) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
             value.put(arg);
         }
     }
 
     private final static class BooleanFieldAccessor extends Accessor {
+        @Override
+        Class<?> handleType() {
+            return boolean.class;
+        }
+
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            value.put(_field.getBoolean(object));
+            final boolean arg;
+            try {
+                arg = (boolean) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
+            value.put(arg);
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
-            _field.setBoolean(object, value.getBoolean());
+            final boolean arg = value.getBoolean();
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
     }
 
     private final static class ByteFieldAccessor extends Accessor {
+        @Override
+        Class<?> handleType() {
+            return byte.class;
+        }
+
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            value.put(_field.getByte(object));
+            final byte arg;
+            try {
+                arg = (byte) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
+            value.put(arg);
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
-            _field.setByte(object, value.getByte());
+            final byte arg = value.getByte();
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
     }
 
     private final static class ShortFieldAccessor extends Accessor {
+        @Override
+        Class<?> handleType() {
+            return short.class;
+        }
+
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            value.put(_field.getShort(object));
+            final short arg;
+            try {
+                arg = (short) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
+            value.put(arg);
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
-            _field.setShort(object, value.getShort());
+            final short arg = value.getShort();
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
     }
 
     private final static class CharFieldAccessor extends Accessor {
+        @Override
+        Class<?> handleType() {
+            return char.class;
+        }
+
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            value.put(_field.getChar(object));
+            final char arg;
+            try {
+                arg = (char) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
+            value.put(arg);
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
-            _field.setChar(object, value.getChar());
+            final char arg = value.getChar();
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
     }
 
     private final static class IntFieldAccessor extends Accessor {
+        @Override
+        Class<?> handleType() {
+            return int.class;
+        }
+
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            value.put(_field.getInt(object));
+            final int arg;
+            try {
+                arg = (int) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
+            value.put(arg);
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
-            _field.setInt(object, value.getInt());
+            final int arg = value.getInt();
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
     }
 
     private final static class LongFieldAccessor extends Accessor {
+        @Override
+        Class<?> handleType() {
+            return long.class;
+        }
+
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            value.put(_field.getLong(object));
+            final long arg;
+            try {
+                arg = (long) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
+            value.put(arg);
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
-            _field.setLong(object, value.getLong());
+            final long arg = value.getLong();
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
     }
 
     private final static class FloatFieldAccessor extends Accessor {
+        @Override
+        Class<?> handleType() {
+            return float.class;
+        }
+
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            value.put(_field.getFloat(object));
+            final float arg;
+            try {
+                arg = (float) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
+            value.put(arg);
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
-            _field.setFloat(object, value.getFloat());
+            final float arg = value.getFloat();
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
     }
 
     private final static class DoubleFieldAccessor extends Accessor {
+        @Override
+        Class<?> handleType() {
+            return double.class;
+        }
+
         @Override
         void toValue(final Object object, final Value value) throws Exception {
-            value.put(_field.getDouble(object));
+            final double arg;
+            try {
+                arg = (double) _getter.invokeExact(object);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
+            value.put(arg);
         }
 
         @Override
         void fromValue(final Object object, final Value value) throws Exception {
-            _field.setDouble(object, value.getDouble());
+            final double arg = value.getDouble();
+            try {
+                _setter.invokeExact(object, arg);
+            } catch (final Throwable t) {
+                throw exception(t);
+            }
         }
     }
 
     private final static class NoFieldAccessor extends Accessor {
+        @Override
+        void bind() {
+        }
+
         @Override
         void toValue(final Object object, final Value value) {
         }
@@ -872,6 +1112,13 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
                     AccessibleObject.setAccessible(
                             (AccessibleObject[]) list.toArray(new AccessibleObject[list.size()]), true);
                 }
+                for (int index = 0; index < accessors.length; index++) {
+                    try {
+                        accessors[index].bind();
+                    } catch (final ReflectiveOperationException e) {
+                        throw new ConversionException("Binding " + accessors[index] + " in " + builder, e);
+                    }
+                }
                 return null;
             }
         });
@@ -982,17 +1229,15 @@ public class DefaultValueCoder implements ValueRenderer, HandleCache {
      */
     Object newInstance() {
         try {
-            if (_newInstanceConstructor != null) {
-                return _newInstanceConstructor.newInstance(EMPTY_OBJECT_ARRAY);
-            }
-            if (_newInstanceMethod != null) {
-                return _newInstanceMethod.invoke(_classDescriptor, _newInstanceArguments);
+            if (_newInstanceHandle != null) {
+                return _newInstanceHandle.invokeExact();
             } else {
                 return _clazz.newInstance();
             }
-        } catch (final Exception e) {
-            throw new ConversionException("Instantiating " + _clazz.getName(), e);
-
+        } catch (final Error e) {
+            throw e;
+        } catch (final Throwable t) {
+            throw new ConversionException("Instantiating " + _clazz.getName(), t);
         }
     }
 
@@ -24,6 +24,7 @@ import com.persistit.ValueHelper.MVVValueWriter;
 import com.persistit.ValueHelper.RawValueWriter;
 import com.persistit.VolumeStructure.Chain;
 import com.persistit.exception.BufferSizeUnavailableException;
+import com.persistit.exception.ConversionException;
 import com.persistit.exception.CorruptVolumeException;
 import com.persistit.exception.InUseException;
 import com.persistit.exception.PersistitException;
@@ -40,7 +41,12 @@ import com.persistit.policy.SplitPolicy;
 import com.persistit.util.Debug;
 import com.persistit.util.Util;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import static com.persistit.Buffer.EXACT_MASK;
@@ -152,6 +158,7 @@ public class Exchange implements ReadOnlyExchange {
     private final TransactionIndex _ti;
     private final Exchange _exchange;
     private TransactionStatus _status;
+    private long _ts;
     private int _step;
     private int _foundOffset;
     private int _foundLength;
@@ -177,10 +184,28 @@ public class Exchange implements ReadOnlyExchange {
     public void initInternal(final TransactionStatus status, final int step, final Usage usage) {
       Debug.$assert0.t(status != null || usage != Usage.STORE);
       _status = status;
+      _ts = status != null ? status.getTs() : READ_COMMITTED_TS;
       _step = step;
       _usage = usage;
     }
 
+    /**
+     * Initialize a {@link Usage#FETCH} visit on behalf of a snapshot
+     * transaction. A snapshot has a start timestamp but no
+     * <code>TransactionStatus</code>.
+     *
+     * @param ts
+     *            Start timestamp of the snapshot transaction.
+     * @param step
+     *            Current step value of the snapshot transaction.
+     */
+    public void initSnapshot(final long ts, final int step) {
+      _status = null;
+      _ts = ts;
+      _step = step;
+      _usage = Usage.FETCH;
+    }
+
     public int getOffset() {
       return _foundOffset;
     }
@@ -206,7 +231,7 @@ public class Exchange implements ReadOnlyExchange {
       try {
         switch (_usage) {
           case FETCH:
-            final long ts = _status != null ? _status.getTs() : READ_COMMITTED_TS;
+            final long ts = _ts;
             final long status = _ti.commitStatus(version, ts, _step);
             if (status >= 0 && status != TransactionStatus.UNCOMMITTED && status >= _foundVersion) {
               assert status <= ts;
@@ -301,6 +326,7 @@ public class Exchange implements ReadOnlyExchange {
   private final MvvVisitor _mvvVisitor;
   private final RawValueWriter _rawValueWriter = new RawValueWriter();
   private final MVVValueWriter _mvvValueWriter = new MVVValueWriter();
+  private final ValueView _valueView = new ValueView();
   private LongRecordHelper _longRecordHelper;
 
   private volatile Thread _thread;
@@ -683,6 +709,35 @@ public class Exchange implements ReadOnlyExchange {
     public boolean visit(final ReadOnlyExchange ex) throws PersistitException;
   }
 
+  /**
+   * A visitor used with {@link Exchange#fetch(ValueVisitor)}. The
+   * {@link #visit(ValueView)} method is called once with a view of the value
+   * associated with the current <code>Key</code>.
+   */
+  public interface ValueVisitor {
+    /**
+     * Receive a {@link ValueView} of the value associated with the current
+     * <code>Key</code>. The view may refer directly to the bytes of a
+     * <code>Buffer</code> which remains claimed until this method returns.
+     * <p>
+     * The implementation of this method:
+     * <ul>
+     * <li>Must return quickly, especially in a multi-threaded environment,
+     * to avoid blocking other threads that may attempt to update records in
+     * the same <code>Buffer</code>,
+     * <li>Must not perform operations on any <code>Exchange</code>,
+     * especially in a multi-threaded environment, to prevent deadlocks,
+     * <li>Must not retain the supplied <code>ValueView</code>, which becomes
+     * invalid when this method returns.
+     * </ul>
+     *
+     * @param view
+     *            a {@link ValueView} of the value
+     * @throws PersistitException
+     */
+    public void visit(final ValueView view) throws PersistitException;
+  }
+
   /**
    * Delegate to {@link Key#reset} on the associated <code>Key</code> object.
    *
@@ -1363,6 +1418,7 @@ public class Exchange implements ReadOnlyExchange {
     options |= (!_ignoreTransactions && _transaction.isActive()) ? StoreOptions.MVCC : 0;
     storeInternal(key, value, 0, options);
     _treeHolder.verifyReleased();
+    discardCachedObject(key);
 
     return this;
   }
@@ -1393,6 +1449,10 @@ public class Exchange implements ReadOnlyExchange {
 
     final boolean doMVCC = (options & StoreOptions.MVCC) > 0;
     final boolean doFetch = (options & StoreOptions.FETCH) > 0;
+    final boolean onlyIfVisible = (options & StoreOptions.ONLY_IF_VISIBLE) != 0;
+    final boolean countKeys = doMVCC && level == 0 && _tree.hasKeyCounters();
+    final Key originalKey = key;
+    int keyCountDelta = 0;
 
     // spares used for new splits/levels
     Debug.$assert0.t(key != _spareKey1);
@@ -1441,6 +1501,7 @@ public class Exchange implements ReadOnlyExchange {
     }
 
     boolean keyExisted = false;
+    boolean wasVisible = false;
 
     try {
 
@@ -1524,6 +1585,7 @@ public class Exchange implements ReadOnlyExchange {
 
           if (buffer.isDataPage()) {
             keyExisted = (foundAt & EXACT_MASK) != 0;
+            wasVisible = keyExisted;
             if (keyExisted) {
               oldLongRecordPointer = buffer.fetchLongRecordPointer(foundAt);
             }
@@ -1580,7 +1642,7 @@ public class Exchange implements ReadOnlyExchange {
                   final TransactionStatus tStatus = _transaction.getTransactionStatus();
                   final int tStep = _transaction.getStep();
 
-                  if ((options & StoreOptions.ONLY_IF_VISIBLE) != 0) {
+                  if (onlyIfVisible || countKeys) {
                     /*
                      * Could be single visit of all versions
                      * but current TI would still require
@@ -1590,8 +1652,9 @@ public class Exchange implements ReadOnlyExchange {
                     _mvvVisitor.initInternal(tStatus, tStep, MvvVisitor.Usage.FETCH);
                     MVV.visitAllVersions(_mvvVisitor, spareBytes, 0, spareSize);
                     final int offset = _mvvVisitor.getOffset();
-                    if (!_mvvVisitor.foundVersion()
-                      || (_mvvVisitor.getLength() > 0 && spareBytes[offset] == MVV.TYPE_ANTIVALUE)) {
+                    wasVisible = _mvvVisitor.foundVersion()
+                      && !(_mvvVisitor.getLength() > 0 && spareBytes[offset] == MVV.TYPE_ANTIVALUE);
+                    if (onlyIfVisible && !wasVisible) {
                       // Completely done, nothing to store
                       keyExisted = false;
                       break mainRetryLoop;
@@ -1671,6 +1734,15 @@ public class Exchange implements ReadOnlyExchange {
             if (!keyExisted) {
               _tree.bumpChangeCount();
             }
+            if (!value.isAntiValue()) {
+              final KeyBloomFilter filter = _tree.getKeyBloomFilter();
+              if (filter != null) {
+                filter.add(key);
+              }
+            }
+            if (countKeys) {
+              keyCountDelta = value.isAntiValue() ? (wasVisible ? -1 : 0) : (wasVisible ? 0 : 1);
+            }
             assert buffer.isDirty() : "Buffer must be dirty";
             committed = true;
             if (incrementMVVCount) {
@@ -1792,6 +1864,9 @@ public class Exchange implements ReadOnlyExchange {
         }
       }
     }
+    if (keyCountDelta != 0) {
+      _tree.adjustKeyCounts(originalKey, keyCountDelta);
+    }
     _volume.getStatistics().bumpStoreCounter();
     _tree.getStatistics().bumpStoreCounter();
     if (doFetch || doMVCC) {
@@ -2733,6 +2808,9 @@ public class Exchange implements ReadOnlyExchange {
    * @throws PersistitException
    */
   public boolean isValueDefined() throws PersistitException {
+    if (isDefinitelyAbsent()) {
+      return false;
+    }
     return traverse(EQ, true, -1);
   }
 
@@ -2989,16 +3067,13 @@ public class Exchange implements ReadOnlyExchange {
    *             for any internal error
    */
   private boolean mvccFetch(final Value value, final int minimumBytes) throws PersistitException {
-    final TransactionStatus status;
-    final int step;
-    if (_transaction.isActive()) {
-      status = _transaction.getTransactionStatus();
-      step = _transaction.getStep();
+    if (_transaction.isSnapshot()) {
+      _mvvVisitor.initSnapshot(_transaction.getStartTimestamp(), _transaction.getStep());
+    } else if (_transaction.isActive()) {
+      _mvvVisitor.initInternal(_transaction.getTransactionStatus(), _transaction.getStep(), MvvVisitor.Usage.FETCH);
     } else {
-      status = null;
-      step = 0;
+      _mvvVisitor.initInternal(null, 0, MvvVisitor.Usage.FETCH);
     }
-    _mvvVisitor.initInternal(status, step, MvvVisitor.Usage.FETCH);
 
     final int valueSize = value.getEncodedSize();
     final byte[] valueBytes = value.getEncodedBytes();
@@ -3059,6 +3134,335 @@ public class Exchange implements ReadOnlyExchange {
     return this;
   }
 
+  /**
+   * <p>
+   * Fetches the value associated with the current <code>Key</code> and
+   * presents it to the supplied {@link ValueVisitor} as a read-only
+   * {@link ValueView}. Unlike {@link #fetch()}, this method does not copy an
+   * ordinary value out of the page on which it is stored: the view refers
+   * directly to the page, which remains claimed while the visitor runs. This
+   * makes it possible to read an <code>int</code>, a <code>long</code> or
+   * part of a <code>byte</code> array without allocating or copying
+   * anything.
+   * </p>
+   * <p>
+   * When the record holds multiple versions, or is a long record, the
+   * visible value is first fetched as by {@link #fetch()} and the view
+   * refers to the copy. The visitor is not called if there is no visible
+   * value associated with the current key.
+   * </p>
+   *
+   * @param visitor
+   *            The <code>ValueVisitor</code>
+   * @return <code>true</code> if the visitor was called, or
+   *         <code>false</code> if there is no value associated with the
+   *         current key
+   * @throws PersistitException
+   */
+  public boolean fetch(final ValueVisitor visitor) throws PersistitException {
+    assertCorrectThread(true);
+    _persistit.checkClosed();
+    _key.testValidForStoreAndFetch(_volume.getPageSize());
+    if (isDefinitelyAbsent()) {
+      return false;
+    }
+    Buffer buffer = null;
+    try {
+      final int foundAt = search(_key, false);
+      buffer = _levelCache[0]._buffer;
+      _volume.getStatistics().bumpFetchCounter();
+      _tree.getStatistics().bumpFetchCounter();
+      if (_ignoreMVCCFetch || !buffer.view(foundAt, _valueView)) {
+        if (!fetchFromBufferInternal(buffer, _spareValue, foundAt, Integer.MAX_VALUE)
+            || !_spareValue.isDefined()) {
+          return false;
+        }
+        _valueView.init(_spareValue.getEncodedBytes(), 0, _spareValue.getEncodedSize());
+      }
+      visitor.visit(_valueView);
+      return true;
+    } finally {
+      _valueView.release();
+      if (buffer != null) {
+        buffer.releaseTouched();
+      }
+      _treeHolder.verifyReleased();
+    }
+  }
+
+  /**
+   * <p>
+   * Fetches the value associated with the current <code>Key</code> and
+   * returns the object it encodes, as {@link Value#get()} would. If a
+   * {@link BoundedObjectCache} has been attached to this
+   * <code>Exchange</code> or to its <code>Tree</code> by calling
+   * <code>setAppCache</code>, an object previously decoded from the same
+   * record is returned from the cache instead of being decoded again, and
+   * newly decoded objects are added to the cache. A cached object is
+   * returned only if the page holding the record has not been changed since
+   * the object was decoded, so an object is never returned after its record
+   * has been replaced or removed. Objects returned from the cache are shared
+   * by all threads using the cache and must not be modified.
+   * </p>
+   * <p>
+   * Only records holding a single committed version are cached; a value
+   * that has versions not yet visible to every transaction, or that is
+   * stored as a long record, is decoded each time it is fetched. When no
+   * <code>BoundedObjectCache</code> is attached this method is equivalent to
+   * {@link #fetch()} followed by {@link Value#get()}. The
+   * <code>Exchange</code>'s <code>Value</code> is not changed when the object
+   * is returned from the cache.
+   * </p>
+   *
+   * @return the decoded object, or <code>null</code> if there is no value
+   *         associated with the current key
+   * @throws PersistitException
+   */
+  public Object fetchObject() throws PersistitException {
+    final BoundedObjectCache cache = getObjectCache();
+    if (cache == null) {
+      fetch();
+      return _value.isDefined() ? _value.get() : null;
+    }
+    assertCorrectThread(true);
+    _persistit.checkClosed();
+    _key.testValidForStoreAndFetch(_volume.getPageSize());
+    if (isDefinitelyAbsent()) {
+      _value.clear();
+      return null;
+    }
+    Buffer buffer = null;
+    boolean cacheable = false;
+    long page = 0;
+    long generation = 0;
+    try {
+      final int foundAt = search(_key, false);
+      buffer = _levelCache[0]._buffer;
+      _volume.getStatistics().bumpFetchCounter();
+      _tree.getStatistics().bumpFetchCounter();
+      if (!_ignoreMVCCFetch && buffer.view(foundAt, _valueView)) {
+        final BoundedObjectCache.Entry entry = cache.get(_key, _tree, buffer);
+        if (entry != null) {
+          return entry.getObject();
+        }
+        cacheable = true;
+        page = buffer.getPageAddress();
+        generation = buffer.getGeneration();
+      }
+      _valueView.release();
+      fetchFromBufferInternal(buffer, _value, foundAt, Integer.MAX_VALUE);
+    } finally {
+      _valueView.release();
+      if (buffer != null) {
+        buffer.releaseTouched();
+      }
+      _treeHolder.verifyReleased();
+    }
+    if (!_value.isDefined()) {
+      return null;
+    }
+    /*
+     * Decoded after the buffer is released since decoding may read the
+     * class index. The page and generation recorded above identify the
+     * version that was fetched. The object is cached only if the buffer
+     * still holds that version, checked under a claim so that a concurrent
+     * store cannot complete between the check and the insertion; if the
+     * claim is not immediately available the object is simply not cached.
+     */
+    final Object object = _value.get();
+    if (cacheable && buffer.claim(false, 0)) {
+      try {
+        if (buffer.getVolume() == _volume && buffer.getPageAddress() == page
+          && buffer.getGeneration() == generation) {
+          cache.put(_key, _tree, buffer, page, generation, object, _value.getEncodedSize());
+        }
+      } finally {
+        buffer.release();
+      }
+    }
+    return object;
+  }
+
+  /**
+   * Remove the entry for a key from an attached {@link BoundedObjectCache}.
+   * This is not required for correctness, since an entry is not returned
+   * once its page has changed, but releases the space it occupies.
+   */
+  private void discardCachedObject(final Key key) {
+    final BoundedObjectCache cache = getObjectCache();
+    if (cache != null) {
+      cache.remove(key);
+    }
+  }
+
+  private BoundedObjectCache getObjectCache() {
+    if (_appCache instanceof BoundedObjectCache) {
+      return (BoundedObjectCache) _appCache;
+    }
+    final Object treeCache = _tree.getAppCache();
+    if (treeCache instanceof BoundedObjectCache) {
+      return (BoundedObjectCache) treeCache;
+    }
+    return null;
+  }
+
+  /**
+   * <p>
+   * Opens an <code>InputStream</code> that reads the elements of the
+   * <code>byte</code> array value associated with the current
+   * <code>Key</code>. A value stored as a LONG_RECORD is read incrementally
+   * from its pages so that no more than a small, fixed number of pages of
+   * the value is held in memory at once, however large the value is. Values
+   * written by {@link #storeFromStream(InputStream, long)} can be read this
+   * way, as can any value stored as a <code>byte</code> array.
+   * </p>
+   * <p>
+   * The stream reads the value associated with the key that was current
+   * when it was opened; subsequent changes to this <code>Exchange</code>'s
+   * <code>Key</code> do not affect it. The stream must be used only by the
+   * thread that owns this <code>Exchange</code>. Each read verifies that the
+   * value has not been changed or removed since the stream was opened and
+   * throws an <code>IOException</code> if it has. The
+   * {@link InputStream#skip(long)} method passes over whole pages without
+   * copying them, permitting reads of a portion of a large value starting at
+   * an arbitrary offset.
+   * </p>
+   *
+   * @return the <code>InputStream</code>, or <code>null</code> if there is no
+   *         value associated with the current key
+   * @throws ConversionException
+   *             if the value is not a <code>byte</code> array
+   * @throws PersistitException
+   */
+  public InputStream openValueStream() throws PersistitException {
+    assertCorrectThread(true);
+    _persistit.checkClosed();
+    _key.testValidForStoreAndFetch(_volume.getPageSize());
+    final Value value = new Value(_persistit);
+    searchAndFetchInternal(value, -1);
+    if (!value.isDefined()) {
+      return null;
+    }
+    final byte[] bytes = value.getEncodedBytes();
+    final int size = value.getEncodedSize();
+    if (isLongRecord(value)) {
+      if (!Value.isByteArrayPrefix(bytes, Buffer.LONGREC_PREFIX_OFFSET, Buffer.LONGREC_PREFIX_SIZE)) {
+        throw new ConversionException("Value is not a byte array");
+      }
+      return new ValueInputStream(this, new Key(_key), Arrays.copyOf(bytes, Buffer.LONGREC_SIZE));
+    }
+    if (!Value.isByteArrayPrefix(bytes, 0, size)) {
+      throw new ConversionException("Value is not a byte array");
+    }
+    return new ValueInputStream(Arrays.copyOfRange(bytes, Value.BYTE_ARRAY_PREFIX_SIZE, size));
+  }
+
+  /**
+   * <p>
+   * Inserts or replaces the value associated with the current
+   * <code>Key</code> with a <code>byte</code> array whose elements are read
+   * from the supplied <code>InputStream</code>. A value too large to be
+   * stored in a data page is written directly into the pages of a new
+   * LONG_RECORD chain as it is read, so it is never held in memory in its
+   * entirety. The stored value can be fetched as a <code>byte</code> array
+   * or read with {@link #openValueStream()}.
+   * </p>
+   * <p>
+   * The size of a streamed value is limited by the maximum length of a
+   * LONG_RECORD chain rather than by {@link Value#MAXIMUM_SIZE}. Within a
+   * transaction, however, it may not exceed {@link Value#MAXIMUM_SIZE}
+   * because recovery of the transaction reconstructs the value in memory.
+   * </p>
+   *
+   * @param in
+   *            source of the array elements
+   * @param length
+   *            number of bytes to read from <code>in</code>
+   * @return This <code>Exchange</code> to permit method call chaining
+   * @throws IOException
+   *             if <code>in</code> fails or ends before <code>length</code>
+   *             bytes have been read
+   * @throws PersistitException
+   */
+  public Exchange storeFromStream(final InputStream in, final long length) throws PersistitException,
+    IOException {
+    assertCorrectThread(true);
+    _persistit.checkClosed();
+    if (_volume.isReadOnly()) {
+      throw new ReadOnlyVolumeException(_volume.toString());
+    }
+    _key.testValidForStoreAndFetch(_volume.getPageSize());
+    if (length < 0) {
+      throw new IllegalArgumentException("Negative length " + length);
+    }
+    final Value value = new Value(_persistit);
+    if (length + Value.BYTE_ARRAY_PREFIX_SIZE <= maxValueSize(_key.getEncodedSize())) {
+      final byte[] bytes = new byte[(int) length];
+      int offset = 0;
+      while (offset < bytes.length) {
+        final int count = in.read(bytes, offset, bytes.length - offset);
+        if (count < 0) {
+          throw new EOFException("Stream ended with " + (bytes.length - offset) + " bytes remaining");
+        }
+        offset += count;
+      }
+      value.putByteArray(bytes);
+      return store(_key, value);
+    }
+    /*
+     * The LONG_RECORD chain is written before the descriptor is stored; if
+     * the store fails the chain must be deallocated here.
+     */
+    final byte[] descriptor = new byte[Buffer.LONGREC_SIZE];
+    final long page = getLongRecordHelper().storeLongRecord(in, length, descriptor, _transaction.isActive());
+    boolean stored = false;
+    try {
+      value.putEncodedBytes(descriptor, 0, descriptor.length);
+      store(_key, value);
+      stored = true;
+    } finally {
+      if (!stored) {
+        _volume.getStructure().deallocateGarbageChain(page, 0);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Verify that the value associated with <code>key</code> is still the
+   * LONG_RECORD described by <code>descriptor</code> and, while holding a
+   * claim on its data page, copy <code>length</code> bytes of the chain
+   * starting at <code>page</code>. Used by {@link ValueInputStream}.
+   *
+   * @return the address of the page following the last one read, or -1 if
+   *         the value has been changed or removed
+   */
+  long readLongRecordPages(final Key key, final byte[] descriptor, final Value value, final long page,
+    final byte[] target, final int offset, final int length) throws PersistitException {
+    assertCorrectThread(true);
+    _persistit.checkClosed();
+    Buffer buffer = null;
+    try {
+      final int foundAt = search(key, false);
+      buffer = _levelCache[0]._buffer;
+      if (!fetchFromBufferInternal(buffer, value, foundAt, -1) || value.getEncodedSize() != descriptor.length) {
+        return -1;
+      }
+      final byte[] bytes = value.getEncodedBytes();
+      for (int index = 0; index < descriptor.length; index++) {
+        if (bytes[index] != descriptor[index]) {
+          return -1;
+        }
+      }
+      return getLongRecordHelper().readLongRecordPages(page, target, offset, length, _timeoutMillis);
+    } finally {
+      if (buffer != null) {
+        buffer.releaseTouched();
+      }
+      _treeHolder.verifyReleased();
+    }
+  }
+
   /**
    * Helper for fully pulling a value out of a Buffer. That is, if the value
    * is a LONG_RECORD it will also be fetched.
@@ -3108,14 +3512,17 @@ public class Exchange implements ReadOnlyExchange {
      */
     if (!_ignoreMVCCFetch) {
       /*
-       * Must fetch entire record as it *could* be an MVV, and reading
-       * partial MVV is not supported (need all for correct version)
+       * Must fetch entire record if it is an MVV, as reading a partial MVV
+       * is not supported (need all for correct version). A LONG_RECORD
+       * holding a single version is fetched only to minimumBytes.
        */
-      fetchFixupForLongRecords(value, Integer.MAX_VALUE);
+      if (isLongMVV(value)) {
+        fetchFixupForLongRecords(value, Integer.MAX_VALUE);
+      }
       if (MVV.isArrayMVV(value.getEncodedBytes(), 0, value.getEncodedSize())) {
         visible = mvccFetch(value, minimumBytes);
-        fetchFixupForLongRecords(value, minimumBytes);
       }
+      fetchFixupForLongRecords(value, minimumBytes);
       if (value.isDefined() && value.isAntiValue()) {
         value.clear();
         visible = false;
@@ -3140,6 +3547,12 @@ public class Exchange implements ReadOnlyExchange {
    *             As thrown from {@link #search(Key, boolean)}
    */
   private void searchAndFetchInternal(final Value value, final int minimumBytes) throws PersistitException {
+    if (isDefinitelyAbsent()) {
+      value.clear();
+      _volume.getStatistics().bumpFetchCounter();
+      _tree.getStatistics().bumpFetchCounter();
+      return;
+    }
     Buffer buffer = null;
     try {
       final int foundAt = search(_key, false);
@@ -3156,6 +3569,18 @@ public class Exchange implements ReadOnlyExchange {
     }
   }
 
+  /**
+   * Consult the {@link KeyBloomFilter} attached to the <code>Tree</code>, if
+   * any. A fetch that ignores MVCC must find keys stored only as AntiValues,
+   * which the filter does not record, so it always searches.
+   *
+   * @return <code>true</code> if the current key is certainly not in the tree
+   */
+  private boolean isDefinitelyAbsent() throws PersistitException {
+    final KeyBloomFilter filter = _tree.getKeyBloomFilter();
+    return filter != null && !_ignoreMVCCFetch && !filter.mightContain(_key);
+  }
+
   boolean isLongRecord(final Value value) {
     return value.isDefined() && Buffer.isLongRecord(value.getEncodedBytes(), 0, value.getEncodedSize());
   }
@@ -3319,6 +3744,9 @@ public class Exchange implements ReadOnlyExchange {
 
     final boolean result = removeKeyRangeInternal(_spareKey3, _spareKey4, fetchFirst);
     _treeHolder.verifyReleased();
+    if (result && selection != GT) {
+      discardCachedObject(_key);
+    }
     return result;
   }
 
@@ -3411,6 +3839,9 @@ public class Exchange implements ReadOnlyExchange {
      * transaction.
      */
     if (_tree.isTransactionPrivate(true)) {
+      if (_tree.hasKeyCounters()) {
+        adjustKeyCountsForRemoval(key1, key2);
+      }
       return raw_removeKeyRangeInternal(key1, key2, fetchFirst, false);
     }
 
@@ -3454,6 +3885,22 @@ public class Exchange implements ReadOnlyExchange {
     return anyRemoved;
   }
 
+  /**
+   * Decrement the key counts of the <code>Tree</code> for each record between
+   * <code>key1</code> and <code>key2</code>, left-inclusive, that is about to
+   * be removed from a transaction-private tree without being replaced by an
+   * AntiValue.
+   */
+  private void adjustKeyCountsForRemoval(final Key key1, final Key key2) throws PersistitException {
+    final Exchange ex = new Exchange(this);
+    key1.copyTo(ex.getKey());
+    Direction direction = GTEQ;
+    while (ex.traverse(direction, true, 0) && ex.getKey().compareTo(key2) < 0) {
+      _tree.adjustKeyCounts(ex.getKey(), -1);
+      direction = GT;
+    }
+  }
+
   /**
    * Removes all records with keys falling between <code>key1</code> and
    * </code>key2</code>, lefty-inclusive. Validity checks and Key value
@@ -4375,6 +4822,317 @@ public class Exchange implements ReadOnlyExchange {
     }
   }
 
+  /**
+   * Merges adjacent child pages of the index page at <code>level + 1</code>
+   * that contains the current key wherever their combined content fits in
+   * <code>maxSize</code> bytes. Each merge removes the index record pointing
+   * to the right page and deallocates it. Used by {@link CompactionTask}.
+   * On return the current key is the right edge key of the index page, which
+   * identifies the next index page at that level, or is the right edge key of
+   * the tree if there is none.
+   *
+   * @param level
+   *            The tree level of the pages to merge, starting at zero for
+   *            data pages
+   * @param maxSize
+   *            Maximum size of a merged page in bytes
+   * @return the number of pages merged
+   * @throws PersistitException
+   */
+  int compactPages(final int level, final int maxSize) throws PersistitException {
+    _persistit.checkClosed();
+    _persistit.checkSuspended();
+    if (_volume.isReadOnly()) {
+      throw new ReadOnlyVolumeException(_volume.toString());
+    }
+    final List<Long> garbage = new ArrayList<Long>();
+    int merged = 0;
+    Buffer parent = null;
+    Buffer left = null;
+    Buffer right = null;
+
+    if (!_treeHolder.claim(true, _timeoutMillis)) {
+      throw new InUseException("Thread " + Thread.currentThread().getName() + " failed to get writer claim on "
+        + _tree);
+    }
+    try {
+      checkLevelCache();
+      if (level + 1 >= _cacheDepth) {
+        RIGHT_GUARD_KEY.copyTo(_key);
+        return 0;
+      }
+      searchTree(_key, level + 1, true);
+      parent = _levelCache[level + 1]._buffer;
+      final long timestamp = timestamp();
+      int p = parent.getKeyBlockStart();
+      //
+      // The last key block is the right edge key which has no child page.
+      //
+      while (p + KEYBLOCK_LENGTH < parent.getKeyBlockEnd() - KEYBLOCK_LENGTH) {
+        final long leftPage = parent.getPointer(p);
+        final long rightPage = parent.getPointer(p + KEYBLOCK_LENGTH);
+        left = _pool.get(_volume, leftPage, true, true, _timeoutMillis);
+        checkPageType(left, level + PAGE_TYPE_DATA, false);
+        right = _pool.get(_volume, rightPage, true, true, _timeoutMillis);
+        checkPageType(right, level + PAGE_TYPE_DATA, false);
+        //
+        // Merge only if the index record for the right page immediately
+        // follows that of the left page.
+        //
+        boolean didMerge = false;
+        if (left.getRightSibling() == rightPage) {
+          left.writePageOnCheckpoint(timestamp);
+          right.writePageOnCheckpoint(timestamp);
+          parent.writePageOnCheckpoint(timestamp);
+          if (left.merge(right, maxSize)) {
+            _tree.bumpGeneration();
+            parent.removeKeys(p + KEYBLOCK_LENGTH, p + KEYBLOCK_LENGTH * 2, _spareKey1);
+            left.setDirtyAtTimestamp(timestamp);
+            right.setDirtyAtTimestamp(timestamp);
+            parent.setDirtyAtTimestamp(timestamp);
+            garbage.add(rightPage);
+            garbage.add(left.getRightSibling());
+            didMerge = true;
+            merged++;
+          }
+        }
+        right.releaseTouched();
+        right = null;
+        left.releaseTouched();
+        left = null;
+        //
+        // After a merge the left page may also absorb its new right
+        // sibling.
+        //
+        if (!didMerge) {
+          p += KEYBLOCK_LENGTH;
+        }
+      }
+      parent.keyAt(parent.getKeyBlockEnd() - KEYBLOCK_LENGTH, _key);
+      _key.bumpGeneration();
+    } finally {
+      if (right != null) {
+        right.releaseTouched();
+      }
+      if (left != null) {
+        left.releaseTouched();
+      }
+      if (parent != null) {
+        parent.releaseTouched();
+      }
+      _treeHolder.release();
+    }
+    for (int index = 0; index < garbage.size(); index += 2) {
+      _volume.getStructure().deallocateGarbageChain(garbage.get(index), garbage.get(index + 1));
+    }
+    return merged;
+  }
+
+  /**
+   * Moves the child pages of the index page at <code>level + 1</code> that
+   * contains the current key to free pages having addresses below
+   * <code>limit</code>, if they lie at or above it. Used by
+   * {@link ShrinkTask}. Each page is copied to the lowest page in
+   * <code>free</code>, the pointers to it in its parent page and left sibling
+   * are changed, and its own address is added to <code>free</code>. The first
+   * child of the next index page is also considered here because its left
+   * sibling is the last child of this one. If <code>level</code> is the root
+   * level, the root page is relocated instead. On return the current key is
+   * the right edge key of the index page, which identifies the next index
+   * page at that level, or is the right edge key of the tree if there is
+   * none.
+   *
+   * @param level
+   *            The tree level of the pages to relocate, starting at zero for
+   *            data pages
+   * @param limit
+   *            The lowest page address to be vacated
+   * @param free
+   *            Addresses of free pages that are not on the garbage chain
+   * @return the number of pages relocated
+   * @throws PersistitException
+   */
+  int relocatePages(final int level, final long limit, final BitSet free) throws PersistitException {
+    _persistit.checkClosed();
+    _persistit.checkSuspended();
+    if (_volume.isReadOnly()) {
+      throw new ReadOnlyVolumeException(_volume.toString());
+    }
+    int relocated = 0;
+    boolean rootChanged = false;
+    Buffer parent = null;
+    Buffer nextParent = null;
+
+    if (!_treeHolder.claim(true, _timeoutMillis)) {
+      throw new InUseException("Thread " + Thread.currentThread().getName() + " failed to get writer claim on "
+        + _tree);
+    }
+    try {
+      checkLevelCache();
+      final long timestamp = timestamp();
+      if (level + 1 >= _cacheDepth) {
+        final long rootPage = _tree.getRootPageAddr();
+        if (level + 1 == _cacheDepth && rootPage >= limit) {
+          Buffer buffer = null;
+          try {
+            buffer = _pool.get(_volume, rootPage, true, true, _timeoutMillis);
+            checkPageType(buffer, level + PAGE_TYPE_DATA, false);
+            final long page = relocatePage(buffer, limit, free, timestamp);
+            if (page != 0) {
+              _tree.changeRootPageAddr(page, 0);
+              _tree.bumpGeneration();
+              rootChanged = true;
+              relocated++;
+            }
+          } finally {
+            if (buffer != null) {
+              buffer.releaseTouched();
+            }
+          }
+        }
+        RIGHT_GUARD_KEY.copyTo(_key);
+      } else {
+        searchTree(_key, level + 1, true);
+        parent = _levelCache[level + 1]._buffer;
+        final int start = parent.getKeyBlockStart();
+        //
+        // Only the leftmost index page on a level begins with the left edge
+        // key; the first child of any other has a left sibling elsewhere.
+        //
+        parent.keyAt(start, _spareKey1);
+        final boolean leftmost = _spareKey1.isLeftEdge();
+        //
+        // The last key block is the right edge key which has no child page.
+        //
+        final int end = parent.getKeyBlockEnd() - KEYBLOCK_LENGTH;
+        long leftPage = 0;
+        for (int p = start; p < end; p += KEYBLOCK_LENGTH) {
+          final long page = parent.getPointer(p);
+          long newPage = page;
+          //
+          // The left sibling of the first child is the last child of the
+          // previous index page, which relocated it.
+          //
+          if (page >= limit && (p > start || leftmost)) {
+            newPage = relocateChild(parent, p, leftPage, level, limit, free, timestamp);
+          }
+          if (newPage != page) {
+            relocated++;
+          }
+          leftPage = newPage;
+        }
+        final long nextParentPage = parent.getRightSibling();
+        if (nextParentPage != 0 && leftPage != 0) {
+          nextParent = _pool.get(_volume, nextParentPage, true, true, _timeoutMillis);
+          checkPageType(nextParent, level + 1 + PAGE_TYPE_DATA, false);
+          final int p = nextParent.getKeyBlockStart();
+          if (p < nextParent.getKeyBlockEnd() - KEYBLOCK_LENGTH) {
+            final long page = nextParent.getPointer(p);
+            if (page >= limit && relocateChild(nextParent, p, leftPage, level, limit, free, timestamp) != page) {
+              relocated++;
+            }
+          }
+        }
+        parent.keyAt(end, _key);
+        _key.bumpGeneration();
+      }
+    } finally {
+      if (nextParent != null) {
+        nextParent.releaseTouched();
+      }
+      if (parent != null) {
+        parent.releaseTouched();
+      }
+      try {
+        if (rootChanged) {
+          _volume.getStructure().updateDirectoryTree(_tree);
+        }
+      } finally {
+        _treeHolder.release();
+      }
+    }
+    if (relocated > 0) {
+      _tree.bumpGeneration();
+    }
+    return relocated;
+  }
+
+  /**
+   * Relocate the child page pointed to by the index record at
+   * <code>p</code> in <code>parent</code>, whose left sibling is
+   * <code>leftPage</code>, or zero if it is the first page of its level. The
+   * page is left in place if there is no free page below
+   * <code>limit</code>, or if the left sibling does not point to it.
+   *
+   * @return the address of the child page after relocation
+   */
+  private long relocateChild(final Buffer parent, final int p, final long leftPage, final int level,
+    final long limit, final BitSet free, final long timestamp) throws PersistitException {
+    final long page = parent.getPointer(p);
+    Buffer left = null;
+    Buffer buffer = null;
+    try {
+      if (leftPage != 0) {
+        left = _pool.get(_volume, leftPage, true, true, _timeoutMillis);
+        checkPageType(left, level + PAGE_TYPE_DATA, false);
+        if (left.getRightSibling() != page) {
+          return page;
+        }
+      }
+      buffer = _pool.get(_volume, page, true, true, _timeoutMillis);
+      checkPageType(buffer, level + PAGE_TYPE_DATA, false);
+      final long newPage = relocatePage(buffer, limit, free, timestamp);
+      if (newPage == 0) {
+        return page;
+      }
+      parent.writePageOnCheckpoint(timestamp);
+      parent.setPointer(p, newPage);
+      parent.setDirtyAtTimestamp(timestamp);
+      if (left != null) {
+        left.writePageOnCheckpoint(timestamp);
+        left.setRightSibling(newPage);
+        left.setDirtyAtTimestamp(timestamp);
+      }
+      return newPage;
+    } finally {
+      if (buffer != null) {
+        buffer.releaseTouched();
+      }
+      if (left != null) {
+        left.releaseTouched();
+      }
+    }
+  }
+
+  /**
+   * Copy the page in <code>buffer</code> to the lowest free page, if it is
+   * below <code>limit</code>, and mark the original page unallocated. The
+   * caller must change all pointers to the original page.
+   *
+   * @return the address of the copy, or zero if there is no suitable free page
+   */
+  private long relocatePage(final Buffer buffer, final long limit, final BitSet free, final long timestamp)
+    throws PersistitException {
+    final int target = free.nextSetBit(1);
+    if (target < 0 || target >= limit) {
+      return 0;
+    }
+    final Buffer copy = _pool.get(_volume, target, true, false, _timeoutMillis);
+    try {
+      copy.writePageOnCheckpoint(timestamp);
+      copy.copyPage(buffer);
+      copy.setDirtyAtTimestamp(timestamp);
+    } finally {
+      copy.releaseTouched();
+    }
+    free.clear(target);
+    buffer.writePageOnCheckpoint(timestamp);
+    buffer.init(Buffer.PAGE_TYPE_UNALLOCATED);
+    buffer.setDirtyAtTimestamp(timestamp);
+    free.set((int) buffer.getPageAddress());
+    return target;
+  }
+
   String toStringDetail() {
     final StringBuilder sb = new StringBuilder(toString());
     for (int level = 0; level < MAX_TREE_DEPTH; level++) {
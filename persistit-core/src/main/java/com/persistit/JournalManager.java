@@ -776,6 +776,19 @@ class JournalManager implements JournalManagerMXBean, VolumeHandleLookup {
         return true;
     }
 
+    /**
+     * Indicate whether the journal holds a version of a page that may not yet
+     * have been copied to the volume file.
+     * 
+     * @param pageAddress
+     * @param volume
+     * @return <code>true</code> if the page map contains the page
+     */
+    synchronized boolean isPageInJournal(final long pageAddress, final Volume volume) {
+        final Integer volumeHandle = _volumeToHandleMap.get(volume);
+        return volumeHandle != null && _pageMap.containsKey(new PageNode(volumeHandle, pageAddress, -1, -1));
+    }
+
     PageNode lookupUpPageNode(final long pageAddress, final Volume volume) {
         PageNode pnLookup = null;
         synchronized (this) {
@@ -2560,6 +2573,12 @@ class JournalManager implements JournalManagerMXBean, VolumeHandleLookup {
                 continue;
             }
 
+            if (pageNode.isInvalid()) {
+                // Released by a ShrinkTask after it was read for copying
+                iterator.remove();
+                continue;
+            }
+
             final long pageAddress = pageNode.getPageAddress();
             volume.getStorage().extend(pageAddress);
             final int pageSize = volume.getPageSize();
@@ -2599,6 +2618,10 @@ class JournalManager implements JournalManagerMXBean, VolumeHandleLookup {
         synchronized (this) {
             for (final PageNode copiedPageNode : list) {
                 PageNode pageNode = _pageMap.get(copiedPageNode);
+                if (pageNode == null) {
+                    // Removed by invalidatePages while being copied
+                    continue;
+                }
                 if (pageNode.getJournalAddress() == copiedPageNode.getJournalAddress()) {
                     pageNode.removeHistory();
                     pageNode.invalidate();
@@ -2750,6 +2773,31 @@ class JournalManager implements JournalManagerMXBean, VolumeHandleLookup {
         }
     }
 
+    /**
+     * Remove the page images of the pages of a volume at or above
+     * <code>pageAddress</code>, which have been released by a
+     * {@link ShrinkTask}, so that they are neither read nor copied back into
+     * the volume. Unlike {@link #truncate(Volume, long)}, the page nodes are
+     * also removed from the page map so that the next page map written to the
+     * journal does not resurrect them during recovery.
+     * 
+     * @param volume
+     *            The volume
+     * @param pageAddress
+     *            The address of the first released page
+     */
+    synchronized void invalidatePages(final Volume volume, final long pageAddress) {
+        for (final Iterator<PageNode> iterator = _pageMap.values().iterator(); iterator.hasNext();) {
+            final PageNode lastPageNode = iterator.next();
+            if (volume.getHandle() == lastPageNode.getVolumeHandle() && lastPageNode.getPageAddress() >= pageAddress) {
+                for (PageNode pageNode = lastPageNode; pageNode != null; pageNode = pageNode.getPrevious()) {
+                    pageNode.invalidate();
+                }
+                iterator.remove();
+            }
+        }
+    }
+
     private void reportJournalFileCount() {
         /*
          * Does not need synchronization since only the JOURNAL_COPIER thread
@@ -2827,6 +2827,49 @@ public final class Key implements Comparable<Object> {
         }
     }
 
+    /**
+     * Decodes the next key segment as an array of bytes, copies as many of
+     * them as fit into the supplied array, and advances the index to the next
+     * key segment. Unlike {@link #decodeByteArray()} this method does not
+     * allocate a new array.
+     * 
+     * @param target
+     *            The array into which bytes are copied
+     * @param offset
+     *            Offset within <code>target</code> of the first byte copied
+     * @return The number of bytes in the key segment, which may be larger
+     *         than the number of bytes copied
+     * @throws ConversionException
+     *             if the next key segment value is not a byte array.
+     * @throws ArrayIndexOutOfBoundsException
+     *             if <code>offset</code> is negative or greater than the
+     *             length of <code>target</code>
+     */
+    public int decodeByteArray(final byte[] target, final int offset) {
+        //
+        // Checked before the segment is unquoted in place so that a bad
+        // offset cannot leave the key modified.
+        //
+        if (offset < 0 || offset > target.length) {
+            throw new ArrayIndexOutOfBoundsException("Offset " + offset + " outside array of length "
+                    + target.length);
+        }
+        int index = _index;
+        final int type = getTypeCode();
+        try {
+            if (type != TYPE_BYTE_ARRAY) {
+                throw new ConversionException("Invalid byte array lead-in byte (" + type + ") at position "
+                        + _index + " in key");
+            }
+            final int size = unquoteNulls(index + 1, false);
+            System.arraycopy(_bytes, index + 1, target, offset, Math.min(size, target.length - offset));
+            index += quoteNulls(index + 1, size, false) + 2;
+            return size;
+        } finally {
+            _index = index;
+        }
+    }
+
     /**
      * Decodes the next key segment as an <code>Object</code>, advances the
      * index to the next key segment and returns the result.
@@ -3410,7 +3453,7 @@ public final class Key implements Comparable<Object> {
      *            the String to encode and append to the key.
      * @return This <code>Key</code>, to permit method call chaining
      */
-    private Key appendString(final CharSequence s, final CoderContext context) {
+    Key appendString(final CharSequence s, final CoderContext context) {
         final int save = _size;
         try {
             notLeftOrRightGuard();
@@ -3459,10 +3502,17 @@ public final class Key implements Comparable<Object> {
 
     private Key appendByKeyCoder(final Object object, final Class<?> cl, final KeyCoder coder,
             final CoderContext context) {
+        return appendByKeyCoder(object, _persistit.getClassIndex().lookupByClass(cl).getHandle(), coder, context);
+    }
+
+    /**
+     * Append a key segment encoded by a <code>KeyCoder</code> whose class
+     * handle has already been resolved. Used by {@link KeyTemplate}.
+     */
+    Key appendByKeyCoder(final Object object, final int handle, final KeyCoder coder, final CoderContext context) {
         int size = _size;
         final boolean saveInKeyCoder = _inKeyCoder;
         try {
-            final int handle = _persistit.getClassIndex().lookupByClass(cl).getHandle();
             _size += encodeHandle(handle);
             final int begin = _size;
             _inKeyCoder = true;
@@ -3480,6 +3530,17 @@ public final class Key implements Comparable<Object> {
     }
 
     private Object decodeByKeyCoder(final Object target, final CoderContext context) {
+        return decodeByKeyCoder(target, context, 0, null, null);
+    }
+
+    /**
+     * Decode a key segment encoded by a <code>KeyCoder</code>. If
+     * <code>expectedCoder</code> is not <code>null</code> the segment must
+     * have the supplied class handle and is decoded by the supplied coder
+     * without looking either up. Used by {@link KeyTemplate}.
+     */
+    Object decodeByKeyCoder(final Object target, final CoderContext context, final int expectedHandle,
+            final Class<?> expectedClass, final KeyCoder expectedCoder) {
         int index = _index;
         int size = _size;
         Class<?> clazz = Object.class;
@@ -3487,14 +3548,29 @@ public final class Key implements Comparable<Object> {
         boolean unquoted = false;
         boolean zeroByteFree = false;
         try {
-            final int handle = decodeHandle();
-            clazz = _persistit.classForHandle(handle);
-            if (clazz == null) {
-                throw new ConversionException("No class information for handle " + handle);
+            final int type = getTypeCode();
+            if (type < TYPE_CODER_MIN || type > TYPE_CODER_MAX) {
+                throw new ConversionException("Invalid KeyCoder lead-in byte (" + type + ") at position " + _index
+                        + " in key");
             }
-            final KeyCoder coder = _persistit.lookupKeyCoder(clazz);
-            if (coder == null) {
-                throw new ConversionException("No KeyCoder for class " + clazz.getName());
+            final int handle = decodeHandle();
+            final KeyCoder coder;
+            if (expectedCoder != null) {
+                if (handle != expectedHandle) {
+                    throw new ConversionException("Expected handle " + expectedHandle + " for class "
+                            + expectedClass.getName() + " but key segment has handle " + handle);
+                }
+                clazz = expectedClass;
+                coder = expectedCoder;
+            } else {
+                clazz = _persistit.classForHandle(handle);
+                if (clazz == null) {
+                    throw new ConversionException("No class information for handle " + handle);
+                }
+                coder = _persistit.lookupKeyCoder(clazz);
+                if (coder == null) {
+                    throw new ConversionException("No KeyCoder for class " + clazz.getName());
+                }
             }
             zeroByteFree = coder.isZeroByteFree();
             segmentSize = unquoteNulls(index, zeroByteFree);
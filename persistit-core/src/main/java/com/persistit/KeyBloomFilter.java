@@ -0,0 +1,288 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.persistit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.persistit.exception.PersistitException;
+
+/**
+ * <p>
+ * An in-memory Bloom filter summarizing the keys of a {@link Tree}. When a
+ * <code>KeyBloomFilter</code> is attached to a <code>Tree</code> by
+ * {@link Tree#setKeyBloomFilter(long, double)}, {@link Exchange#fetch()},
+ * {@link Exchange#isValueDefined()} and related methods consult it before
+ * searching the tree; a key that the filter reports as definitely absent is
+ * not looked up at all, so a fetch that misses touches no pages. A key that
+ * may be present is looked up as usual.
+ * </p>
+ * <p>
+ * Every key stored after the filter is attached is added to it while the
+ * page holding the key is still claimed. The keys already in the tree are
+ * added by a traversal that the first lookup performs; until that traversal
+ * completes the filter is not consulted. Keys stored by transactions that
+ * have not committed are included, so the filter never reports a key absent
+ * while any transaction could find it.
+ * </p>
+ * <p>
+ * Keys cannot be removed from a Bloom filter. A removed key remains in the
+ * filter until it is rebuilt, and meanwhile a lookup for it searches the
+ * tree. Once the number of distinct keys added exceeds twice the expected
+ * number, the filter replaces itself on its <code>Tree</code> with a larger
+ * one, which is built again, without the removed keys, by the next lookup.
+ * The filter is not persistent: it must be attached each time Persistit is
+ * started.
+ * </p>
+ */
+public class KeyBloomFilter {
+
+    private final static int EMPTY = 0;
+    private final static int BUILDING = 1;
+    private final static int READY = 2;
+
+    private final static int MAX_HASH_COUNT = 16;
+    private final static long MIN_BIT_COUNT = 1L << 10;
+    private final static long MAX_BIT_COUNT = 1L << 32;
+
+    private final Tree _tree;
+    private final long _expectedKeys;
+    private final double _falsePositiveProbability;
+    private final AtomicLongArray _words;
+    private final long _bitMask;
+    private final int _hashCount;
+
+    private final AtomicInteger _state = new AtomicInteger(EMPTY);
+    private final AtomicLong _insertionCount = new AtomicLong();
+    private final AtomicLong _lookupCount = new AtomicLong();
+    private final AtomicLong _absentCount = new AtomicLong();
+
+    KeyBloomFilter(final Tree tree, final long expectedKeys, final double falsePositiveProbability) {
+        if (expectedKeys <= 0) {
+            throw new IllegalArgumentException("Expected key count must be positive: " + expectedKeys);
+        }
+        if (!(falsePositiveProbability > 0.0 && falsePositiveProbability < 1.0)) {
+            throw new IllegalArgumentException("False positive probability must be between 0 and 1: "
+                    + falsePositiveProbability);
+        }
+        _tree = tree;
+        _expectedKeys = expectedKeys;
+        _falsePositiveProbability = falsePositiveProbability;
+        /*
+         * Optimal size is -n ln(p) / (ln 2)^2 bits, rounded up to a power of
+         * two so that bit indexes can be masked, with (m / n) ln 2 hashes.
+         */
+        final double ln2 = Math.log(2);
+        final double optimal = -expectedKeys * Math.log(falsePositiveProbability) / (ln2 * ln2);
+        long bitCount = MIN_BIT_COUNT;
+        while (bitCount < optimal && bitCount < MAX_BIT_COUNT) {
+            bitCount <<= 1;
+        }
+        _words = new AtomicLongArray((int) (bitCount >>> 6));
+        _bitMask = bitCount - 1;
+        _hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, (int) Math.round((double) bitCount / expectedKeys * ln2)));
+    }
+
+    /**
+     * @return the <code>Tree</code> whose keys this filter summarizes
+     */
+    public Tree getTree() {
+        return _tree;
+    }
+
+    /**
+     * @return the number of keys for which the filter was sized
+     */
+    public long getExpectedKeys() {
+        return _expectedKeys;
+    }
+
+    /**
+     * @return the false positive probability for which the filter was sized
+     */
+    public double getFalsePositiveProbability() {
+        return _falsePositiveProbability;
+    }
+
+    /**
+     * @return the number of bits in the filter
+     */
+    public long getBitCount() {
+        return _bitMask + 1;
+    }
+
+    /**
+     * @return the number of bits set for each key
+     */
+    public int getHashCount() {
+        return _hashCount;
+    }
+
+    /**
+     * @return <code>true</code> if the keys already in the tree have been
+     *         added and the filter is being consulted
+     */
+    public boolean isReady() {
+        return _state.get() == READY;
+    }
+
+    /**
+     * @return the approximate number of distinct keys added to the filter
+     */
+    public long getInsertionCount() {
+        return _insertionCount.get();
+    }
+
+    /**
+     * @return the number of lookups for which the filter was consulted
+     */
+    public long getLookupCount() {
+        return _lookupCount.get();
+    }
+
+    /**
+     * @return the number of lookups the filter answered as definitely absent,
+     *         each of which avoided a search of the tree
+     */
+    public long getAbsentCount() {
+        return _absentCount.get();
+    }
+
+    /**
+     * Add a key to the filter. Called with the page to which the key was
+     * written still claimed, so that a concurrent {@link #build()} either
+     * finds the key on the page or follows this call.
+     */
+    void add(final Key key) {
+        if (addHash(hash(key)) && _insertionCount.incrementAndGet() == _expectedKeys * 2 + 1
+                && _state.get() == READY) {
+            _tree.resizeKeyBloomFilter(this, _expectedKeys * 2);
+        }
+    }
+
+    /**
+     * Determine whether a key may be present in the tree. If the filter has
+     * not yet been built, the first caller builds it and other callers
+     * receive <code>true</code> until it is ready.
+     * 
+     * @return <code>false</code> if the key is definitely absent
+     * @throws PersistitException
+     */
+    boolean mightContain(final Key key) throws PersistitException {
+        if (_state.get() != READY) {
+            if (!_state.compareAndSet(EMPTY, BUILDING)) {
+                return true;
+            }
+            build();
+        }
+        _lookupCount.incrementAndGet();
+        final long hash = hash(key);
+        final long h1 = hash;
+        final long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < _hashCount; i++) {
+            final long bit = (h1 + i * h2) & _bitMask;
+            if ((_words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                _absentCount.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add every key of the tree, including keys whose versions are not yet
+     * visible, and mark the filter ready. If the tree holds more keys than
+     * the filter can summarize accurately, a larger filter replaces it.
+     */
+    private void build() throws PersistitException {
+        final long insertions;
+        try {
+            final Exchange exchange = new Exchange(_tree);
+            exchange.ignoreMVCCFetch(true);
+            exchange.append(Key.BEFORE);
+            //
+            // Every key found is distinct, so each is counted even if it
+            // sets no new bit in a saturated filter.
+            //
+            long keys = 0;
+            while (exchange.traverse(Key.GT, true, 0)) {
+                addHash(hash(exchange.getKey()));
+                keys++;
+            }
+            insertions = _insertionCount.addAndGet(keys);
+            _state.set(READY);
+        } catch (final PersistitException e) {
+            _state.set(EMPTY);
+            throw e;
+        } catch (final RuntimeException e) {
+            _state.set(EMPTY);
+            throw e;
+        }
+        if (insertions > _expectedKeys * 2) {
+            _tree.resizeKeyBloomFilter(this, insertions * 2);
+        }
+    }
+
+    private boolean addHash(final long hash) {
+        final long h1 = hash;
+        final long h2 = (hash >>> 32) | 1;
+        boolean changed = false;
+        for (int i = 0; i < _hashCount; i++) {
+            final long bit = (h1 + i * h2) & _bitMask;
+            final int index = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            long word;
+            while (((word = _words.get(index)) & mask) == 0) {
+                if (_words.compareAndSet(index, word, word | mask)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the encoded key, finished with the MurmurHash3
+     * mixer so that the high and low halves are independent.
+     */
+    private static long hash(final Key key) {
+        final byte[] bytes = key.getEncodedBytes();
+        final int size = key.getEncodedSize();
+        long h = 0xCBF29CE484222325L;
+        for (int index = 0; index < size; index++) {
+            h ^= bytes[index] & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE53F1A85L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KeyBloomFilter(%s bits=%,d hashes=%d ready=%s inserted=%,d lookups=%,d absent=%,d)",
+                _tree.getName(), getBitCount(), _hashCount, isReady(), getInsertionCount(), getLookupCount(),
+                getAbsentCount());
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+
+import com.persistit.encoding.CoderContext;
+import com.persistit.encoding.KeyCoder;
+import com.persistit.encoding.KeyRenderer;
+import com.persistit.exception.ConversionException;
+
+/**
+ * <p>
+ * Describes the segments of a composite {@link Key} having a fixed sequence of
+ * segment types, and encodes and decodes those segments without the per-call
+ * work done by {@link Key#append(Object)} and {@link Key#decode()}. A
+ * <code>KeyTemplate</code> resolves the class handle and {@link KeyCoder} of
+ * each segment once, when it is constructed. Its typed <code>append</code>
+ * methods write primitive, <code>CharSequence</code> and <code>byte</code>
+ * array segments directly into the key's backing array without boxing or
+ * intermediate arrays, and its <code>decode</code> methods read segments into
+ * caller-supplied holders: an <code>Appendable</code> for a
+ * <code>String</code>, a <code>byte</code> array for a <code>byte</code>
+ * array, or a mutable target object for a segment encoded by a
+ * {@link KeyRenderer}.
+ * </p>
+ * <p>
+ * For example, a template for keys of the form
+ * <code>{customerId,orderName}</code> could be used as follows:
+ * 
+ * <pre>
+ * <code>
+ *   final KeyTemplate template = new KeyTemplate(persistit, long.class, String.class);
+ *   ...
+ *   template.append(template.append(exchange.clear().getKey(), customerId), orderName);
+ *   exchange.fetch();
+ * </code>
+ * </pre>
+ * 
+ * </p>
+ * <p>
+ * Each <code>append</code> method verifies that the segment being appended has
+ * the type declared for its position in the template, as given by
+ * {@link Key#getDepth()}. Segments appended this way are encoded exactly as by
+ * the corresponding methods of <code>Key</code>, so keys built with and
+ * without a template are interchangeable. A <code>KeyTemplate</code> is
+ * immutable and may be shared by multiple threads.
+ * </p>
+ */
+public class KeyTemplate {
+
+    private final Class<?>[] _types;
+    private final int[] _handles;
+    private final KeyCoder[] _coders;
+
+    /**
+     * Construct a template for keys having segments of the supplied types.
+     * Each type must be a primitive type, a <code>CharSequence</code> type,
+     * <code>byte[]</code>, <code>Date</code>, <code>BigInteger</code>,
+     * <code>BigDecimal</code>, or a class having a {@link KeyCoder} registered
+     * with the {@link com.persistit.encoding.CoderManager}.
+     * 
+     * @param persistit
+     *            The Persistit instance
+     * @param types
+     *            The segment types, in key order
+     * @throws ConversionException
+     *             if a type can not be encoded in a <code>Key</code>
+     */
+    public KeyTemplate(final Persistit persistit, final Class<?>... types) {
+        _types = types.clone();
+        _handles = new int[types.length];
+        _coders = new KeyCoder[types.length];
+        for (int index = 0; index < types.length; index++) {
+            final Class<?> type = types[index];
+            if (type.isPrimitive() && type != void.class || CharSequence.class.isAssignableFrom(type)
+                    || type == byte[].class || type == Date.class || type == BigInteger.class
+                    || type == BigDecimal.class) {
+                continue;
+            }
+            final KeyCoder coder = persistit.lookupKeyCoder(type);
+            if (coder == null) {
+                throw new ConversionException("Class " + type.getName() + " can't be used in a Key");
+            }
+            _coders[index] = coder;
+            _handles[index] = persistit.getClassIndex().lookupByClass(type).getHandle();
+        }
+    }
+
+    /**
+     * @return The number of segments described by this template
+     */
+    public int getSegmentCount() {
+        return _types.length;
+    }
+
+    /**
+     * @param index
+     *            Segment position
+     * @return The type of the segment at the specified position
+     */
+    public Class<?> getSegmentType(final int index) {
+        return _types[index];
+    }
+
+    public Key append(final Key key, final boolean v) {
+        check(key, boolean.class);
+        return key.append(v);
+    }
+
+    public Key append(final Key key, final byte v) {
+        check(key, byte.class);
+        return key.append(v);
+    }
+
+    public Key append(final Key key, final short v) {
+        check(key, short.class);
+        return key.append(v);
+    }
+
+    public Key append(final Key key, final char v) {
+        check(key, char.class);
+        return key.append(v);
+    }
+
+    public Key append(final Key key, final int v) {
+        check(key, int.class);
+        return key.append(v);
+    }
+
+    public Key append(final Key key, final long v) {
+        check(key, long.class);
+        return key.append(v);
+    }
+
+    public Key append(final Key key, final float v) {
+        check(key, float.class);
+        return key.append(v);
+    }
+
+    public Key append(final Key key, final double v) {
+        check(key, double.class);
+        return key.append(v);
+    }
+
+    /**
+     * Append a <code>CharSequence</code> segment, encoding its characters
+     * directly into the key.
+     * 
+     * @param key
+     *            The <code>Key</code>
+     * @param v
+     *            The value, or <code>null</code>
+     * @return The <code>Key</code>, to permit method call chaining
+     */
+    public Key append(final Key key, final CharSequence v) {
+        final int depth = key.getDepth();
+        if (depth >= _types.length || !CharSequence.class.isAssignableFrom(_types[depth])) {
+            throw mismatch(depth, "CharSequence");
+        }
+        if (v == null) {
+            return key.append((Object) null);
+        }
+        return key.appendString(v, null);
+    }
+
+    /**
+     * Append a <code>byte</code> array segment from a subarray of the
+     * supplied array.
+     * 
+     * @param key
+     *            The <code>Key</code>
+     * @param bytes
+     *            The array
+     * @param offset
+     *            Offset of the first byte of the subarray
+     * @param length
+     *            Length of the subarray
+     * @return The <code>Key</code>, to permit method call chaining
+     */
+    public Key append(final Key key, final byte[] bytes, final int offset, final int length) {
+        check(key, byte[].class);
+        return key.appendByteArray(bytes, offset, length);
+    }
+
+    /**
+     * Append an object segment. If the segment's type has a
+     * <code>KeyCoder</code> the object is encoded by the coder and class
+     * handle resolved when this template was constructed.
+     * 
+     * @param key
+     *            The <code>Key</code>
+     * @param object
+     *            The value, or <code>null</code>
+     * @param context
+     *            Context passed to the <code>KeyCoder</code>, or
+     *            <code>null</code>
+     * @return The <code>Key</code>, to permit method call chaining
+     */
+    public Key append(final Key key, final Object object, final CoderContext context) {
+        final int depth = key.getDepth();
+        if (depth >= _types.length || object != null && !_types[depth].isInstance(object)) {
+            throw mismatch(depth, object == null ? "null" : object.getClass().getName());
+        }
+        final KeyCoder coder = _coders[depth];
+        if (coder == null || object == null) {
+            return key.append(object, context);
+        }
+        key.testValidForAppend();
+        return key.appendByKeyCoder(object, _handles[depth], coder, context);
+    }
+
+    /**
+     * Decode a <code>String</code> segment by appending its characters to the
+     * supplied <code>Appendable</code>. See {@link Key#decodeString(Appendable)}.
+     * 
+     * @param key
+     *            The <code>Key</code>
+     * @param target
+     *            The <code>Appendable</code>
+     * @return The supplied <code>Appendable</code>
+     */
+    public Appendable decodeString(final Key key, final Appendable target) {
+        return key.decodeString(target);
+    }
+
+    /**
+     * Decode a <code>byte</code> array segment into the supplied array. See
+     * {@link Key#decodeByteArray(byte[], int)}.
+     * 
+     * @param key
+     *            The <code>Key</code>
+     * @param target
+     *            The array into which bytes are copied
+     * @param offset
+     *            Offset within <code>target</code> of the first byte copied
+     * @return The number of bytes in the key segment
+     */
+    public int decodeByteArray(final Key key, final byte[] target, final int offset) {
+        return key.decodeByteArray(target, offset);
+    }
+
+    /**
+     * Decode the segment at the specified position, which must have a type
+     * handled by a <code>KeyCoder</code>. If <code>target</code> is not
+     * <code>null</code> the coder must be a {@link KeyRenderer} and the
+     * segment is decoded into the target; otherwise the coder creates a new
+     * object. The class handle of the segment is verified against, and the
+     * segment decoded by, the class and coder resolved when this template was
+     * constructed.
+     * 
+     * @param key
+     *            The <code>Key</code>, with its index at the start of the
+     *            segment
+     * @param position
+     *            Position of the segment in this template
+     * @param target
+     *            The mutable object to decode into, or <code>null</code>
+     * @param context
+     *            Context passed to the <code>KeyCoder</code>, or
+     *            <code>null</code>
+     * @return The target, or the newly created object
+     */
+    public Object decode(final Key key, final int position, final Object target, final CoderContext context) {
+        final KeyCoder coder = _coders[position];
+        if (coder == null) {
+            throw new ConversionException("Segment " + position + " of type " + _types[position].getName()
+                    + " is not encoded by a KeyCoder");
+        }
+        return key.decodeByKeyCoder(target, context, _handles[position], _types[position], coder);
+    }
+
+    private void check(final Key key, final Class<?> type) {
+        final int depth = key.getDepth();
+        if (depth >= _types.length || _types[depth] != type) {
+            throw mismatch(depth, type.getName());
+        }
+    }
+
+    private ConversionException mismatch(final int depth, final String type) {
+        if (depth >= _types.length) {
+            return new ConversionException("Key already has all " + _types.length + " segments of " + this);
+        }
+        return new ConversionException("Segment " + depth + " of " + this + " has type " + _types[depth].getName()
+                + ", not " + type);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("KeyTemplate{");
+        for (int index = 0; index < _types.length; index++) {
+            if (index > 0) {
+                sb.append(',');
+            }
+            sb.append(_types[index].getSimpleName());
+        }
+        return sb.append('}').toString();
+    }
+}
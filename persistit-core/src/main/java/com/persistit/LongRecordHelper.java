@@ -22,10 +22,18 @@ import static com.persistit.Buffer.LONGREC_PREFIX_SIZE;
 import static com.persistit.Buffer.LONGREC_SIZE;
 import static com.persistit.Buffer.LONGREC_TYPE;
 import static com.persistit.Buffer.MAX_LONG_RECORD_CHAIN;
+import static com.persistit.Buffer.PAGE_ADDRESS_OFFSET;
 import static com.persistit.Buffer.PAGE_TYPE_LONG_RECORD;
+import static com.persistit.Buffer.RIGHT_SIBLING_OFFSET;
+import static com.persistit.Buffer.TYPE_OFFSET;
 import static com.persistit.util.SequencerConstants.LONG_RECORD_ALLOCATE_A;
 import static com.persistit.util.ThreadSequencer.sequence;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 import com.persistit.exception.CorruptVolumeException;
 import com.persistit.exception.PersistitException;
 import com.persistit.util.Debug;
@@ -36,6 +44,12 @@ import com.persistit.util.Util;
  */
 class LongRecordHelper {
 
+    /**
+     * Maximum number of consecutive pages read from the volume file by a
+     * single read in {@link #fetchLongRecord(Value, int, long)}
+     */
+    final static int MAX_DIRECT_READ_PAGES = 64;
+
     final Persistit _persistit;
     final Volume _volume;
     final Exchange _exchange;
@@ -56,6 +70,13 @@ class LongRecordHelper {
      * Decode the LONG_RECORD pointer that has previously been fetched into the
      * Value. This will replace the byte array in that value with the actual
      * long value.
+     * <p>
+     * Where consecutive pages of the chain are present neither in the buffer
+     * pool nor in the journal, their current version is in the volume file and
+     * they are read there directly, up to {@link #MAX_DIRECT_READ_PAGES} at a
+     * time, without displacing other pages from the buffer pool. Any other page
+     * is read through the buffer pool.
+     * </p>
      * 
      * @param value
      * @param minimumBytesToFetch
@@ -90,11 +111,62 @@ class LongRecordHelper {
             remainingSize -= LONGREC_PREFIX_SIZE;
             long page = startAtPage;
 
-            for (int count = 0; page != 0 && offset < minimumBytesToFetch; count++) {
+            final int pageSize = _volume.getPool().getBufferSize();
+            final int maxSegmentSize = pageSize - HEADER_SIZE;
+            ByteBuffer extent = null;
+
+            int count = 0;
+            while (page != 0 && offset < minimumBytesToFetch) {
                 if (remainingSize <= 0) {
                     corrupt("Invalid LONG_RECORD remaining size=" + remainingSize + " of " + rawSize + " in page "
                             + page);
                 }
+                if (count > MAX_LONG_RECORD_CHAIN) {
+                    corrupt("LONG_RECORD chain starting at " + startAtPage + " is too long");
+                }
+
+                final int pagesWanted = Math.min(MAX_DIRECT_READ_PAGES, (remainingSize + maxSegmentSize - 1)
+                        / maxSegmentSize);
+                final int pagesDirect = pagesWanted > 1 ? directlyReadablePages(page, pagesWanted) : 0;
+                if (pagesDirect > 1) {
+                    if (extent == null) {
+                        extent = ByteBuffer.allocate(pagesWanted * pageSize);
+                    }
+                    if (_volume.getStorage().readPages(page, pagesDirect, extent)) {
+                        final byte[] bytes = extent.array();
+                        boolean consumed = false;
+                        /*
+                         * Use each page read only if it is the expected
+                         * LONG_RECORD page. Otherwise the page changed after it
+                         * was found to be absent from the pool and the journal,
+                         * and it is read again through the pool.
+                         */
+                        for (int index = 0; index < pagesDirect && remainingSize > 0; index++) {
+                            final int base = index * pageSize;
+                            if ((bytes[base + TYPE_OFFSET] & 0xFF) != PAGE_TYPE_LONG_RECORD
+                                    || Util.getLong(bytes, base + PAGE_ADDRESS_OFFSET) != page) {
+                                break;
+                            }
+                            final int segmentSize = Math.min(maxSegmentSize, remainingSize);
+                            System.arraycopy(bytes, base + HEADER_SIZE, value.getEncodedBytes(), offset,
+                                    segmentSize);
+                            offset += segmentSize;
+                            remainingSize -= segmentSize;
+                            count++;
+                            consumed = true;
+                            final long next = Util.getLong(bytes, base + RIGHT_SIBLING_OFFSET);
+                            final boolean contiguous = next == page + 1;
+                            page = next;
+                            if (!contiguous) {
+                                break;
+                            }
+                        }
+                        if (consumed) {
+                            continue;
+                        }
+                    }
+                }
+
                 buffer = _volume.getPool().get(_volume, page, false, true, timeout);
                 if (buffer.getPageType() != PAGE_TYPE_LONG_RECORD) {
                     corrupt("LONG_RECORD chain is invalid at page " + page + " - invalid page type: " + buffer);
@@ -108,32 +180,53 @@ class LongRecordHelper {
 
                 offset += segmentSize;
                 remainingSize -= segmentSize;
-                // previousPage = page;
                 page = buffer.getRightSibling();
-                buffer.releaseTouched();
+                count++;
+                /*
+                 * Release without marking the buffer touched so that pages of
+                 * a long record are the first candidates for eviction.
+                 */
+                buffer.release();
                 buffer = null;
-
-                if (count > MAX_LONG_RECORD_CHAIN) {
-                    if (count > MAX_LONG_RECORD_CHAIN) {
-                        corrupt("LONG_RECORD chain starting at " + startAtPage + " is too long");
-                    }
-
-                }
             }
             value.setLongSize(rawSize);
             value.setEncodedSize(offset);
         } finally {
             if (buffer != null) {
-                buffer.releaseTouched();
+                buffer.release();
             }
         }
     }
 
+    /**
+     * Count the consecutive pages, starting at <code>page</code>, whose current
+     * version is known to be in the volume file because they are present
+     * neither in the buffer pool nor in the journal.
+     */
+    private int directlyReadablePages(final long page, final int maxPages) {
+        final BufferPool pool = _volume.getPool();
+        final JournalManager journalManager = _persistit.getJournalManager();
+        final long limit = _volume.getStorage().getNextAvailablePage();
+        int count = 0;
+        while (count < maxPages && page + count < limit) {
+            if (pool.isResident(_volume, page + count) || journalManager.isPageInJournal(page + count, _volume)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
     /**
      * Create a new LONG_RECORD chain and stores the supplied byte array in the
      * pages of this chain. The chain is written in right-to-left order so that
      * any page having a right pointer points to a valid successor.
      * 
+     * When the garbage chain is empty the pages are allocated as a single
+     * extent of consecutive pages, so that the chain can later be read with
+     * one read of the volume file. Otherwise pages are allocated one at a time
+     * so that garbage pages are reused.
+     * 
      * Each page is written with its own timestamp (necessary to satisfy write
      * order invariant). Therefore a checkpoint could occur during the middle,
      * after some pages have been assigned a timestamp and before others. This
@@ -177,12 +270,21 @@ class LongRecordHelper {
 
         sequence(LONG_RECORD_ALLOCATE_A);
 
+        final int pageCount = (longSize - LONGREC_PREFIX_SIZE + maxSegmentSize - 1) / maxSegmentSize;
+        final long extent = pageCount > 1 ? _volume.getStructure().allocPageExtent(pageCount) : 0;
+        int extentIndex = pageCount - 1;
+
         Buffer buffer = null;
         int offset = LONGREC_PREFIX_SIZE + (((longSize - LONGREC_PREFIX_SIZE - 1) / maxSegmentSize) * maxSegmentSize);
         try {
             for (;;) {
                 while (offset >= LONGREC_PREFIX_SIZE) {
-                    buffer = _volume.getStructure().allocPage();
+                    if (extent != 0) {
+                        buffer = extentPage(extent + extentIndex);
+                        extentIndex--;
+                    } else {
+                        buffer = _volume.getStructure().allocPage();
+                    }
                     final long timestamp = _persistit.getTimestampAllocator().updateTimestamp();
                     buffer.writePageOnCheckpoint(timestamp);
                     buffer.init(PAGE_TYPE_LONG_RECORD);
@@ -206,7 +308,7 @@ class LongRecordHelper {
                     if (inTxn) {
                         buffer.writePage();
                     }
-                    buffer.releaseTouched();
+                    buffer.release();
                     offset -= maxSegmentSize;
                     buffer = null;
                 }
@@ -220,7 +322,14 @@ class LongRecordHelper {
             }
         } finally {
             if (buffer != null)
-                buffer.releaseTouched();
+                buffer.release();
+            if (!completed && extent != 0) {
+                /*
+                 * Link the unused pages of the extent into the loose chain so
+                 * that they are deallocated with it.
+                 */
+                looseChain = chainExtentPages(extent, 0, extentIndex + 1, looseChain);
+            }
             if (looseChain != 0) {
                 _volume.getStructure().deallocateGarbageChain(looseChain, 0);
             }
@@ -230,6 +339,217 @@ class LongRecordHelper {
         }
     }
 
+    /**
+     * Create a new LONG_RECORD chain holding a <code>byte</code> array whose
+     * elements are read from the supplied <code>InputStream</code>. Unlike
+     * {@link #storeLongRecord(Value, boolean)} the record is never held in
+     * memory: each page is filled from the stream and written in turn. Pages
+     * are written left-to-right; each page is linked to its successor only
+     * after the successor has been written, so any page having a right pointer
+     * points to a valid successor. The LONG_RECORD descriptor is written into
+     * <code>descriptor</code>, which must be {@link Buffer#LONGREC_SIZE} bytes
+     * long.
+     * 
+     * @param in
+     *            the source of the array elements
+     * @param length
+     *            the number of elements to read from <code>in</code>
+     * @param descriptor
+     *            byte array to receive the LONG_RECORD descriptor
+     * @param inTxn
+     *            indicates whether this operation is within the context of a
+     *            transaction.
+     * @return the address of the first page of the chain
+     * @throws PersistitException
+     * @throws IOException
+     *             if <code>in</code> fails or ends before <code>length</code>
+     *             bytes have been read
+     */
+    long storeLongRecord(final InputStream in, final long length, final byte[] descriptor, final boolean inTxn)
+            throws PersistitException, IOException {
+        final int maxSegmentSize = _volume.getPool().getBufferSize() - HEADER_SIZE;
+        final long longSize = length + Value.BYTE_ARRAY_PREFIX_SIZE;
+        final long pageCount = (longSize - LONGREC_PREFIX_SIZE + maxSegmentSize - 1) / maxSegmentSize;
+        if (longSize <= LONGREC_PREFIX_SIZE || longSize > Integer.MAX_VALUE || pageCount > MAX_LONG_RECORD_CHAIN
+                || inTxn && longSize > Value.MAXIMUM_SIZE) {
+            throw new IllegalArgumentException("Invalid long record stream length " + length);
+        }
+
+        Value.putByteArrayPrefix(descriptor, LONGREC_PREFIX_OFFSET);
+        readFully(in, descriptor, LONGREC_PREFIX_OFFSET + Value.BYTE_ARRAY_PREFIX_SIZE, LONGREC_PREFIX_SIZE
+                - Value.BYTE_ARRAY_PREFIX_SIZE);
+
+        sequence(LONG_RECORD_ALLOCATE_A);
+
+        final long extent = pageCount > 1 ? _volume.getStructure().allocPageExtent((int) pageCount) : 0;
+        int extentIndex = 0;
+        final byte[] segment = new byte[maxSegmentSize];
+        long remainingSize = longSize - LONGREC_PREFIX_SIZE;
+        long head = 0;
+        long previous = 0;
+        long pending = 0;
+        boolean completed = false;
+        Buffer buffer = null;
+        try {
+            while (remainingSize > 0) {
+                final int segmentSize = (int) Math.min(remainingSize, maxSegmentSize);
+                /*
+                 * Read from the stream while no page is claimed
+                 */
+                readFully(in, segment, 0, segmentSize);
+                if (extent != 0) {
+                    buffer = extentPage(extent + extentIndex);
+                    extentIndex++;
+                } else {
+                    buffer = _volume.getStructure().allocPage();
+                }
+                final long timestamp = _persistit.getTimestampAllocator().updateTimestamp();
+                buffer.writePageOnCheckpoint(timestamp);
+                buffer.init(PAGE_TYPE_LONG_RECORD);
+                pending = buffer.getPageAddress();
+                System.arraycopy(segment, 0, buffer.getBytes(), HEADER_SIZE, segmentSize);
+                final int end = HEADER_SIZE + segmentSize;
+                if (end < buffer.getBufferSize()) {
+                    buffer.clearBytes(end, buffer.getBufferSize());
+                }
+                buffer.setRightSibling(0);
+                buffer.setDirtyAtTimestamp(timestamp);
+                buffer.release();
+                buffer = null;
+
+                if (previous == 0) {
+                    head = pending;
+                } else {
+                    linkPage(previous, pending, inTxn);
+                }
+                previous = pending;
+                pending = 0;
+                remainingSize -= segmentSize;
+            }
+            if (inTxn) {
+                linkPage(previous, 0, inTxn);
+            }
+            Buffer.writeLongRecordDescriptor(descriptor, (int) longSize, head);
+            completed = true;
+            return head;
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+            if (!completed) {
+                long looseChain = 0;
+                if (extent != 0) {
+                    looseChain = chainExtentPages(extent, extentIndex, (int) pageCount, looseChain);
+                }
+                if (looseChain != 0) {
+                    _volume.getStructure().deallocateGarbageChain(looseChain, 0);
+                }
+                if (pending != 0) {
+                    _volume.getStructure().deallocateGarbageChain(pending, 0);
+                }
+                if (head != 0) {
+                    _volume.getStructure().deallocateGarbageChain(head, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy <code>length</code> bytes of a LONG_RECORD chain, starting at the
+     * first byte of <code>page</code>, into <code>target</code>. The caller is
+     * responsible for holding a claim on the data page containing the
+     * LONG_RECORD descriptor so that the chain cannot be deallocated
+     * concurrently.
+     * 
+     * @param page
+     *            the first page to read
+     * @param target
+     *            the array to receive the bytes, or <code>null</code> to skip
+     *            over them
+     * @param offset
+     *            offset in <code>target</code> of the first byte copied
+     * @param length
+     *            number of bytes to copy
+     * @param timeout
+     * @return address of the page following the last one read
+     * @throws PersistitException
+     */
+    long readLongRecordPages(long page, final byte[] target, int offset, int length, final long timeout)
+            throws PersistitException {
+        Buffer buffer = null;
+        try {
+            while (length > 0) {
+                if (page == 0) {
+                    corrupt("LONG_RECORD chain ended with " + length + " bytes remaining");
+                }
+                buffer = _volume.getPool().get(_volume, page, false, true, timeout);
+                if (buffer.getPageType() != PAGE_TYPE_LONG_RECORD) {
+                    corrupt("LONG_RECORD chain is invalid at page " + page + " - invalid page type: " + buffer);
+                }
+                final int segmentSize = Math.min(buffer.getBufferSize() - HEADER_SIZE, length);
+                if (target != null) {
+                    System.arraycopy(buffer.getBytes(), HEADER_SIZE, target, offset, segmentSize);
+                    offset += segmentSize;
+                }
+                length -= segmentSize;
+                page = buffer.getRightSibling();
+                buffer.release();
+                buffer = null;
+            }
+            return page;
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    private void linkPage(final long page, final long rightSibling, final boolean inTxn) throws PersistitException {
+        final Buffer buffer = _volume.getPool().get(_volume, page, true, true);
+        try {
+            final long timestamp = _persistit.getTimestampAllocator().updateTimestamp();
+            buffer.writePageOnCheckpoint(timestamp);
+            buffer.setRightSibling(rightSibling);
+            buffer.setDirtyAtTimestamp(timestamp);
+            if (inTxn) {
+                buffer.writePage();
+            }
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private long chainExtentPages(final long extent, final int from, final int to, long looseChain)
+            throws PersistitException {
+        for (int index = to - 1; index >= from; index--) {
+            final Buffer buffer = extentPage(extent + index);
+            buffer.init(PAGE_TYPE_LONG_RECORD);
+            buffer.setRightSibling(looseChain);
+            looseChain = buffer.getPageAddress();
+            buffer.setDirtyAtTimestamp(_persistit.getTimestampAllocator().updateTimestamp());
+            buffer.release();
+        }
+        return looseChain;
+    }
+
+    private static void readFully(final InputStream in, final byte[] bytes, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            final int count = in.read(bytes, offset, length);
+            if (count < 0) {
+                throw new EOFException("Stream ended with " + length + " bytes remaining");
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private Buffer extentPage(final long page) throws PersistitException {
+        final Buffer buffer = _volume.getPool().get(_volume, page, true, false);
+        buffer.init(Buffer.PAGE_TYPE_UNALLOCATED);
+        return buffer;
+    }
+
     void corrupt(final String error) throws CorruptVolumeException {
         Debug.$assert0.t(false);
         if (_exchange != null) {
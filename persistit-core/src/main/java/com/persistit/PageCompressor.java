@@ -0,0 +1,143 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.persistit.util.Util;
+
+/**
+ * <p>
+ * Compresses and decompresses page images stored in a volume having the
+ * <code>compressed</code> attribute. A compressed image is written at the
+ * page's usual position in the volume file and has the form
+ * </p>
+ * 
+ * <pre>
+ *   +0  COMPRESSED_PAGE_MARKER
+ *   +2  length of the deflated page (char)
+ *   +4  deflated page
+ * </pre>
+ * <p>
+ * The marker can never be the first byte of an uncompressed page, whose
+ * first byte is its page type. A page is stored compressed only if doing so
+ * saves at least one {@value #BLOCK_SIZE}-byte file system block; the
+ * remainder of its slot in the file is neither written nor read. Instances
+ * are not thread-safe; each thread obtains its own from
+ * {@link Persistit#getThreadLocalPageCompressor()}.
+ * </p>
+ */
+class PageCompressor {
+
+    final static int COMPRESSED_PAGE_MARKER = 0xFC;
+
+    final static int HEADER_SIZE = 4;
+
+    /**
+     * Size of the file system block assumed in deciding whether compressing
+     * a page is worthwhile
+     */
+    final static int BLOCK_SIZE = 4096;
+
+    private final Deflater _deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private final Inflater _inflater = new Inflater();
+
+    private final byte[] _page = new byte[Buffer.MAX_BUFFER_SIZE];
+
+    private final byte[] _image = new byte[Buffer.MAX_BUFFER_SIZE];
+
+    /**
+     * Compress the page image in the remaining bytes of the supplied
+     * ByteBuffer.
+     * 
+     * @param bb
+     *            ByteBuffer containing the page image. Its position is not
+     *            changed.
+     * @return the length of the compressed image in {@link #getImage()}, or
+     *         -1 if the page should be stored uncompressed
+     */
+    int compress(final ByteBuffer bb) {
+        final int pageSize = bb.remaining();
+        final int limit = pageSize - BLOCK_SIZE;
+        if (limit <= HEADER_SIZE) {
+            return -1;
+        }
+        bb.duplicate().get(_page, 0, pageSize);
+        _deflater.reset();
+        _deflater.setInput(_page, 0, pageSize);
+        _deflater.finish();
+        final int length = _deflater.deflate(_image, HEADER_SIZE, limit - HEADER_SIZE);
+        if (!_deflater.finished()) {
+            return -1;
+        }
+        _image[0] = (byte) COMPRESSED_PAGE_MARKER;
+        _image[1] = 0;
+        Util.putChar(_image, 2, length);
+        return length + HEADER_SIZE;
+    }
+
+    /**
+     * @return the buffer holding the image produced by
+     *         {@link #compress(ByteBuffer)}, also used by callers to assemble
+     *         a compressed image read from a volume
+     */
+    byte[] getImage() {
+        return _image;
+    }
+
+    /**
+     * @return <code>true</code> if the bytes at <code>offset</code> begin a
+     *         compressed page image
+     */
+    static boolean isCompressed(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) == COMPRESSED_PAGE_MARKER;
+    }
+
+    /**
+     * @return the total length, including the header, of the compressed page
+     *         image beginning at <code>offset</code>
+     */
+    static int imageLength(final byte[] bytes, final int offset) {
+        return Util.getChar(bytes, offset + 2) + HEADER_SIZE;
+    }
+
+    /**
+     * Decompress the image held in {@link #getImage()} into
+     * <code>target</code>.
+     * 
+     * @throws DataFormatException
+     *             if the image is not a valid compressed page of
+     *             <code>pageSize</code> bytes
+     */
+    void decompress(final byte[] target, final int offset, final int pageSize) throws DataFormatException {
+        final int length = imageLength(_image, 0) - HEADER_SIZE;
+        if (length <= 0 || length > _image.length - HEADER_SIZE) {
+            throw new DataFormatException("Invalid compressed page length " + length);
+        }
+        _inflater.reset();
+        _inflater.setInput(_image, HEADER_SIZE, length);
+        final int size = _inflater.inflate(target, offset, pageSize);
+        if (size != pageSize || !_inflater.finished()) {
+            throw new DataFormatException("Compressed page inflated to " + size + " bytes rather than " + pageSize);
+        }
+    }
+}
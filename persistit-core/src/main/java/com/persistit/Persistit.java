@@ -251,12 +251,16 @@ public class Persistit {
 
   private final CleanupManager _cleanupManager = new CleanupManager(this);
 
+  private final VolumeExtender _volumeExtender = new VolumeExtender(this);
+
   private final IOMeter _ioMeter = new IOMeter();
 
   private final AlertMonitor _alertMonitor = new AlertMonitor();
 
   private final TransactionIndex _transactionIndex = new TransactionIndex(_timestampAllocator, TRANSACTION_INDEX_SIZE);
 
+  private final TransactionBufferPool _transactionBufferPool = new TransactionBufferPool();
+
   private final Map<SessionId, List<Exchange>> _exchangePoolMap = new WeakHashMap<SessionId, List<Exchange>>();
 
   private final Map<ObjectName, Object> _mxbeans = new TreeMap<ObjectName, Object>();
@@ -290,6 +294,8 @@ public class Persistit {
 
   private final ThreadLocal<SoftReference<Value>> _valueThreadLocal = new ThreadLocal<SoftReference<Value>>();
 
+  private final ThreadLocal<SoftReference<PageCompressor>> _pageCompressorThreadLocal = new ThreadLocal<SoftReference<PageCompressor>>();
+
   private final AtomicLong _uniqueCounter = new AtomicLong();
 
   private volatile Volume _lockVolume;
@@ -452,6 +458,7 @@ public class Persistit {
       _journalManager.pruneObsoleteTransactions();
       startCheckpointManager();
       startCleanupManager();
+      startVolumeExtender();
       _initialized.set(true);
     } finally {
       if (!isInitialized()) {
@@ -689,6 +696,10 @@ public class Persistit {
     _cleanupManager.start();
   }
 
+  void startVolumeExtender() {
+    _volumeExtender.start();
+  }
+
   void startTransactionIndexPollTask() {
     _transactionIndex.start(this);
   }
@@ -1108,8 +1119,9 @@ public class Persistit {
    * 
    * @param pageSize
    *            The page size for the volume. Must be one of 1024, 2048, 4096,
-   *            8192 or 16384, and the volume will be usable only if there are
-   *            buffers of the specified size in the {@link BufferPool}.
+   *            8192, 16384 or 32768, and the volume will be usable only if
+   *            there are buffers of the specified size in the
+   *            {@link BufferPool}.
    * @return the temporary <code>Volume</code>.
    * @throws PersistitException
    */
@@ -1648,6 +1660,12 @@ public class Persistit {
       recordBufferPoolInventory();
       _cleanupManager.close(flush);
       waitForIOTaskStop(_cleanupManager);
+      for (final IOTaskRunnable worker : _cleanupManager.getWorkers()) {
+        waitForIOTaskStop(worker);
+      }
+
+      _volumeExtender.close();
+      waitForIOTaskStop(_volumeExtender);
 
       getTransaction().close();
       cleanup();
@@ -1663,6 +1681,9 @@ public class Persistit {
 
       if (flush) {
         for (final Volume volume : volumes) {
+          if (!volume.isReadOnly()) {
+            volume.getStructure().releaseAllocationExtents();
+          }
           volume.getStorage().flush();
         }
       }
@@ -1780,6 +1801,7 @@ public class Persistit {
     }
     _transactionIndex.crash();
     _cleanupManager.crash();
+    _volumeExtender.crash();
     _checkpointManager.crash();
     _closed.set(true);
     releaseAllResources();
@@ -1843,6 +1865,7 @@ public class Persistit {
       _intArrayThreadLocal.set(null);
       _keyThreadLocal.set(null);
       _valueThreadLocal.set(null);
+      _pageCompressorThreadLocal.set(null);
       _initialized.set(false);
       _sessionIdThreadLocal.remove();
       _cleanupManager.clear();
@@ -2234,6 +2257,10 @@ public class Persistit {
     return _timestampAllocator;
   }
 
+  TransactionBufferPool getTransactionBufferPool() {
+    return _transactionBufferPool;
+  }
+
   CheckpointManager getCheckpointManager() {
     return _checkpointManager;
   }
@@ -2242,6 +2269,10 @@ public class Persistit {
     return _cleanupManager;
   }
 
+  VolumeExtender getVolumeExtender() {
+    return _volumeExtender;
+  }
+
   IOMeter getIOMeter() {
     return _ioMeter;
   }
@@ -2563,6 +2594,19 @@ public class Persistit {
     return value;
   }
 
+  PageCompressor getThreadLocalPageCompressor() {
+    final SoftReference<PageCompressor> ref = _pageCompressorThreadLocal.get();
+    if (ref != null) {
+      final PageCompressor compressor = ref.get();
+      if (compressor != null) {
+        return compressor;
+      }
+    }
+    final PageCompressor compressor = new PageCompressor();
+    _pageCompressorThreadLocal.set(new SoftReference<PageCompressor>(compressor));
+    return compressor;
+  }
+
   long unique() {
     return _uniqueCounter.incrementAndGet();
   }
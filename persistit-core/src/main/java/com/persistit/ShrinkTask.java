@@ -0,0 +1,226 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.persistit.CLI.Arg;
+import com.persistit.CLI.Cmd;
+import com.persistit.exception.InUseException;
+import com.persistit.exception.PersistitException;
+import com.persistit.util.Util;
+
+/**
+ * <p>
+ * Task that shrinks one or more {@link Volume}s while they remain in use.
+ * Pages freed by removing records are kept on the volume's garbage chain for
+ * reuse, but the volume file itself never becomes shorter. This task moves
+ * the index and data pages lying near the end of the volume into free pages
+ * nearer its beginning, releases the free pages at the end of the volume and
+ * truncates the volume file.
+ * </p>
+ * <p>
+ * The task first removes every page from the garbage chain so that free pages
+ * near the end of the volume are not reallocated while it works. It then
+ * walks each level of each tree, holding an exclusive claim on the tree only
+ * while it relocates the children of one index page. A relocated page
+ * receives a copy of the original page's content, and the pointers to it in
+ * its parent page and left sibling are changed. Finally the free pages at the
+ * end of the volume are released, the remaining free pages are returned to
+ * the garbage chain, and a checkpoint makes the change durable before the
+ * file is truncated.
+ * </p>
+ * <p>
+ * Long record pages are not relocated, so a long record stored near the end
+ * of the volume limits how far it can shrink, as do pages allocated from the
+ * end of the volume while the task runs. Free pages held by the task are lost
+ * if Persistit is not closed normally before the task completes.
+ * </p>
+ */
+public class ShrinkTask extends Task {
+
+    private final static long BUSY_INTERVAL = 100;
+
+    private TreeSelector _volumeSelector;
+
+    private volatile Volume _currentVolume;
+    private volatile long _pagesRelocated;
+    private volatile long _pagesReleased;
+    private volatile long _busyCount;
+
+    @Cmd("shrink")
+    static Task setupTask(@Arg("volumes|string|Volume selector: Volumes to shrink") final String volumeSelectorString,
+            @Arg("_flag|r|Use regex expression") final boolean regex,
+            @Arg("_flag|v|Verbose results") final boolean verbose) throws Exception {
+        final ShrinkTask task = new ShrinkTask();
+        task._volumeSelector = TreeSelector.parseSelector(volumeSelectorString, regex, '\\');
+        task.setMessageLogVerbosity(verbose ? LOG_VERBOSE : LOG_NORMAL);
+        return task;
+    }
+
+    /**
+     * Package-private constructor for use in a {@link Task}.
+     */
+    ShrinkTask() {
+    }
+
+    public ShrinkTask(final Persistit persistit) {
+        super(persistit);
+    }
+
+    /**
+     * @return Total number of pages moved to a lower page address
+     */
+    public long getPagesRelocated() {
+        return _pagesRelocated;
+    }
+
+    /**
+     * @return Total number of pages removed from the end of a volume
+     */
+    public long getPagesReleased() {
+        return _pagesReleased;
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+        for (final Volume volume : _persistit.getVolumes()) {
+            if (!_volumeSelector.isSelected(volume) || volume.isReadOnly() || volume.isTemporary()
+                    || volume.isLockVolume()) {
+                continue;
+            }
+            try {
+                final long released = shrinkVolume(volume);
+                postMessage("Volume " + volume.getName() + " shrunk: " + released + " pages released", LOG_VERBOSE);
+            } catch (final PersistitException pe) {
+                postMessage("Volume " + volume.getName() + " " + pe, LOG_NORMAL);
+            }
+        }
+        _currentVolume = null;
+        postMessage("Total " + _pagesRelocated + " pages relocated, " + _pagesReleased + " pages released",
+                LOG_NORMAL);
+        endMessage(LOG_NORMAL);
+    }
+
+    /**
+     * Shrink the specified volume by relocating the pages near its end and
+     * truncating the volume file.
+     *
+     * @param volume
+     *            The volume to shrink
+     * @return the number of pages removed from the end of the volume
+     * @throws PersistitException
+     */
+    public long shrinkVolume(final Volume volume) throws PersistitException {
+        final VolumeStorage storage = volume.getStorage();
+        final VolumeStructure structure = volume.getStructure();
+        final long before = storage.getNextAvailablePage();
+        if (before > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Volume " + volume.getName() + " is too large to shrink");
+        }
+        _currentVolume = volume;
+        final BitSet free = new BitSet();
+        final long after;
+        try {
+            structure.releaseAllocationExtents();
+            structure.drainGarbage(free);
+            /*
+             * If every live page were moved below this address, all the pages
+             * at and above it would be free.
+             */
+            final long limit = storage.getNextAvailablePage() - free.cardinality();
+            final List<Tree> trees = new ArrayList<Tree>();
+            trees.add(volume.getDirectoryTree());
+            for (final String treeName : volume.getTreeNames()) {
+                final Tree tree = volume.getTree(treeName, false);
+                if (tree != null) {
+                    trees.add(tree);
+                }
+            }
+            for (final Tree tree : trees) {
+                relocateTree(tree, limit, free);
+            }
+            after = structure.shrink(free);
+        } finally {
+            //
+            // Non-empty only if shrink did not take over the free pages
+            //
+            if (!free.isEmpty()) {
+                structure.deallocatePages(free);
+            }
+        }
+        final long released = Math.max(0, before - after);
+        if (released > 0) {
+            /*
+             * The next journal file starts with a page map that omits the
+             * released pages, and the checkpoint written to it becomes the
+             * starting point for recovery. Only then is it safe to remove the
+             * pages from the volume file.
+             */
+            _persistit.getJournalManager().rollover();
+            _persistit.checkpoint();
+            storage.trim();
+            _pagesReleased += released;
+        }
+        return released;
+    }
+
+    private void relocateTree(final Tree tree, final long limit, final BitSet free) throws PersistitException {
+        //
+        // Constructed directly so that the directory tree can be relocated
+        //
+        final Exchange exchange = new Exchange(tree);
+        for (int level = 0; level < tree.getDepth(); level++) {
+            exchange.clear().append(Key.BEFORE);
+            while (!exchange.getKey().isRightEdge()) {
+                poll();
+                final int count;
+                try {
+                    count = exchange.relocatePages(level, limit, free);
+                } catch (final InUseException e) {
+                    //
+                    // Pages are busy. Try the same index page again after
+                    // pausing.
+                    //
+                    _busyCount++;
+                    Util.sleep(BUSY_INTERVAL);
+                    continue;
+                }
+                _pagesRelocated += count;
+            }
+        }
+    }
+
+    @Override
+    public String getStatus() {
+        final Volume volume = _currentVolume;
+        final String status = _pagesRelocated + " pages relocated, " + _pagesReleased + " pages released";
+        if (volume == null) {
+            return status;
+        } else {
+            return status + " (" + volume.getName() + ")";
+        }
+    }
+
+    @Override
+    public String getStatusDetail() {
+        return getStatus() + " busy=" + _busyCount;
+    }
+}
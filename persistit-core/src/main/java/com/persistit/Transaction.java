@@ -211,6 +211,16 @@ import com.persistit.util.Util;
  * a problem depends on the volume of update transactions being processed and
  * the duration of long-running transactions.
  * </p>
+ * <p>
+ * An application that knows in advance that a transaction will only read can
+ * start it with {@link #beginSnapshot} instead of {@link #begin}. A snapshot
+ * transaction reads exactly the same snapshot a full transaction would, but it
+ * is much cheaper to start and end: it captures a start timestamp and pins it
+ * so that the versions it may read are not pruned, but it is not registered in
+ * the transaction index and never writes to the journal. Any attempt to
+ * update the database within the scope of a snapshot transaction throws an
+ * <code>IllegalStateException</code>.
+ * </p>
  * 
  * <a name="_pattern1"/> <h2>The try/finally/retry Code Pattern</h2>
  * <p>
@@ -412,6 +422,11 @@ import com.persistit.util.Util;
 public class Transaction {
     final static int MAXIMUM_STEP = TransactionIndex.VERSION_HANDLE_MULTIPLIER - 1;
 
+    /**
+     * Maximum size of the buffer in which a transaction accumulates its
+     * journal records. Buffers start smaller and grow on demand; see
+     * {@link TransactionBufferPool}.
+     */
     final static int TRANSACTION_BUFFER_SIZE = 65536;
 
     private static long _idCounter = 100000000;
@@ -433,7 +448,17 @@ public class Transaction {
     private volatile long _startTimestamp;
     private volatile long _commitTimestamp;
 
-    private final ByteBuffer _buffer = ByteBuffer.allocate(TRANSACTION_BUFFER_SIZE);
+    private volatile boolean _snapshot;
+
+    private TransactionIndex.SnapshotSlot _snapshotSlot;
+
+    /**
+     * Buffer in which journal records are accumulated, or <code>null</code>
+     * if this context holds none. Acquired from the
+     * {@link TransactionBufferPool} on the first update and released when the
+     * transaction ends.
+     */
+    private ByteBuffer _buffer;
 
     private long _previousJournalAddress;
 
@@ -521,6 +546,11 @@ public class Transaction {
                 _persistit.getLogBase().txnAbandoned.log(this);
             }
         }
+        if (_snapshotSlot != null) {
+            _persistit.getTransactionIndex().releaseSnapshotSlot(_snapshotSlot);
+            _snapshotSlot = null;
+            _snapshot = false;
+        }
         /*
          * The background rollback cleanup should be stopped before calling this
          * method so the following check is deterministic.
@@ -529,6 +559,7 @@ public class Transaction {
         if (status != null && status.getMvvCount() > 0) {
             flushTransactionBuffer(false);
         }
+        releaseTransactionBuffer();
     }
 
     /**
@@ -554,6 +585,16 @@ public class Transaction {
         return _nestedDepth > 0;
     }
 
+    /**
+     * Indicates whether the current transaction scope was started by
+     * {@link #beginSnapshot}.
+     * 
+     * @return <code>true</code> if a snapshot transaction is active
+     */
+    public boolean isSnapshot() {
+        return _snapshot;
+    }
+
     /**
      * Indicates whether the {@link #commit} method has run to successful
      * completion at the current nested level. If that level is 1, then
@@ -619,6 +660,56 @@ public class Transaction {
         _nestedDepth++;
     }
 
+    /**
+     * <p>
+     * Start a read-only snapshot transaction. Within its scope every fetch
+     * and traversal sees the state of the database as of the start timestamp,
+     * exactly as it would within a transaction started by {@link #begin}.
+     * However, a snapshot transaction does not register a
+     * <code>TransactionStatus</code> in the transaction index and never writes
+     * to the journal, which makes it substantially less expensive to start
+     * and end. Any attempt to store or remove data, or to update an
+     * {@link Accumulator}, within its scope throws an
+     * <code>IllegalStateException</code>.
+     * </p>
+     * <p>
+     * The scope of a snapshot transaction is managed exactly like that of any
+     * other transaction: there must be a matching {@link #end} for every
+     * <code>beginSnapshot</code>. Calling {@link #commit} is permitted but not
+     * required. If a transaction is already active this method merely
+     * increments the nesting count and the enclosing transaction's snapshot
+     * remains in effect.
+     * </p>
+     * 
+     * @throws IllegalStateException
+     *             if the current transaction scope has already been committed.
+     */
+    public void beginSnapshot() throws PersistitException {
+        if (_commitCompleted) {
+            throw new IllegalStateException("Attempt to begin a committed transaction " + this);
+        }
+        if (_rollbackPending) {
+            throw new IllegalStateException("Attempt to begin a transaction with pending rollback" + this);
+        }
+        if (_nestedDepth == 0) {
+            flushTransactionBuffer(false);
+            final TransactionIndex ti = _persistit.getTransactionIndex();
+            if (_snapshotSlot == null) {
+                _snapshotSlot = ti.allocateSnapshotSlot();
+            }
+            _startTimestamp = ti.registerSnapshot(_snapshotSlot);
+            _snapshot = true;
+            _rollbackPending = false;
+            _rollbackCompleted = false;
+            _commitTimestamp = 0;
+            _step = 0;
+            _threadName = Thread.currentThread().getName();
+        } else {
+            checkPendingRollback();
+        }
+        _nestedDepth++;
+    }
+
     void beginCheckpoint() throws PersistitException {
         if (_commitCompleted) {
             throw new IllegalStateException("Attempt to begin a committed transaction " + this);
@@ -667,7 +758,16 @@ public class Transaction {
     public void end() {
         checkActive();
 
-        if (_nestedDepth == 1) {
+        if (_nestedDepth == 1 && _snapshot) {
+            //
+            // A snapshot has nothing to commit or roll back; ending it
+            // merely releases the pinned start timestamp.
+            //
+            _persistit.getTransactionIndex().unregisterSnapshot(_snapshotSlot);
+            _snapshot = false;
+            _rollbackPending = false;
+            _threadName = null;
+        } else if (_nestedDepth == 1) {
             //
             // If not committed, this is an implicit rollback (with a log
             // message if rollback was not called explicitly).
@@ -691,6 +791,7 @@ public class Transaction {
             _transactionStatus = null;
             _rollbackPending = false;
             _threadName = null;
+            releaseTransactionBuffer();
         }
 
         _nestedDepth--;
@@ -725,7 +826,9 @@ public class Transaction {
 
         _rollbackPending = true;
 
-        if (!_rollbackCompleted) {
+        if (_snapshot) {
+            _rollbackCompleted = true;
+        } else if (!_rollbackCompleted) {
             _rollbackCount++;
             _rollbacksSinceLastCommit++;
             _transactionStatus.abort();
@@ -861,6 +964,10 @@ public class Transaction {
             if (_rollbackCompleted) {
                 throw new IllegalStateException("Already rolled back " + this);
             }
+            if (_snapshot) {
+                _commitCompleted = true;
+                return;
+            }
             for (Delta delta = _transactionStatus.getDelta(); delta != null; delta = delta.getNext()) {
                 writeDeltaToJournal(delta);
             }
@@ -1034,7 +1141,9 @@ public class Transaction {
     String getStatus() {
         final TransactionStatus status = _transactionStatus;
         final long ts = getStartTimestamp();
-        if (status != null && status.getTs() == ts) {
+        if (_snapshot) {
+            return String.format("<snapshot %,d>", ts);
+        } else if (status != null && status.getTs() == ts) {
             return status.toString();
         } else {
             return "<not running>";
@@ -1128,6 +1237,7 @@ public class Transaction {
     void store(final Exchange exchange, final Key key, final Value value) throws PersistitException {
         if (_nestedDepth > 0) {
             checkPendingRollback();
+            checkNotSnapshot();
             writeStoreRecordToJournal(treeHandle(exchange.getTree()), key, value);
         }
     }
@@ -1143,6 +1253,7 @@ public class Transaction {
     void remove(final Exchange exchange, final Key key1, final Key key2) throws PersistitException {
         if (_nestedDepth > 0) {
             checkPendingRollback();
+            checkNotSnapshot();
             writeDeleteRecordToJournal(treeHandle(exchange.getTree()), key1, key2);
         }
     }
@@ -1156,11 +1267,19 @@ public class Transaction {
     void removeTree(final Exchange exchange) throws PersistitException {
         if (_nestedDepth > 0) {
             checkPendingRollback();
+            checkNotSnapshot();
             writeDeleteTreeToJournal(treeHandle(exchange.getTree()));
         }
     }
 
     synchronized private void prepare(final int recordSize) throws PersistitException {
+        final TransactionBufferPool pool = _persistit.getTransactionBufferPool();
+        if (_buffer == null) {
+            _buffer = pool.acquire(recordSize);
+        }
+        if (recordSize > _buffer.remaining()) {
+            _buffer = pool.grow(_buffer, recordSize);
+        }
         if (recordSize > _buffer.remaining()) {
             flushTransactionBuffer(true);
         }
@@ -1172,7 +1291,10 @@ public class Transaction {
 
     synchronized boolean flushTransactionBuffer(final boolean chain) throws PersistitException {
         boolean didWrite = false;
-        if (_buffer.position() > 0 || _previousJournalAddress != 0) {
+        if ((_buffer != null && _buffer.position() > 0) || _previousJournalAddress != 0) {
+            if (_buffer == null) {
+                _buffer = _persistit.getTransactionBufferPool().acquire(0);
+            }
             final long previousJournalAddress = _persistit.getJournalManager().writeTransactionToJournal(_buffer,
                     _startTimestamp, _commitTimestamp, _previousJournalAddress);
             _buffer.clear();
@@ -1187,7 +1309,8 @@ public class Transaction {
     }
 
     synchronized void flushOnCheckpoint(final long timestamp) throws PersistitException {
-        if (_startTimestamp > 0 && _startTimestamp < timestamp && _commitTimestamp == 0 && _buffer.position() > 0) {
+        if (_startTimestamp > 0 && _startTimestamp < timestamp && _commitTimestamp == 0 && _buffer != null
+                && _buffer.position() > 0) {
             sequence(COMMIT_FLUSH_B);
 
             _previousJournalAddress = _persistit.getJournalManager().writeTransactionToJournal(_buffer,
@@ -1255,7 +1378,19 @@ public class Transaction {
         }
     }
 
+    /**
+     * Return the transaction buffer to the pool unless it still holds records
+     * that have not been written to the journal.
+     */
+    synchronized private void releaseTransactionBuffer() {
+        if (_buffer != null && _buffer.position() == 0) {
+            _persistit.getTransactionBufferPool().release(_buffer);
+            _buffer = null;
+        }
+    }
+
     TransactionStatus getTransactionStatus() {
+        checkNotSnapshot();
         final TransactionStatus ts = _transactionStatus;
         if (_nestedDepth > 0 && ts != null && ts.getTs() == _startTimestamp) {
             return ts;
@@ -1289,6 +1424,12 @@ public class Transaction {
         return previous;
     }
 
+    private void checkNotSnapshot() {
+        if (_snapshot) {
+            throw new IllegalStateException("Update not permitted within snapshot transaction " + this);
+        }
+    }
+
     void checkActive() {
         if (!isActive()) {
             throw new IllegalStateException("No transaction scope: begin() has not been called in " + this);
@@ -1359,9 +1500,10 @@ public class Transaction {
     /**
      * For unit tests only
      * 
-     * @return the buffer used to accumulate update records for this transaction
+     * @return the buffer used to accumulate update records for this
+     *         transaction, or <code>null</code> if none is currently held
      */
-    ByteBuffer getTransactionBuffer() {
+    synchronized ByteBuffer getTransactionBuffer() {
         return _buffer;
     }
 
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Shared pool of heap <code>ByteBuffer</code>s used by {@link Transaction}
+ * contexts to accumulate journal records. Buffers come in power-of-two size
+ * classes from {@link #MINIMUM_BUFFER_SIZE} to {@link #MAXIMUM_BUFFER_SIZE}. A
+ * Transaction acquires the smallest buffer when it first writes a record and
+ * exchanges it for a larger one as the transaction grows. Only a transaction
+ * that fills a buffer of the maximum size chains its records to the journal.
+ * The buffer is returned to the pool when the transaction ends, so idle
+ * sessions hold no buffer at all.
+ * </p>
+ * <p>
+ * The maximum size is the same as the fixed buffer size used before this pool
+ * existed. It bounds the size of a TX record, and journal readers depend on
+ * that bound.
+ * </p>
+ */
+class TransactionBufferPool {
+
+    final static int MINIMUM_BUFFER_SIZE = 4096;
+
+    final static int MAXIMUM_BUFFER_SIZE = Transaction.TRANSACTION_BUFFER_SIZE;
+
+    /**
+     * Maximum number of bytes retained on the free list of each size class.
+     * Released buffers beyond this limit are left for garbage collection.
+     */
+    final static int DEFAULT_MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+    private final static int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAXIMUM_BUFFER_SIZE)
+            - Integer.numberOfTrailingZeros(MINIMUM_BUFFER_SIZE) + 1;
+
+    private final SizeClass[] _sizeClasses = new SizeClass[SIZE_CLASSES];
+
+    private final AtomicLong _allocatedCount = new AtomicLong();
+
+    private final AtomicLong _reusedCount = new AtomicLong();
+
+    private static class SizeClass {
+        final int _size;
+        final int _maxRetained;
+        final ConcurrentLinkedQueue<ByteBuffer> _free = new ConcurrentLinkedQueue<ByteBuffer>();
+        final AtomicInteger _freeCount = new AtomicInteger();
+
+        SizeClass(final int size, final int maxRetainedBytes) {
+            _size = size;
+            _maxRetained = Math.max(1, maxRetainedBytes / size);
+        }
+    }
+
+    TransactionBufferPool() {
+        this(DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    TransactionBufferPool(final int maxRetainedBytes) {
+        for (int index = 0; index < SIZE_CLASSES; index++) {
+            _sizeClasses[index] = new SizeClass(MINIMUM_BUFFER_SIZE << index, maxRetainedBytes);
+        }
+    }
+
+    /**
+     * Acquire a cleared buffer having a capacity of at least
+     * <code>minimumCapacity</code>, or of {@link #MAXIMUM_BUFFER_SIZE} if the
+     * requested capacity is larger than that.
+     * 
+     * @param minimumCapacity
+     * @return the buffer
+     */
+    ByteBuffer acquire(final int minimumCapacity) {
+        final SizeClass sizeClass = _sizeClasses[sizeClassIndex(minimumCapacity)];
+        final ByteBuffer buffer = sizeClass._free.poll();
+        if (buffer != null) {
+            sizeClass._freeCount.decrementAndGet();
+            _reusedCount.incrementAndGet();
+            return buffer;
+        }
+        _allocatedCount.incrementAndGet();
+        return ByteBuffer.allocate(sizeClass._size);
+    }
+
+    /**
+     * Return a buffer previously obtained from {@link #acquire(int)}. The
+     * caller must not use the buffer after this call.
+     * 
+     * @param buffer
+     */
+    void release(final ByteBuffer buffer) {
+        final SizeClass sizeClass = _sizeClasses[sizeClassIndex(buffer.capacity())];
+        if (sizeClass._size != buffer.capacity()) {
+            throw new IllegalArgumentException("Buffer was not allocated by this pool: " + buffer);
+        }
+        buffer.clear();
+        if (sizeClass._freeCount.incrementAndGet() <= sizeClass._maxRetained) {
+            sizeClass._free.offer(buffer);
+        } else {
+            sizeClass._freeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Acquire a buffer large enough to hold the content of the supplied buffer
+     * plus <code>additionalBytes</code>, copy the content of the supplied
+     * buffer into it, and release the supplied buffer. If the supplied buffer
+     * is already of the maximum size it is returned unchanged.
+     * 
+     * @param buffer
+     * @param additionalBytes
+     * @return the buffer to use in place of the supplied one
+     */
+    ByteBuffer grow(final ByteBuffer buffer, final int additionalBytes) {
+        if (buffer.capacity() >= MAXIMUM_BUFFER_SIZE) {
+            return buffer;
+        }
+        final ByteBuffer larger = acquire(buffer.position() + additionalBytes);
+        buffer.flip();
+        larger.put(buffer);
+        release(buffer);
+        return larger;
+    }
+
+    /**
+     * @return count of buffers allocated because none of the required size
+     *         was available on a free list
+     */
+    long getAllocatedCount() {
+        return _allocatedCount.get();
+    }
+
+    /**
+     * @return count of buffers served from a free list
+     */
+    long getReusedCount() {
+        return _reusedCount.get();
+    }
+
+    /**
+     * @return total number of bytes currently held on the free lists
+     */
+    long getRetainedBytes() {
+        long bytes = 0;
+        for (final SizeClass sizeClass : _sizeClasses) {
+            bytes += (long) sizeClass._size * sizeClass._freeCount.get();
+        }
+        return bytes;
+    }
+
+    private static int sizeClassIndex(final int capacity) {
+        if (capacity <= MINIMUM_BUFFER_SIZE) {
+            return 0;
+        }
+        if (capacity >= MAXIMUM_BUFFER_SIZE) {
+            return SIZE_CLASSES - 1;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MINIMUM_BUFFER_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TransactionBufferPool allocated=%,d reused=%,d retained=%,d bytes",
+                getAllocatedCount(), getReusedCount(), getRetainedBytes());
+    }
+}
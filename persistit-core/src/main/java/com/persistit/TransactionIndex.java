@@ -20,13 +20,17 @@ import static com.persistit.TransactionStatus.ABORTED;
 import static com.persistit.TransactionStatus.PRIMORDIAL;
 import static com.persistit.TransactionStatus.TIMED_OUT;
 import static com.persistit.TransactionStatus.UNCOMMITTED;
+import static com.persistit.util.SequencerConstants.REGISTRATION_FENCE_A;
+import static com.persistit.util.ThreadSequencer.sequence;
 
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.persistit.Accumulator.Delta;
@@ -94,6 +98,25 @@ class TransactionIndex implements TransactionIndexMXBean {
      */
     final static int VERSION_HANDLE_MULTIPLIER = 100;
 
+    /**
+     * Value held by a {@link SnapshotSlot} after its owner has announced its
+     * intent to start a snapshot transaction but before it has published the
+     * allocated start timestamp.
+     */
+    final static long SNAPSHOT_PENDING = -1;
+
+    /**
+     * Number of stripes in each half of the {@link RegistrationFence}. Must be
+     * a power of two.
+     */
+    private final static int REGISTRATION_STRIPES = 64;
+
+    /**
+     * Spacing, in longs, between adjacent {@link RegistrationFence} counters.
+     * Keeps each counter on its own cache line.
+     */
+    private final static int REGISTRATION_STRIPE_SPACING = 8;
+
     /**
      * The hash table.
      */
@@ -151,6 +174,137 @@ class TransactionIndex implements TransactionIndexMXBean {
 
     private ActiveTransactionCachePollTask _activeTransactionCachePollTask;
 
+    /**
+     * Tracks registrations that have allocated, or are about to allocate, a
+     * start timestamp but may not yet have added their TransactionStatus to a
+     * bucket.
+     */
+    private final RegistrationFence _registrationFence = new RegistrationFence();
+
+    /**
+     * <p>
+     * Replacement for a global monitor around timestamp allocation and bucket
+     * insertion in {@link TransactionIndex#registerTransaction()}. The
+     * {@link ActiveTransactionCache} requires that once it has allocated its
+     * own timestamp t, every transaction having a start timestamp less than t
+     * can be found in the hash table. Rather than serializing registrations,
+     * each registration announces itself in one of two sets of striped
+     * counters, selected by the low bit of the current epoch, before it
+     * allocates a timestamp, and withdraws once its TransactionStatus is in its
+     * bucket.
+     * </p>
+     * <p>
+     * {@link ActiveTransactionCache#recompute()} allocates t, advances the
+     * epoch, and then waits for the counters of the previous epoch to drain. A
+     * registration increments its counter and then re-reads the epoch; if the
+     * epoch changed in between, it withdraws and counts itself again in the
+     * other set. Therefore a registration that received a timestamp less than
+     * t remains counted in the set being drained until its TransactionStatus
+     * is in its bucket. A registration that reads the new epoch allocates its
+     * timestamp after t and is of no interest to that scan. Registrations never
+     * wait on each other, and only the infrequent cache recomputation ever
+     * waits.
+     * </p>
+     * <p>
+     * The epoch is advanced only while holding the
+     * <code>_atCacheLock</code>, so at most one thread drains a set at a time.
+     * </p>
+     */
+    static class RegistrationFence {
+        private final AtomicLongArray[] _counters = {
+                new AtomicLongArray(REGISTRATION_STRIPES * REGISTRATION_STRIPE_SPACING),
+                new AtomicLongArray(REGISTRATION_STRIPES * REGISTRATION_STRIPE_SPACING) };
+
+        private volatile int _epoch;
+
+        /**
+         * Announce a registration in progress.
+         * 
+         * @return a token to pass to {@link #exit(int)}
+         */
+        int enter() {
+            final int index = ((int) Thread.currentThread().getId() & (REGISTRATION_STRIPES - 1))
+                    * REGISTRATION_STRIPE_SPACING;
+            for (;;) {
+                final int epoch = _epoch;
+                final int set = epoch & 1;
+                sequence(REGISTRATION_FENCE_A);
+                _counters[set].incrementAndGet(index);
+                /*
+                 * If drain() advanced the epoch before the increment above
+                 * became visible, it may already have seen this set at zero.
+                 * Withdraw and count again in the current set.
+                 */
+                if (_epoch == epoch) {
+                    return set * REGISTRATION_STRIPES * REGISTRATION_STRIPE_SPACING + index;
+                }
+                _counters[set].decrementAndGet(index);
+            }
+        }
+
+        /**
+         * Withdraw a registration announced by {@link #enter()}.
+         * 
+         * @param token
+         *            value returned by the matching <code>enter</code>
+         */
+        void exit(final int token) {
+            final int size = REGISTRATION_STRIPES * REGISTRATION_STRIPE_SPACING;
+            _counters[token / size].decrementAndGet(token % size);
+        }
+
+        /**
+         * Advance the epoch and wait until every registration announced under
+         * the previous epoch has completed.
+         */
+        void drain() {
+            final int set = _epoch & 1;
+            _epoch++;
+            final AtomicLongArray counters = _counters[set];
+            for (int index = 0; index < counters.length(); index += REGISTRATION_STRIPE_SPACING) {
+                while (counters.get(index) != 0) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    /**
+     * Slots through which snapshot transactions publish their start
+     * timestamps. A slot is allocated once per {@link Transaction} context and
+     * reused by every snapshot it begins; therefore this list changes rarely
+     * and is cheap to iterate.
+     */
+    private final List<SnapshotSlot> _snapshotSlots = new CopyOnWriteArrayList<SnapshotSlot>();
+
+    /**
+     * <p>
+     * Holder for the start timestamp of a snapshot (read-only) transaction.
+     * Unlike a full transaction, a snapshot has no
+     * <code>TransactionStatus</code>: it never writes, so no other transaction
+     * ever needs to look up its commit status. It needs only to be visible to
+     * {@link ActiveTransactionCache#recompute()} so that the versions it may
+     * read are not pruned.
+     * </p>
+     * <p>
+     * The slot value is {@link TransactionStatus#PRIMORDIAL} while no snapshot
+     * is active, {@link TransactionIndex#SNAPSHOT_PENDING} while the start
+     * timestamp is being allocated, and the start timestamp otherwise.
+     * </p>
+     */
+    static class SnapshotSlot {
+        private volatile long _ts = PRIMORDIAL;
+
+        long getTs() {
+            return _ts;
+        }
+
+        @Override
+        public String toString() {
+            return _ts == SNAPSHOT_PENDING ? "<pending>" : String.format("%,d", _ts);
+        }
+    }
+
     class ActiveTransactionCachePollTask extends IOTaskRunnable {
         AtomicBoolean _closed = new AtomicBoolean();
 
@@ -193,9 +347,10 @@ class TransactionIndex implements TransactionIndexMXBean {
      * </p>
      * <p>
      * Each time the cache is recomputed, this instance first gets the current
-     * timestamp t. Due to the write-ordering protocol, it is guaranteed that if
-     * a transaction having a start timestamp less than t is currently active,
-     * its entry will be in the hash table. Therefore, scanning the hash table
+     * timestamp t and then drains the {@link RegistrationFence}. Due to that
+     * protocol, it is guaranteed that if a transaction having a start
+     * timestamp less than t is currently active, its entry will be in the hash
+     * table. Therefore, scanning the hash table
      * will find every currently active transaction having a start timestamp
      * less than t. Note that by the time the scan is done some of those
      * transactions may have committed or aborted; therefore the set of
@@ -213,6 +368,14 @@ class TransactionIndex implements TransactionIndexMXBean {
      * that imprecision is that in some cases an MVV may not be optimally pruned
      * until a later attempt.
      * </p>
+     * <p>
+     * Snapshot transactions follow the same write-ordering protocol through
+     * their {@link SnapshotSlot}s: the slot is marked
+     * {@link TransactionIndex#SNAPSHOT_PENDING} before the start timestamp is
+     * allocated. If a snapshot's timestamp is less than t, the scan therefore
+     * sees either the pending mark, in which case it waits briefly for the
+     * timestamp to be published, or the timestamp itself.
+     * </p>
      * 
      */
     class ActiveTransactionCache {
@@ -236,6 +399,7 @@ class TransactionIndex implements TransactionIndexMXBean {
         void recompute() {
             _count = 0;
             final long timestampAtStart = _timestampAllocator.updateTimestamp();
+            _registrationFence.drain();
             long floor = timestampAtStart;
             for (final TransactionIndexBucket bucket : _hashTable) {
                 if (bucket.getCurrent() != null || bucket.getLongRunning() != null) {
@@ -266,6 +430,19 @@ class TransactionIndex implements TransactionIndexMXBean {
                     }
                 }
             }
+            for (final SnapshotSlot slot : _snapshotSlots) {
+                long ts = slot.getTs();
+                while (ts == SNAPSHOT_PENDING) {
+                    Thread.yield();
+                    ts = slot.getTs();
+                }
+                if (ts != PRIMORDIAL && ts <= timestampAtStart) {
+                    add(ts);
+                    if (ts < floor) {
+                        floor = ts;
+                    }
+                }
+            }
             Arrays.sort(_tsArray, 0, _count);
             _ceiling = timestampAtStart;
             _floor = floor;
@@ -512,13 +689,16 @@ class TransactionIndex implements TransactionIndexMXBean {
     }
 
     /**
-     * Atomically assign a start timestamp and register a transaction within the
+     * Assign a start timestamp and register a transaction within the
      * <code>TransactionIndex</code>. Once registered, the transaction's commit
      * status can be found by calling {@link #commitStatus(long, long)}. It is
      * important that assigning the timestamp and making the transaction
-     * accessible within the TransactionIndex is atomic because otherwise a
-     * concurrent transaction with a larger start timestamp could fail to see
-     * this one and cause inconsistent results.
+     * accessible within the TransactionIndex appear atomic to the
+     * {@link ActiveTransactionCache} because otherwise it could fail to see
+     * this transaction and allow versions it needs to be pruned. That
+     * guarantee is provided by the {@link RegistrationFence} rather than by a
+     * global lock, so concurrent registrations contend only on the bucket
+     * selected by their timestamps.
      * 
      * @return the TransactionStatus.
      * @throws InterruptedException
@@ -547,7 +727,8 @@ class TransactionIndex implements TransactionIndexMXBean {
         Debug.suspend();
         final TransactionStatus status;
         final TransactionIndexBucket bucket;
-        synchronized (this) {
+        final int token = _registrationFence.enter();
+        try {
             final long ts;
             if (forCheckpoint) {
                 ts = _timestampAllocator.allocateCheckpointTimestamp();
@@ -564,6 +745,8 @@ class TransactionIndex implements TransactionIndexMXBean {
             } finally {
                 bucket.unlock();
             }
+        } finally {
+            _registrationFence.exit(token);
         }
 
         try {
@@ -597,6 +780,66 @@ class TransactionIndex implements TransactionIndexMXBean {
         return status;
     }
 
+    /**
+     * Allocate a {@link SnapshotSlot} for use by one {@link Transaction}
+     * context. The slot remains registered until
+     * {@link #releaseSnapshotSlot(SnapshotSlot)} is called.
+     * 
+     * @return the new SnapshotSlot
+     */
+    SnapshotSlot allocateSnapshotSlot() {
+        final SnapshotSlot slot = new SnapshotSlot();
+        _snapshotSlots.add(slot);
+        return slot;
+    }
+
+    /**
+     * Unregister a {@link SnapshotSlot} that will no longer be used.
+     * 
+     * @param slot
+     */
+    void releaseSnapshotSlot(final SnapshotSlot slot) {
+        slot._ts = PRIMORDIAL;
+        _snapshotSlots.remove(slot);
+    }
+
+    /**
+     * <p>
+     * Assign a start timestamp for a snapshot transaction and publish it
+     * through the supplied slot. This method performs none of the work done by
+     * {@link #registerTransaction()}: it takes no monitor or bucket lock and
+     * allocates no <code>TransactionStatus</code>.
+     * </p>
+     * <p>
+     * The slot is marked {@link #SNAPSHOT_PENDING} before the timestamp is
+     * allocated so that a concurrent
+     * {@link ActiveTransactionCache#recompute()} whose own timestamp is larger
+     * than the one assigned here is guaranteed to account for this snapshot.
+     * </p>
+     * 
+     * @param slot
+     *            the slot owned by the calling Transaction context
+     * @return the start timestamp
+     */
+    long registerSnapshot(final SnapshotSlot slot) {
+        slot._ts = SNAPSHOT_PENDING;
+        final long ts = _timestampAllocator.updateTimestamp();
+        slot._ts = ts;
+        return ts;
+    }
+
+    /**
+     * Withdraw the start timestamp published by
+     * {@link #registerSnapshot(SnapshotSlot)}. Versions needed only by that
+     * snapshot become eligible for pruning after the next update of the
+     * {@link ActiveTransactionCache}.
+     * 
+     * @param slot
+     */
+    void unregisterSnapshot(final SnapshotSlot slot) {
+        slot._ts = PRIMORDIAL;
+    }
+
     /**
      * Notify the TransactionIndex that the specified Transaction has committed
      * or aborted. This method allows the TransactionIndex to awaken any threads
@@ -954,19 +1197,15 @@ class TransactionIndex implements TransactionIndexMXBean {
      * @throws InterruptedException
      */
     void injectAbortedTransaction(final long ts) throws InterruptedException {
-        final TransactionStatus status;
-        final TransactionIndexBucket bucket;
-        synchronized (this) {
-            final int index = hashIndex(ts);
-            bucket = _hashTable[index];
-            bucket.lock();
-            try {
-                status = bucket.allocateTransactionStatus();
-                status.initializeAsAborted(ts);
-                bucket.addAborted(status);
-            } finally {
-                bucket.unlock();
-            }
+        final int index = hashIndex(ts);
+        final TransactionIndexBucket bucket = _hashTable[index];
+        bucket.lock();
+        try {
+            final TransactionStatus status = bucket.allocateTransactionStatus();
+            status.initializeAsAborted(ts);
+            bucket.addAborted(status);
+        } finally {
+            bucket.unlock();
         }
     }
 
@@ -16,6 +16,7 @@
 
 package com.persistit;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -84,10 +85,12 @@ public class Tree extends SharedResource {
     final static int MAX_SERIALIZED_SIZE = 512;
     final static int MAX_TREE_NAME_SIZE = 256;
     final static int MAX_ACCUMULATOR_COUNT = 64;
+    private final static KeyCounter[] NO_KEY_COUNTERS = new KeyCounter[0];
 
     private final String _name;
     private final Volume _volume;
     private final AtomicReference<Object> _appCache = new AtomicReference<Object>();
+    private final AtomicReference<KeyBloomFilter> _keyBloomFilter = new AtomicReference<KeyBloomFilter>();
     private final AtomicInteger _handle = new AtomicInteger();
 
     private final TimelyResource<TreeVersion> _timelyResource;
@@ -109,6 +112,7 @@ public class Tree extends SharedResource {
         volatile boolean _pruned;
         private final Accumulator[] _accumulators = new Accumulator[MAX_ACCUMULATOR_COUNT];
         private final TreeStatistics _treeStatistics = new TreeStatistics();
+        private volatile KeyCounter[] _keyCounters = NO_KEY_COUNTERS;
 
         @Override
         public boolean prune() throws PersistitException {
@@ -170,6 +174,41 @@ public class Tree extends SharedResource {
         _timelyResource = new TimelyResource<TreeVersion>(persistit);
     }
 
+    /**
+     * Associates a key prefix with the <code>SumAccumulator</code> that counts
+     * the keys beginning with it.
+     */
+    final static class KeyCounter {
+        private final byte[] _prefix;
+        private final SumAccumulator _accumulator;
+
+        private KeyCounter(final Key prefix, final SumAccumulator accumulator) {
+            _prefix = Arrays.copyOf(prefix.getEncodedBytes(), prefix.getEncodedSize());
+            _accumulator = accumulator;
+        }
+
+        /**
+         * Because every encoded key segment is terminated, a key that begins
+         * with the bytes of the prefix begins with all of its segments.
+         */
+        boolean covers(final Key key) {
+            if (key.getEncodedSize() < _prefix.length) {
+                return false;
+            }
+            final byte[] bytes = key.getEncodedBytes();
+            for (int index = 0; index < _prefix.length; index++) {
+                if (bytes[index] != _prefix[index]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isPrefix(final Key key) {
+            return key.getEncodedSize() == _prefix.length && covers(key);
+        }
+    }
+
     TreeVersion version() {
         try {
             return _timelyResource.getVersion(_creator);
@@ -439,6 +478,173 @@ public class Tree extends SharedResource {
         return (SumAccumulator) getAccumulator(Accumulator.Type.SUM, index);
     }
 
+    /**
+     * <p>
+     * Maintain a count of the keys of this <code>Tree</code> that begin with
+     * the key segments of the supplied <code>prefix</code> in the
+     * <code>SumAccumulator</code> with the specified index. Thereafter each
+     * store that adds such a key, and each remove that removes one, adjusts
+     * the count within the same transaction, so that
+     * {@link #getKeyCount(Key)} returns the number of keys visible to a
+     * transaction without traversing them. A store that replaces the value of
+     * an existing key does not change the count.
+     * </p>
+     * <p>
+     * Counts are maintained only for keys stored and removed within the
+     * scope of a {@link Transaction}, because a <code>SumAccumulator</code>
+     * can be updated only within a transaction. The registration is not
+     * persistent: it must be performed each time Persistit is started, before
+     * any key beginning with the prefix is modified, and again if the
+     * <code>Tree</code> is removed and recreated. Keys stored before the
+     * count was first registered are not counted. The accumulator must not be
+     * used for any other purpose.
+     * </p>
+     * 
+     * @param prefix
+     *            The key prefix. An empty <code>Key</code> counts every key in
+     *            the <code>Tree</code>.
+     * @param accumulatorIndex
+     *            Application-controlled value between 0 and 63, inclusive.
+     * @return The <code>SumAccumulator</code> holding the count
+     * @throws IllegalStateException
+     *             if the prefix is already counted by a different accumulator
+     *             or the accumulator is not a <code>SumAccumulator</code>
+     */
+    public synchronized SumAccumulator countKeys(final Key prefix, final int accumulatorIndex)
+            throws PersistitException {
+        final SumAccumulator accumulator = getSumAccumulator(accumulatorIndex);
+        final TreeVersion version = version();
+        final KeyCounter[] counters = version._keyCounters;
+        for (final KeyCounter counter : counters) {
+            if (counter.isPrefix(prefix)) {
+                if (counter._accumulator != accumulator) {
+                    throw new IllegalStateException("Keys with prefix " + prefix + " are already counted by "
+                            + counter._accumulator);
+                }
+                return accumulator;
+            }
+        }
+        final KeyCounter[] updated = Arrays.copyOf(counters, counters.length + 1);
+        updated[counters.length] = new KeyCounter(prefix, accumulator);
+        version._keyCounters = updated;
+        return accumulator;
+    }
+
+    /**
+     * Maintain a count of all keys in this <code>Tree</code>. Equivalent to
+     * {@link #countKeys(Key, int)} with an empty <code>Key</code>.
+     * 
+     * @param accumulatorIndex
+     *            Application-controlled value between 0 and 63, inclusive.
+     * @return The <code>SumAccumulator</code> holding the count
+     */
+    public SumAccumulator countKeys(final int accumulatorIndex) throws PersistitException {
+        return countKeys(new Key(_persistit), accumulatorIndex);
+    }
+
+    /**
+     * Return the number of keys beginning with the supplied prefix, as
+     * maintained by a count registered with {@link #countKeys(Key, int)}.
+     * Within a transaction this is the count visible to the transaction;
+     * otherwise it reflects all transactions committed so far.
+     * 
+     * @param prefix
+     *            The key prefix
+     * @return The number of keys
+     * @throws IllegalArgumentException
+     *             if there is no count for the prefix
+     */
+    public long getKeyCount(final Key prefix) throws PersistitException {
+        for (final KeyCounter counter : version()._keyCounters) {
+            if (counter.isPrefix(prefix)) {
+                if (_persistit.getTransaction().isActive()) {
+                    return counter._accumulator.getSnapshotValue();
+                } else {
+                    return counter._accumulator.getSnapshotValue(_persistit.getTimestampAllocator()
+                            .getCurrentTimestamp(), 0);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Keys with prefix " + prefix + " are not counted in " + this);
+    }
+
+    /**
+     * @return The number of keys in this <code>Tree</code>, as maintained by a
+     *         count registered with {@link #countKeys(int)}
+     * @throws IllegalArgumentException
+     *             if keys of the whole tree are not counted
+     */
+    public long getKeyCount() throws PersistitException {
+        return getKeyCount(new Key(_persistit));
+    }
+
+    boolean hasKeyCounters() {
+        return version()._keyCounters.length > 0;
+    }
+
+    /**
+     * Adjust every registered count whose prefix begins the supplied key. Must
+     * be called within a transaction.
+     */
+    void adjustKeyCounts(final Key key, final int delta) {
+        for (final KeyCounter counter : version()._keyCounters) {
+            if (counter.covers(key)) {
+                counter._accumulator.add(delta);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Attach a {@link KeyBloomFilter} to this <code>Tree</code>, replacing any
+     * previously attached. Thereafter a fetch of a key that the filter
+     * reports as definitely absent returns an undefined value without
+     * searching the tree. The filter is built from the keys of the tree by
+     * the first lookup that consults it.
+     * </p>
+     * <p>
+     * The filter is held in memory only, and uses roughly
+     * <code>-expectedKeys * ln(falsePositiveProbability) / (ln 2)<sup>2</sup></code>
+     * bits, rounded up to a power of two.
+     * </p>
+     * 
+     * @param expectedKeys
+     *            The number of keys the tree is expected to hold
+     * @param falsePositiveProbability
+     *            The desired probability that a lookup of an absent key
+     *            searches the tree, between 0 and 1, exclusive
+     * @return The <code>KeyBloomFilter</code>
+     */
+    public KeyBloomFilter setKeyBloomFilter(final long expectedKeys, final double falsePositiveProbability) {
+        final KeyBloomFilter filter = new KeyBloomFilter(this, expectedKeys, falsePositiveProbability);
+        _keyBloomFilter.set(filter);
+        return filter;
+    }
+
+    /**
+     * Detach the {@link KeyBloomFilter}, if any, from this <code>Tree</code>.
+     */
+    public void removeKeyBloomFilter() {
+        _keyBloomFilter.set(null);
+    }
+
+    /**
+     * @return The {@link KeyBloomFilter} attached to this <code>Tree</code>,
+     *         or <code>null</code> if there is none
+     */
+    public KeyBloomFilter getKeyBloomFilter() {
+        return _keyBloomFilter.get();
+    }
+
+    /**
+     * Replace a saturated filter with an empty one sized for the supplied
+     * number of keys, unless the filter has already been replaced.
+     */
+    void resizeKeyBloomFilter(final KeyBloomFilter filter, final long expectedKeys) {
+        _keyBloomFilter.compareAndSet(filter,
+                new KeyBloomFilter(this, expectedKeys, filter.getFalsePositiveProbability()));
+    }
+
     /**
      * Return a <code>SeqAccumulator</code> for this <code>Tree</code> and the
      * specified index value between 0 and 63, inclusive. If the
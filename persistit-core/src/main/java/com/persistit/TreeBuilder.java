@@ -32,9 +32,12 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.persistit.exception.DuplicateKeyException;
 import com.persistit.exception.PersistitException;
@@ -139,6 +142,39 @@ import com.persistit.util.Util;
  * sequence in which trees are populated within the {@link #merge()} method
  * </ul>
  * </p>
+ * <h3>Concurrency</h3>
+ * <p>
+ * Multiple threads may call {@link #store(Tree, Key, Value)} concurrently.
+ * Each thread fills its own sort volume, so threads sorting records do not
+ * contend for the pages of a shared sort tree, and a thread that fills its
+ * sort volume writes it to a sort file while the other threads continue.
+ * Because each sort volume may occupy the fraction of the buffer pool
+ * specified when the <code>TreeBuilder</code> is constructed, an application
+ * storing records from several threads should specify a correspondingly
+ * smaller fraction. The {@link #merge()} method must not be called until all
+ * threads have finished storing records.
+ * </p>
+ * <p>
+ * Within a sort file the records of each destination tree are written as a
+ * separate, self-contained segment. Therefore different destination trees
+ * can be merged independently. By default they are merged one after another
+ * by the thread that calls {@link #merge()}; {@link #setMergeThreadCount(int)}
+ * permits several trees to be merged concurrently. When more than one merge
+ * thread is used, the customization methods called during the merge must be
+ * thread-safe, and the sequence defined by {@link #getTreeComparator()}
+ * determines only the order in which merging of each tree begins.
+ * </p>
+ * <h3>Bulk loading</h3>
+ * <p>
+ * If {@link #setBulkLoad(boolean)} is enabled, a destination tree that is
+ * empty when its merge begins is built from the bottom up by a
+ * {@link BulkLoader} rather than by storing each record, and replaces the
+ * empty tree when its merge completes. The tree must not be used by other
+ * threads during the merge, and {@link #beforeMergeKey(Exchange)} must not
+ * change the key. Destination trees that are not empty, or whose keys are
+ * counted by {@link Tree#countKeys(Key, int)}, are merged by storing each
+ * record.
+ * </p>
  * 
  * @author peter
  * 
@@ -158,21 +194,18 @@ public class TreeBuilder {
     private final AtomicLong _sortedKeyCount = new AtomicLong();
     private final AtomicLong _mergedKeyCount = new AtomicLong();
     private volatile long _reportKeyCountMultiple = REPORT_REPORT_MULTIPLE;
-    private Volume _sortVolume;
-    private File _sortFile;
+    private volatile int _mergeThreadCount = 1;
+    private volatile boolean _bulkLoad;
 
     private final List<Tree> _allTrees = new ArrayList<Tree>();
     private final Map<String, Tree> _sortTreeMap = new HashMap<String, Tree>();
 
     private int _sortFileIndex;
     private final List<Node> _sortNodes = new ArrayList<Node>();
+    private final List<File> _sortFiles = new ArrayList<File>();
+    private final List<SortVolume> _sortVolumes = new ArrayList<SortVolume>();
 
-    private final ThreadLocal<Map<Tree, Exchange>> _sortExchangeMapThreadLocal = new ThreadLocal<Map<Tree, Exchange>>() {
-        @Override
-        public Map<Tree, Exchange> initialValue() {
-            return new HashMap<Tree, Exchange>();
-        }
-    };
+    private final ThreadLocal<SortVolume> _sortVolumeThreadLocal = new ThreadLocal<SortVolume>();
 
     private final Comparator<Tree> _defaultTreeComparator = new Comparator<Tree>() {
         /**
@@ -198,6 +231,27 @@ public class TreeBuilder {
         }
     };
 
+    /**
+     * A temporary volume holding the sort trees filled by one thread.
+     */
+    private static class SortVolume {
+
+        private final Volume _volume;
+        private final File _file;
+        private final int _index;
+        private final Map<Tree, Exchange> _exchangeMap = new HashMap<Tree, Exchange>();
+        private volatile boolean _finished;
+
+        private SortVolume(final Volume volume, final File file, final int index) {
+            _volume = volume;
+            _file = file;
+            _index = index;
+        }
+    }
+
+    /**
+     * The segment of a sort file holding the records of one destination tree.
+     */
     private class Node implements Comparable<Node> {
 
         private Tree _tree;
@@ -207,9 +261,12 @@ public class TreeBuilder {
         private final int _precedence;
 
         private final File _file;
+        private final Tree _destination;
+        private final long _offset;
         private StreamLoader _loader;
         private Handler _handler;
         private boolean _next;
+        private boolean _end;
 
         private class Handler extends StreamLoader.ImportHandler {
 
@@ -224,15 +281,21 @@ public class TreeBuilder {
                 _value = value;
                 _next = true;
             }
-        }
 
-        private File getFile() {
-            return _file;
+            @Override
+            protected void handleTreeIdRecord(final String treeName) throws PersistitException {
+                super.handleTreeIdRecord(treeName);
+                if (super._tree != _destination) {
+                    _end = true;
+                }
+            }
         }
 
-        private Node(final File file, final int index) {
+        private Node(final File file, final int index, final Tree destination, final long offset) {
             _file = file;
             _precedence = index;
+            _destination = destination;
+            _offset = offset;
         }
 
         @Override
@@ -268,14 +331,15 @@ public class TreeBuilder {
         }
 
         private void createStreamLoader() throws Exception {
-            _loader = new StreamLoader(_persistit, new DataInputStream(new BufferedInputStream(new FileInputStream(
-                    _file), STREAM_SIZE)));
+            final FileInputStream fis = new FileInputStream(_file);
+            fis.getChannel().position(_offset);
+            _loader = new StreamLoader(_persistit, new DataInputStream(new BufferedInputStream(fis, STREAM_SIZE)));
             _handler = new Handler(_persistit);
         }
 
         private boolean next() throws Exception {
             _next = false;
-            while (_loader.next(_handler) && !_next)
+            while (!_end && _loader.next(_handler) && !_next)
                 ;
             if (!_next) {
                 _loader.close();
@@ -296,15 +360,18 @@ public class TreeBuilder {
         @Override
         protected void writeData(final Exchange exchange) throws IOException {
             if (exchange.getTree() != _sortTree) {
-                final Tree source = _sortTreeMap.get(exchange.getTree().getName());
-                if (_lastVolume != source.getVolume()) {
-                    writeVolumeInfo(source.getVolume());
-                    _lastVolume = source.getVolume();
-                }
-                if (_lastTree != source) {
-                    writeTreeInfo(source);
-                    _lastTree = source;
+                _sortTree = exchange.getTree();
+                final Tree source;
+                synchronized (TreeBuilder.this) {
+                    source = _sortTreeMap.get(_sortTree.getName());
                 }
+                /*
+                 * Start a self-contained segment that can be loaded from its
+                 * own offset without reading the preceding records.
+                 */
+                writeVolumeInfo(source.getVolume());
+                writeTreeInfo(source);
+                _lastKey.clear();
             }
             writeData(exchange.getKey(), exchange.getValue());
             _recordCount++;
@@ -363,6 +430,45 @@ public class TreeBuilder {
         return _reportKeyCountMultiple;
     }
 
+    /**
+     * Set the number of threads used by {@link #merge()} to merge records into
+     * different destination trees concurrently. The default value is 1.
+     * 
+     * @param count
+     *            the number of merge threads
+     */
+    public final void setMergeThreadCount(final int count) {
+        _mergeThreadCount = Util.rangeCheck(count, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return Number of threads used by {@link #merge()} to merge records into
+     *         different destination trees concurrently
+     */
+    public final int getMergeThreadCount() {
+        return _mergeThreadCount;
+    }
+
+    /**
+     * Set whether {@link #merge()} builds each destination tree that is empty
+     * when its merge begins with a {@link BulkLoader}. The default value is
+     * <code>false</code>.
+     * 
+     * @param bulkLoad
+     *            <code>true</code> to bulk load empty destination trees
+     */
+    public final void setBulkLoad(final boolean bulkLoad) {
+        _bulkLoad = bulkLoad;
+    }
+
+    /**
+     * @return Whether {@link #merge()} builds empty destination trees with a
+     *         {@link BulkLoader}
+     */
+    public final boolean isBulkLoad() {
+        return _bulkLoad;
+    }
+
     /**
      * @return Count of sort trees that have been created while sorting keys
      */
@@ -470,7 +576,8 @@ public class TreeBuilder {
 
     /**
      * Store a key-value pair into a sort tree. The {@link Tree}, {@link Key}
-     * and {@link Value} are specified by the supplied {@link Exchange}.
+     * and {@link Value} are specified by the supplied {@link Exchange}. This
+     * method may be called concurrently by multiple threads.
      * 
      * @param exchange
      *            The Exchange
@@ -482,7 +589,7 @@ public class TreeBuilder {
 
     /**
      * Store a key-value pair for a specified <code>Tree</code> into a sort
-     * tree.
+     * tree. This method may be called concurrently by multiple threads.
      * 
      * @param tree
      *            the Tree
@@ -493,13 +600,19 @@ public class TreeBuilder {
      * @throws Exception
      */
     public final void store(final Tree tree, final Key key, final Value value) throws Exception {
-        final Map<Tree, Exchange> map = _sortExchangeMapThreadLocal.get();
-        Exchange ex = map.get(tree);
-        if (ex == null || ex.getTree().getVolume().getNextAvailablePage() > _pageLimit) {
-            final Volume newSortVolume = getSortVolume();
+        SortVolume sortVolume = _sortVolumeThreadLocal.get();
+        if (sortVolume == null || sortVolume._finished || sortVolume._volume.getNextAvailablePage() > _pageLimit) {
+            if (sortVolume != null) {
+                finishSortVolume(sortVolume);
+            }
+            sortVolume = createSortVolume();
+            _sortVolumeThreadLocal.set(sortVolume);
+        }
+        Exchange ex = sortVolume._exchangeMap.get(tree);
+        if (ex == null) {
             final String tempTreeName = "_" + _persistit.getJournalManager().handleForTree(tree);
-            ex = _persistit.getExchange(newSortVolume, tempTreeName, true);
-            map.put(tree, ex);
+            ex = _persistit.getExchange(sortVolume._volume, tempTreeName, true);
+            sortVolume._exchangeMap.put(tree, ex);
             synchronized (this) {
                 if (!_allTrees.contains(tree)) {
                     _allTrees.add(tree);
@@ -548,20 +661,97 @@ public class TreeBuilder {
 
     /**
      * Merge the record previously stored in sort volumes into their destination
-     * <code>Tree</code>s.
+     * <code>Tree</code>s. Each destination tree is merged from the segments
+     * of the sort files holding its records; if the merge thread count is
+     * greater than 1, different destination trees are merged concurrently.
      * 
      * @throws Exception
      */
     public synchronized void merge() throws Exception {
-        finishSortVolume();
+        for (final SortVolume sortVolume : new ArrayList<SortVolume>(_sortVolumes)) {
+            finishSortVolume(sortVolume);
+        }
         if ((_mergedKeyCount.get() % _reportKeyCountMultiple) != 0) {
             reportSorted(_mergedKeyCount.get());
         }
-        Tree currentTree = null;
-        Exchange ex = null;
+        final List<Tree> trees = new ArrayList<Tree>(_allTrees);
+        Collections.sort(trees, getTreeComparator());
+        final Map<Tree, List<Node>> nodeMap = new HashMap<Tree, List<Node>>();
+        for (final Tree tree : trees) {
+            nodeMap.put(tree, new ArrayList<Node>());
+        }
+        for (final Node node : _sortNodes) {
+            nodeMap.get(node._destination).add(node);
+        }
+        final int threadCount = Math.min(_mergeThreadCount, trees.size());
+        if (threadCount <= 1) {
+            for (final Tree tree : trees) {
+                mergeTree(tree, nodeMap.get(tree));
+            }
+        } else {
+            mergeConcurrently(trees, nodeMap, threadCount);
+        }
+        if ((_mergedKeyCount.get() % _reportKeyCountMultiple) != 0) {
+            reportMerged(_mergedKeyCount.get());
+        }
+        reset();
+    }
+
+    private void mergeConcurrently(final List<Tree> trees, final Map<Tree, List<Node>> nodeMap,
+            final int threadCount) throws Exception {
+        final Queue<Tree> queue = new ConcurrentLinkedQueue<Tree>(trees);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[threadCount];
+        for (int index = 0; index < threadCount; index++) {
+            threads[index] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Tree tree;
+                    while (failure.get() == null && (tree = queue.poll()) != null) {
+                        try {
+                            mergeTree(tree, nodeMap.get(tree));
+                        } catch (final Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                }
+            }, _name + "_MERGE_" + index);
+            threads[index].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final Throwable t = failure.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t != null) {
+            throw (Error) t;
+        }
+    }
+
+    private void mergeTree(final Tree tree, final List<Node> nodes) throws Exception {
+        final Exchange ex = new Exchange(tree);
+        if (_bulkLoad && !tree.hasKeyCounters() && isEmpty(ex)) {
+            final BulkLoader loader = new BulkLoader(tree);
+            boolean finished = false;
+            try {
+                mergeRecords(ex, nodes, loader);
+                loader.finish();
+                finished = true;
+            } finally {
+                if (!finished) {
+                    loader.abort();
+                }
+            }
+        } else {
+            mergeRecords(ex, nodes, null);
+        }
+    }
+
+    private void mergeRecords(final Exchange ex, final List<Node> nodes, final BulkLoader loader) throws Exception {
         final SortedMap<Node, Node> sorted = new TreeMap<Node, Node>();
 
-        for (final Node node : _sortNodes) {
+        for (final Node node : nodes) {
             node.createStreamLoader();
             if (node.next()) {
                 insertNode(sorted, node);
@@ -574,20 +764,20 @@ public class TreeBuilder {
             }
             Node node = sorted.firstKey();
             node = sorted.remove(node);
-            if (node._tree != currentTree) {
-                ex = new Exchange(node._tree);
-                currentTree = node._tree;
-            }
             node._key.copyTo(ex.getKey());
             node._value.copyTo(ex.getValue());
 
             if (beforeMergeKey(ex)) {
-                ex.fetchAndStore();
                 boolean stored = true;
-                if (ex.getValue().isDefined()) {
-                    if (!duplicateKeyDetected(ex.getTree(), ex.getKey(), ex.getValue(), node._value)) {
-                        ex.store();
-                        stored = false;
+                if (loader != null) {
+                    loader.append(ex.getKey(), ex.getValue());
+                } else {
+                    ex.fetchAndStore();
+                    if (ex.getValue().isDefined()) {
+                        if (!duplicateKeyDetected(ex.getTree(), ex.getKey(), ex.getValue(), node._value)) {
+                            ex.store();
+                            stored = false;
+                        }
                     }
                 }
                 if (stored) {
@@ -606,29 +796,34 @@ public class TreeBuilder {
                 node = next;
             }
         }
-        if ((_mergedKeyCount.get() % _reportKeyCountMultiple) != 0) {
-            reportMerged(_mergedKeyCount.get());
+    }
+
+    private boolean isEmpty(final Exchange ex) throws PersistitException {
+        ex.ignoreMVCCFetch(true);
+        try {
+            return !ex.clear().append(Key.BEFORE).next();
+        } finally {
+            ex.ignoreMVCCFetch(false);
+            ex.clear();
         }
-        reset();
     }
 
     private synchronized void reset() throws Exception {
         Exception exception = null;
-        try {
-            if (_sortVolume != null) {
-                _sortVolume.close();
-            }
-        } catch (final PersistitException e) {
-            if (exception == null) {
-                exception = e;
+        for (final SortVolume sortVolume : _sortVolumes) {
+            sortVolume._finished = true;
+            try {
+                sortVolume._volume.close();
+            } catch (final PersistitException e) {
+                if (exception == null) {
+                    exception = e;
+                }
             }
         }
 
-        for (final Node node : _sortNodes) {
+        for (final File file : _sortFiles) {
             try {
-                if (node.getFile() != null) {
-                    node.getFile().delete();
-                }
+                file.delete();
             } catch (final Exception e) {
                 if (exception == null) {
                     exception = e;
@@ -637,9 +832,10 @@ public class TreeBuilder {
         }
         _allTrees.clear();
         _sortNodes.clear();
-        _sortVolume = null;
+        _sortFiles.clear();
+        _sortVolumes.clear();
         _sortFileIndex = 0;
-        _sortExchangeMapThreadLocal.get().clear();
+        _sortVolumeThreadLocal.remove();
         if (exception != null) {
             throw exception;
         }
@@ -651,60 +847,84 @@ public class TreeBuilder {
         reset();
     }
 
-    private synchronized Volume getSortVolume() throws Exception {
-        if (_sortVolume != null && _sortVolume.getNextAvailablePage() > _pageLimit) {
-            finishSortVolume();
-        }
-        if (_sortVolume == null) {
-            final File directory;
-            if (_directories.isEmpty()) {
-                String directoryName = _persistit.getConfiguration().getTmpVolDir();
-                if (directoryName == null) {
-                    directoryName = System.getProperty("java.io.tmpdir");
-                }
-                directory = new File(directoryName);
-                if (!directory.exists()) {
-                    directory.mkdirs();
-                }
-                _directories.add(directory);
-            } else {
-                directory = _directories.get(_sortFileIndex % _directories.size());
+    private synchronized SortVolume createSortVolume() throws Exception {
+        final File directory;
+        if (_directories.isEmpty()) {
+            String directoryName = _persistit.getConfiguration().getTmpVolDir();
+            if (directoryName == null) {
+                directoryName = System.getProperty("java.io.tmpdir");
+            }
+            directory = new File(directoryName);
+            if (!directory.exists()) {
+                directory.mkdirs();
             }
-            _sortVolume = Volume.createTemporaryVolume(_persistit, _pageSize, directory);
-            _sortFile = new File(directory, String.format("%s_%d.%06d", _name, _uniqueId, _sortFileIndex));
-            final Node node = new Node(_sortFile, _sortFileIndex);
-            _sortNodes.add(node);
-            _sortFileIndex++;
+            _directories.add(directory);
+        } else {
+            directory = _directories.get(_sortFileIndex % _directories.size());
         }
-        return _sortVolume;
+        final Volume volume = Volume.createTemporaryVolume(_persistit, _pageSize, directory);
+        final File file = new File(directory, String.format("%s_%d.%06d", _name, _uniqueId, _sortFileIndex));
+        final SortVolume sortVolume = new SortVolume(volume, file, _sortFileIndex);
+        _sortVolumes.add(sortVolume);
+        _sortFileIndex++;
+        return sortVolume;
     }
 
-    private void finishSortVolume() throws Exception {
-        if (_sortVolume != null) {
-            beforeSortVolumeClosed(_sortVolume, _sortFile);
-            saveSortVolume(_sortVolume, _sortFile);
-            afterSortVolumeClose(_sortVolume, _sortFile);
-            _sortVolume.close();
-            _sortVolume = null;
+    /**
+     * Write the sort trees of a sort volume to its sort file and close it.
+     * Performed by the thread that filled the volume without holding the
+     * monitor, so that other threads can continue sorting meanwhile.
+     */
+    private void finishSortVolume(final SortVolume sortVolume) throws Exception {
+        synchronized (this) {
+            if (sortVolume._finished) {
+                return;
+            }
+            sortVolume._finished = true;
+            _sortVolumes.remove(sortVolume);
+            _sortFiles.add(sortVolume._file);
+        }
+        try {
+            beforeSortVolumeClosed(sortVolume._volume, sortVolume._file);
+            saveSortVolume(sortVolume);
+            afterSortVolumeClose(sortVolume._volume, sortVolume._file);
+        } finally {
+            //
+            // No longer in _sortVolumes, so reset() can't close it
+            //
+            sortVolume._volume.close();
         }
     }
 
-    private void saveSortVolume(final Volume volume, final File file) throws Exception {
-        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
-                STREAM_SIZE));
-        final List<Tree> sorted = new ArrayList<Tree>(_allTrees);
-        Collections.sort(sorted, getTreeComparator());
-        final StreamSaver saver = new SortStreamSaver(_persistit, dos);
-        for (final Tree tree : sorted) {
-            final String sortTreeName = "_" + tree.getHandle();
-            final Tree sortTree = volume.getTree(sortTreeName, false);
-            if (sortTree != null) {
-                final Exchange exchange = new Exchange(sortTree);
-                saver.save(exchange, null);
+    private void saveSortVolume(final SortVolume sortVolume) throws Exception {
+        final File file = sortVolume._file;
+        final FileOutputStream fos = new FileOutputStream(file);
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, STREAM_SIZE));
+        final List<Tree> sorted;
+        synchronized (this) {
+            sorted = new ArrayList<Tree>(_allTrees);
+            Collections.sort(sorted, getTreeComparator());
+        }
+        final List<Node> nodes = new ArrayList<Node>();
+        try {
+            final StreamSaver saver = new SortStreamSaver(_persistit, dos);
+            for (final Tree tree : sorted) {
+                final String sortTreeName = "_" + tree.getHandle();
+                final Tree sortTree = sortVolume._volume.getTree(sortTreeName, false);
+                if (sortTree != null) {
+                    dos.flush();
+                    nodes.add(new Node(file, sortVolume._index, tree, fos.getChannel().position()));
+                    final Exchange exchange = new Exchange(sortTree);
+                    saver.save(exchange, null);
+                }
             }
+        } finally {
+            file.deleteOnExit();
+            dos.close();
+        }
+        synchronized (this) {
+            _sortNodes.addAll(nodes);
         }
-        file.deleteOnExit();
-        dos.close();
     }
 
     /**
@@ -845,8 +1065,10 @@ public class TreeBuilder {
     }
 
     void unitTestNextSortFile() throws Exception {
-        finishSortVolume();
-        _sortExchangeMapThreadLocal.get().clear();
-        _sortVolume = null;
+        final SortVolume sortVolume = _sortVolumeThreadLocal.get();
+        if (sortVolume != null) {
+            finishSortVolume(sortVolume);
+        }
+        _sortVolumeThreadLocal.remove();
     }
 }
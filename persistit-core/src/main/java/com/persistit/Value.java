@@ -306,6 +306,12 @@ public final class Value {
 
   private final static int SIZE_GRANULARITY = 256;
 
+  /**
+   * Number of bytes preceding the elements of a top-level <code>byte</code>
+   * array.
+   */
+  final static int BYTE_ARRAY_PREFIX_SIZE = 2;
+
   private final static char TRUE_CHAR = 'T';
   private final static char FALSE_CHAR = 'F';
   private final static String UNDEFINED = "undefined";
@@ -314,16 +320,16 @@ public final class Value {
   // Primitive values first. Codes allocated for .net types as well as
   // Java and mutually available types.
   //
-  private final static int TYPE_NULL = 1;
+  final static int TYPE_NULL = 1;
   private final static int TYPE_BOOLEAN = 2;
   private final static int TYPE_BYTE = 3;
   // private final static int TYPE_UBYTE = 4;
   private final static int TYPE_SHORT = 5;
   // private final static int TYPE_USHORT = 6;
   private final static int TYPE_CHAR = 7;
-  private final static int TYPE_INT = 8;
+  final static int TYPE_INT = 8;
   // private final static int TYPE_UINT = 9;
-  private final static int TYPE_LONG = 10;
+  final static int TYPE_LONG = 10;
   // private final static int TYPE_ULONG = 11;
   // private final static int TYPE_DECIMAL = 12;
   private final static int TYPE_FLOAT = 13;
@@ -1525,7 +1531,7 @@ public final class Value {
     }
   }
 
-  private void appendDisplayable(final StringBuilder sb, final Object value, final boolean quoted,
+  void appendDisplayable(final StringBuilder sb, final Object value, final boolean quoted,
     final boolean reference) {
     if (value == null) {
       sb.append(value);
@@ -3644,6 +3650,35 @@ public final class Value {
     putByteArray1(array, offset, length);
   }
 
+  /**
+   * Write the two bytes that precede the elements of a <code>byte</code>
+   * array encoded at the top level of a <code>Value</code>. Used when the
+   * elements are supplied by a stream rather than by a Value.
+   *
+   * @param bytes
+   *            the target array
+   * @param offset
+   *            offset of the first byte to write
+   */
+  static void putByteArrayPrefix(final byte[] bytes, final int offset) {
+    bytes[offset] = CLASS_ARRAY;
+    bytes[offset + 1] = TYPE_BYTE;
+  }
+
+  /**
+   * @param bytes
+   *            encoded bytes of a <code>Value</code>
+   * @param offset
+   *            offset of the first encoded byte
+   * @param size
+   *            number of encoded bytes
+   * @return <code>true</code> if the bytes begin with the encoding of a
+   *         top-level <code>byte</code> array
+   */
+  static boolean isByteArrayPrefix(final byte[] bytes, final int offset, final int size) {
+    return size >= BYTE_ARRAY_PREFIX_SIZE && bytes[offset] == CLASS_ARRAY && bytes[offset + 1] == TYPE_BYTE;
+  }
+
   private void putByteArray1(final byte[] array, final int offset, final int length) {
     ensureFit(length + 2);
     int index = _size;
@@ -4056,6 +4091,81 @@ public final class Value {
     _serializedItemCount++;
   }
 
+  /**
+   * Append a <code>long</code> as a zig-zag encoded variable-length integer
+   * with no type code. Values of small magnitude occupy a single byte. Used
+   * by {@link CompactValueCoder} to write positional fields.
+   *
+   * @param v
+   *            The value
+   */
+  void putVariableLengthLong(final long v) {
+    ensureFit(10);
+    long n = (v << 1) ^ (v >> 63);
+    while ((n & ~0x7FL) != 0) {
+      _bytes[_size++] = (byte) ((n & 0x7F) | 0x80);
+      n >>>= 7;
+    }
+    _bytes[_size++] = (byte) n;
+  }
+
+  /**
+   * Decode a <code>long</code> written by {@link #putVariableLengthLong(long)}
+   * at the current cursor position.
+   *
+   * @return The value
+   */
+  long getVariableLengthLong() {
+    long n = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (_next >= _size) {
+        throw new MalformedValueException("Variable length integer overruns value at " + _next);
+      }
+      final int b = _bytes[_next++] & 0xFF;
+      n |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return (n >>> 1) ^ -(n & 1);
+      }
+    }
+    throw new MalformedValueException("Invalid variable length integer at " + _next);
+  }
+
+  /**
+   * Append the low-order <code>length</code> bytes of a <code>long</code>,
+   * most significant first, with no type code.
+   *
+   * @param v
+   *            The value
+   * @param length
+   *            Number of bytes to write: 1, 4 or 8
+   */
+  void putFixedLengthLong(final long v, final int length) {
+    ensureFit(length);
+    for (int index = length; --index >= 0;) {
+      _bytes[_size + index] = (byte) (v >>> ((length - 1 - index) * 8));
+    }
+    _size += length;
+  }
+
+  /**
+   * Decode a value written by {@link #putFixedLengthLong(long, int)} at the
+   * current cursor position.
+   *
+   * @param length
+   *            Number of bytes to read
+   * @return The value
+   */
+  long getFixedLengthLong(final int length) {
+    if (_next + length > _size) {
+      throw new MalformedValueException("Fixed length field overruns value at " + _next);
+    }
+    long v = 0;
+    for (int index = 0; index < length; index++) {
+      v = (v << 8) | (_bytes[_next++] & 0xFF);
+    }
+    return v;
+  }
+
   /**
    * Optimized put method to be used in specialized circumstances where an
    * applications can supply a {@link ValueCoder} directly. This method
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import static com.persistit.Buffer.HEADER_SIZE;
+import static com.persistit.Buffer.LONGREC_PREFIX_OFFSET;
+import static com.persistit.Buffer.LONGREC_PREFIX_SIZE;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.persistit.exception.PersistitException;
+
+/**
+ * <p>
+ * An <code>InputStream</code> that reads the elements of a <code>byte</code>
+ * array value. Created by {@link Exchange#openValueStream()}.
+ * </p>
+ * <p>
+ * When the value is a LONG_RECORD the stream holds only the LONG_RECORD
+ * descriptor and a buffer of {@link #CHUNK_PAGES} pages. Each time the
+ * buffer is refilled the {@link Exchange} looks up the key again, verifies
+ * that the value still has the same descriptor and then copies the next pages
+ * of the chain while holding a claim on the data page, so that the chain
+ * cannot be deallocated while it is being read.
+ * </p>
+ */
+class ValueInputStream extends InputStream {
+
+    /**
+     * Maximum number of LONG_RECORD pages copied by one refill of the buffer
+     */
+    final static int CHUNK_PAGES = 16;
+
+    private final Exchange _exchange;
+    private final Key _key;
+    private final byte[] _descriptor;
+    private final Value _scratch;
+    private final int _segmentSize;
+
+    private byte[] _bytes;
+    private int _position;
+    private int _limit;
+    private long _page;
+    private int _remaining;
+    private boolean _closed;
+
+    /**
+     * Construct a stream on a value that fits in a data page
+     * 
+     * @param bytes
+     *            the array elements
+     */
+    ValueInputStream(final byte[] bytes) {
+        _exchange = null;
+        _key = null;
+        _descriptor = null;
+        _scratch = null;
+        _segmentSize = 0;
+        _bytes = bytes;
+        _limit = bytes.length;
+    }
+
+    /**
+     * Construct a stream on a LONG_RECORD value
+     * 
+     * @param exchange
+     *            the <code>Exchange</code> used to read pages of the chain
+     * @param key
+     *            the key of the value
+     * @param descriptor
+     *            the LONG_RECORD descriptor
+     */
+    ValueInputStream(final Exchange exchange, final Key key, final byte[] descriptor) {
+        _exchange = exchange;
+        _key = key;
+        _descriptor = descriptor;
+        _scratch = new Value(exchange.getPersistitInstance());
+        _segmentSize = exchange.getVolume().getPageSize() - HEADER_SIZE;
+        _page = Buffer.decodeLongRecordDescriptorPointer(descriptor, 0);
+        _remaining = Buffer.decodeLongRecordDescriptorSize(descriptor, 0) - LONGREC_PREFIX_SIZE;
+        _bytes = new byte[LONGREC_PREFIX_SIZE];
+        System.arraycopy(descriptor, LONGREC_PREFIX_OFFSET, _bytes, 0, LONGREC_PREFIX_SIZE);
+        _position = Value.BYTE_ARRAY_PREFIX_SIZE;
+        _limit = LONGREC_PREFIX_SIZE;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (_position >= _limit && !fill()) {
+            return -1;
+        }
+        return _bytes[_position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (_position >= _limit && !fill()) {
+            return -1;
+        }
+        final int count = Math.min(len, _limit - _position);
+        System.arraycopy(_bytes, _position, b, off, count);
+        _position += count;
+        return count;
+    }
+
+    /**
+     * Skip over <code>n</code> bytes. Whole pages of a LONG_RECORD chain are
+     * skipped by following their right sibling pointers without copying their
+     * content.
+     */
+    @Override
+    public long skip(final long n) throws IOException {
+        checkClosed();
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, _limit - _position);
+        _position += (int) skipped;
+        if (skipped < n && _remaining > 0) {
+            final int pageBytes = (int) (Math.min(n - skipped, _remaining) / _segmentSize) * _segmentSize;
+            if (pageBytes > 0) {
+                load(null, pageBytes);
+                skipped += pageBytes;
+            }
+            if (skipped < n && fill()) {
+                final int count = (int) Math.min(n - skipped, _limit);
+                _position = count;
+                skipped += count;
+            }
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        checkClosed();
+        return _limit - _position;
+    }
+
+    @Override
+    public void close() {
+        _closed = true;
+        _bytes = null;
+        _position = 0;
+        _limit = 0;
+        _remaining = 0;
+    }
+
+    private boolean fill() throws IOException {
+        checkClosed();
+        if (_remaining == 0) {
+            return false;
+        }
+        final int count = Math.min(_remaining, CHUNK_PAGES * _segmentSize);
+        if (_bytes.length < count) {
+            _bytes = new byte[count];
+        }
+        load(_bytes, count);
+        _position = 0;
+        _limit = count;
+        return true;
+    }
+
+    private void load(final byte[] target, final int count) throws IOException {
+        final long next;
+        try {
+            next = _exchange.readLongRecordPages(_key, _descriptor, _scratch, _page, target, 0, count);
+        } catch (final PersistitException e) {
+            throw new IOException(e);
+        }
+        if (next < 0) {
+            throw new IOException("Value of key " + _key + " was changed or removed while being read");
+        }
+        _page = next;
+        _remaining -= count;
+        _position = 0;
+        _limit = 0;
+    }
+
+    private void checkClosed() throws IOException {
+        if (_closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import com.persistit.exception.ConversionException;
+import com.persistit.util.Util;
+
+/**
+ * <p>
+ * A read-only view of the encoded bytes of a value. A <code>ValueView</code>
+ * is supplied to an {@link Exchange.ValueVisitor} by
+ * {@link Exchange#fetch(Exchange.ValueVisitor)} and is valid only until the
+ * visitor's <code>visit</code> method returns. When the record is an ordinary
+ * value the view refers directly to the bytes of the page holding the record,
+ * which remains claimed while the visitor runs, so that small items such as
+ * an <code>int</code>, a <code>long</code> or part of a <code>byte</code>
+ * array can be read without copying the record into a {@link Value}. When
+ * the visible version of the record must first be extracted from a
+ * multi-version value, or the record is a long record, the view refers
+ * instead to a copy.
+ * </p>
+ * <p>
+ * The methods of this class decode only the first item encoded in the value.
+ * Use {@link #copyTo(Value)} to decode anything else.
+ * </p>
+ */
+public final class ValueView {
+
+    private byte[] _bytes;
+    private int _offset;
+    private int _size;
+
+    ValueView() {
+    }
+
+    void init(final byte[] bytes, final int offset, final int size) {
+        _bytes = bytes;
+        _offset = offset;
+        _size = size;
+    }
+
+    void release() {
+        _bytes = null;
+        _offset = 0;
+        _size = 0;
+    }
+
+    byte[] getBytes() {
+        return _bytes;
+    }
+
+    int getOffset() {
+        return _offset;
+    }
+
+    /**
+     * @return The size in bytes of the encoded value
+     */
+    public int getEncodedSize() {
+        check();
+        return _size;
+    }
+
+    /**
+     * @return <code>true</code> if the value is <code>null</code>
+     */
+    public boolean isNull() {
+        return type() == Value.TYPE_NULL;
+    }
+
+    /**
+     * Decodes an <code>int</code> value. Equivalent to {@link Value#getInt()}.
+     * 
+     * @return The value as an <code>int</code>
+     * @throws ConversionException
+     *             if the value is not an <code>int</code>
+     */
+    public int getInt() {
+        expect(Value.TYPE_INT, 4);
+        return Util.getInt(_bytes, _offset + 1);
+    }
+
+    /**
+     * Decodes a <code>long</code> value. Equivalent to {@link Value#getLong()}.
+     * 
+     * @return The value as a <code>long</code>
+     * @throws ConversionException
+     *             if the value is not a <code>long</code>
+     */
+    public long getLong() {
+        expect(Value.TYPE_LONG, 8);
+        return Util.getLong(_bytes, _offset + 1);
+    }
+
+    /**
+     * @return The number of elements in a <code>byte</code> array value, or
+     *         -1 if the value is <code>null</code>
+     * @throws ConversionException
+     *             if the value is not a <code>byte</code> array
+     */
+    public int getByteArrayLength() {
+        if (isNull()) {
+            return -1;
+        }
+        if (!Value.isByteArrayPrefix(_bytes, _offset, _size)) {
+            throw new ConversionException("Value is not a byte array");
+        }
+        return _size - Value.BYTE_ARRAY_PREFIX_SIZE;
+    }
+
+    /**
+     * Copies a subarray of a <code>byte</code> array value into the supplied
+     * target array. Equivalent to
+     * {@link Value#getByteArray(byte[], int, int, int)}.
+     * 
+     * @param array
+     *            The target array
+     * @param fromOffset
+     *            Offset of the first element within the source array to copy
+     *            from
+     * @param toOffset
+     *            Offset of the first element within the target array to copy to
+     * @param length
+     *            The maximum number of elements to copy.
+     * @return The number of elements actually copied, or -1 if the value is
+     *         <code>null</code>
+     * @throws ConversionException
+     *             if the value is not a <code>byte</code> array
+     */
+    public int getByteArray(final byte[] array, final int fromOffset, final int toOffset, int length) {
+        final int sourceLength = getByteArrayLength();
+        if (sourceLength < 0) {
+            return -1;
+        }
+        if (length > sourceLength - fromOffset) {
+            length = sourceLength - fromOffset;
+        }
+        if (length > array.length - toOffset) {
+            length = array.length - toOffset;
+        }
+        if (length > 0) {
+            System.arraycopy(_bytes, _offset + Value.BYTE_ARRAY_PREFIX_SIZE + fromOffset, array, toOffset, length);
+        }
+        return length;
+    }
+
+    /**
+     * Copy the encoded value into the supplied <code>Value</code>, from which
+     * it may be decoded in any of the usual ways.
+     * 
+     * @param value
+     *            The <code>Value</code>
+     */
+    public void copyTo(final Value value) {
+        check();
+        value.putEncodedBytes(_bytes, _offset, _size);
+    }
+
+    @Override
+    public String toString() {
+        if (_bytes == null) {
+            return "ValueView(released)";
+        }
+        final Value value = new Value((Persistit) null);
+        copyTo(value);
+        return value.toString();
+    }
+
+    private int type() {
+        check();
+        if (_size == 0) {
+            throw new ConversionException("Value is undefined");
+        }
+        return _bytes[_offset] & 0xFF;
+    }
+
+    private void expect(final int type, final int length) {
+        if (type() != type || _size < length + 1) {
+            throw new ConversionException("Value is not a " + (type == Value.TYPE_INT ? "int" : "long"));
+        }
+    }
+
+    private void check() {
+        if (_bytes == null) {
+            throw new IllegalStateException("ValueView used outside of ValueVisitor");
+        }
+    }
+}
@@ -76,7 +76,7 @@ public class Volume {
     private final static String TEMP_VOLUME_NAME_SUFFIX_FOR_FIXUP_DETECTION = "_temporary_volume";
 
     public static boolean isValidPageSize(final int pageSize) {
-        for (int b = 1024; b <= 16384; b *= 2) {
+        for (int b = Buffer.MIN_BUFFER_SIZE; b <= Buffer.MAX_BUFFER_SIZE; b *= 2) {
             if (b == pageSize) {
                 return true;
             }
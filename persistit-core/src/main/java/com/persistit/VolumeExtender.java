@@ -0,0 +1,65 @@
+/**
+ * Copyright 2005-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background task that extends volume files ahead of demand. An allocating
+ * thread that leaves a volume with less than half an extension of free pages
+ * kicks this task, which then pre-allocates the next extension with
+ * {@link VolumeStorage#extendAhead()} so that allocating threads rarely need
+ * to extend a volume themselves.
+ */
+class VolumeExtender extends IOTaskRunnable {
+
+    private final static long POLL_INTERVAL = 5000;
+
+    private final AtomicBoolean _closed = new AtomicBoolean();
+
+    VolumeExtender(final Persistit persistit) {
+        super(persistit);
+    }
+
+    void start() {
+        _closed.set(false);
+        start("VOLUME_EXTENDER", POLL_INTERVAL);
+    }
+
+    void close() {
+        _closed.set(true);
+        kick();
+    }
+
+    @Override
+    protected boolean shouldStop() {
+        return _closed.get();
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+        for (final Volume volume : _persistit.getVolumes()) {
+            if (_closed.get()) {
+                break;
+            }
+            if (volume.isOpened() && !volume.isClosed()) {
+                volume.getStorage().extendAhead();
+            }
+        }
+    }
+}
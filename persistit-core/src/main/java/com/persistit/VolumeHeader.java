@@ -57,6 +57,18 @@ class VolumeHeader {
      */
     private final static int CURRENT_VERSION = 221;
 
+    /**
+     * Version of volumes having pages of {@value #LARGE_PAGE_SIZE} bytes or
+     * more. Key blocks in such pages use the high-order tail pointer bit, so
+     * earlier versions cannot read them.
+     */
+    private final static int LARGE_PAGE_VERSION = 230;
+
+    /**
+     * Smallest page size that requires {@link #LARGE_PAGE_VERSION}
+     */
+    private final static int LARGE_PAGE_SIZE = 32768;
+
     /**
      * Minimum product version that can handle Volumes created by this version.
      */
@@ -79,8 +91,8 @@ class VolumeHeader {
         return Util.getInt(bytes, 16);
     }
 
-    static void putVersion(final byte[] bytes) {
-        Util.putInt(bytes, 16, CURRENT_VERSION);
+    static void putVersion(final byte[] bytes, final int pageSize) {
+        Util.putInt(bytes, 16, pageSize >= LARGE_PAGE_SIZE ? LARGE_PAGE_VERSION : CURRENT_VERSION);
     }
 
     static int getPageSize(final byte[] bytes) {
@@ -325,6 +337,10 @@ class VolumeHeader {
                                 + " is not supported by Persistit version " + Persistit.version());
                     }
                     final int pageSize = getPageSize(bytes);
+                    if (pageSize >= LARGE_PAGE_SIZE && version < LARGE_PAGE_VERSION) {
+                        throw new CorruptVolumeException("Version " + version + " does not support page size "
+                                + pageSize);
+                    }
                     final long nextAvailablePage = getNextAvailablePage(bytes);
                     final long id = getId(bytes);
                     final long totalPages = file.length() / pageSize;
@@ -40,6 +40,8 @@ public class VolumeSpecification {
     private final static String ATTR_CREATE = "create";
     private final static String ATTR_READONLY = "readOnly";
     private final static String ATTR_CREATEONLY = "createOnly";
+    private final static String ATTR_MAPPED = "mapped";
+    private final static String ATTR_COMPRESSED = "compressed";
     private final static String ATTR_PAGE_SIZE = "pageSize";
 
     private final static String ATTR_INITIAL_SIZE = "initialSize";
@@ -55,6 +57,8 @@ public class VolumeSpecification {
     private boolean readOnly = false;
     private boolean create = false;
     private boolean createOnly = false;
+    private boolean mapped = false;
+    private boolean compressed = false;
     private boolean aliased = false;
 
     private int pageSize = -1;
@@ -84,7 +88,7 @@ public class VolumeSpecification {
      *            Name of volume. If <code>null</code> the file name in the
      *            specified <code>path</code> is used.
      * @param pageSize
-     *            Page size: one of 1024, 2048, 4096, 8192 or 6384
+     *            Page size: one of 1024, 2048, 4096, 8192, 16384 or 32768
      * @param initialPages
      *            Initial page count
      * @param maximumPages
@@ -141,13 +145,27 @@ public class VolumeSpecification {
      * <dd>Creates the volume, or throw a {@link VolumeAlreadyExistsException}
      * if it already exists.</dd>
      * 
+     * <dt><code>mapped</code></dt>
+     * <dd>Serve page reads from a read-only memory mapping of the volume file
+     * rather than through a read system call for each page. Intended for
+     * read-mostly volumes whose working set is larger than the buffer pool,
+     * where the operating system's page cache then acts as a second-level
+     * cache.</dd>
+     * 
+     * <dt><code>compressed</code></dt>
+     * <dd>Compress pages when they are written to the volume file. Each page
+     * keeps its position in the file, but only its compressed image is
+     * written and read, so a compressible page occupies less disk space and
+     * operating system page cache. Pages already written are readable
+     * whether or not this attribute is specified.</dd>
+     * 
      * <dt><code>temporary</code></dt>
      * <dd>Creates the a new, empty volume regardless of whether an existing
      * volume file already exists.</dd>
      * 
      * <dt><code>pageSize:<i>NNN</i></code></dt>
      * <dd>Specifies <i>NNN</i> as the volume's buffer size when creating a new
-     * volume. <i>NNN</i> must be 1024, 2048, 4096, 8192 or 16384.</dd>
+     * volume. <i>NNN</i> must be 1024, 2048, 4096, 8192, 16384 or 32768.</dd>
      * 
      * <dt><code>initialPages:<i>NNN</i></code></dt>
      * <dd><i>NNN</i> is the initial number of pages to be allocated when this
@@ -185,6 +203,10 @@ public class VolumeSpecification {
                     create = true;
                 } else if (ATTR_CREATEONLY.equals(attr)) {
                     createOnly = true;
+                } else if (ATTR_MAPPED.equals(attr)) {
+                    mapped = true;
+                } else if (ATTR_COMPRESSED.equals(attr)) {
+                    compressed = true;
                 } else if (ATTR_NAME.equals(attr) || ATTR_ALIAS.equals(attr)) {
                     final String valueString = innerTokenizer.nextToken().trim();
                     if (valueString != null && !valueString.isEmpty()) {
@@ -334,6 +356,22 @@ public class VolumeSpecification {
         this.readOnly = readOnly;
     }
 
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    public void setMapped(final boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(final boolean compressed) {
+        this.compressed = compressed;
+    }
+
     public boolean isAliased() {
         return aliased;
     }
@@ -443,6 +481,12 @@ public class VolumeSpecification {
         } else if (create) {
             sb.append(',').append(ATTR_CREATE);
         }
+        if (mapped) {
+            sb.append(',').append(ATTR_MAPPED);
+        }
+        if (compressed) {
+            sb.append(',').append(ATTR_COMPRESSED);
+        }
         return sb.toString();
     }
 
@@ -468,7 +512,7 @@ public class VolumeSpecification {
         }
         final VolumeSpecification v = (VolumeSpecification) object;
         return path.equals(v.path) && name.equals(v.name) && readOnly == v.readOnly && create == v.create
-                && createOnly == v.createOnly && aliased == v.aliased && pageSize == v.pageSize && version == v.version
+                && createOnly == v.createOnly && mapped == v.mapped && compressed == v.compressed && aliased == v.aliased && pageSize == v.pageSize && version == v.version
                 && id == v.id && initialPages == v.initialPages && initialSize == v.initialSize
                 && extensionPages == v.extensionPages && extensionSize == v.extensionSize
                 && maximumPages == v.maximumPages && maximumSize == v.maximumSize;
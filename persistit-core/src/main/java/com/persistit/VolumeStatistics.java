@@ -41,6 +41,10 @@ class VolumeStatistics {
     private final AtomicLong _traverseCounter = new AtomicLong();
     private final AtomicLong _storeCounter = new AtomicLong();
     private final AtomicLong _removeCounter = new AtomicLong();
+    private final AtomicLong _compressedPageBytes = new AtomicLong();
+    private final AtomicLong _compressedImageBytes = new AtomicLong();
+    private final AtomicLong _compressionNanos = new AtomicLong();
+    private final AtomicLong _decompressionNanos = new AtomicLong();
 
     /**
      * @return the count of physical disk read requests performed on this
@@ -99,6 +103,50 @@ class VolumeStatistics {
         return _removeCounter.get();
     }
 
+    /**
+     * @return the total size of the pages written to this <code>Volume</code>
+     *         since it was opened, if it has the <code>compressed</code>
+     *         attribute
+     */
+    public long getCompressedPageBytes() {
+        return _compressedPageBytes.get();
+    }
+
+    /**
+     * @return the number of bytes actually written for the pages counted by
+     *         {@link #getCompressedPageBytes()}, including pages that did not
+     *         compress and were written in full
+     */
+    public long getCompressedImageBytes() {
+        return _compressedImageBytes.get();
+    }
+
+    /**
+     * @return the ratio of {@link #getCompressedPageBytes()} to
+     *         {@link #getCompressedImageBytes()}, or 1.0 if no pages have been
+     *         written to a compressed volume
+     */
+    public double getCompressionRatio() {
+        final long image = _compressedImageBytes.get();
+        return image == 0 ? 1.0 : (double) _compressedPageBytes.get() / image;
+    }
+
+    /**
+     * @return the total time in nanoseconds spent compressing pages written
+     *         to this <code>Volume</code>
+     */
+    public long getCompressionTime() {
+        return _compressionNanos.get();
+    }
+
+    /**
+     * @return the total time in nanoseconds spent decompressing pages read
+     *         from this <code>Volume</code>
+     */
+    public long getDecompressionTime() {
+        return _decompressionNanos.get();
+    }
+
     /**
      * @return The system time at which this <code>Volume</code> was created
      */
@@ -161,6 +209,10 @@ class VolumeStatistics {
         _traverseCounter.set(0);
         _storeCounter.set(0);
         _readCounter.set(0);
+        _compressedPageBytes.set(0);
+        _compressedImageBytes.set(0);
+        _compressionNanos.set(0);
+        _decompressionNanos.set(0);
     }
 
     void bumpReadCounter() {
@@ -193,6 +245,16 @@ class VolumeStatistics {
         _removeCounter.incrementAndGet();
     }
 
+    void bumpCompression(final int pageSize, final int imageSize, final long nanos) {
+        _compressedPageBytes.addAndGet(pageSize);
+        _compressedImageBytes.addAndGet(imageSize);
+        _compressionNanos.addAndGet(nanos);
+    }
+
+    void bumpDecompression(final long nanos) {
+        _decompressionNanos.addAndGet(nanos);
+    }
+
     long getNextAvailablePage() {
         return _nextAvailablePage;
     }
@@ -149,6 +149,12 @@ abstract class VolumeStorage extends SharedResource {
 
     abstract void releaseHeadBuffer();
 
+    /**
+     * @return <code>true</code> if another thread currently holds the head
+     *         buffer, indicating that page allocation is contended
+     */
+    abstract boolean isHeadBufferContended();
+
     abstract void readPage(Buffer buffer) throws PersistitIOException, InvalidPageAddressException,
             VolumeClosedException, InUseException, PersistitInterruptedException;
 
@@ -158,6 +164,73 @@ abstract class VolumeStorage extends SharedResource {
 
     abstract long allocNewPage() throws PersistitException;
 
+    /**
+     * Extend the volume ahead of demand if its free space has fallen below a
+     * watermark. Called by the {@link VolumeExtender}; the default
+     * implementation does nothing.
+     * 
+     * @throws PersistitException
+     */
+    void extendAhead() throws PersistitException {
+    }
+
+    /**
+     * Release the pages at and above <code>pageCount</code> by making it the
+     * next available page address. Every such page must be free and absent
+     * from the garbage chain. The caller must hold the head buffer. The file
+     * is not made shorter until {@link #trim()} is called. The default
+     * implementation does nothing.
+     * 
+     * @param pageCount
+     *            new next available page address
+     * @return <code>true</code> if the pages were released, or
+     *         <code>false</code> if this kind of volume cannot shrink
+     * @throws PersistitException
+     */
+    boolean shrink(final long pageCount) throws PersistitException {
+        return false;
+    }
+
+    /**
+     * Truncate the backing file after the last allocated page. Called by
+     * {@link ShrinkTask} once a checkpoint has made the release of the pages
+     * durable. The default implementation does nothing.
+     * 
+     * @throws PersistitException
+     */
+    void trim() throws PersistitException {
+    }
+
+    /**
+     * Allocate a run of consecutive previously unused pages.
+     * 
+     * @param count
+     *            number of pages
+     * @return the address of the first page of the run, or zero if the volume
+     *         cannot supply <code>count</code> consecutive pages
+     * @throws PersistitException
+     */
+    abstract long allocNewPages(final int count) throws PersistitException;
+
+    /**
+     * Read a run of consecutive pages directly from the backing file into the
+     * supplied <code>ByteBuffer</code>, bypassing the buffer pool and the
+     * journal. The caller must have determined that the current version of
+     * each page is in the backing file, that is, that none of the pages is
+     * present in the buffer pool or in the journal.
+     * 
+     * @param page
+     *            address of the first page
+     * @param count
+     *            number of pages
+     * @param bb
+     *            buffer having a capacity of at least <code>count</code> pages
+     * @return <code>true</code> if the pages were read, or <code>false</code>
+     *         if this kind of volume does not support direct reads
+     * @throws PersistitException
+     */
+    abstract boolean readPages(final long page, final int count, final ByteBuffer bb) throws PersistitException;
+
     abstract void extend(final long pageAddr) throws PersistitException;
 
     abstract void flushMetaData() throws PersistitException;
@@ -267,6 +267,11 @@ class VolumeStorageT2 extends VolumeStorage {
     void releaseHeadBuffer() {
     }
 
+    @Override
+    boolean isHeadBufferContended() {
+        return false;
+    }
+
     @Override
     void readPage(final Buffer buffer) throws PersistitIOException, InvalidPageAddressException, VolumeClosedException,
             InUseException, PersistitInterruptedException {
@@ -353,6 +358,26 @@ class VolumeStorageT2 extends VolumeStorage {
         return page;
     }
 
+    @Override
+    synchronized long allocNewPages(final int count) throws PersistitException {
+        if (_nextAvailablePage + count > _maxPages) {
+            return 0;
+        }
+        final long page = _nextAvailablePage;
+        _nextAvailablePage += count;
+        _volume.getStatistics().setNextAvailablePage(_nextAvailablePage - 1);
+        return page;
+    }
+
+    /**
+     * Pages of a temporary volume are written to the backing file only when
+     * evicted from the buffer pool, so they are always read through the pool.
+     */
+    @Override
+    boolean readPages(final long page, final int count, final ByteBuffer bb) {
+        return false;
+    }
+
     @Override
     void flush() throws PersistitException {
 
@@ -54,8 +54,11 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
 
 import com.persistit.AlertMonitor.AlertLevel;
 import com.persistit.AlertMonitor.Event;
@@ -78,6 +81,18 @@ import com.persistit.exception.VolumeNotFoundException;
  */
 class VolumeStorageV2 extends VolumeStorage {
 
+    /**
+     * Size of each zero-filled write used by {@link #extendAhead()} to
+     * pre-allocate the file space of an extension
+     */
+    private final static int PREALLOCATE_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Size of each region of the volume file mapped by a volume having the
+     * <code>mapped</code> attribute; a multiple of every valid page size
+     */
+    private final static long MAPPED_SEGMENT_SIZE = 64 * 1024 * 1024;
+
     private volatile FileChannel _channel;
     private volatile FileLock _fileLock;
 
@@ -88,6 +103,25 @@ class VolumeStorageV2 extends VolumeStorage {
     private volatile boolean _opened;
     private volatile boolean _closed;
 
+    /**
+     * Guards <code>_extending</code>, which is set while one thread changes
+     * the size of the volume file, and changes to the mapped segments. Either
+     * the {@link VolumeExtender} or an allocating thread may extend the
+     * volume, but never both at once.
+     */
+    private final Object _extensionLock = new Object();
+    private boolean _extending;
+
+    /**
+     * Read-only mappings of successive MAPPED_SEGMENT_SIZE regions of the
+     * volume file, created on demand when the volume specification has the
+     * <code>mapped</code> attribute. A segment covering the end of the file is
+     * mapped only up to the current file size and is replaced when a page
+     * beyond it is read. Replaced by copy-on-write under
+     * <code>_extensionLock</code>.
+     */
+    private volatile ByteBuffer[] _mappedSegments = new ByteBuffer[0];
+
     /**
      * Generate a random positive (non-zero) long value to be used as a
      * validation of a Volume's identity.
@@ -304,6 +338,7 @@ class VolumeStorageV2 extends VolumeStorage {
             }
             _closed = true;
             _headBuffer = null;
+            unmapSegments();
             PersistitException pe = null;
             try {
                 final FileLock lock = _fileLock;
@@ -353,6 +388,7 @@ class VolumeStorageV2 extends VolumeStorage {
 
     @Override
     void truncate() throws PersistitException {
+        unmapSegments();
         _volume.setId(0);
         _volume.setId(generateId());
 
@@ -433,6 +469,12 @@ class VolumeStorageV2 extends VolumeStorage {
         _headBuffer.release();
     }
 
+    @Override
+    boolean isHeadBufferContended() {
+        final Buffer buffer = _headBuffer;
+        return buffer != null && !buffer.isAvailable(true);
+    }
+
     @Override
     void readPage(final Buffer buffer) throws PersistitIOException, InvalidPageAddressException, VolumeClosedException,
             PersistitInterruptedException, InUseException {
@@ -452,15 +494,21 @@ class VolumeStorageV2 extends VolumeStorage {
 
             try {
                 final ByteBuffer bb = buffer.getByteBuffer();
-                bb.position(0).limit(buffer.getBufferSize());
-                int read = 0;
-                while (read < buffer.getBufferSize()) {
-                    final long position = page * _volume.getStructure().getPageSize() + bb.position();
-                    final int bytesRead = _channel.read(bb, position);
-                    if (bytesRead <= 0) {
-                        throw new PersistitIOException("Unable to read bytes at position " + position + " in " + this);
-                    }
-                    read += bytesRead;
+                final int pageSize = buffer.getBufferSize();
+                final long position = page * _volume.getStructure().getPageSize();
+                /*
+                 * In a compressed volume the first block holds the entire
+                 * image of most pages.
+                 */
+                final int size = _volume.getSpecification().isCompressed() ? Math.min(PageCompressor.BLOCK_SIZE,
+                        pageSize) : pageSize;
+                bb.position(0).limit(size);
+                readFully(position, bb);
+                if (PageCompressor.isCompressed(buffer.getBytes(), 0)) {
+                    decompress(position, buffer.getBytes(), size, pageSize);
+                } else if (size < pageSize) {
+                    bb.limit(pageSize);
+                    readFully(position + size, bb);
                 }
                 _persistit.getIOMeter().chargeReadPageFromVolume(this._volume, buffer.getPageAddress(),
                         buffer.getBufferSize(), buffer.getIndex());
@@ -477,6 +525,48 @@ class VolumeStorageV2 extends VolumeStorage {
         }
     }
 
+    @Override
+    boolean readPages(final long page, final int count, final ByteBuffer bb) throws PersistitException {
+        if (_volume.getSpecification().isCompressed()) {
+            return false;
+        }
+        // non-exclusive claim here intended to conflict with exclusive claim in
+        // close and truncate
+        if (!claim(false)) {
+            throw new InUseException("Unable to acquire claim on " + this);
+        }
+        try {
+            if (page < 0 || page + count > _nextAvailablePage) {
+                throw new InvalidPageAddressException("Pages " + page + "-" + (page + count - 1) + " out of bounds [0-"
+                        + _nextAvailablePage + "]");
+            }
+            final int pageSize = _volume.getStructure().getPageSize();
+            try {
+                bb.position(0).limit(count * pageSize);
+                readMapped(page * pageSize, bb);
+                while (bb.hasRemaining()) {
+                    final long position = page * pageSize + bb.position();
+                    final int bytesRead = _channel.read(bb, position);
+                    if (bytesRead <= 0) {
+                        throw new PersistitIOException("Unable to read bytes at position " + position + " in " + this);
+                    }
+                }
+                for (int index = 0; index < count; index++) {
+                    _persistit.getIOMeter().chargeReadPageFromVolume(this._volume, page + index, pageSize, -1);
+                    _volume.getStatistics().bumpReadCounter();
+                }
+                return true;
+            } catch (final IOException ioe) {
+                _persistit.getAlertMonitor().post(
+                        new Event(AlertLevel.ERROR, _persistit.getLogBase().readException, ioe, _volume, page, -1),
+                        AlertMonitor.READ_PAGE_CATEGORY);
+                throw new PersistitIOException(ioe);
+            }
+        } finally {
+            release();
+        }
+    }
+
     @Override
     void writePage(final Buffer buffer) throws PersistitException {
         /*
@@ -506,7 +596,12 @@ class VolumeStorageV2 extends VolumeStorage {
         }
 
         try {
-            _channel.write(bb, page * _volume.getStructure().getPageSize());
+            final long position = page * _volume.getStructure().getPageSize();
+            if (_volume.getSpecification().isCompressed() && page != 0) {
+                writeCompressed(bb, position);
+            } else {
+                _channel.write(bb, position);
+            }
         } catch (final IOException ioe) {
             _persistit.getAlertMonitor().post(
                     new Event(AlertLevel.ERROR, _persistit.getLogBase().writeException, ioe, _volume, page),
@@ -517,22 +612,176 @@ class VolumeStorageV2 extends VolumeStorage {
 
     @Override
     long allocNewPage() throws PersistitException {
-        long page = -1;
-        claimHeadBuffer();
-        try {
-            for (;;) {
+        for (;;) {
+            claimHeadBuffer();
+            try {
+                while (_nextAvailablePage >= _extendedPageCount && extend()) {
+                    // extended synchronously
+                }
                 if (_nextAvailablePage < _extendedPageCount) {
-                    page = _nextAvailablePage++;
+                    final long page = _nextAvailablePage++;
                     _volume.getStatistics().setNextAvailablePage(page);
-                    break;
+                    flushMetaData();
+                    return page;
                 }
-                extend();
+            } finally {
+                releaseHeadBuffer();
+                requestExtension();
+            }
+            awaitExtension();
+        }
+    }
+
+    @Override
+    long allocNewPages(final int count) throws PersistitException {
+        for (;;) {
+            claimHeadBuffer();
+            try {
+                final long limit = _nextAvailablePage + count;
+                if (limit > _volume.getSpecification().getMaximumPages()
+                        || (limit > _extendedPageCount && _volume.getSpecification().getExtensionPages() <= 0)) {
+                    return 0;
+                }
+                while (limit > _extendedPageCount && extend()) {
+                    // extended synchronously
+                }
+                if (limit <= _extendedPageCount) {
+                    final long page = _nextAvailablePage;
+                    _nextAvailablePage += count;
+                    _volume.getStatistics().setNextAvailablePage(_nextAvailablePage - 1);
+                    flushMetaData();
+                    return page;
+                }
+            } finally {
+                releaseHeadBuffer();
+                requestExtension();
+            }
+            awaitExtension();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the number of pages by which the volume
+     *         file extends beyond the last allocated page has fallen below
+     *         half the volume's extension size, and the volume can be
+     *         extended
+     */
+    boolean needsExtension() {
+        final VolumeSpecification spec = _volume.getSpecification();
+        final long extensionPages = spec.getExtensionPages();
+        return _opened && !_closed && !isReadOnly() && extensionPages > 0
+                && _extendedPageCount < spec.getMaximumPages()
+                && _extendedPageCount - _nextAvailablePage < Math.max(1, extensionPages / 2);
+    }
+
+    private void requestExtension() {
+        if (needsExtension()) {
+            _persistit.getVolumeExtender().kick();
+        }
+    }
+
+    /**
+     * Extend the volume by its extension size if its headroom has fallen
+     * below the watermark defined by {@link #needsExtension()}. The new file
+     * space is pre-allocated by writing zeros so that later page writes do not
+     * need to allocate file system blocks, except in a compressed volume whose
+     * file is left sparse. The file is not forced here: the
+     * extended page count is derived from the file size when the volume is
+     * opened, and the volume file is forced before the journal files needed to
+     * recover it are deleted. No page is allocated in the new
+     * space until the file has been written, and allocating threads are not
+     * blocked unless the volume has no remaining headroom.
+     */
+    @Override
+    void extendAhead() throws PersistitException {
+        if (!needsExtension() || !beginExtension()) {
+            return;
+        }
+        try {
+            /*
+             * Non-exclusive claim here intended to conflict with exclusive
+             * claim in close and truncate
+             */
+            if (!claim(false)) {
+                throw new InUseException("Unable to acquire claim on " + this);
+            }
+            try {
+                if (_closed || !needsExtension()) {
+                    return;
+                }
+                final VolumeSpecification spec = _volume.getSpecification();
+                final long base = Math.max(_extendedPageCount, _nextAvailablePage);
+                final long pageCount = Math.min(base + spec.getExtensionPages(), spec.getMaximumPages());
+                if (pageCount <= _extendedPageCount) {
+                    return;
+                }
+                preallocate(base, pageCount);
+                /*
+                 * The head buffer is not claimed here: the new page count is
+                 * recorded in the volume header by the next allocation.
+                 */
+                _extendedPageCount = pageCount;
+                _volume.getStatistics().setLastExtensionTime(System.currentTimeMillis());
+            } finally {
+                release();
+            }
+        } finally {
+            endExtension();
+        }
+    }
+
+    @Override
+    boolean shrink(final long pageCount) throws PersistitException {
+        assert _headBuffer.isOwnedAsWriterByMe();
+        if (pageCount < 1 || pageCount > _nextAvailablePage) {
+            throw new IllegalArgumentException("Invalid page count " + pageCount + " for " + this);
+        }
+        _nextAvailablePage = pageCount;
+        _volume.getStatistics().setNextAvailablePage(pageCount - 1);
+        flushMetaData();
+        return true;
+    }
+
+    /**
+     * Truncate the volume file after the last allocated page. The exclusive
+     * claim excludes {@link #readPage(Buffer)} and {@link #extendAhead()},
+     * and mapped segments are discarded so that no mapping extends past the
+     * end of the file. The volume is extended again as usual when new pages
+     * are allocated.
+     */
+    @Override
+    void trim() throws PersistitException {
+        claimHeadBuffer();
+        try {
+            if (!claim(true)) {
+                throw new InUseException("Unable to acquire claim on " + this);
+            }
+            try {
+                final long pageCount = _nextAvailablePage;
+                if (pageCount >= _extendedPageCount) {
+                    return;
+                }
+                final long newSize = pageCount * _volume.getStructure().getPageSize();
+                long currentSize = -1;
+                try {
+                    currentSize = _channel.size();
+                    unmapSegments();
+                    _channel.truncate(newSize);
+                    _persistit.getLogBase().truncateNormal.log(this, currentSize, newSize);
+                } catch (final IOException ioe) {
+                    _persistit.getAlertMonitor().post(
+                            new Event(AlertLevel.ERROR, _persistit.getLogBase().truncateException, ioe,
+                                    _volume.getName(), currentSize, newSize), AlertMonitor.EXTEND_VOLUME_CATEGORY);
+                    throw new PersistitIOException(ioe);
+                }
+                _extendedPageCount = pageCount;
+                flushMetaData();
+            } finally {
+                release();
             }
-            flushMetaData();
         } finally {
             releaseHeadBuffer();
         }
-        return page;
     }
 
     @Override
@@ -561,7 +810,9 @@ class VolumeStorageV2 extends VolumeStorage {
     @Override
     void extend(final long pageAddr) throws PersistitException {
         if (pageAddr >= _extendedPageCount) {
-            extend();
+            while (pageAddr >= _extendedPageCount && !extend()) {
+                awaitExtension();
+            }
             flush();
         }
     }
@@ -581,7 +832,7 @@ class VolumeStorageV2 extends VolumeStorage {
     private void initMetaData(final byte[] bytes) {
         final VolumeStructure struc = _volume.getStructure();
         putSignature(bytes);
-        putVersion(bytes);
+        putVersion(bytes, struc.getPageSize());
         putPageSize(bytes, struc.getPageSize());
         putId(bytes, _volume.getId());
         changeNextAvailablePage(bytes, _nextAvailablePage);
@@ -620,15 +871,225 @@ class VolumeStorageV2 extends VolumeStorage {
         return changed;
     }
 
-    private void extend() throws PersistitException {
+    /**
+     * Extend the volume synchronously by its extension size.
+     * 
+     * @return <code>true</code> if the volume was extended, or
+     *         <code>false</code> if another thread is currently extending it
+     *         and the caller should {@link #awaitExtension()}
+     * @throws VolumeFullException
+     *             if the volume cannot be extended
+     */
+    private boolean extend() throws PersistitException {
         final long maximumPages = _volume.getSpecification().getMaximumPages();
         final long extensionPages = _volume.getSpecification().getExtensionPages();
         if (_extendedPageCount >= maximumPages || extensionPages <= 0) {
             throw new VolumeFullException(this + " is full: " + _extendedPageCount + " pages");
         }
-        // Do not extend past maximum pages
-        final long pageCount = Math.min(_extendedPageCount + extensionPages, maximumPages);
-        resize(pageCount);
+        if (!beginExtension()) {
+            return false;
+        }
+        try {
+            // Do not extend past maximum pages
+            final long pageCount = Math.min(_extendedPageCount + extensionPages, maximumPages);
+            resize(pageCount);
+        } finally {
+            endExtension();
+        }
+        return true;
+    }
+
+    private boolean beginExtension() {
+        synchronized (_extensionLock) {
+            if (_extending) {
+                return false;
+            }
+            _extending = true;
+            return true;
+        }
+    }
+
+    private void endExtension() {
+        synchronized (_extensionLock) {
+            _extending = false;
+            _extensionLock.notifyAll();
+        }
+    }
+
+    private void awaitExtension() throws PersistitInterruptedException {
+        synchronized (_extensionLock) {
+            while (_extending) {
+                try {
+                    _extensionLock.wait(Persistit.SHORT_DELAY);
+                } catch (final InterruptedException e) {
+                    throw new PersistitInterruptedException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the remaining bytes of the supplied ByteBuffer from the volume
+     * file, starting at file position <code>position</code>.
+     */
+    private void readFully(final long position, final ByteBuffer bb) throws IOException, PersistitIOException {
+        final int start = bb.position();
+        if (readMapped(position, bb)) {
+            return;
+        }
+        while (bb.hasRemaining()) {
+            final long at = position + bb.position() - start;
+            final int bytesRead = _channel.read(bb, at);
+            if (bytesRead <= 0) {
+                throw new PersistitIOException("Unable to read bytes at position " + at + " in " + this);
+            }
+        }
+    }
+
+    /**
+     * Write the compressed image of the page in the remaining bytes of the
+     * supplied ByteBuffer, or the page itself if it does not compress well
+     * enough to save space.
+     */
+    private void writeCompressed(final ByteBuffer bb, final long position) throws IOException {
+        final PageCompressor compressor = _persistit.getThreadLocalPageCompressor();
+        final int pageSize = bb.remaining();
+        final long start = System.nanoTime();
+        final int length = compressor.compress(bb);
+        final long elapsed = System.nanoTime() - start;
+        if (length > 0) {
+            _channel.write(ByteBuffer.wrap(compressor.getImage(), 0, length), position);
+            bb.position(bb.limit());
+        } else {
+            _channel.write(bb, position);
+        }
+        _volume.getStatistics().bumpCompression(pageSize, length > 0 ? length : pageSize, elapsed);
+    }
+
+    /**
+     * Decompress a compressed page image into <code>bytes</code>. The first
+     * <code>size</code> bytes of the image, read from file position
+     * <code>position</code>, are already in <code>bytes</code>; the remainder
+     * is read from the file.
+     */
+    private void decompress(final long position, final byte[] bytes, final int size, final int pageSize)
+            throws IOException, PersistitIOException {
+        final PageCompressor compressor = _persistit.getThreadLocalPageCompressor();
+        final byte[] image = compressor.getImage();
+        final int length = PageCompressor.imageLength(bytes, 0);
+        if (length > pageSize) {
+            throw new IOException("Invalid compressed page length " + length + " at position " + position + " in "
+                    + this);
+        }
+        System.arraycopy(bytes, 0, image, 0, Math.min(size, length));
+        if (length > size) {
+            readFully(position + size, ByteBuffer.wrap(image, size, length - size));
+        }
+        final long start = System.nanoTime();
+        try {
+            compressor.decompress(bytes, 0, pageSize);
+        } catch (final DataFormatException e) {
+            throw new IOException("Invalid compressed page at position " + position + " in " + this, e);
+        }
+        _volume.getStatistics().bumpDecompression(System.nanoTime() - start);
+    }
+
+    /**
+     * Copy bytes from a read-only mapping of the volume file into the remaining
+     * space of the supplied ByteBuffer, if the volume is mapped and the bytes
+     * lie within a single mapped segment. Pages written through the channel
+     * are visible in the mapping because both are views of the operating
+     * system's page cache.
+     * 
+     * @return <code>true</code> if the bytes were copied, or
+     *         <code>false</code> if they must be read from the channel
+     */
+    private boolean readMapped(final long position, final ByteBuffer bb) throws IOException {
+        if (!_volume.getSpecification().isMapped()) {
+            return false;
+        }
+        final int length = bb.remaining();
+        final int index = (int) (position / MAPPED_SEGMENT_SIZE);
+        final int offset = (int) (position % MAPPED_SEGMENT_SIZE);
+        if (offset + length > MAPPED_SEGMENT_SIZE) {
+            return false;
+        }
+        final ByteBuffer segment = mappedSegment(index, offset + length);
+        if (segment == null) {
+            return false;
+        }
+        final ByteBuffer source = segment.duplicate();
+        source.limit(offset + length).position(offset);
+        bb.put(source);
+        return true;
+    }
+
+    private ByteBuffer mappedSegment(final int index, final int size) throws IOException {
+        ByteBuffer[] segments = _mappedSegments;
+        if (index < segments.length && segments[index] != null && segments[index].capacity() >= size) {
+            return segments[index];
+        }
+        synchronized (_extensionLock) {
+            segments = _mappedSegments;
+            if (index < segments.length && segments[index] != null && segments[index].capacity() >= size) {
+                return segments[index];
+            }
+            final long start = index * MAPPED_SEGMENT_SIZE;
+            final long mappedSize = Math.min(MAPPED_SEGMENT_SIZE, _channel.size() - start);
+            if (mappedSize < size) {
+                return null;
+            }
+            final ByteBuffer segment = _channel.map(MapMode.READ_ONLY, start, mappedSize);
+            segments = Arrays.copyOf(segments, Math.max(segments.length, index + 1));
+            segments[index] = segment;
+            _mappedSegments = segments;
+            return segment;
+        }
+    }
+
+    /**
+     * Discard all mapped segments. Called while the volume is exclusively
+     * claimed before the file is truncated or closed so that no mapping
+     * extends past the end of the file.
+     */
+    private void unmapSegments() {
+        synchronized (_extensionLock) {
+            _mappedSegments = new ByteBuffer[0];
+        }
+    }
+
+    /**
+     * Write zeros to the file from page <code>from</code>, or from the current
+     * end of file if that is larger, up to page <code>to</code>.
+     */
+    private void preallocate(final long from, final long to) throws PersistitException {
+        final int pageSize = _volume.getStructure().getPageSize();
+        final long end = to * pageSize;
+        long currentSize = -1;
+        try {
+            currentSize = _channel.size();
+            long position = Math.max(from * pageSize, currentSize);
+            if (_volume.getSpecification().isCompressed()) {
+                /*
+                 * Leave the file sparse so that the unwritten remainder of
+                 * each compressed page's slot occupies no disk space.
+                 */
+                position = Math.max(position, end - 1);
+            }
+            final ByteBuffer bb = ByteBuffer.allocate((int) Math.min(PREALLOCATE_CHUNK_SIZE, Math.max(0, end
+                    - position)));
+            while (position < end) {
+                bb.clear();
+                bb.limit((int) Math.min(bb.capacity(), end - position));
+                position += _channel.write(bb, position);
+            }
+            _persistit.getLogBase().extendNormal.log(this, currentSize, end);
+        } catch (final IOException ioe) {
+            _persistit.getAlertMonitor().post(
+                    new Event(AlertLevel.ERROR, _persistit.getLogBase().extendException, ioe, _volume.getName(),
+                            currentSize, end), AlertMonitor.EXTEND_VOLUME_CATEGORY);
+            throw new PersistitIOException(ioe);
+        }
     }
 
     private void resize(final long pageCount) throws PersistitException {
@@ -644,7 +1105,6 @@ class VolumeStorageV2 extends VolumeStorage {
                 final ByteBuffer bb = ByteBuffer.allocate(1);
                 bb.position(0).limit(1);
                 _channel.write(bb, newSize - 1);
-                _channel.force(true);
                 _persistit.getLogBase().extendNormal.log(this, currentSize, newSize);
             }
 
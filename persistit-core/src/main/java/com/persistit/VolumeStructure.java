@@ -18,6 +18,7 @@ package com.persistit;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +29,7 @@ import com.persistit.exception.InUseException;
 import com.persistit.exception.PersistitException;
 import com.persistit.exception.PersistitInterruptedException;
 import com.persistit.util.Debug;
+import com.persistit.util.Util;
 
 class VolumeStructure {
     /**
@@ -43,6 +45,18 @@ class VolumeStructure {
 
     final static long INVALID_PAGE_ADDRESS = -1;
 
+    /**
+     * Number of new pages reserved at once to refill an
+     * {@link AllocationExtent}
+     */
+    final static int ALLOCATION_EXTENT_PAGES = 8;
+
+    /**
+     * Number of {@link AllocationExtent}s; threads are assigned to them by
+     * thread id. Must be a power of two.
+     */
+    final static int ALLOCATION_EXTENT_STRIPES = 16;
+
     private final Persistit _persistit;
     private final Volume _volume;
     private final int _pageSize;
@@ -54,6 +68,24 @@ class VolumeStructure {
     private final Map<String, WeakReference<Tree>> _treeNameHashMap = new HashMap<String, WeakReference<Tree>>();
     private Tree _directoryTree;
 
+    private final AllocationExtent[] _allocationExtents = new AllocationExtent[ALLOCATION_EXTENT_STRIPES];
+
+    /**
+     * A run of new pages reserved from the {@link VolumeStorage} from which
+     * {@link VolumeStructure#allocPage()} hands out pages without claiming the
+     * head buffer. An extent is refilled only when a thread finds the head
+     * buffer already claimed by another thread, so that uncontended
+     * allocation proceeds one page at a time as before, while threads
+     * splitting pages concurrently take {@link #ALLOCATION_EXTENT_PAGES} at a
+     * time and update the volume header once per extent. Pages remaining in
+     * an extent are returned to the garbage chain when Persistit is closed
+     * normally; after a crash they are not recovered.
+     */
+    private static class AllocationExtent {
+        private long _next;
+        private long _end;
+    }
+
     static class Chain {
         final long _left;
         final long _right;
@@ -84,6 +116,9 @@ class VolumeStructure {
         _volume = volume;
         _pageSize = pageSize;
         _pool = persistit.getBufferPool(_pageSize);
+        for (int index = 0; index < ALLOCATION_EXTENT_STRIPES; index++) {
+            _allocationExtents[index] = new AllocationExtent();
+        }
     }
 
     void init(final long directoryRootPage, final long garbageRootPage) throws PersistitException {
@@ -106,6 +141,7 @@ class VolumeStructure {
 
     void close() throws PersistitInterruptedException {
         truncate();
+        discardAllocationExtents();
         _directoryRootPage = 0;
         _garbageRoot = 0;
         _directoryTree = null;
@@ -122,6 +158,7 @@ class VolumeStructure {
             }
         }
         _treeNameHashMap.clear();
+        discardAllocationExtents();
         _persistit.getJournalManager().truncate(_volume, timestamp);
     }
 
@@ -438,6 +475,36 @@ class VolumeStructure {
      *         has a writer claim on it.
      */
     Buffer allocPage() throws PersistitException {
+        Buffer buffer = null;
+        /*
+         * Avoid claiming the head buffer when there is no garbage chain to
+         * consult. A garbage root set concurrently is simply used by a later
+         * allocation.
+         */
+        if (getGarbageRoot() != 0) {
+            buffer = allocGarbagePage();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        /*
+         * If there was no garbage chain above then we need to allocate a new
+         * page from the volume.
+         */
+        final long page = allocNewPageAddress();
+        buffer = _pool.get(_volume, page, true, false);
+        buffer.init(Buffer.PAGE_TYPE_UNALLOCATED);
+        Debug.$assert0.t(buffer.getPageAddress() != 0);
+        return buffer;
+    }
+
+    /**
+     * Allocate the first page of the garbage chain.
+     * 
+     * @return a Buffer containing the allocated page with a writer claim on
+     *         it, or <code>null</code> if the garbage chain is empty
+     */
+    private Buffer allocGarbagePage() throws PersistitException {
         Buffer buffer = null;
         _volume.getStorage().claimHeadBuffer();
         try {
@@ -505,15 +572,195 @@ class VolumeStructure {
         } finally {
             _volume.getStorage().releaseHeadBuffer();
         }
-        /*
-         * If there was no garbage chain above then we need to allocate a new
-         * page from the volume.
-         */
-        final long page = _volume.getStorage().allocNewPage();
-        buffer = _pool.get(_volume, page, true, false);
-        buffer.init(Buffer.PAGE_TYPE_UNALLOCATED);
-        Debug.$assert0.t(buffer.getPageAddress() != 0);
-        return buffer;
+        return null;
+    }
+
+    /**
+     * Allocate the address of a new page from the calling thread's
+     * {@link AllocationExtent}, refilling the extent if the head buffer is
+     * contended, or else directly from the {@link VolumeStorage}.
+     */
+    private long allocNewPageAddress() throws PersistitException {
+        final AllocationExtent extent = _allocationExtents[(int) Thread.currentThread().getId()
+                & (ALLOCATION_EXTENT_STRIPES - 1)];
+        synchronized (extent) {
+            if (extent._next < extent._end) {
+                return extent._next++;
+            }
+            final VolumeStorage storage = _volume.getStorage();
+            if (storage.isHeadBufferContended()) {
+                final long page = storage.allocNewPages(ALLOCATION_EXTENT_PAGES);
+                if (page != 0) {
+                    extent._next = page + 1;
+                    extent._end = page + ALLOCATION_EXTENT_PAGES;
+                    return page;
+                }
+            }
+            return storage.allocNewPage();
+        }
+    }
+
+    /**
+     * Return pages remaining in {@link AllocationExtent}s to the garbage
+     * chain. Called when Persistit is closed normally so that these pages are
+     * not lost.
+     */
+    void releaseAllocationExtents() throws PersistitException {
+        for (final AllocationExtent extent : _allocationExtents) {
+            final long from;
+            final long to;
+            synchronized (extent) {
+                from = extent._next;
+                to = extent._end;
+                extent._next = 0;
+                extent._end = 0;
+            }
+            if (from < to) {
+                long chain = 0;
+                for (long page = to - 1; page >= from; page--) {
+                    chain = chainUnusedPage(page, chain);
+                }
+                deallocateGarbageChain(chain, 0);
+            }
+        }
+    }
+
+    /**
+     * Initialize a page that is not in use so that it precedes
+     * <code>chain</code> in a chain of pages to be deallocated.
+     * 
+     * @return the page address
+     */
+    private long chainUnusedPage(final long page, final long chain) throws PersistitException {
+        final Buffer buffer = _pool.get(_volume, page, true, false);
+        buffer.init(Buffer.PAGE_TYPE_LONG_RECORD);
+        buffer.setRightSibling(chain);
+        buffer.setDirtyAtTimestamp(_persistit.getTimestampAllocator().updateTimestamp());
+        buffer.release();
+        return page;
+    }
+
+    /**
+     * Remove every page from the garbage chain, setting the bit for its
+     * address in <code>free</code>. Used by {@link ShrinkTask} so that free
+     * pages near the end of the volume are not reallocated while it relocates
+     * live pages. The pages are returned by {@link #shrink(BitSet)} or
+     * {@link #deallocatePages(BitSet)}; like the pages of an
+     * {@link AllocationExtent}, they are lost after a crash.
+     * 
+     * @param free
+     *            Set of free page addresses
+     * @return the number of pages removed
+     * @throws PersistitException
+     */
+    long drainGarbage(final BitSet free) throws PersistitException {
+        long count = 0;
+        while (getGarbageRoot() != 0) {
+            final Buffer buffer = allocGarbagePage();
+            if (buffer == null) {
+                break;
+            }
+            free.set((int) buffer.getPageAddress());
+            releaseBuffer(buffer);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Return the pages whose addresses are set in <code>pages</code> to the
+     * garbage chain.
+     * 
+     * @param pages
+     *            Set of free page addresses
+     * @throws PersistitException
+     */
+    void deallocatePages(final BitSet pages) throws PersistitException {
+        long chain = 0;
+        for (int page = pages.length() - 1; page > 0; page = pages.previousSetBit(page - 1)) {
+            chain = chainUnusedPage(page, chain);
+        }
+        if (chain != 0) {
+            deallocateGarbageChain(chain, 0);
+        }
+    }
+
+    /**
+     * Release the free pages at the end of the volume. While the head buffer
+     * is claimed, no page can be allocated or deallocated; pages deallocated
+     * since {@link #drainGarbage(BitSet)} are first removed from the garbage
+     * chain, and then the new end of the volume is the lowest page address
+     * above which every page is free. Buffers and journal page images holding
+     * the released pages are discarded. The remaining pages in
+     * <code>free</code> are returned to the garbage chain. The volume file
+     * keeps its length until {@link VolumeStorage#trim()} is called.
+     * 
+     * @param free
+     *            Set of free page addresses. It is cleared before the
+     *            remaining pages are returned to the garbage chain; if this
+     *            method throws an exception while it is still non-empty,
+     *            the caller must deallocate its pages.
+     * @return the next available page address
+     * @throws PersistitException
+     */
+    long shrink(final BitSet free) throws PersistitException {
+        final VolumeStorage storage = _volume.getStorage();
+        long end;
+        storage.claimHeadBuffer();
+        try {
+            drainGarbage(free);
+            final long next = storage.getNextAvailablePage();
+            end = next;
+            while (end > 1 && free.get((int) (end - 1))) {
+                end--;
+            }
+            if (end < next && storage.shrink(end)) {
+                free.clear((int) end, (int) next);
+                while (!_pool.invalidate(_volume, end, next, false)) {
+                    Util.spinSleep();
+                }
+                _persistit.getJournalManager().invalidatePages(_volume, end);
+            } else {
+                end = next;
+            }
+        } finally {
+            storage.releaseHeadBuffer();
+        }
+        //
+        // Take the remaining pages from the caller's set first so that they
+        // are deallocated only once even if deallocation fails part way.
+        //
+        final BitSet remaining = (BitSet) free.clone();
+        free.clear();
+        deallocatePages(remaining);
+        return end;
+    }
+
+    private void discardAllocationExtents() {
+        for (final AllocationExtent extent : _allocationExtents) {
+            synchronized (extent) {
+                extent._next = 0;
+                extent._end = 0;
+            }
+        }
+    }
+
+    /**
+     * Allocate a run of consecutive previously unused pages for a long record.
+     * Pages on the garbage chain are always reused first, so this method
+     * allocates an extent only when the garbage chain is empty.
+     * 
+     * @param count
+     *            number of pages
+     * @return the address of the first page of the extent, or zero if the
+     *         pages should instead be allocated individually by
+     *         {@link #allocPage()}
+     */
+    long allocPageExtent(final int count) throws PersistitException {
+        if (getGarbageRoot() != 0) {
+            return 0;
+        }
+        return _volume.getStorage().allocNewPages(count);
     }
 
     void deallocateGarbageChain(final long left, final long right) throws PersistitException {
@@ -191,6 +191,12 @@ public class LogBase {
     @Message("ERROR|IOException %s while extending %s: old length=%,d, new length=%,d")
     public final LogItem extendException = PersistitLogMessage.empty();
 
+    @Message("DEBUG|Truncating %s: old length=%,d, new length=%,d")
+    public final LogItem truncateNormal = PersistitLogMessage.empty();
+
+    @Message("ERROR|IOException %s while truncating %s: old length=%,d, new length=%,d")
+    public final LogItem truncateException = PersistitLogMessage.empty();
+
     @Message("DEBUG|Management RMI Server registered on %s")
     public final LogItem rmiServerRegistered = PersistitLogMessage.empty();
 
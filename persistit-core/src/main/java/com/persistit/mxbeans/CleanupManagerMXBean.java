@@ -20,7 +20,8 @@ import javax.management.MXBean;
 
 /**
  * Management information about the CLEANUP_MANAGER, a thread that performs
- * background pruning and other cleanup tasks.
+ * background pruning and other cleanup tasks, and the CLEANUP_WORKER threads
+ * that assist it.
  */
 @MXBean
 public interface CleanupManagerMXBean {
@@ -61,6 +62,27 @@ public interface CleanupManagerMXBean {
     @Description("The number ofCleanupAction items currently enqueued")
     public long getEnqueuedCount();
 
+    /**
+     * @return the number of <code>CleanupAction</code>s not enqueued because
+     *         an equal action was already enqueued, since Persistit started.
+     */
+    @Description("The number of CleanupAction items not enqueued because an equal item was already enqueued")
+    public long getDuplicateCount();
+
+    /**
+     * @return the largest number of <code>CleanupAction</code>s observed in a
+     *         single queue since Persistit started. A value approaching the
+     *         queue capacity indicates that cleanup is falling behind.
+     */
+    @Description("The largest number of CleanupAction items observed in a single queue since Persistit started")
+    public long getMaximumEnqueuedCount();
+
+    /**
+     * @return the number of threads performing <code>CleanupAction</code>s
+     */
+    @Description("The number of threads performing CleanupAction items")
+    public int getCleanupThreadCount();
+
     /**
      * If there are any enqueued <code>CleanupAction</code>s, take some of them
      * from the queue and attempt to complete them.
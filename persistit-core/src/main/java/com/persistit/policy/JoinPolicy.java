@@ -42,6 +42,8 @@ public class JoinPolicy {
 
     private final static JoinPolicy[] POLICIES = { LEFT_BIAS, RIGHT_BIAS, EVEN_BIAS };
 
+    private final static int REBALANCE_INTERVAL_DIVISOR = 16;
+
     public static JoinPolicy forName(final String name) {
         for (final JoinPolicy policy : POLICIES) {
             if (policy.toString().equalsIgnoreCase(name)) {
@@ -120,6 +122,24 @@ public class JoinPolicy {
         return fitness;
     }
 
+    /**
+     * Determines the width of the rebalance interval. The first key of the
+     * right page becomes the separator posted to the parent index page. The
+     * caller chooses the candidate having the shortest such key from among
+     * those whose fitness is within the value returned by this method of the
+     * best fitness. This implementation returns 1/16th of the capacity for
+     * {@link #EVEN_BIAS}, and 0 for the policies meant to fill one sibling
+     * completely.
+     * 
+     * @param capacity
+     *            The total space available in a page (less overhead)
+     * @return the maximum amount by which the fitness of the chosen rebalance
+     *         location may fall short of the best fitness
+     */
+    public int rebalanceInterval(final int capacity) {
+        return _bias == 0 ? capacity / REBALANCE_INTERVAL_DIVISOR : 0;
+    }
+
     /**
      * Determines whether two pages will be permitted to be rejoined during a
      * delete operation.
@@ -69,6 +69,12 @@ public abstract class SplitPolicy {
 
     private final static float PACK_SHOULDER = 0.9f;
 
+    /**
+     * Default width of the split interval, as a fraction of page capacity.
+     * See {@link #splitInterval(int, Sequence)}.
+     */
+    private final static int SPLIT_INTERVAL_DIVISOR = 16;
+
     public static SplitPolicy forName(final String name) {
         for (final SplitPolicy policy : POLICIES) {
             if (policy.toString().equalsIgnoreCase(name)) {
@@ -119,6 +125,36 @@ public abstract class SplitPolicy {
     public abstract int splitFit(Buffer buffer, int kbOffset, int insertAt, boolean replace, int leftSize,
             int rightSize, int currentSize, int virtualSize, int capacity, int splitBest, Sequence sequence);
 
+    /**
+     * <p>
+     * Determines the width of the split interval. The first key of the right
+     * sibling is posted to the parent index page as the separator between the
+     * two siblings, so a shorter key leaves more room in the parent page and
+     * increases the fan-out of the tree. After evaluating
+     * {@link #splitFit(Buffer, int, int, boolean, int, int, int, int, int, int, Sequence)}
+     * for each candidate location, the caller chooses the candidate having
+     * the shortest first right key from among those whose fitness is within
+     * the value returned by this method of the best fitness. When all keys
+     * have the same length, this is the candidate with the best fitness.
+     * </p>
+     * <p>
+     * This implementation returns 1/16th of the capacity. A policy that
+     * requires the split to occur at precisely the location it computes
+     * should return 0; {@link #LEFT_BIAS} and {@link #RIGHT_BIAS} do so
+     * because they are meant to fill one sibling completely.
+     * </p>
+     * 
+     * @param capacity
+     *            Actual available bytes in a page.
+     * @param sequence
+     *            current sequential insert state
+     * @return the maximum amount by which the fitness of the chosen split
+     *         location may fall short of the best fitness
+     */
+    public int splitInterval(final int capacity, final Sequence sequence) {
+        return capacity / SPLIT_INTERVAL_DIVISOR;
+    }
+
     private static class Left extends SplitPolicy {
 
         @Override
@@ -134,6 +170,11 @@ public abstract class SplitPolicy {
             return leftSize;
         }
 
+        @Override
+        public int splitInterval(final int capacity, final Sequence sequence) {
+            return 0;
+        }
+
         @Override
         public String toString() {
             return "LEFT";
@@ -154,6 +195,11 @@ public abstract class SplitPolicy {
             return rightSize;
         }
 
+        @Override
+        public int splitInterval(final int capacity, final Sequence sequence) {
+            return 0;
+        }
+
         @Override
         public String toString() {
             return "RIGHT";
@@ -295,6 +341,14 @@ public abstract class SplitPolicy {
                     virtualSize, capacity, splitInfo, sequence);
         }
 
+        @Override
+        public int splitInterval(final int capacity, final Sequence sequence) {
+            //
+            // Sequential inserts depend on splitting at the insertion point.
+            //
+            return sequence == Sequence.NONE ? super.splitInterval(capacity, sequence) : 0;
+        }
+
         @Override
         public String toString() {
             return "PACK";
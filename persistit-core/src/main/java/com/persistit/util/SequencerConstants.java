@@ -103,4 +103,15 @@ public interface SequencerConstants {
             array(ACCUMULATOR_CHECKPOINT_B), array(ACCUMULATOR_CHECKPOINT_A, ACCUMULATOR_CHECKPOINT_C),
             array(ACCUMULATOR_CHECKPOINT_A, ACCUMULATOR_CHECKPOINT_C) };
 
+    /*
+     * Used in testing a registration delayed between reading the
+     * RegistrationFence epoch and incrementing its counter
+     */
+    int REGISTRATION_FENCE_A = allocate("REGISTRATION_FENCE_A");
+    int REGISTRATION_FENCE_B = allocate("REGISTRATION_FENCE_B");
+    int REGISTRATION_FENCE_C = allocate("REGISTRATION_FENCE_C");
+    int[][] REGISTRATION_FENCE_SCHEDULED = new int[][] { array(REGISTRATION_FENCE_A, REGISTRATION_FENCE_B),
+            array(REGISTRATION_FENCE_B), array(REGISTRATION_FENCE_A, REGISTRATION_FENCE_C),
+            array(REGISTRATION_FENCE_A, REGISTRATION_FENCE_C) };
+
 }
@@ -528,6 +528,106 @@ public class AccumulatorTest extends PersistitUnitTestCase {
         }
     }
 
+    @Test
+    public void testConcurrentSumLiveValue() throws Exception {
+        final int THREAD_COUNT = 16;
+        final int UPDATE_COUNT = 20000;
+        final TransactionIndex ti = new TransactionIndex(_tsa, 256);
+        final Accumulator acc = Accumulator.accumulator(Accumulator.Type.SUM, null, 0, 5, ti);
+
+        final Thread[] threads = new Thread[THREAD_COUNT];
+        for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+            threads[thread] = ConcurrentUtil.createThread("Thread_" + thread, new ConcurrentUtil.ThrowingRunnable() {
+                @Override
+                public void run() throws Throwable {
+                    final TransactionStatus status = ti.registerTransaction();
+                    for (int up = 0; up < UPDATE_COUNT; ++up) {
+                        acc.update(2, status, 0);
+                    }
+                    status.commit(_tsa.updateTimestamp());
+                    ti.notifyCompleted(status, _tsa.getCurrentTimestamp());
+                }
+            });
+        }
+        ConcurrentUtil.startAndJoinAssertSuccess(50000, threads);
+
+        final long expected = 5 + 2L * UPDATE_COUNT * THREAD_COUNT;
+        assertEquals(expected, acc.getLiveValue());
+        assertEquals(expected, acc.getSnapshotValue(_tsa.updateTimestamp(), 0));
+        acc.updateBaseValue(1, _tsa.getCurrentTimestamp());
+        assertEquals(6, acc.getLiveValue());
+    }
+
+    @Test
+    public void testSeqReservation() throws Exception {
+        final int THREAD_COUNT = 8;
+        final int ALLOCATE_COUNT = 1000;
+        final Exchange exchange = _persistit.getExchange("persistit", "AccumulatorTestSeq", true);
+        final SeqAccumulator sequence = exchange.getTree().getSeqAccumulator(0);
+        sequence.setReservationSize(100);
+        _persistit.checkpoint();
+        final long[][] allocated = new long[THREAD_COUNT][ALLOCATE_COUNT];
+
+        final Thread[] threads = new Thread[THREAD_COUNT];
+        for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+            final long[] values = allocated[thread];
+            threads[thread] = ConcurrentUtil.createThread("Thread_" + thread, new ConcurrentUtil.ThrowingRunnable() {
+                @Override
+                public void run() throws Throwable {
+                    final Transaction txn = _persistit.getTransaction();
+                    for (int i = 0; i < ALLOCATE_COUNT; i++) {
+                        txn.begin();
+                        try {
+                            values[i] = sequence.allocate();
+                            txn.commit();
+                        } finally {
+                            txn.end();
+                        }
+                    }
+                }
+            });
+        }
+        ConcurrentUtil.startAndJoinAssertSuccess(50000, threads);
+
+        final long[] all = new long[THREAD_COUNT * ALLOCATE_COUNT];
+        long max = 0;
+        for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+            System.arraycopy(allocated[thread], 0, all, thread * ALLOCATE_COUNT, ALLOCATE_COUNT);
+            for (int i = 1; i < ALLOCATE_COUNT; i++) {
+                assertTrue(allocated[thread][i] > allocated[thread][i - 1]);
+            }
+        }
+        Arrays.sort(all);
+        for (int i = 0; i < all.length; i++) {
+            assertTrue(all[i] > 0);
+            assertTrue(i == 0 || all[i] != all[i - 1]);
+            max = Math.max(max, all[i]);
+        }
+        assertTrue(sequence.getLiveValue() >= max);
+
+        final Transaction txn = _persistit.getTransaction();
+        txn.begin();
+        try {
+            assertEquals(max, sequence.getSnapshotValue());
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+
+        safeCrashAndRestoreProperties();
+        final SeqAccumulator recovered = _persistit.getExchange("persistit", "AccumulatorTestSeq", false).getTree()
+                .getSeqAccumulator(0);
+        assertEquals(1, recovered.getReservationSize());
+        final Transaction txn2 = _persistit.getTransaction();
+        txn2.begin();
+        try {
+            assertTrue(recovered.allocate() > max);
+            txn2.commit();
+        } finally {
+            txn2.end();
+        }
+    }
+
     private static int countDeltas(final TransactionStatus status) {
         int count = 0;
         Accumulator.Delta d = status.getDelta();
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BoundedObjectCacheTest extends PersistitUnitTestCase {
+
+    @Test
+    public void cachedObjectIsReused() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "BoundedObjectCacheTest", true);
+        final BoundedObjectCache cache = new BoundedObjectCache(100, 100000);
+        ex.setAppCache(cache);
+        ex.getValue().put("abc");
+        ex.clear().append(1).store();
+
+        final Object first = ex.fetchObject();
+        assertEquals("abc", first);
+        assertSame(first, ex.fetchObject());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+        assertNull(ex.clear().append(2).fetchObject());
+        assertEquals(1, cache.size());
+
+        ex.getValue().put("def");
+        ex.clear().append(1).store();
+        assertEquals(0, cache.size());
+        assertEquals("def", ex.fetchObject());
+        assertTrue(ex.remove());
+        assertNull(ex.fetchObject());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void changesByOtherExchangesInvalidate() throws Exception {
+        final Exchange ex1 = _persistit.getExchange("persistit", "BoundedObjectCacheTest", true);
+        final Exchange ex2 = _persistit.getExchange("persistit", "BoundedObjectCacheTest", false);
+        final BoundedObjectCache cache = new BoundedObjectCache(100, 100000);
+        ex1.getTree().setAppCache(cache);
+        for (int i = 0; i < 10; i++) {
+            ex2.getValue().put("v" + i);
+            ex2.clear().append(i).store();
+        }
+        final Object cached = ex1.clear().append(5).fetchObject();
+        assertSame(cached, ex2.clear().append(5).fetchObject());
+
+        /*
+         * A change to any record on the same page invalidates the entry
+         */
+        ex2.getValue().put("changed");
+        ex2.clear().append(6).store();
+        final Object refetched = ex1.fetchObject();
+        assertEquals("v5", refetched);
+        assertNotSame(cached, refetched);
+
+        ex2.getValue().put("replaced");
+        ex2.clear().append(5).store();
+        assertEquals("replaced", ex1.fetchObject());
+        ex2.remove();
+        assertNull(ex1.fetchObject());
+        ex1.getTree().setAppCache(null);
+    }
+
+    @Test
+    public void sameSizeOverwriteByOtherExchangeInvalidates() throws Exception {
+        final Exchange ex1 = _persistit.getExchange("persistit", "BoundedObjectCacheTest", true);
+        final Exchange ex2 = _persistit.getExchange("persistit", "BoundedObjectCacheTest", false);
+        /*
+         * Attached only to ex1 so that stores through ex2 do not remove the
+         * entry; only the page generation can show that it is stale.
+         */
+        final BoundedObjectCache cache = new BoundedObjectCache(100, 100000);
+        ex1.setAppCache(cache);
+        ex2.getValue().put("aaaa");
+        ex2.clear().append(1).store();
+        final Object cached = ex1.clear().append(1).fetchObject();
+        assertSame(cached, ex1.fetchObject());
+
+        ex2.getValue().put("bbbb");
+        ex2.store();
+        assertEquals("bbbb", ex1.fetchObject());
+        assertSame(ex1.fetchObject(), ex1.fetchObject());
+
+        ex2.getValue().put("cc");
+        ex2.store();
+        assertEquals("cc", ex1.fetchObject());
+
+        final Transaction txn = ex2.getTransaction();
+        txn.begin();
+        try {
+            ex2.getValue().put("dd");
+            ex2.store();
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+        assertEquals("dd", ex1.fetchObject());
+        /*
+         * Pruning rewrites the committed version in place
+         */
+        _persistit.getTransactionIndex().updateActiveTransactionCache();
+        ex2.prune();
+        assertEquals("dd", ex1.fetchObject());
+        ex2.getValue().put("ee");
+        ex2.store();
+        assertEquals("ee", ex1.fetchObject());
+    }
+
+    @Test
+    public void uncommittedVersionsAreNotCached() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "BoundedObjectCacheTest", true);
+        final BoundedObjectCache cache = new BoundedObjectCache(100, 100000);
+        ex.setAppCache(cache);
+        final Transaction txn = ex.getTransaction();
+        txn.begin();
+        try {
+            ex.getValue().put("uncommitted");
+            ex.clear().append(1).store();
+            assertEquals("uncommitted", ex.fetchObject());
+            assertEquals(0, cache.size());
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+        assertEquals("uncommitted", ex.fetchObject());
+    }
+
+    @Test
+    public void budgetIsEnforced() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "BoundedObjectCacheTest", true);
+        final BoundedObjectCache cache = new BoundedObjectCache(100, 10000);
+        ex.setAppCache(cache);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append('x');
+        }
+        for (int i = 0; i < 1000; i++) {
+            ex.getValue().put(i < 500 ? Integer.toString(i) : sb.toString() + i);
+            ex.clear().append(i).store();
+        }
+        for (int i = 0; i < 500; i++) {
+            ex.clear().append(i).fetchObject();
+            assertTrue(cache.size() <= 100);
+        }
+        for (int i = 500; i < 1000; i++) {
+            ex.clear().append(i).fetchObject();
+            assertTrue(cache.getBytes() <= 10000);
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    @Test
+    public void frequentlyUsedObjectsSurviveScan() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "BoundedObjectCacheTest", true);
+        final BoundedObjectCache cache = new BoundedObjectCache(100, 1000000);
+        ex.setAppCache(cache);
+        for (int i = 0; i < 1000; i++) {
+            ex.getValue().put("v" + i);
+            ex.clear().append(i).store();
+        }
+        final Object[] hot = new Object[20];
+        for (int j = 0; j < 5; j++) {
+            for (int i = 0; i < hot.length; i++) {
+                hot[i] = ex.clear().append(i).fetchObject();
+            }
+        }
+        for (int i = 100; i < 400; i++) {
+            ex.clear().append(i).fetchObject();
+        }
+        assertEquals(100, cache.size());
+        assertTrue(cache.getRejectionCount() > 0);
+        final long hits = cache.getHitCount();
+        for (int i = 0; i < hot.length; i++) {
+            assertSame(hot[i], ex.clear().append(i).fetchObject());
+        }
+        assertEquals(hits + hot.length, cache.getHitCount());
+        assertFalse(cache.toString().isEmpty());
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class BulkLoaderTest extends PersistitUnitTestCase {
+
+    private final static String TREE_NAME = "BulkLoaderTest";
+
+    private final static String VALUE = "The quick brown fox jumped over the lazy red dog. ";
+
+    /*
+     * Appended to each key to make index records larger, and trees deeper
+     */
+    private String _pad = "";
+
+    private Exchange exchange() throws Exception {
+        return _persistit.getExchange("persistit", TREE_NAME, true);
+    }
+
+    private String value(final int i) {
+        if (i % 1000 == 7) {
+            return createString(100000 + i);
+        }
+        return VALUE + i;
+    }
+
+    private BulkLoader load(final Tree tree, final int from, final int to, final int step) throws Exception {
+        final BulkLoader loader = new BulkLoader(tree);
+        final Key key = new Key(_persistit);
+        final Value value = new Value(_persistit);
+        for (int i = from; i < to; i += step) {
+            key.clear().append("key").append(i).append(_pad);
+            value.put(value(i));
+            loader.append(key, value);
+            assertEquals(value(i), value.getString());
+        }
+        loader.finish();
+        return loader;
+    }
+
+    private void verify(final Exchange ex, final int from, final int to, final int step) throws Exception {
+        ex.clear().append(Key.BEFORE);
+        int i = from;
+        while (ex.next(true)) {
+            assertEquals(i, ex.getKey().indexTo(1).decodeInt());
+            assertEquals(value(i), ex.getValue().getString());
+            i += step;
+        }
+        assertEquals(to, i);
+    }
+
+    private void icheck() throws Exception {
+        final IntegrityCheck icheck = new IntegrityCheck(_persistit);
+        icheck.checkVolume(_persistit.getVolume("persistit"));
+        assertEquals(0, icheck.getFaults().length);
+    }
+
+    @Test
+    public void loadMultiLevelTree() throws Exception {
+        _pad = createString(400);
+        final Exchange ex = exchange();
+        final BulkLoader loader = load(ex.getTree(), 0, 20000, 1);
+        assertEquals(20000, loader.getRecordCount());
+        assertTrue(loader.getDepth() >= 3);
+        assertEquals(loader.getDepth(), ex.getTree().getDepth());
+        icheck();
+        verify(ex, 0, 20000, 1);
+        for (int i = 0; i < 20000; i += 2) {
+            ex.clear().append("key").append(i).append(_pad).fetch();
+            assertEquals(value(i), ex.getValue().getString());
+        }
+        /*
+         * The loaded tree accepts stores and removes throughout
+         */
+        for (int i = 0; i < 20000; i += 10) {
+            ex.clear().append("key").append(i).append(_pad).remove();
+            ex.getValue().put(value(i + 5));
+            ex.clear().append("key").append(i + 5).append(_pad).store();
+        }
+        icheck();
+        for (int i = 0; i < 20000; i += 10) {
+            ex.clear().append("key").append(i).append(_pad).fetch();
+            assertFalse(ex.getValue().isDefined());
+            ex.clear().append("key").append(i + 5).append(_pad).fetch();
+            assertEquals(value(i + 5), ex.getValue().getString());
+        }
+    }
+
+    @Test
+    public void pagesArePacked() throws Exception {
+        final Exchange ex = exchange();
+        final Exchange other = _persistit.getExchange("persistit", TREE_NAME + "_stored", true);
+        for (int i = 0; i < 50000; i++) {
+            other.clear().append("key").append(i).append(_pad).getValue().put(VALUE + i);
+            other.store();
+        }
+        final BulkLoader loader = new BulkLoader(ex.getTree());
+        other.clear().append(Key.BEFORE);
+        while (other.next()) {
+            loader.append(other.getKey(), other.getValue());
+        }
+        loader.finish();
+        final IntegrityCheck icheck = new IntegrityCheck(_persistit);
+        icheck.checkTree(ex.getTree());
+        final long loaded = icheck.getDataPageCount();
+        icheck.checkTree(other.getTree());
+        final long stored = icheck.getDataPageCount() - loaded;
+        assertTrue("Loaded " + loaded + " pages, stored " + stored, loaded < stored);
+    }
+
+    @Test
+    public void replaceExistingContent() throws Exception {
+        final Exchange ex = exchange();
+        for (int i = 0; i < 10000; i++) {
+            ex.clear().append("key").append(i).append(_pad).getValue().put(value(i));
+            ex.store();
+        }
+        load(ex.getTree(), 1, 30001, 3);
+        verify(ex, 1, 30001, 3);
+        icheck();
+        final BulkLoader loader = new BulkLoader(ex.getTree());
+        loader.finish();
+        assertEquals(1, ex.getTree().getDepth());
+        assertFalse(ex.clear().append(Key.BEFORE).next());
+        icheck();
+    }
+
+    @Test
+    public void abortLeavesTreeUnchanged() throws Exception {
+        final Exchange ex = exchange();
+        load(ex.getTree(), 0, 1000, 1);
+        final long root = ex.getTree().getRootPageAddr();
+        final BulkLoader loader = new BulkLoader(ex.getTree());
+        final Key key = new Key(_persistit);
+        final Value value = new Value(_persistit);
+        for (int i = 0; i < 50000; i++) {
+            key.clear().append("key").append(i).append(_pad);
+            value.put(value(i));
+            loader.append(key, value);
+        }
+        key.clear().append("key").append(0).append(_pad);
+        try {
+            loader.append(key, value);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        loader.abort();
+        try {
+            loader.finish();
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        assertEquals(root, ex.getTree().getRootPageAddr());
+        verify(ex, 0, 1000, 1);
+        icheck();
+    }
+
+    @Test
+    public void countedTreeIsRejected() throws Exception {
+        final Exchange ex = exchange();
+        ex.getTree().countKeys(0);
+        try {
+            new BulkLoader(ex.getTree());
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void loadedTreeIsRecovered() throws Exception {
+        final Exchange ex = exchange();
+        load(ex.getTree(), 0, 50000, 1);
+        crashWithoutFlushAndRestoreProperties();
+        verify(exchange(), 0, 50000, 1);
+        icheck();
+    }
+
+    @Test
+    public void keyBloomFilterIsRebuilt() throws Exception {
+        final Exchange ex = exchange();
+        final KeyBloomFilter filter = ex.getTree().setKeyBloomFilter(10000, 0.01);
+        ex.clear().append("key").append(-1).append(_pad).fetch();
+        assertTrue(filter.isReady());
+        load(ex.getTree(), 0, 10000, 1);
+        for (int i = 0; i < 10000; i++) {
+            ex.clear().append("key").append(i).append(_pad).fetch();
+            assertEquals(value(i), ex.getValue().getString());
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.junit.Test;
 
 import java.lang.ref.WeakReference;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -30,6 +31,7 @@ public class CleanupManagerTest extends PersistitUnitTestCase {
 
     volatile int _counter = 0;
     volatile int _last = 0;
+    final AtomicInteger _pagesCleaned = new AtomicInteger();
 
     private CleanupManager cm() {
         return _persistit.getCleanupManager();
@@ -66,6 +68,19 @@ public class CleanupManagerTest extends PersistitUnitTestCase {
 
     }
 
+    private class CleanupMockPageAction extends CleanupManager.CleanupTreePage {
+
+        CleanupMockPageAction(final int treeHandle, final long page) {
+            super(treeHandle, page);
+        }
+
+        @Override
+        public void performAction(final Persistit persistit, final List<CleanupAction> consequentActions)
+                throws PersistitException {
+            _pagesCleaned.incrementAndGet();
+        }
+    }
+
     private static class ExpectedException extends PersistitException {
 
         private static final long serialVersionUID = 1L;
@@ -100,6 +115,56 @@ public class CleanupManagerTest extends PersistitUnitTestCase {
         assertEquals(0, cm().getEnqueuedCount());
     }
 
+    @Test
+    public void testDuplicatesNotEnqueued() throws Exception {
+        cm().setPollInterval(-1);
+        Thread.sleep(100);
+        final long accepted = cm().getAcceptedCount();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cm().offer(new CleanupManager.CleanupPruneAction(1, 1000)));
+        }
+        assertTrue(cm().offer(new CleanupManager.CleanupPruneAction(1, 1001)));
+        assertEquals(accepted + 2, cm().getAcceptedCount());
+        assertEquals(9, cm().getDuplicateCount());
+        assertEquals(2, cm().getEnqueuedCount());
+
+        cm().setPollInterval(100);
+        for (int i = 0; i < 10 && cm().getEnqueuedCount() > 0; i++) {
+            Thread.sleep(1000);
+        }
+        assertEquals(0, cm().getEnqueuedCount());
+        assertTrue(cm().offer(new CleanupManager.CleanupPruneAction(1, 1000)));
+        assertEquals(accepted + 3, cm().getAcceptedCount());
+    }
+
+    @Test
+    public void testMultipleCleanupThreads() throws Exception {
+        _persistit.close();
+        _config.setCleanupThreads(4);
+        _persistit = new Persistit(_config);
+        assertEquals(4, cm().getCleanupThreadCount());
+        assertEquals(3, cm().getWorkers().size());
+
+        cm().setPollInterval(-1);
+        Thread.sleep(100);
+        for (int page = 0; page < 2000; page++) {
+            assertTrue(cm().offer(new CleanupMockPageAction(page % 7 + 1, page)));
+        }
+        assertEquals(2000, cm().getEnqueuedCount());
+        assertTrue(cm().getMaximumEnqueuedCount() < 2000);
+        cm().setPollInterval(100);
+        for (int i = 0; i < 10 && cm().getEnqueuedCount() > 0; i++) {
+            Thread.sleep(1000);
+        }
+        assertEquals(0, cm().getEnqueuedCount());
+        assertEquals(2000, _pagesCleaned.get());
+
+        _persistit.close();
+        for (final IOTaskRunnable worker : cm().getWorkers()) {
+            assertTrue(worker.isStopped());
+        }
+    }
+
     @Test
     public void testMemoryReleasedOnCrash() throws Exception {
         final WeakReference<Persistit> ref = new WeakReference<Persistit>(_persistit);
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.persistit.encoding.CoderManager;
+
+public class CompactValueCoderTest extends PersistitUnitTestCase {
+
+    public static class Sample implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        boolean flag;
+        byte b;
+        short s;
+        char c;
+        int i;
+        long l;
+        float f;
+        double d;
+        String name;
+        Integer boxed;
+        Sample next;
+    }
+
+    @Override
+    protected Properties doGetProperties(final boolean cleanup) {
+        final Properties properties = super.doGetProperties(cleanup);
+        properties.setProperty(Configuration.CONSTRUCTOR_OVERRIDE_PROPERTY_NAME, "true");
+        return properties;
+    }
+
+    private Sample sample() {
+        final Sample sample = new Sample();
+        sample.flag = true;
+        sample.b = -3;
+        sample.s = 300;
+        sample.c = 'x';
+        sample.i = -12;
+        sample.l = 1234567L;
+        sample.f = 1.5f;
+        sample.d = -2.25;
+        sample.name = "sample";
+        sample.boxed = 7;
+        return sample;
+    }
+
+    private void assertSample(final Sample sample) {
+        assertEquals(true, sample.flag);
+        assertEquals(-3, sample.b);
+        assertEquals(300, sample.s);
+        assertEquals('x', sample.c);
+        assertEquals(-12, sample.i);
+        assertEquals(1234567L, sample.l);
+        assertEquals(1.5f, sample.f, 0f);
+        assertEquals(-2.25, sample.d, 0d);
+        assertEquals("sample", sample.name);
+        assertEquals(Integer.valueOf(7), sample.boxed);
+    }
+
+    private Field[] fields(final String... names) throws Exception {
+        final Field[] fields = new Field[names.length];
+        for (int index = 0; index < names.length; index++) {
+            fields[index] = Sample.class.getDeclaredField(names[index]);
+        }
+        return fields;
+    }
+
+    @Test
+    public void roundTripIsSmaller() throws Exception {
+        final CoderManager cm = _persistit.getCoderManager();
+        final Exchange ex = _persistit.getExchange("persistit", "CompactValueCoderTest", true);
+        final Sample sample = sample();
+        sample.next = sample();
+
+        ex.getValue().put(sample);
+        final int defaultSize = ex.getValue().getEncodedSize();
+
+        cm.registerValueCoder(Sample.class, new CompactValueCoder(_persistit, Sample.class));
+        try {
+            ex.getValue().put(sample);
+            final int compactSize = ex.getValue().getEncodedSize();
+            assertTrue("Compact size " + compactSize + " not less than " + defaultSize,
+                    compactSize < defaultSize * 3 / 4);
+            ex.clear().append("sample").store();
+            ex.getValue().clear();
+            ex.fetch();
+            final Sample fetched = (Sample) ex.getValue().get();
+            assertSample(fetched);
+            assertSample(fetched.next);
+            assertNull(fetched.next.next);
+            assertTrue(ex.getValue().toString().contains("\"sample\""));
+        } finally {
+            cm.unregisterValueCoder(Sample.class);
+        }
+    }
+
+    @Test
+    public void schemaEvolution() throws Exception {
+        final CoderManager cm = _persistit.getCoderManager();
+        final Exchange ex = _persistit.getExchange("persistit", "CompactValueCoderTest", true);
+        final Sample sample = sample();
+
+        final CompactValueCoder v1 = new CompactValueCoder(_persistit, Sample.class, fields("i", "name"));
+        cm.registerValueCoder(Sample.class, v1);
+        ex.getValue().put(sample);
+        ex.clear().append("v1").store();
+        assertEquals(1, v1.getSchemaVersion());
+        cm.unregisterValueCoder(Sample.class);
+
+        final CompactValueCoder v2 = new CompactValueCoder(_persistit, Sample.class, fields("name", "l", "s"));
+        cm.registerValueCoder(Sample.class, v2);
+        assertEquals(2, v2.getSchemaVersion());
+        ex.getValue().put(sample);
+        ex.clear().append("v2").store();
+
+        Sample fetched = (Sample) ex.clear().append("v1").fetch().getValue().get();
+        assertEquals("sample", fetched.name);
+        assertEquals(0, fetched.i);
+        assertEquals(0, fetched.l);
+        fetched = (Sample) ex.clear().append("v2").fetch().getValue().get();
+        assertEquals("sample", fetched.name);
+        assertEquals(1234567L, fetched.l);
+        assertEquals(300, fetched.s);
+        cm.unregisterValueCoder(Sample.class);
+
+        _persistit.checkpoint();
+        safeCrashAndRestoreProperties();
+
+        /*
+         * The stored schemas survive restart: a coder having the fields of
+         * the first version reuses it, and reads records written with the
+         * second.
+         */
+        final CompactValueCoder again = new CompactValueCoder(_persistit, Sample.class, fields("i", "name", "s"));
+        _persistit.getCoderManager().registerValueCoder(Sample.class, again);
+        final Exchange ex2 = _persistit.getExchange("persistit", "CompactValueCoderTest", false);
+        fetched = (Sample) ex2.clear().append("v2").fetch().getValue().get();
+        assertEquals("sample", fetched.name);
+        assertEquals(300, fetched.s);
+        fetched = (Sample) ex2.clear().append("v1").fetch().getValue().get();
+        assertEquals(-12, fetched.i);
+        assertEquals(3, again.getSchemaVersion());
+        _persistit.getCoderManager().unregisterValueCoder(Sample.class);
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class CompactionTaskTest extends PersistitUnitTestCase {
+
+    private final static int SIZE = 20000;
+
+    private final static String VALUE = "The quick brown fox jumped over the lazy red dog. ";
+
+    @Test
+    public void compactSparseTree() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "CompactionTaskTest", true);
+        store(ex);
+        /*
+         * Remove 7 of every 8 records, leaving most pages sparse
+         */
+        for (int i = 0; i < SIZE; i++) {
+            if (i % 8 != 0) {
+                ex.to(i).remove();
+            }
+        }
+        final IntegrityCheck before = icheck(ex.getTree());
+        assertEquals(0, before.getFaults().length);
+
+        final CompactionTask task = new CompactionTask(_persistit);
+        final long merged = task.compactTree(ex.getTree());
+
+        final IntegrityCheck after = icheck(ex.getTree());
+        assertEquals(0, after.getFaults().length);
+        assertTrue("Expected pages to be merged", merged > 0);
+        assertEquals(merged, task.getPagesMerged());
+        assertEquals(before.getDataPageCount() + before.getIndexPageCount() - merged, after.getDataPageCount()
+                + after.getIndexPageCount());
+        assertTrue(after.getDataPageCount() * 2 < before.getDataPageCount());
+        verify(ex, 8);
+        /*
+         * A second pass has nothing left to do
+         */
+        assertEquals(0, task.compactTree(ex.getTree()));
+        /*
+         * The directory tree, selected by a volume-only tree selector, can be
+         * compacted too
+         */
+        task.compactTree(ex.getVolume().getDirectoryTree());
+        assertEquals(0, icheck(ex.getVolume().getDirectoryTree()).getFaults().length);
+    }
+
+    @Test
+    public void compactCommand() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "CompactionTaskTest", true);
+        store(ex);
+        for (int i = SIZE / 4; i < SIZE * 3 / 4; i++) {
+            if (i % 2 != 0) {
+                ex.to(i).remove();
+            }
+        }
+        final long pagesBefore = icheck(ex.getTree()).getDataPageCount();
+
+        final Management management = _persistit.getManagement();
+        final String status = management.launch("compact trees=persistit:CompactionTaskTest fill=100 iorate=0");
+        waitForTask(Long.parseLong(status));
+
+        final IntegrityCheck after = icheck(ex.getTree());
+        assertEquals(0, after.getFaults().length);
+        assertTrue(after.getDataPageCount() < pagesBefore);
+        for (int i = 0; i < SIZE; i++) {
+            ex.to(i).fetch();
+            assertEquals(i >= SIZE / 4 && i < SIZE * 3 / 4 && i % 2 != 0, !ex.getValue().isDefined());
+        }
+    }
+
+    @Test
+    public void compactWhileUpdating() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "CompactionTaskTest", true);
+        store(ex);
+        for (int i = 0; i < SIZE; i++) {
+            if (i % 4 != 0) {
+                ex.to(i).remove();
+            }
+        }
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final Thread updater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Exchange ex = _persistit.getExchange("persistit", "CompactionTaskTest", false);
+                    ex.getValue().put(VALUE);
+                    for (int i = 1; i < SIZE; i += 4) {
+                        ex.to(i).store();
+                    }
+                    for (int i = 1; i < SIZE; i += 4) {
+                        ex.to(i).remove();
+                    }
+                    _persistit.releaseExchange(ex);
+                } catch (final Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        updater.start();
+        final CompactionTask task = new CompactionTask(_persistit);
+        task.compactTree(ex.getTree());
+        updater.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        task.compactTree(ex.getTree());
+        assertEquals(0, icheck(ex.getTree()).getFaults().length);
+        verify(ex, 4);
+    }
+
+    @Test
+    public void compactRootOnlyTree() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "CompactionTaskTest", true);
+        ex.getValue().put(VALUE);
+        for (int i = 0; i < 8; i++) {
+            ex.to(i).store();
+        }
+        assertEquals(1, ex.getTree().getDepth());
+        /*
+         * There is no index level above the root page, so the key moves to the
+         * right edge to end the caller's scan of the level.
+         */
+        ex.clear().append(Key.BEFORE);
+        assertEquals(0, ex.compactPages(0, ex.getVolume().getPageSize()));
+        assertTrue(ex.getKey().isRightEdge());
+
+        assertEquals(0, new CompactionTask(_persistit).compactTree(ex.getTree()));
+        assertEquals(0, icheck(ex.getTree()).getFaults().length);
+        verify(ex, 1, 8);
+    }
+
+    private void store(final Exchange ex) throws Exception {
+        ex.getValue().put(VALUE);
+        for (int i = 0; i < SIZE; i++) {
+            ex.to(i).store();
+        }
+    }
+
+    private void verify(final Exchange ex, final int modulus) throws Exception {
+        verify(ex, modulus, SIZE);
+    }
+
+    private void verify(final Exchange ex, final int modulus, final int size) throws Exception {
+        int count = 0;
+        ex.clear().append(Key.BEFORE);
+        while (ex.next()) {
+            assertEquals(0, ex.getKey().decodeInt() % modulus);
+            assertEquals(VALUE, ex.getValue().getString());
+            count++;
+        }
+        assertEquals((size + modulus - 1) / modulus, count);
+    }
+
+    private IntegrityCheck icheck(final Tree tree) throws Exception {
+        final IntegrityCheck icheck = new IntegrityCheck(_persistit);
+        icheck.checkTree(tree);
+        return icheck;
+    }
+}
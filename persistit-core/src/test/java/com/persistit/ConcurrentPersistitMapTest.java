@@ -0,0 +1,288 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ConcurrentPersistitMapTest extends PersistitUnitTestCase {
+
+    private final static int ACCUMULATOR_INDEX = 0;
+
+    private ConcurrentPersistitMap<Integer, String> newMap() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ConcurrentPersistitMapTest", true);
+        ex.append("map");
+        return new ConcurrentPersistitMap<Integer, String>(ex, ACCUMULATOR_INDEX);
+    }
+
+    @Test
+    public void mapOperations() throws Exception {
+        final ConcurrentPersistitMap<Integer, String> map = newMap();
+        final TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        assertTrue(map.isEmpty());
+        for (int i = 0; i < 100; i += 2) {
+            assertNull(map.put(i, "v" + i));
+            expected.put(i, "v" + i);
+        }
+        assertEquals("v0", map.put(0, "w0"));
+        expected.put(0, "w0");
+        assertEquals("v2", map.putIfAbsent(2, "w2"));
+        assertNull(map.putIfAbsent(1, "v1"));
+        expected.put(1, "v1");
+        assertEquals("v4", map.replace(4, "w4"));
+        expected.put(4, "w4");
+        assertNull(map.replace(3, "v3"));
+        assertFalse(map.replace(6, "x", "w6"));
+        assertTrue(map.replace(6, "v6", "w6"));
+        expected.put(6, "w6");
+        assertFalse(map.remove(8, "x"));
+        assertTrue(map.remove(8, "v8"));
+        expected.remove(8);
+        assertEquals("v10", map.remove(10));
+        expected.remove(10);
+        assertNull(map.remove(11));
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals(expected.toString(), map.toString());
+        assertTrue(map.containsKey(12));
+        assertFalse(map.containsKey(13));
+        assertEquals("v12", map.get(12));
+        assertNull(map.get(13));
+        try {
+            map.put(14, null);
+            fail("Expected NullPointerException");
+        } catch (final NullPointerException e) {
+            // expected
+        }
+
+        final Iterator<Integer> iterator = map.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() % 4 == 0) {
+                iterator.remove();
+            }
+        }
+        for (final Iterator<Integer> it = expected.keySet().iterator(); it.hasNext();) {
+            if (it.next() % 4 == 0) {
+                it.remove();
+            }
+        }
+        assertEquals(expected, map);
+        assertEquals(expected.size(), map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void navigation() throws Exception {
+        final ConcurrentPersistitMap<Integer, String> map = newMap();
+        final TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        for (int i = 10; i < 50; i += 3) {
+            map.put(i, "v" + i);
+            expected.put(i, "v" + i);
+        }
+        verifyNavigation(expected, map);
+        verifyNavigation(expected.descendingMap(), map.descendingMap());
+        verifyNavigation(expected.subMap(13, true, 40, false), map.subMap(13, true, 40, false));
+        verifyNavigation(expected.subMap(14, false, 40, true), map.subMap(14, false, 40, true));
+        verifyNavigation(expected.headMap(25, true), map.headMap(25, true));
+        verifyNavigation(expected.tailMap(25, false), map.tailMap(25, false));
+        verifyNavigation(expected.descendingMap().headMap(30, false), map.descendingMap().headMap(30));
+        verifyNavigation(expected.descendingMap().subMap(40, true, 20, false), map.descendingMap().subMap(40, 20));
+        verifyNavigation(expected.subMap(20, true, 40, false).descendingMap().tailMap(30, true),
+                map.subMap(20, 40).descendingMap().tailMap(30));
+
+        final ConcurrentNavigableMap<Integer, String> sub = map.subMap(20, 30);
+        try {
+            sub.put(31, "x");
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            sub.subMap(15, 25);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        assertNull(sub.get(34));
+        assertEquals(Integer.valueOf(49), map.lastKey());
+        assertEquals(Integer.valueOf(10), map.pollFirstEntry().getKey());
+        assertEquals(Integer.valueOf(49), map.descendingMap().pollFirstEntry().getKey());
+        assertEquals(expected.size() - 2, map.size());
+        assertEquals(Integer.valueOf(46), map.descendingKeySet().first());
+    }
+
+    private void verifyNavigation(final NavigableMap<Integer, String> expected,
+            final ConcurrentNavigableMap<Integer, String> map) {
+        assertEquals(expected, map);
+        assertEquals(expected.size(), map.size());
+        assertEquals(new ArrayList<Integer>(expected.keySet()), new ArrayList<Integer>(map.keySet()));
+        assertEquals(new ArrayList<String>(expected.values()), new ArrayList<String>(map.values()));
+        assertEquals(expected.firstEntry(), map.firstEntry());
+        assertEquals(expected.lastEntry(), map.lastEntry());
+        for (int i = 5; i < 55; i++) {
+            assertEquals(expected.lowerEntry(i), map.lowerEntry(i));
+            assertEquals(expected.floorEntry(i), map.floorEntry(i));
+            assertEquals(expected.ceilingEntry(i), map.ceilingEntry(i));
+            assertEquals(expected.higherEntry(i), map.higherEntry(i));
+            assertEquals(expected.containsKey(i), map.containsKey(i));
+        }
+    }
+
+    @Test
+    public void concurrentUpdates() throws Exception {
+        final ConcurrentPersistitMap<Integer, String> map = newMap();
+        final int threadCount = 8;
+        final int count = 200;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final int base = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            /*
+                             * Every thread increments a shared counter and
+                             * adds and removes keys of its own.
+                             */
+                            while (true) {
+                                final String current = map.putIfAbsent(-1, "1");
+                                if (current == null
+                                        || map.replace(-1, current, Integer.toString(Integer.parseInt(current) + 1))) {
+                                    break;
+                                }
+                            }
+                            map.put(base * count + i, "v");
+                            if (i % 2 == 1) {
+                                map.remove(base * count + i - 1);
+                            }
+                            map.get(base * count + i);
+                        }
+                    } catch (final Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(Integer.toString(threadCount * count), map.get(-1));
+        final int expectedSize = threadCount * count / 2 + 1;
+        assertEquals(expectedSize, map.size());
+        int enumerated = 0;
+        for (final Map.Entry<Integer, String> entry : map.entrySet()) {
+            enumerated++;
+        }
+        assertEquals(expectedSize, enumerated);
+    }
+
+    @Test
+    public void putIsVisibleToGetInOtherThread() throws Exception {
+        final ConcurrentPersistitMap<Integer, String> map = newMap();
+        /*
+         * An attached cache must not let get() return a replaced value
+         */
+        final Tree tree = _persistit.getVolume("persistit").getTree("ConcurrentPersistitMapTest", false);
+        tree.setAppCache(new BoundedObjectCache(100, 100000));
+        final int count = 2000;
+        final AtomicInteger published = new AtomicInteger(-1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        /*
+                         * Values of equal size are replaced in place
+                         */
+                        map.put(1, String.format("v%05d", i));
+                        published.set(i);
+                    }
+                } catch (final Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writer.start();
+        try {
+            int seen = -1;
+            while (seen < count - 1 && failure.get() == null) {
+                final int expected = published.get();
+                if (expected < 0) {
+                    continue;
+                }
+                seen = Integer.parseInt(map.get(1).substring(1));
+                assertTrue("get returned version " + seen + " after " + expected + " was put", seen >= expected);
+                final int other = Integer.parseInt(map.firstEntry().getValue().substring(1));
+                assertTrue("firstEntry returned version " + other + " after " + seen, other >= seen);
+            }
+        } finally {
+            writer.join();
+            tree.setAppCache(null);
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(String.format("v%05d", count - 1), map.get(1));
+        assertTrue(map.containsValue(String.format("v%05d", count - 1)));
+    }
+
+    @Test
+    public void sizeIsRecovered() throws Exception {
+        ConcurrentPersistitMap<Integer, String> map = newMap();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "v" + i);
+        }
+        for (int i = 0; i < 1000; i += 3) {
+            map.remove(i);
+        }
+        final int size = map.size();
+        assertEquals(666, size);
+        _persistit.checkpoint();
+        map.put(1000, "v1000");
+        safeCrashAndRestoreProperties();
+        map = newMap();
+        assertEquals(size + 1, map.size());
+        assertEquals("v1000", map.get(1000));
+    }
+}
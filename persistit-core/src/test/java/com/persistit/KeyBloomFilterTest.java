@@ -0,0 +1,208 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class KeyBloomFilterTest extends PersistitUnitTestCase {
+
+    private final static String TREE_NAME = "KeyBloomFilterTest";
+
+    private Exchange exchange() throws Exception {
+        return _persistit.getExchange("persistit", TREE_NAME, true);
+    }
+
+    private void store(final Exchange ex, final int from, final int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            ex.clear().append(i).getValue().put("value" + i);
+            ex.store();
+        }
+    }
+
+    private void verifyPresent(final Exchange ex, final int from, final int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            ex.clear().append(i).fetch();
+            assertEquals("value" + i, ex.getValue().get());
+            assertTrue(ex.isValueDefined());
+        }
+    }
+
+    @Test
+    public void missesAreAnsweredByFilter() throws Exception {
+        final Exchange ex = exchange();
+        store(ex, 0, 1000);
+        final KeyBloomFilter filter = ex.getTree().setKeyBloomFilter(1000, 0.01);
+        assertFalse(filter.isReady());
+        verifyPresent(ex, 0, 1000);
+        assertTrue(filter.isReady());
+        assertEquals(0, filter.getAbsentCount());
+        for (int i = 1000; i < 2000; i++) {
+            ex.clear().append(i).fetch();
+            assertFalse(ex.getValue().isDefined());
+            assertFalse(ex.isValueDefined());
+            assertNull(ex.fetchObject());
+        }
+        assertTrue(filter.getAbsentCount() > 2700);
+    }
+
+    @Test
+    public void storesAndRemovesAfterBuild() throws Exception {
+        final Exchange ex = exchange();
+        store(ex, 0, 100);
+        final KeyBloomFilter filter = ex.getTree().setKeyBloomFilter(1000, 0.01);
+        verifyPresent(ex, 0, 100);
+        assertTrue(filter.isReady());
+        store(ex, 100, 200);
+        verifyPresent(ex, 0, 200);
+        ex.clear().append(150).remove();
+        assertFalse(ex.isValueDefined());
+        ex.clear().append(150).fetch();
+        assertFalse(ex.getValue().isDefined());
+        store(ex, 150, 151);
+        verifyPresent(ex, 0, 200);
+    }
+
+    @Test
+    public void uncommittedKeysAreIncludedInBuild() throws Exception {
+        final Exchange ex = exchange();
+        store(ex, 0, 10);
+        final Transaction txn = ex.getTransaction();
+        txn.begin();
+        try {
+            store(ex, 10, 20);
+            final AtomicReference<KeyBloomFilter> ref = new AtomicReference<KeyBloomFilter>();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            /*
+             * Build the filter in a different thread, to which the keys stored
+             * by this transaction are not visible.
+             */
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Exchange other = exchange();
+                        ref.set(other.getTree().setKeyBloomFilter(100, 0.01));
+                        other.clear().append(15).fetch();
+                        assertFalse(other.getValue().isDefined());
+                        _persistit.releaseExchange(other);
+                    } catch (final Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            thread.start();
+            thread.join();
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertTrue(ref.get().isReady());
+            assertTrue(ref.get().mightContain(new Key(_persistit).append(15)));
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+        verifyPresent(ex, 0, 20);
+    }
+
+    @Test
+    public void saturatedFilterIsReplaced() throws Exception {
+        final Exchange ex = exchange();
+        final Tree tree = ex.getTree();
+        final KeyBloomFilter filter = tree.setKeyBloomFilter(100, 0.01);
+        ex.clear().append(-1).fetch();
+        assertTrue(filter.isReady());
+        store(ex, 0, 1000);
+        final KeyBloomFilter replacement = tree.getKeyBloomFilter();
+        assertNotSame(filter, replacement);
+        assertTrue(replacement.getExpectedKeys() >= 200);
+        verifyPresent(ex, 0, 1000);
+        assertTrue(tree.getKeyBloomFilter().isReady());
+        for (int i = 1000; i < 2000; i++) {
+            assertFalse(ex.clear().append(i).isValueDefined());
+        }
+        assertTrue(tree.getKeyBloomFilter().getAbsentCount() > 0);
+    }
+
+    @Test
+    public void filterSmallerThanTreeIsReplacedByBuild() throws Exception {
+        final Exchange ex = exchange();
+        store(ex, 0, 10000);
+        final Tree tree = ex.getTree();
+        final KeyBloomFilter filter = tree.setKeyBloomFilter(100, 0.01);
+        ex.clear().append(-1).fetch();
+        assertTrue(filter.isReady());
+        assertEquals(10000, filter.getInsertionCount());
+        final KeyBloomFilter replacement = tree.getKeyBloomFilter();
+        assertNotSame(filter, replacement);
+        assertTrue(replacement.getExpectedKeys() >= 10000);
+        verifyPresent(ex, 0, 10000);
+        assertTrue(replacement.isReady());
+        assertSame(replacement, tree.getKeyBloomFilter());
+        for (int i = 10000; i < 11000; i++) {
+            assertFalse(ex.clear().append(i).isValueDefined());
+        }
+        assertTrue(replacement.getAbsentCount() > 900);
+    }
+
+    @Test
+    public void concurrentStoresDuringBuild() throws Exception {
+        final Tree tree = exchange().getTree();
+        final int threadCount = 4;
+        final int keysPerThread = 5000;
+        final Thread[] threads = new Thread[threadCount];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int t = 0; t < threadCount; t++) {
+            final int base = t * keysPerThread;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Exchange ex = exchange();
+                        for (int i = base; i < base + keysPerThread; i++) {
+                            store(ex, i, i + 1);
+                            if (!ex.clear().append(i).isValueDefined()) {
+                                throw new AssertionError("Key " + i + " not found");
+                            }
+                        }
+                        _persistit.releaseExchange(ex);
+                    } catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        tree.setKeyBloomFilter(threadCount * keysPerThread, 0.01);
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        verifyPresent(exchange(), 0, threadCount * keysPerThread);
+    }
+}
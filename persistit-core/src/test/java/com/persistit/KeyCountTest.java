@@ -0,0 +1,198 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class KeyCountTest extends PersistitUnitTestCase {
+
+    private final static String TREE_NAME = "KeyCountTest";
+
+    private Exchange exchange(final boolean countKeys) throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", TREE_NAME, true);
+        if (countKeys) {
+            ex.getTree().countKeys(0);
+            ex.getTree().countKeys(prefix("a"), 1);
+            ex.getTree().countKeys(prefix("a", 1), 2);
+        }
+        return ex;
+    }
+
+    private Key prefix(final Object... segments) {
+        final Key key = new Key(_persistit);
+        for (final Object segment : segments) {
+            key.append(segment);
+        }
+        return key;
+    }
+
+    private void store(final Exchange ex, final Object... segments) throws Exception {
+        final Transaction txn = ex.getTransaction();
+        txn.begin();
+        try {
+            ex.clear();
+            for (final Object segment : segments) {
+                ex.append(segment);
+            }
+            ex.getValue().put("value");
+            ex.store();
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+    }
+
+    private void verifyCounts(final Tree tree, final long all, final long a, final long a1) throws Exception {
+        assertEquals(all, tree.getKeyCount());
+        assertEquals(a, tree.getKeyCount(prefix("a")));
+        assertEquals(a1, tree.getKeyCount(prefix("a", 1)));
+    }
+
+    @Test
+    public void countsFollowStoresAndRemoves() throws Exception {
+        final Exchange ex = exchange(true);
+        final Tree tree = ex.getTree();
+        final Transaction txn = ex.getTransaction();
+        for (int i = 0; i < 10; i++) {
+            store(ex, "a", 1, i);
+            store(ex, "a", 2, i);
+            store(ex, "ab", i);
+        }
+        verifyCounts(tree, 30, 20, 10);
+        /*
+         * Replacing a value does not change the counts
+         */
+        store(ex, "a", 1, 5);
+        verifyCounts(tree, 30, 20, 10);
+
+        txn.begin();
+        try {
+            ex.clear().append("a").append(1).append(3).remove();
+            ex.clear().append("a").append(1).append(3).remove();
+            ex.clear().append("a").append(2).remove(Key.GT);
+            ex.clear().append("zz").remove();
+            verifyCounts(tree, 19, 9, 9);
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+        verifyCounts(tree, 19, 9, 9);
+
+        txn.begin();
+        try {
+            ex.clear().append("a").append(1).append(3);
+            ex.getValue().put("again");
+            ex.store();
+            ex.clear().append("a").append(1).append(4).remove();
+            verifyCounts(tree, 19, 9, 9);
+            ex.clear().append("b").store();
+            verifyCounts(tree, 20, 9, 9);
+            txn.rollback();
+        } finally {
+            txn.end();
+        }
+        verifyCounts(tree, 19, 9, 9);
+    }
+
+    @Test
+    public void countsAreIsolated() throws Exception {
+        final Exchange ex = exchange(true);
+        final Tree tree = ex.getTree();
+        store(ex, "a", 1, 1);
+        final Transaction txn = ex.getTransaction();
+        txn.begin();
+        try {
+            verifyCounts(tree, 1, 1, 1);
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Exchange other = _persistit.getExchange("persistit", TREE_NAME, false);
+                        store(other, "a", 1, 2);
+                        store(other, "a", 1, 3);
+                    } catch (final Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            thread.start();
+            thread.join();
+            verifyCounts(tree, 1, 1, 1);
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+        verifyCounts(tree, 3, 3, 3);
+    }
+
+    @Test
+    public void countsAreRecovered() throws Exception {
+        Exchange ex = exchange(true);
+        for (int i = 0; i < 100; i++) {
+            store(ex, "a", i % 2, i);
+        }
+        _persistit.checkpoint();
+        for (int i = 100; i < 110; i++) {
+            store(ex, "a", 1, i);
+        }
+        safeCrashAndRestoreProperties();
+        ex = exchange(true);
+        verifyCounts(ex.getTree(), 110, 110, 60);
+    }
+
+    @Test
+    public void transactionPrivateTree() throws Exception {
+        final Transaction txn = _persistit.getTransaction();
+        txn.begin();
+        try {
+            final Exchange ex = _persistit.getExchange("persistit", "KeyCountTestPrivate", true);
+            assertTrue(ex.getTree().isTransactionPrivate(true));
+            ex.getTree().countKeys(0);
+            for (int i = 0; i < 10; i++) {
+                store(ex, "a", i);
+            }
+            ex.clear().append("a").append(5).remove();
+            ex.clear().append("a").append(7).remove(Key.GTEQ);
+            assertEquals(8, ex.getTree().getKeyCount());
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+        assertEquals(8, _persistit.getExchange("persistit", "KeyCountTestPrivate", false).getTree().getKeyCount());
+    }
+
+    @Test
+    public void prefixMustBeRegistered() throws Exception {
+        final Exchange ex = exchange(true);
+        try {
+            ex.getTree().getKeyCount(prefix("b"));
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ex.getTree().countKeys(prefix("a"), 3);
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+}
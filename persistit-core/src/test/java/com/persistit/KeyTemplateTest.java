@@ -0,0 +1,169 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.persistit.encoding.CoderContext;
+import com.persistit.encoding.KeyRenderer;
+import com.persistit.exception.ConversionException;
+import com.persistit.util.Util;
+
+public class KeyTemplateTest extends PersistitUnitTestCase {
+
+    static class WrappedLong {
+        long _value;
+
+        WrappedLong(final long value) {
+            _value = value;
+        }
+    }
+
+    static class WrappedLongRenderer implements KeyRenderer {
+
+        @Override
+        public void appendKeySegment(final Key key, final Object object, final CoderContext context) {
+            final int size = key.getEncodedSize();
+            Util.putLong(key.getEncodedBytes(), size, ((WrappedLong) object)._value);
+            key.setEncodedSize(size + 8);
+        }
+
+        @Override
+        public Object decodeKeySegment(final Key key, final Class<?> cl, final CoderContext context) {
+            final WrappedLong target = new WrappedLong(0);
+            renderKeySegment(key, target, cl, context);
+            return target;
+        }
+
+        @Override
+        public void renderKeySegment(final Key key, final Object target, final Class<?> cl, final CoderContext context) {
+            final int index = key.getIndex();
+            ((WrappedLong) target)._value = Util.getLong(key.getEncodedBytes(), index);
+            key.setIndex(index + 8);
+        }
+
+        @Override
+        public boolean isZeroByteFree() {
+            return false;
+        }
+    }
+
+    @Test
+    public void encodesLikeKey() throws Exception {
+        _persistit.getCoderManager().registerKeyCoder(WrappedLong.class, new WrappedLongRenderer());
+        final KeyTemplate template = new KeyTemplate(_persistit, boolean.class, int.class, long.class,
+                double.class, String.class, byte[].class, WrappedLong.class);
+        final byte[] bytes = { 1, 0, 2, 0, 0, 3 };
+        final WrappedLong wrapped = new WrappedLong(42);
+
+        final Key key1 = new Key(_persistit);
+        final StringBuilder sb = new StringBuilder("a\u0000b€");
+        template.append(key1, true);
+        template.append(key1, -17);
+        template.append(key1, Long.MIN_VALUE);
+        template.append(key1, 1.5);
+        template.append(key1, sb);
+        template.append(key1, bytes, 0, bytes.length);
+        template.append(key1, wrapped, null);
+
+        final Key key2 = new Key(_persistit);
+        key2.append(true).append(-17).append(Long.MIN_VALUE).append(1.5).append(sb.toString()).append(bytes)
+                .append(wrapped);
+        assertEquals(key2, key1);
+
+        key1.reset();
+        assertEquals(true, key1.decodeBoolean());
+        assertEquals(-17, key1.decodeInt());
+        assertEquals(Long.MIN_VALUE, key1.decodeLong());
+        assertEquals(1.5, key1.decodeDouble(), 0d);
+        final StringBuilder decoded = new StringBuilder();
+        assertSame(decoded, template.decodeString(key1, decoded));
+        assertEquals(sb.toString(), decoded.toString());
+        final byte[] target = new byte[4];
+        assertEquals(bytes.length, template.decodeByteArray(key1, target, 0));
+        assertArrayEquals(Arrays.copyOf(bytes, 4), target);
+        final WrappedLong holder = new WrappedLong(1);
+        assertSame(holder, template.decode(key1, 6, holder, null));
+        assertEquals(42, holder._value);
+        assertEquals(key1.getEncodedSize(), key1.getIndex());
+    }
+
+    @Test
+    public void decodeByteArrayRejectsBadOffset() throws Exception {
+        final KeyTemplate template = new KeyTemplate(_persistit, byte[].class);
+        final byte[] bytes = { 0, 1, 2, 0, 1 };
+        final Key key = new Key(_persistit);
+        template.append(key, bytes, 0, bytes.length);
+        final Key copy = new Key(key);
+        final byte[] target = new byte[4];
+        for (final int offset : new int[] { -1, target.length + 1 }) {
+            key.reset();
+            try {
+                template.decodeByteArray(key, target, offset);
+                fail("Expected ArrayIndexOutOfBoundsException");
+            } catch (final ArrayIndexOutOfBoundsException e) {
+                // expected
+            }
+            assertEquals(copy, key);
+            assertEquals(0, key.getIndex());
+        }
+        assertEquals(bytes.length, template.decodeByteArray(key, target, target.length));
+        key.reset();
+        assertEquals(bytes.length, template.decodeByteArray(key, target, 0));
+        assertArrayEquals(Arrays.copyOf(bytes, 4), target);
+        assertEquals(copy, key);
+    }
+
+    @Test
+    public void checksSegmentTypes() throws Exception {
+        final KeyTemplate template = new KeyTemplate(_persistit, long.class, String.class);
+        final Key key = new Key(_persistit);
+        try {
+            template.append(key, 1);
+            fail("Expected ConversionException");
+        } catch (final ConversionException e) {
+            // expected: first segment is a long
+        }
+        template.append(template.append(key, 1L), "x");
+        try {
+            template.append(key, "y");
+            fail("Expected ConversionException");
+        } catch (final ConversionException e) {
+            // expected: template has only two segments
+        }
+        key.reset().decodeLong();
+        try {
+            template.decode(key, 1, null, null);
+            fail("Expected ConversionException");
+        } catch (final ConversionException e) {
+            // expected: no KeyCoder for String
+        }
+        try {
+            new KeyTemplate(_persistit, Thread.class);
+            fail("Expected ConversionException");
+        } catch (final ConversionException e) {
+            // expected
+        }
+    }
+}
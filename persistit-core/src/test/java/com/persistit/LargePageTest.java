@@ -0,0 +1,108 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class LargePageTest extends PersistitUnitTestCase {
+
+    private final static int PAGE_SIZE = 32768;
+
+    @Override
+    public void setUp() throws Exception {
+        final Properties p = getProperties(true);
+        p.setProperty("buffer.count." + PAGE_SIZE, "100");
+        p.setProperty("volume.1", "${datapath}/large,create,pageSize:" + PAGE_SIZE
+                + ",initialPages:10,extensionPages:100,maximumPages:25000");
+        _persistit.setProperties(p);
+        _persistit.initialize();
+    }
+
+    @Test
+    public void keyBlockEncoding() throws Exception {
+        for (int tail = Buffer.KEY_BLOCK_START; tail < PAGE_SIZE; tail += Buffer.TAILBLOCK_FACTOR) {
+            final int kbData = Buffer.encodeKeyBlock(Key.MAX_KEY_LENGTH, 0xFF, tail);
+            assertEquals(tail, Buffer.decodeKeyBlockTail(kbData));
+            assertEquals(Key.MAX_KEY_LENGTH, Buffer.decodeKeyBlockEbc(kbData));
+            assertEquals(0xFF, Buffer.decodeKeyBlockDb(kbData));
+            final int moved = Buffer.encodeKeyBlockTail(kbData, PAGE_SIZE - Buffer.TAILBLOCK_FACTOR - tail);
+            assertEquals(PAGE_SIZE - Buffer.TAILBLOCK_FACTOR - tail, Buffer.decodeKeyBlockTail(moved));
+            assertEquals(Key.MAX_KEY_LENGTH, Buffer.decodeKeyBlockEbc(moved));
+        }
+        /*
+         * Key blocks in pages of 16K or less are encoded as before
+         */
+        assertEquals((5 << 8) | 7 | (16380 << 18), Buffer.encodeKeyBlock(5, 7, 16380));
+    }
+
+    @Test
+    public void storeAndFetchLargePages() throws Exception {
+        final Volume volume = _persistit.getVolume("large");
+        assertEquals(PAGE_SIZE, volume.getPageSize());
+        final Exchange ex = _persistit.getExchange("large", "LargePageTest", true);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.setLength(0);
+            sb.append(createString(i % 100 == 0 ? 20000 : (i * 7) % 500));
+            ex.clear().append("key").append(i).append(createString(i % 50));
+            ex.getValue().put(sb.toString());
+            ex.store();
+        }
+        verify(ex);
+        for (int i = 0; i < 2000; i += 3) {
+            ex.clear().append("key").append(i).append(createString(i % 50));
+            assertTrue(ex.remove());
+        }
+        verifyRemoved(ex);
+
+        final Configuration config = _persistit.getConfiguration();
+        _persistit.close();
+        _persistit = new Persistit(config);
+        final Exchange ex2 = _persistit.getExchange("large", "LargePageTest", false);
+        verifyRemoved(ex2);
+
+        final IntegrityCheck icheck = new IntegrityCheck(_persistit);
+        icheck.checkVolume(_persistit.getVolume("large"));
+        assertEquals("Corrupt volume", 0, icheck.getFaults().length);
+    }
+
+    private void verify(final Exchange ex) throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            ex.clear().append("key").append(i).append(createString(i % 50));
+            ex.fetch();
+            assertEquals(createString(i % 100 == 0 ? 20000 : (i * 7) % 500), ex.getValue().getString());
+        }
+    }
+
+    private void verifyRemoved(final Exchange ex) throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            ex.clear().append("key").append(i).append(createString(i % 50));
+            ex.fetch();
+            if (i % 3 == 0) {
+                assertFalse(ex.getValue().isDefined());
+            } else {
+                assertEquals(createString(i % 100 == 0 ? 20000 : (i * 7) % 500), ex.getValue().getString());
+            }
+        }
+    }
+}
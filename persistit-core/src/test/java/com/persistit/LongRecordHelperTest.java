@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static com.persistit.Buffer.LONGREC_SIZE;
+import static com.persistit.Buffer.PAGE_TYPE_LONG_RECORD;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongRecordHelperTest extends PersistitUnitTestCase {
+
+    private final static int PAGES = 40;
+
+    @Test
+    public void longRecordIsAllocatedAsExtent() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "LongRecordHelperTest", true);
+        final Volume volume = ex.getVolume();
+        final Value value = bigValue(volume);
+        final long page = new LongRecordHelper(_persistit, ex).storeLongRecord(value, false);
+
+        int count = 0;
+        for (long p = page; p != 0; count++) {
+            final Buffer copy = volume.getPool().getBufferCopy(volume, p);
+            assertEquals(PAGE_TYPE_LONG_RECORD, copy.getPageType());
+            final long next = copy.getRightSibling();
+            assertTrue("Long record pages are not consecutive", next == 0 || next == p + 1);
+            p = next;
+        }
+        assertTrue(count >= PAGES);
+        volume.getStructure().deallocateGarbageChain(page, 0);
+    }
+
+    @Test
+    public void longRecordIsReadDirectlyFromVolume() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "LongRecordHelperTest", true);
+        final Volume volume = ex.getVolume();
+        final BufferPool pool = volume.getPool();
+        final Value value = bigValue(volume);
+        final byte[] expected = Arrays.copyOf(value.getEncodedBytes(), value.getEncodedSize());
+        final LongRecordHelper helper = new LongRecordHelper(_persistit, ex);
+        final long page = helper.storeLongRecord(value, false);
+        final byte[] descriptor = Arrays.copyOf(value.getEncodedBytes(), LONGREC_SIZE);
+
+        _persistit.copyBackPages();
+        pool.evict(volume);
+        assertFalse(pool.isResident(volume, page + 1));
+        assertFalse(_persistit.getJournalManager().isPageInJournal(page + 1, volume));
+
+        final long reads = volume.getStatistics().getReadCounter();
+        final Value fetched = new Value(_persistit);
+        fetched.putEncodedBytes(descriptor, 0, descriptor.length);
+        helper.fetchLongRecord(fetched, Integer.MAX_VALUE, SharedResource.DEFAULT_MAX_WAIT_TIME);
+        assertArrayEquals(expected, Arrays.copyOf(fetched.getEncodedBytes(), fetched.getEncodedSize()));
+        assertTrue(volume.getStatistics().getReadCounter() - reads >= PAGES);
+        for (int index = 1; index < PAGES; index++) {
+            assertFalse("Page should not have been read into the buffer pool", pool.isResident(volume, page + index));
+        }
+
+        /*
+         * A page modified in the buffer pool must be read from there
+         */
+        final Buffer buffer = pool.get(volume, page + 2, true, true);
+        final long timestamp = _persistit.getTimestampAllocator().updateTimestamp();
+        buffer.writePageOnCheckpoint(timestamp);
+        buffer.getBytes()[Buffer.HEADER_SIZE] ^= 0xFF;
+        buffer.setDirtyAtTimestamp(timestamp);
+        buffer.release();
+        expected[Buffer.LONGREC_PREFIX_SIZE + 2 * (pool.getBufferSize() - Buffer.HEADER_SIZE)] ^= 0xFF;
+
+        fetched.putEncodedBytes(descriptor, 0, descriptor.length);
+        helper.fetchLongRecord(fetched, Integer.MAX_VALUE, SharedResource.DEFAULT_MAX_WAIT_TIME);
+        assertArrayEquals(expected, Arrays.copyOf(fetched.getEncodedBytes(), fetched.getEncodedSize()));
+        volume.getStructure().deallocateGarbageChain(page, 0);
+    }
+
+    private Value bigValue(final Volume volume) {
+        final byte[] bytes = new byte[volume.getPool().getBufferSize() * PAGES];
+        new Random(1).nextBytes(bytes);
+        final Value value = new Value(_persistit);
+        value.setMaximumSize(bytes.length * 2);
+        value.put(bytes);
+        return value;
+    }
+}
@@ -26,6 +26,7 @@ import java.util.List;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class MVCCBasicTest extends MVCCTestBase {
     private static final String KEY1 = "k1";
@@ -1055,6 +1056,70 @@ public class MVCCBasicTest extends MVCCTestBase {
         }
     }
 
+    @Test
+    public void testSnapshotSeesStartingState() throws Exception {
+        trx1.begin();
+        try {
+            store(ex1, KEY1, VALUE1);
+            trx1.commit();
+        } finally {
+            trx1.end();
+        }
+
+        trx2.beginSnapshot();
+        try {
+            assertTrue("snapshot is active", trx2.isActive() && trx2.isSnapshot());
+            assertEquals("committed value visible to snapshot", VALUE1, fetch(ex2, KEY1));
+
+            trx1.begin();
+            try {
+                store(ex1, KEY1, VALUE2);
+                store(ex1, KEY2, VALUE2);
+                trx1.commit();
+            } finally {
+                trx1.end();
+            }
+
+            assertEquals("later commit invisible to snapshot", VALUE1, fetch(ex2, KEY1));
+            fetch(ex2, KEY2, false);
+            assertFalse("later insert invisible to snapshot", ex2.getValue().isDefined());
+            trx2.commit();
+        } finally {
+            trx2.end();
+        }
+        assertFalse("snapshot ended", trx2.isActive() || trx2.isSnapshot());
+
+        trx2.beginSnapshot();
+        try {
+            assertEquals("new snapshot sees later commit", VALUE2, fetch(ex2, KEY1));
+        } finally {
+            trx2.end();
+        }
+    }
+
+    @Test
+    public void testSnapshotRejectsUpdates() throws Exception {
+        trx1.beginSnapshot();
+        try {
+            try {
+                store(ex1, KEY1, VALUE1);
+                fail("Expected IllegalStateException");
+            } catch (final IllegalStateException e) {
+                // expected
+            }
+            try {
+                remove(ex1, KEY1);
+                fail("Expected IllegalStateException");
+            } catch (final IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            trx1.end();
+        }
+        fetch(ex1, KEY1, false);
+        assertFalse("rejected update was not applied", ex1.getValue().isDefined());
+    }
+
     //
     // Test Helpers
     //
@@ -409,6 +409,32 @@ public class MVCCPruneTest extends MVCCTestBase {
         assertEquals("Has children", true, hasChildren);
     }
 
+    @Test
+    public void testSnapshotPreventsPrune() throws PersistitException {
+        storePrimordial(ex1, KEY, VALUE);
+
+        trx2.beginSnapshot();
+        try {
+            trx1.begin();
+            try {
+                store(ex1, KEY, VALUE_TRX1);
+                trx1.commit();
+            } finally {
+                trx1.end();
+            }
+
+            prune(ex1, KEY);
+            assertEquals("version count with snapshot active", 2, storedVersionCount(ex1, KEY));
+            assertEquals("snapshot value after prune", VALUE, fetch(ex2, KEY));
+        } finally {
+            trx2.end();
+        }
+
+        prune(ex1, KEY);
+        assertEquals("version count after snapshot ended", 1, storedVersionCount(ex1, KEY));
+        assertEquals("value after prune", VALUE_TRX1, fetch(ex1, KEY));
+    }
+
     //
     // Test helper methods
     //
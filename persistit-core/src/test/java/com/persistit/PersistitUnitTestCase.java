@@ -250,4 +250,18 @@ public abstract class PersistitUnitTestCase {
     _persistit.checkpoint();
     _persistit.getJournalManager().copyBack();
   }
+
+  /**
+   * Wait up to 30 seconds for a task launched through {@link Management} to
+   * complete.
+   */
+  protected void waitForTask(final long taskId) throws Exception {
+    for (int waiting = 0; waiting < 60; waiting++) {
+      if (_persistit.getManagement().execute("task taskId=" + taskId).isEmpty()) {
+        return;
+      }
+      Thread.sleep(500);
+    }
+    throw new IllegalStateException("Task " + taskId + " did not complete within 30 seconds");
+  }
 }
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class ShrinkTaskTest extends PersistitUnitTestCase {
+
+    private final static int SIZE = 10000;
+
+    @Test
+    public void shrinkAfterRemovingTree() throws Exception {
+        final Volume volume = _persistit.getVolume("persistit");
+        final Exchange ex = storeInterleaved();
+        final long pagesBefore = volume.getStorage().getNextAvailablePage();
+        final long lengthBefore = new File(volume.getPath()).length();
+
+        final ShrinkTask task = new ShrinkTask(_persistit);
+        final long released = task.shrinkVolume(volume);
+
+        assertTrue("Expected pages to be released", released > 0);
+        assertEquals(released, task.getPagesReleased());
+        assertTrue("Expected pages to be relocated", task.getPagesRelocated() > 0);
+        assertEquals(pagesBefore - released, volume.getStorage().getNextAvailablePage());
+        assertTrue(new File(volume.getPath()).length() < lengthBefore);
+        assertEquals(0, icheck().getFaults().length);
+        verify(ex);
+        /*
+         * The volume remains usable and its content survives recovery
+         */
+        ex.getValue().put(RED_FOX);
+        for (int i = SIZE; i < SIZE * 2; i++) {
+            ex.to(i).store();
+        }
+        _persistit.checkpoint();
+        safeCrashAndRestoreProperties();
+        assertEquals(0, icheck().getFaults().length);
+        final Exchange ex2 = _persistit.getExchange("persistit", "ShrinkTaskTest", false);
+        int count = 0;
+        ex2.clear().append(Key.BEFORE);
+        while (ex2.next()) {
+            assertEquals(count, ex2.getKey().decodeInt());
+            count++;
+        }
+        assertEquals(SIZE * 2, count);
+    }
+
+    @Test
+    public void shrinkCommand() throws Exception {
+        final Volume volume = _persistit.getVolume("persistit");
+        final Exchange ex = storeInterleaved();
+        final long pagesBefore = volume.getStorage().getNextAvailablePage();
+
+        final Management management = _persistit.getManagement();
+        final String status = management.launch("shrink volumes=persistit");
+        waitForTask(Long.parseLong(status));
+
+        assertTrue(volume.getStorage().getNextAvailablePage() < pagesBefore);
+        assertEquals(0, icheck().getFaults().length);
+        verify(ex);
+        /*
+         * Nothing is left to release
+         */
+        assertEquals(0, new ShrinkTask(_persistit).shrinkVolume(volume));
+    }
+
+    /**
+     * Store records in two trees alternately so that their pages are
+     * interleaved, then remove the second tree, leaving free pages scattered
+     * throughout the volume.
+     */
+    private Exchange storeInterleaved() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ShrinkTaskTest", true);
+        final Exchange other = _persistit.getExchange("persistit", "ShrinkTaskTest_other", true);
+        ex.getValue().put(RED_FOX);
+        other.getValue().put(RED_FOX);
+        for (int i = 0; i < SIZE; i++) {
+            ex.to(i).store();
+            other.to(i).store();
+        }
+        other.removeTree();
+        _persistit.releaseExchange(other);
+        _persistit.cleanup();
+        return ex;
+    }
+
+    private void verify(final Exchange ex) throws Exception {
+        int count = 0;
+        ex.clear().append(Key.BEFORE);
+        while (ex.next()) {
+            assertEquals(count, ex.getKey().decodeInt());
+            assertEquals(RED_FOX, ex.getValue().getString());
+            count++;
+        }
+        assertEquals(SIZE, count);
+    }
+
+    private IntegrityCheck icheck() throws Exception {
+        final IntegrityCheck icheck = new IntegrityCheck(_persistit);
+        icheck.checkVolume(_persistit.getVolume("persistit"));
+        return icheck;
+    }
+}
@@ -17,6 +17,7 @@
 package com.persistit;
 
 import com.persistit.Exchange.Sequence;
+import com.persistit.policy.JoinPolicy;
 import com.persistit.policy.SplitPolicy;
 import org.junit.Test;
 
@@ -266,4 +267,56 @@ public class SplitPolicyTest extends PersistitUnitTestCase {
         return used / total;
     }
 
+    @Test
+    public void testSplitInterval() {
+        final int capacity = 16384;
+        assertEquals(capacity / 16, SplitPolicy.EVEN_BIAS.splitInterval(capacity, Sequence.NONE));
+        assertEquals(capacity / 16, SplitPolicy.PACK_BIAS.splitInterval(capacity, Sequence.NONE));
+        /*
+         * Sequential inserts into a PACK_BIAS tree split at the insertion
+         * point
+         */
+        assertEquals(0, SplitPolicy.PACK_BIAS.splitInterval(capacity, Sequence.FORWARD));
+        assertEquals(0, SplitPolicy.PACK_BIAS.splitInterval(capacity, Sequence.REVERSE));
+        assertEquals(capacity / 16, JoinPolicy.EVEN_BIAS.rebalanceInterval(capacity));
+    }
+
+    @Test
+    public void testShortSeparators() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "SplitPolicyTest", true);
+        final Random random = new Random(1);
+        ex.setSplitPolicy(SplitPolicy.EVEN_BIAS);
+        ex.getValue().put("aaabbbcccdddeee");
+        final String padding = "abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyz";
+        /*
+         * One key in eight is short
+         */
+        for (int count = 0; count < 5000; count++) {
+            final int i = random.nextInt(1000000);
+            ex.clear().append(i);
+            if (i % 8 != 0) {
+                ex.append(padding);
+            }
+            ex.store();
+        }
+        final Buffer buffer = ex.fetchBufferCopy(1);
+        assertTrue(buffer.isIndexPage());
+        final Key key = new Key(_persistit);
+        int separators = 0;
+        int shortSeparators = 0;
+        for (int p = buffer.getKeyBlockStart(); p < buffer.getKeyBlockEnd(); p += Buffer.KEYBLOCK_LENGTH) {
+            buffer.keyAt(p, key);
+            if (key.getDepth() == 1) {
+                shortSeparators++;
+            }
+            separators++;
+        }
+        assertTrue(separators > 10);
+        /*
+         * Most separators should be short keys even though they are only one
+         * eighth of the keys
+         */
+        assertTrue("Only " + shortSeparators + " of " + separators + " separators are short",
+                shortSeparators * 2 > separators);
+    }
 }
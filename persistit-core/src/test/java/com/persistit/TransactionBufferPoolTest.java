@@ -0,0 +1,90 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionBufferPoolTest {
+
+    @Test
+    public void sizeClasses() {
+        final TransactionBufferPool pool = new TransactionBufferPool();
+        assertEquals(TransactionBufferPool.MINIMUM_BUFFER_SIZE, pool.acquire(0).capacity());
+        assertEquals(TransactionBufferPool.MINIMUM_BUFFER_SIZE, pool.acquire(4096).capacity());
+        assertEquals(8192, pool.acquire(4097).capacity());
+        assertEquals(32768, pool.acquire(20000).capacity());
+        assertEquals(TransactionBufferPool.MAXIMUM_BUFFER_SIZE, pool.acquire(65536).capacity());
+        assertEquals(TransactionBufferPool.MAXIMUM_BUFFER_SIZE, pool.acquire(1000000).capacity());
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        final TransactionBufferPool pool = new TransactionBufferPool();
+        final ByteBuffer bb1 = pool.acquire(100);
+        bb1.putLong(42);
+        pool.release(bb1);
+        assertEquals(TransactionBufferPool.MINIMUM_BUFFER_SIZE, pool.getRetainedBytes());
+        final ByteBuffer bb2 = pool.acquire(100);
+        assertSame(bb1, bb2);
+        assertEquals(0, bb2.position());
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void growPreservesContent() {
+        final TransactionBufferPool pool = new TransactionBufferPool();
+        ByteBuffer bb = pool.acquire(0);
+        for (int i = 0; i < 1000; i++) {
+            if (bb.remaining() < 4) {
+                final ByteBuffer larger = pool.grow(bb, 4);
+                assertNotSame(bb, larger);
+                assertTrue(larger.capacity() > bb.capacity());
+                bb = larger;
+            }
+            bb.putInt(i);
+        }
+        assertEquals(4000, bb.position());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, bb.getInt(i * 4));
+        }
+        final ByteBuffer full = pool.acquire(TransactionBufferPool.MAXIMUM_BUFFER_SIZE);
+        assertSame(full, pool.grow(full, 1));
+    }
+
+    @Test
+    public void retentionIsBounded() {
+        final TransactionBufferPool pool = new TransactionBufferPool(TransactionBufferPool.MINIMUM_BUFFER_SIZE * 2);
+        for (int i = 0; i < 5; i++) {
+            pool.release(ByteBuffer.allocate(TransactionBufferPool.MINIMUM_BUFFER_SIZE));
+        }
+        assertEquals(TransactionBufferPool.MINIMUM_BUFFER_SIZE * 2, pool.getRetainedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBuffer() {
+        new TransactionBufferPool().release(ByteBuffer.allocate(5000));
+    }
+}
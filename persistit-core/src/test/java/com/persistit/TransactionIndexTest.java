@@ -16,13 +16,25 @@
 
 package com.persistit;
 
+import com.persistit.util.ThreadSequencer.Condition;
 import junit.framework.TestCase;
 import org.junit.Test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.persistit.TransactionStatus.ABORTED;
 import static com.persistit.TransactionStatus.UNCOMMITTED;
+import static com.persistit.util.SequencerConstants.REGISTRATION_FENCE_A;
+import static com.persistit.util.SequencerConstants.REGISTRATION_FENCE_B;
+import static com.persistit.util.SequencerConstants.REGISTRATION_FENCE_C;
+import static com.persistit.util.SequencerConstants.REGISTRATION_FENCE_SCHEDULED;
+import static com.persistit.util.ThreadSequencer.addSchedules;
+import static com.persistit.util.ThreadSequencer.disableSequencer;
+import static com.persistit.util.ThreadSequencer.enableSequencer;
+import static com.persistit.util.ThreadSequencer.sequence;
+import static com.persistit.util.ThreadSequencer.setCondition;
 
 public class TransactionIndexTest extends TestCase {
 
@@ -358,4 +370,144 @@ public class TransactionIndexTest extends TestCase {
         ti.cleanup();
         assertTrue(ti.wwDependency(TransactionIndex.ts2vh(ts2.getTs()), ts1, 0) != 0);
     }
+
+    /**
+     * Registration no longer holds a global monitor. Asserts that whenever the
+     * ActiveTransactionCache has been recomputed at a ceiling at or above the
+     * start timestamp of a still-active transaction or snapshot, the cache
+     * accounts for it.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentRegistrationVisibleToCache() throws Exception {
+        final TransactionIndex ti = new TransactionIndex(_tsa, 16);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong failures = new AtomicLong();
+        final Thread updater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    ti.updateActiveTransactionCache();
+                }
+            }
+        });
+        final Thread[] workers = new Thread[8];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final TransactionIndex.SnapshotSlot slot = ti.allocateSnapshotSlot();
+                    try {
+                        for (int count = 0; count < 2000; count++) {
+                            final long ts;
+                            final TransactionStatus status;
+                            if (count % 2 == 0) {
+                                status = ti.registerTransaction();
+                                ts = status.getTs();
+                            } else {
+                                status = null;
+                                ts = ti.registerSnapshot(slot);
+                            }
+                            for (int check = 0; check < 10; check++) {
+                                final TransactionIndex.ActiveTransactionCache cache = ti.getActiveTransactionCache();
+                                final long ceiling = ti.getActiveTransactionCeiling();
+                                if (ceiling >= ts && !cache.hasConcurrentTransaction(ts - 1, ts)
+                                        && ti.getActiveTransactionCache() == cache) {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                            if (status != null) {
+                                status.commit(_tsa.updateTimestamp());
+                                ti.notifyCompleted(status, _tsa.getCurrentTimestamp());
+                            } else {
+                                ti.unregisterSnapshot(slot);
+                            }
+                        }
+                    } catch (final Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        ti.releaseSnapshotSlot(slot);
+                    }
+                }
+            });
+        }
+        updater.start();
+        for (final Thread worker : workers) {
+            worker.start();
+        }
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        done.set(true);
+        updater.join();
+        assertEquals(0, failures.get());
+        ti.cleanup();
+        assertEquals(0, ti.getCurrentCount());
+    }
+
+    /**
+     * A registration that reads the epoch and is then delayed until after a
+     * drain has advanced the epoch and found its set empty must still be seen
+     * by the next drain.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRegistrationDelayedAcrossDrain() throws Exception {
+        final TransactionIndex.RegistrationFence fence = new TransactionIndex.RegistrationFence();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch exit = new CountDownLatch(1);
+        final AtomicBoolean armed = new AtomicBoolean(true);
+        try {
+            enableSequencer(false);
+            addSchedules(REGISTRATION_FENCE_SCHEDULED);
+            setCondition(REGISTRATION_FENCE_A, new Condition() {
+                @Override
+                public boolean enabled() {
+                    return armed.compareAndSet(true, false);
+                }
+            });
+            final Thread registrant = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final int token = fence.enter();
+                    entered.countDown();
+                    try {
+                        exit.await();
+                    } catch (final InterruptedException e) {
+                        // exit anyway
+                    }
+                    fence.exit(token);
+                }
+            });
+            registrant.start();
+            /*
+             * The registrant has read the epoch but has not yet incremented
+             * its counter, so this drain does not wait for it.
+             */
+            sequence(REGISTRATION_FENCE_B);
+            fence.drain();
+            sequence(REGISTRATION_FENCE_C);
+            entered.await();
+
+            final Thread drainer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    fence.drain();
+                }
+            });
+            drainer.start();
+            drainer.join(500);
+            assertTrue("Drain missed a registration in progress", drainer.isAlive());
+            exit.countDown();
+            drainer.join(10000);
+            assertFalse(drainer.isAlive());
+            registrant.join();
+        } finally {
+            exit.countDown();
+            disableSequencer();
+            setCondition(REGISTRATION_FENCE_A, new Condition());
+        }
+    }
 }
@@ -252,14 +252,19 @@ public class TransactionLifetimeTest extends PersistitUnitTestCase {
     private static final Node RESTART = new Node("RESTART");
 
     private static int storeMoreThanTxnBuffer(final Exchange ex, int writeCount) throws PersistitException {
-        final ByteBuffer txnBuffer = ex.getTransaction().getTransactionBuffer();
+        final Transaction txn = ex.getTransaction();
         for (;;) {
-            final int prevPos = txnBuffer.position();
+            /*
+             * The buffer is replaced by a larger one as it fills, so fetch it
+             * again on every iteration.
+             */
+            final ByteBuffer txnBuffer = txn.getTransactionBuffer();
+            final int prevPos = txnBuffer == null ? 0 : txnBuffer.position();
             ex.clear().append(KEY_PREFIX + writeCount);
             ex.getValue().clear().put(VALUE_PREFIX + writeCount);
             ex.store();
             ++writeCount;
-            if (prevPos > txnBuffer.position()) {
+            if (prevPos > txn.getTransactionBuffer().position()) {
                 break;
             }
         }
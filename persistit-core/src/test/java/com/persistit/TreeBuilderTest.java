@@ -102,6 +102,145 @@ public class TreeBuilderTest extends PersistitUnitTestCase {
         assertEquals(0, a.getBufferPool().getDirtyPageCount());
     }
 
+    @Test
+    public void concurrentSortAndMerge() throws Exception {
+        final TreeBuilder tb = getBasicTreeBuilder();
+        tb.setMergeThreadCount(3);
+        final int threadCount = 4;
+        final String[] treeNames = { "a", "b", "c", "d" };
+        final Thread[] threads = new Thread[threadCount];
+        final AtomicInteger errors = new AtomicInteger();
+        for (int t = 0; t < threadCount; t++) {
+            final int base = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Random random = new Random(base);
+                        final List<Integer> shuffled = new ArrayList<Integer>();
+                        for (int i = base; i < COUNT; i += threadCount) {
+                            shuffled.add(i);
+                        }
+                        Collections.shuffle(shuffled, random);
+                        final Exchange[] exchanges = new Exchange[treeNames.length];
+                        for (int j = 0; j < treeNames.length; j++) {
+                            exchanges[j] = _persistit.getExchange(VOLUME_NAME, treeNames[j], true);
+                        }
+                        int stored = 0;
+                        for (final int k : shuffled) {
+                            for (final Exchange ex : exchanges) {
+                                ex.clear().append(k).getValue().put(RED_FOX + k);
+                                tb.store(ex);
+                            }
+                            if (++stored % (COUNT / 10) == 0) {
+                                tb.unitTestNextSortFile();
+                            }
+                        }
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertTrue("Expect a sort file per thread", tb.getSortFileCount() >= threadCount);
+
+        tb.merge();
+
+        assertEquals(COUNT * treeNames.length, tb.getMergedKeyCount());
+        for (final String treeName : treeNames) {
+            final Exchange ex = _persistit.getExchange(VOLUME_NAME, treeName, false);
+            ex.clear();
+            int count = 0;
+            while (ex.next(true)) {
+                assertEquals("Expect correct key value", count, ex.getKey().decodeInt());
+                assertEquals(RED_FOX + count, ex.getValue().getString());
+                count++;
+            }
+            assertEquals("Expect every key value", COUNT, count);
+        }
+    }
+
+    @Test
+    public void bulkLoadEmptyTrees() throws Exception {
+        final TreeBuilder tb = getBasicTreeBuilder();
+        tb.setBulkLoad(true);
+        final Exchange a = _persistit.getExchange(VOLUME_NAME, "a", true);
+        final Exchange b = _persistit.getExchange(VOLUME_NAME, "b", true);
+        b.clear().append(-1).getValue().put(RED_FOX);
+        b.store();
+        final long rootBefore = a.getTree().getRootPageAddr();
+
+        final List<Integer> shuffled = new ArrayList<Integer>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            shuffled.add(i);
+        }
+        Collections.shuffle(shuffled);
+        for (int i = 0; i < COUNT; i++) {
+            final int k = shuffled.get(i);
+            a.clear().append(k).getValue().put(RED_FOX + k);
+            b.clear().append(k).getValue().put(RED_FOX + k);
+            tb.store(a);
+            tb.store(b);
+            if (i % (COUNT / 4) == 0) {
+                tb.unitTestNextSortFile();
+            }
+        }
+        a.clear().append(shuffled.get(0)).getValue().put("duplicate");
+        tb.store(a);
+        _duplicates.set(0);
+
+        tb.merge();
+
+        assertEquals(1, _duplicates.get());
+        assertEquals(COUNT * 2, tb.getMergedKeyCount());
+        assertTrue("Expect a new root page", a.getTree().getRootPageAddr() != rootBefore);
+        for (final Exchange ex : new Exchange[] { a, b }) {
+            ex.clear();
+            int count = ex == b ? -1 : 0;
+            while (ex.next(true)) {
+                assertEquals("Expect correct key value", count, ex.getKey().decodeInt());
+                assertEquals(count < 0 ? RED_FOX : RED_FOX + count, ex.getValue().getString());
+                count++;
+            }
+            assertEquals("Expect every key value", COUNT, count);
+        }
+        final IntegrityCheck icheck = new IntegrityCheck(_persistit);
+        icheck.checkVolume(a.getVolume());
+        assertEquals(0, icheck.getFaults().length);
+    }
+
+    @Test
+    public void countedTreeIsNotBulkLoaded() throws Exception {
+        final TreeBuilder tb = getBasicTreeBuilder();
+        tb.setBulkLoad(true);
+        final Exchange a = _persistit.getExchange(VOLUME_NAME, "a", true);
+        /*
+         * BulkLoader rejects a tree whose keys are counted, so merge must
+         * store its records instead.
+         */
+        a.getTree().countKeys(0);
+        for (int i = COUNT; --i >= 0;) {
+            a.clear().append(i).getValue().put(RED_FOX + i);
+            tb.store(a);
+        }
+        tb.merge();
+        assertEquals(COUNT, tb.getMergedKeyCount());
+        a.clear();
+        int count = 0;
+        while (a.next(true)) {
+            assertEquals(count, a.getKey().decodeInt());
+            assertEquals(RED_FOX + count, a.getValue().getString());
+            count++;
+        }
+        assertEquals(COUNT, count);
+    }
+
     @Test
     public void customizationMethods() throws Exception {
         final AtomicBoolean doReplace = new AtomicBoolean();
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.persistit.exception.ConversionException;
+
+public class ValueStreamTest extends PersistitUnitTestCase {
+
+    private final static int SIZE = 3 * 1024 * 1024 + 17;
+
+    @Test
+    public void storeAndReadSmallValue() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueStreamTest", true);
+        final byte[] bytes = randomBytes(100);
+        ex.clear().append("small").storeFromStream(new ByteArrayInputStream(bytes), bytes.length);
+        assertArrayEquals(bytes, ex.fetch().getValue().getByteArray());
+        assertArrayEquals(bytes, readAll(ex.openValueStream()));
+    }
+
+    @Test
+    public void storeAndReadLongRecord() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueStreamTest", true);
+        final byte[] bytes = randomBytes(SIZE);
+        ex.clear().append("long").storeFromStream(new ByteArrayInputStream(bytes), bytes.length);
+        ex.getValue().setMaximumSize(Value.MAXIMUM_SIZE);
+        assertArrayEquals(bytes, ex.fetch().getValue().getByteArray());
+        assertArrayEquals(bytes, readAll(ex.openValueStream()));
+
+        final InputStream in = ex.openValueStream();
+        final int offset = SIZE / 2 + 12345;
+        assertEquals(offset, in.skip(offset));
+        final byte[] part = new byte[5000];
+        int count = 0;
+        while (count < part.length) {
+            count += in.read(part, count, part.length - count);
+        }
+        assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + part.length), part);
+        in.close();
+
+        ex.fetch(1000);
+        assertTrue(ex.getValue().getEncodedSize() < SIZE / 2);
+
+        ex.remove();
+        assertNull(ex.openValueStream());
+    }
+
+    @Test
+    public void storeLongRecordInTransaction() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueStreamTest", true);
+        final byte[] bytes = randomBytes(SIZE);
+        final Transaction txn = ex.getTransaction();
+        txn.begin();
+        try {
+            ex.clear().append("txn").storeFromStream(new ByteArrayInputStream(bytes), bytes.length);
+            assertArrayEquals(bytes, readAll(ex.openValueStream()));
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+        assertArrayEquals(bytes, readAll(ex.openValueStream()));
+    }
+
+    @Test
+    public void streamDetectsChangedValue() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueStreamTest", true);
+        final byte[] bytes = randomBytes(SIZE);
+        ex.clear().append("changed").storeFromStream(new ByteArrayInputStream(bytes), bytes.length);
+        final InputStream in = ex.openValueStream();
+        in.read(new byte[1000]);
+        ex.storeFromStream(new ByteArrayInputStream(bytes), bytes.length);
+        try {
+            readAll(in);
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shortStreamLeavesValueUnchanged() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueStreamTest", true);
+        final byte[] bytes = randomBytes(SIZE);
+        ex.clear().append("short").getValue().put("original");
+        ex.store();
+        try {
+            ex.storeFromStream(new ByteArrayInputStream(bytes), bytes.length + 1);
+            fail("Expected EOFException");
+        } catch (final EOFException e) {
+            // expected
+        }
+        assertEquals("original", ex.fetch().getValue().get());
+        try {
+            ex.openValueStream();
+            fail("Expected ConversionException");
+        } catch (final ConversionException e) {
+            // expected
+        }
+        assertFalse(ex.getVolume().getStructure().getGarbageRoot() == 0);
+    }
+
+    private byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
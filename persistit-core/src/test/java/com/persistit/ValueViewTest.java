@@ -0,0 +1,171 @@
+/**
+ * Copyright 2011-2012 Akiban Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.persistit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.persistit.Exchange.ValueVisitor;
+import com.persistit.exception.ConversionException;
+import com.persistit.exception.PersistitException;
+
+public class ValueViewTest extends PersistitUnitTestCase {
+
+    private final static int SIZE = 100000;
+
+    @Test
+    public void readPrimitivesFromPage() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueViewTest", true);
+        ex.getValue().put(42);
+        ex.clear().append("int").store();
+        ex.getValue().put(Long.MIN_VALUE + 17);
+        ex.clear().append("long").store();
+        ex.getValue().putNull();
+        ex.clear().append("null").store();
+
+        final AtomicReference<byte[]> viewed = new AtomicReference<byte[]>();
+        assertTrue(ex.clear().append("int").fetch(new ValueVisitor() {
+            @Override
+            public void visit(final ValueView view) {
+                viewed.set(view.getBytes());
+                assertEquals(42, view.getInt());
+                assertFalse(view.isNull());
+                try {
+                    view.getLong();
+                    fail("Expected ConversionException");
+                } catch (final ConversionException e) {
+                    // expected
+                }
+            }
+        }));
+        assertNotSame(ex.getValue().getEncodedBytes(), viewed.get());
+        assertEquals(ex.getVolume().getPageSize(), viewed.get().length);
+
+        assertTrue(ex.clear().append("long").fetch(new ValueVisitor() {
+            @Override
+            public void visit(final ValueView view) {
+                assertEquals(Long.MIN_VALUE + 17, view.getLong());
+            }
+        }));
+        assertTrue(ex.clear().append("null").fetch(new ValueVisitor() {
+            @Override
+            public void visit(final ValueView view) {
+                assertTrue(view.isNull());
+                assertEquals(-1, view.getByteArrayLength());
+            }
+        }));
+        assertFalse(ex.clear().append("missing").fetch(new ValueVisitor() {
+            @Override
+            public void visit(final ValueView view) {
+                fail("No value expected");
+            }
+        }));
+    }
+
+    @Test
+    public void readByteArrayRange() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueViewTest", true);
+        final byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        ex.getValue().put(bytes);
+        ex.clear().append("bytes").store();
+
+        final byte[] part = new byte[10];
+        assertTrue(ex.fetch(new ValueVisitor() {
+            @Override
+            public void visit(final ValueView view) {
+                assertEquals(bytes.length, view.getByteArrayLength());
+                assertEquals(10, view.getByteArray(part, 500, 0, 10));
+                assertEquals(5, view.getByteArray(part, 995, 0, 10));
+            }
+        }));
+        assertArrayEquals(Arrays.copyOfRange(bytes, 995, 1000), Arrays.copyOf(part, 5));
+    }
+
+    @Test
+    public void readLongRecordAndVersions() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueViewTest", true);
+        final byte[] bytes = new byte[SIZE];
+        Arrays.fill(bytes, (byte) 7);
+        ex.getValue().put(bytes);
+        ex.clear().append("long").store();
+
+        final Value copy = new Value(_persistit);
+        assertTrue(ex.fetch(new ValueVisitor() {
+            @Override
+            public void visit(final ValueView view) {
+                assertEquals(SIZE, view.getByteArrayLength());
+                view.copyTo(copy);
+            }
+        }));
+        assertArrayEquals(bytes, copy.getByteArray());
+
+        final Transaction txn = ex.getTransaction();
+        txn.begin();
+        try {
+            ex.getValue().put(99);
+            ex.clear().append("txn").store();
+            assertTrue(ex.fetch(new ValueVisitor() {
+                @Override
+                public void visit(final ValueView view) {
+                    assertEquals(99, view.getInt());
+                }
+            }));
+            ex.remove();
+            assertFalse(ex.fetch(new ValueVisitor() {
+                @Override
+                public void visit(final ValueView view) {
+                    fail("Removed value is not visible");
+                }
+            }));
+            txn.rollback();
+        } finally {
+            txn.end();
+        }
+    }
+
+    @Test
+    public void viewIsInvalidAfterVisit() throws Exception {
+        final Exchange ex = _persistit.getExchange("persistit", "ValueViewTest", true);
+        ex.getValue().put(1);
+        ex.clear().append("int").store();
+        final AtomicReference<ValueView> retained = new AtomicReference<ValueView>();
+        ex.fetch(new ValueVisitor() {
+            @Override
+            public void visit(final ValueView view) throws PersistitException {
+                retained.set(view);
+            }
+        });
+        try {
+            retained.get().getInt();
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -19,7 +19,10 @@ package com.persistit;
 import com.persistit.exception.PersistitException;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class VolumeStructureTest extends PersistitUnitTestCase {
 
@@ -100,4 +103,56 @@ public class VolumeStructureTest extends PersistitUnitTestCase {
         }
         _persistit.checkAllVolumes();
     }
+
+    @Test
+    public void allocationExtentUnderContention() throws Exception {
+        final Volume volume = _persistit.getVolume(VOLUME_NAME);
+        final VolumeStructure structure = volume.getStructure();
+        final long first = nextAvailable();
+        final long[] pages = new long[3];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int index = 0; index < pages.length; index++) {
+                        final Buffer buffer = structure.allocPage();
+                        pages[index] = buffer.getPageAddress();
+                        buffer.release();
+                    }
+                } catch (final Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        /*
+         * Hold the head buffer so that the allocating thread sees contention
+         */
+        volume.getStorage().claimHeadBuffer();
+        try {
+            thread.start();
+            Thread.sleep(100);
+        } finally {
+            volume.getStorage().releaseHeadBuffer();
+        }
+        thread.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(first, pages[0]);
+        assertEquals(first + 1, pages[1]);
+        assertEquals(first + 2, pages[2]);
+        assertEquals(first + VolumeStructure.ALLOCATION_EXTENT_PAGES, nextAvailable());
+
+        structure.releaseAllocationExtents();
+        assertTrue(structure.getGarbageRoot() != 0);
+        final Buffer buffer = structure.allocPage();
+        try {
+            assertTrue(buffer.getPageAddress() >= first + pages.length);
+            assertTrue(buffer.getPageAddress() < first + VolumeStructure.ALLOCATION_EXTENT_PAGES);
+        } finally {
+            buffer.release();
+        }
+        assertEquals(first + VolumeStructure.ALLOCATION_EXTENT_PAGES, nextAvailable());
+    }
 }
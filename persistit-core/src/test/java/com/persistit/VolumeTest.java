@@ -108,6 +108,114 @@ public class VolumeTest extends PersistitUnitTestCase {
     }
   }
 
+  @Test
+  public void testExtendAhead() throws Exception {
+    final VolumeSpecification vs = validVolumeSpecification("${datapath}/vtest, pageSize:16k, initialSize:64k, maximumSize:10m, extensionSize:160k, create");
+    final Volume volume = new Volume(vs);
+    volume.open(_persistit);
+    final VolumeStorage storage = volume.getStorage();
+    final long extensionPages = volume.getSpecification().getExtensionPages();
+    assertEquals(10, extensionPages);
+    final long initial = storage.getExtentedPageCount();
+    while (storage.getExtentedPageCount() - storage.getNextAvailablePage() >= extensionPages / 2) {
+      storage.allocNewPage();
+    }
+    /*
+     * The allocation that consumed the headroom kicked the VolumeExtender
+     */
+    final long expires = System.currentTimeMillis() + 10000;
+    while (storage.getExtentedPageCount() == initial && System.currentTimeMillis() < expires) {
+      Thread.sleep(10);
+    }
+    final long extended = storage.getExtentedPageCount();
+    assertTrue(extended > initial);
+    assertTrue(extended - storage.getNextAvailablePage() >= extensionPages / 2);
+    final File file = new File(volume.getPath());
+    assertEquals(extended * 16384, file.length());
+    /*
+     * Headroom is sufficient so extendAhead should have no effect
+     */
+    storage.extendAhead();
+    assertEquals(extended, storage.getExtentedPageCount());
+    volume.close();
+
+    final Volume reopened = new Volume(vs);
+    reopened.open(_persistit);
+    try {
+      assertEquals(extended, reopened.getStorage().getExtentedPageCount());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void testMappedVolume() throws Exception {
+    final VolumeSpecification vs = validVolumeSpecification("${datapath}/vtest, pageSize:16k, initialSize:64k, maximumSize:100m, extensionSize:1m, create, mapped");
+    assertTrue(vs.isMapped());
+    final Volume volume = _persistit.loadVolume(vs);
+    final Exchange ex = _persistit.getExchange(volume, "mapped", true);
+    for (int i = 0; i < 10000; i++) {
+      ex.to(i).getValue().put(RED_FOX + i);
+      ex.store();
+    }
+    _persistit.releaseExchange(ex);
+    _persistit.flush();
+    _persistit.copyBackPages();
+    assertTrue(volume.getPool().invalidate(volume));
+
+    final long reads = volume.getStatistics().getReadCounter();
+    final Exchange ex2 = _persistit.getExchange(volume, "mapped", false);
+    for (int i = 0; i < 10000; i++) {
+      ex2.to(i).fetch();
+      assertEquals(RED_FOX + i, ex2.getValue().getString());
+    }
+    assertTrue(volume.getStatistics().getReadCounter() > reads);
+    volume.close();
+  }
+
+  @Test
+  public void testCompressedVolume() throws Exception {
+    final VolumeSpecification vs = validVolumeSpecification("${datapath}/vtest, pageSize:16k, initialSize:64k, maximumSize:100m, extensionSize:1m, create, compressed");
+    assertTrue(vs.isCompressed());
+    final Volume volume = _persistit.loadVolume(vs);
+    final Exchange ex = _persistit.getExchange(volume, "compressed", true);
+    for (int i = 0; i < 10000; i++) {
+      ex.to(i).getValue().put(RED_FOX + i);
+      ex.store();
+    }
+    _persistit.releaseExchange(ex);
+    _persistit.flush();
+    _persistit.copyBackPages();
+    final VolumeStatistics stats = volume.getStatistics();
+    assertTrue(stats.getCompressedPageBytes() > 0);
+    assertTrue(stats.getCompressionRatio() > 2.0);
+    assertTrue(volume.getPool().invalidate(volume));
+
+    final Exchange ex2 = _persistit.getExchange(volume, "compressed", false);
+    for (int i = 0; i < 10000; i++) {
+      ex2.to(i).fetch();
+      assertEquals(RED_FOX + i, ex2.getValue().getString());
+    }
+    assertTrue(stats.getDecompressionTime() > 0);
+    _persistit.releaseExchange(ex2);
+    volume.close();
+
+    /*
+     * Compressed pages remain readable without the compressed attribute
+     */
+    final Volume reopened = _persistit.loadVolume(validVolumeSpecification("${datapath}/vtest, pageSize:16k, initialSize:64k, maximumSize:100m, extensionSize:1m, create"));
+    try {
+      final Exchange ex3 = _persistit.getExchange(reopened, "compressed", false);
+      for (int i = 0; i < 10000; i++) {
+        ex3.to(i).fetch();
+        assertEquals(RED_FOX + i, ex3.getValue().getString());
+      }
+      _persistit.releaseExchange(ex3);
+    } finally {
+      reopened.close();
+    }
+  }
+
   @Test
   public void testDeleteVolume() throws Exception {
     final VolumeSpecification vs = validVolumeSpecification("${datapath}/vtest, pageSize:16k, initialSize:1k, maximumSize:1m, extensionSize:1K, create");
@@ -147,6 +255,16 @@ public class VolumeTest extends PersistitUnitTestCase {
     vs2 = validVolumeSpecification(vs.toString());
     assertEquals("Parse of toString should be equal", vs, vs2);
 
+    vs = validVolumeSpecification("/a/b/c,name:crabcake,pageSize:16384,initialSize:10m,maximumSize:100m,extensionSize:10m,create,mapped");
+    assertTrue(vs.isMapped());
+    vs2 = validVolumeSpecification(vs.toString());
+    assertEquals("Parse of toString should be equal", vs, vs2);
+
+    vs = validVolumeSpecification("/a/b/c,pageSize:16384,initialSize:10m,maximumSize:100m,extensionSize:10m,create,compressed");
+    assertTrue(vs.isCompressed());
+    vs2 = validVolumeSpecification(vs.toString());
+    assertEquals("Parse of toString should be equal", vs, vs2);
+
     vs = validVolumeSpecification("/a/b/c");
     assertEquals("c", vs.getName());
     assertEquals(-1, vs.getPageSize());
@@ -308,6 +308,75 @@ public class ValueCoderTest2 extends PersistitUnitTestCase {
         System.out.println("- done");
     }
 
+    static class Sample {
+        final String name;
+        boolean flag;
+        byte b;
+        short s;
+        char c;
+        int i;
+        long l;
+        float f;
+        double d;
+        private int hidden;
+
+        Sample() {
+            name = null;
+        }
+
+        Sample(final String name) {
+            this.name = name;
+        }
+
+        public int getHidden() {
+            return hidden;
+        }
+
+        public void setHidden(final int hidden) {
+            this.hidden = hidden;
+        }
+    }
+
+    @Test
+    public void test5() throws PersistitException {
+        System.out.print("test5 ");
+        final DefaultObjectCoder coder = DefaultObjectCoder.registerObjectCoder(_persistit, Sample.class,
+                new String[] { "name", "i" }, new String[] { "flag", "b", "s", "c", "l", "f", "d", "hidden" });
+
+        final Sample sample1 = new Sample("s1");
+        sample1.flag = true;
+        sample1.b = -7;
+        sample1.s = Short.MIN_VALUE;
+        sample1.c = '\u20ac';
+        sample1.i = Integer.MAX_VALUE;
+        sample1.l = Long.MIN_VALUE;
+        sample1.f = 1.5f;
+        sample1.d = -Math.PI;
+        sample1.setHidden(42);
+
+        _exchange.getValue().put(sample1);
+        _exchange.clear().append(sample1).store();
+
+        _exchange.getValue().clear();
+        _exchange.fetch();
+        _exchange.getKey().reset();
+        final Sample sample2 = (Sample) _exchange.getKey().decode();
+        assertEquals("s1", sample2.name);
+        assertEquals(Integer.MAX_VALUE, sample2.i);
+
+        final Sample sample3 = (Sample) _exchange.getValue().get();
+        assertEquals(true, sample3.flag);
+        assertEquals(-7, sample3.b);
+        assertEquals(Short.MIN_VALUE, sample3.s);
+        assertEquals('\u20ac', sample3.c);
+        assertEquals(Long.MIN_VALUE, sample3.l);
+        assertEquals(1.5f, sample3.f, 0f);
+        assertEquals(-Math.PI, sample3.d, 0d);
+        assertEquals(42, sample3.getHidden());
+        assertEquals(coder, _persistit.getCoderManager().getValueCoder(Sample.class));
+        System.out.println("- done");
+    }
+
     public boolean equals(final Object a, final Object b) {
         if ((a == null) || (b == null)) {
             return a == b;